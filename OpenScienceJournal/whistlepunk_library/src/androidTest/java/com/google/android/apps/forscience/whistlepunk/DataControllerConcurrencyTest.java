@@ -0,0 +1,168 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.google.android.apps.forscience.javalib.MaybeConsumer;
+import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableSensor;
+import com.google.android.apps.forscience.whistlepunk.sensordb.BatchingScalarWriter;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingBatch;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabaseImpl;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.android.apps.forscience.whistlepunk.sensors.SystemScheduler;
+import com.google.common.collect.Range;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that reviewing stored data doesn't wait on a recording in progress.
+ */
+public class DataControllerConcurrencyTest extends InstrumentationTestCase {
+    private static final String TAG = "DataControllerConcurrency";
+    private static final String TEST_DATABASE_NAME = "concurrency_sensors.db";
+
+    // Far longer than a read of REVIEW_WINDOW readings takes on its own, on any device.
+    private static final long MAX_READ_MILLIS = 1000;
+    private static final int REVIEWED_READINGS = 100000;
+    private static final int REVIEW_WINDOW = 5000;
+    private static final int LIVE_READINGS_PER_MILLI = 10;
+
+    private ExecutorService mSensorDataThread;
+    private ExecutorService mSensorReadThread;
+
+    public void setUp() {
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+        mSensorDataThread = Executors.newSingleThreadExecutor();
+        mSensorReadThread = Executors.newFixedThreadPool(2);
+    }
+
+    public void tearDown() {
+        mSensorDataThread.shutdownNow();
+        mSensorReadThread.shutdownNow();
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+    }
+
+    public void testReadsWhileRecording_latencyIsBounded() throws Exception {
+        SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
+        ScalarReadingBatch batch = new ScalarReadingBatch();
+        for (int i = 0; i < REVIEWED_READINGS; i++) {
+            batch.add("reviewed", 0, i, i);
+        }
+        db.addScalarReadings(batch);
+
+        Map<String, SensorProvider> providers = new HashMap<>();
+        final DataControllerImpl dc = new DataControllerImpl.Builder(db,
+                MoreExecutors.directExecutor(), MoreExecutors.directExecutor(), mSensorDataThread,
+                new MemoryMetadataManager(), new CurrentTimeClock(), providers,
+                new ConnectableSensor.Connector(providers))
+                .setSensorReadThread(mSensorReadThread)
+                .setBatching(BatchingScalarWriter.DEFAULT_MAX_BATCH_SIZE,
+                        BatchingScalarWriter.DEFAULT_MAX_BATCH_AGE_MILLIS, new SystemScheduler())
+                .build();
+
+        // Several fast sensors' worth of readings, for as long as the reads take.
+        final AtomicInteger liveCount = new AtomicInteger();
+        final CountDownLatch stopRecording = new CountDownLatch(1);
+        Thread recorder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!stopRecording.await(1, TimeUnit.MILLISECONDS)) {
+                        for (int i = 0; i < LIVE_READINGS_PER_MILLI; i++) {
+                            int count = liveCount.getAndIncrement();
+                            dc.addScalarReading("live", 0, count, count);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Stop recording.
+                }
+            }
+        });
+        recorder.start();
+
+        long maxMillis = 0;
+        long totalMillis = 0;
+        int reads = 20;
+        try {
+            for (int i = 0; i < reads; i++) {
+                long first = (long) i * (REVIEWED_READINGS - REVIEW_WINDOW) / reads;
+                long start = SystemClock.elapsedRealtime();
+                ScalarReadingList readings = read(dc, "reviewed",
+                        Range.closedOpen(first, first + REVIEW_WINDOW));
+                long elapsed = SystemClock.elapsedRealtime() - start;
+                assertEquals(REVIEW_WINDOW, readings.size());
+                maxMillis = Math.max(maxMillis, elapsed);
+                totalMillis += elapsed;
+            }
+        } finally {
+            stopRecording.countDown();
+            recorder.join();
+        }
+        Log.i(TAG, reads + " reads of " + REVIEW_WINDOW + " readings while recording: "
+                + (totalMillis / reads) + " ms average, " + maxMillis + " ms max, "
+                + liveCount.get() + " readings recorded");
+        assertTrue("Slowest read took " + maxMillis + " ms", maxMillis < MAX_READ_MILLIS);
+
+        // A read still sees every reading added before it.
+        assertEquals(liveCount.get(),
+                read(dc, "live", Range.<Long>all()).size());
+    }
+
+    private ScalarReadingList read(DataController dc, String tag, Range<Long> range)
+            throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<ScalarReadingList> result = new AtomicReference<>();
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        dc.getScalarReadings(tag, 0, TimeRange.oldest(range), 0,
+                new MaybeConsumer<ScalarReadingList>() {
+                    @Override
+                    public void success(ScalarReadingList value) {
+                        result.set(value);
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void fail(Exception e) {
+                        error.set(e);
+                        done.countDown();
+                    }
+                });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return result.get();
+    }
+
+    private Context getContext() {
+        return getInstrumentation().getTargetContext();
+    }
+}
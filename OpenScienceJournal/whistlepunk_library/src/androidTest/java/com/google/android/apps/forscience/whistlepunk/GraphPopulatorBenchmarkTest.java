@@ -0,0 +1,145 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableSensor;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
+import com.google.android.apps.forscience.whistlepunk.sensordb.BatchingScalarWriter;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingBatch;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingPage;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabaseImpl;
+import com.google.android.apps.forscience.whistlepunk.sensors.SystemScheduler;
+import com.google.common.collect.Range;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-device measurement of how long a run review chart takes to show its first page and to load
+ * completely, for trials of 10k to 1M tier-0 readings, through {@link GraphPopulator}.  Makes no
+ * assertions about speed; results are written to logcat under {@link #TAG}.
+ */
+public class GraphPopulatorBenchmarkTest extends InstrumentationTestCase {
+    private static final String TAG = "GraphPopulatorBenchmark";
+    private static final String TEST_DATABASE_NAME = "graph_populator_sensors.db";
+    private static final String SENSOR_TAG = "sensor";
+    private static final int[] READING_COUNTS = {10000, 100000, 1000000};
+    private static final long READING_INTERVAL_MILLIS = 10;
+    // The old page size, for comparison, and the current one.
+    private static final int[] PAGE_SIZES = {100, 500};
+
+    public void setUp() {
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+    }
+
+    public void tearDown() {
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+    }
+
+    public void testLoad_firstDrawAndComplete() throws Exception {
+        for (int readingCount : READING_COUNTS) {
+            getContext().deleteDatabase(TEST_DATABASE_NAME);
+            SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
+            ScalarReadingBatch batch = new ScalarReadingBatch();
+            for (int i = 0; i < readingCount; i++) {
+                batch.add(SENSOR_TAG, 0, i * READING_INTERVAL_MILLIS, Math.sin(i / 100.0));
+                if (batch.size() == BatchingScalarWriter.DEFAULT_MAX_BATCH_SIZE) {
+                    db.addScalarReadings(batch);
+                    batch.clear();
+                }
+            }
+            db.addScalarReadings(batch);
+
+            long last = (readingCount - 1) * READING_INTERVAL_MILLIS;
+            // Looking at a tenth of the trial, in the middle.
+            Range<Long> visible = Range.closed(last * 9 / 20, last * 11 / 20);
+            for (int pageSize : PAGE_SIZES) {
+                timeLoad(db, readingCount, pageSize, Range.closed(0L, last), visible);
+            }
+        }
+    }
+
+    private void timeLoad(SensorDatabaseImpl db, final int readingCount, int pageSize,
+            Range<Long> trial, Range<Long> visible) throws Exception {
+        // Results come back on this thread, as they would on the UI thread.
+        ExecutorService uiThread = Executors.newSingleThreadExecutor();
+        ExecutorService sensorReadThreads = Executors.newFixedThreadPool(2);
+        Map<String, SensorProvider> providers = new HashMap<>();
+        final DataControllerImpl dc = new DataControllerImpl.Builder(db, uiThread, uiThread,
+                Executors.newSingleThreadExecutor(), new MemoryMetadataManager(),
+                new CurrentTimeClock(), providers, new ConnectableSensor.Connector(providers))
+                .setSensorReadThread(sensorReadThreads)
+                .setBatching(BatchingScalarWriter.DEFAULT_MAX_BATCH_SIZE,
+                        BatchingScalarWriter.DEFAULT_MAX_BATCH_AGE_MILLIS, new SystemScheduler())
+                .build();
+
+        final ChartData chartData = new ChartData();
+        final long[] firstDrawMillis = {-1};
+        final CountDownLatch finished = new CountDownLatch(1);
+        final long start = SystemClock.elapsedRealtime();
+        final GraphPopulator populator = new GraphPopulator(
+                new GraphPopulator.ObservationDisplay() {
+                    @Override
+                    public void addRange(ScalarReadingPage observations,
+                            Range<Double> valueRange, long requestId) {
+                        if (firstDrawMillis[0] < 0) {
+                            firstDrawMillis[0] = SystemClock.elapsedRealtime() - start;
+                        }
+                        chartData.addOrderedGroupOfPoints(observations.getTimestamps(),
+                                observations.getValues(), observations.size());
+                    }
+
+                    @Override
+                    public void onFinish(long requestId) {
+                        finished.countDown();
+                    }
+                }, new CurrentTimeClock(), pageSize);
+        final GraphPopulator.GraphStatus status = GraphPopulator.constantGraphStatus(
+                trial.lowerEndpoint(), trial.upperEndpoint());
+        final Range<Long> visibleTimes = visible;
+        uiThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                populator.requestObservations(status, dc, new FailureListener() {
+                    @Override
+                    public void fail(Exception e) {
+                        Log.e(TAG, "Load failed", e);
+                        finished.countDown();
+                    }
+                }, 0, SENSOR_TAG, visibleTimes);
+            }
+        });
+        assertTrue(finished.await(10, TimeUnit.MINUTES));
+        long completeMillis = SystemClock.elapsedRealtime() - start;
+        uiThread.shutdown();
+        sensorReadThreads.shutdown();
+
+        assertEquals(readingCount, chartData.getNumPoints());
+        Log.i(TAG, readingCount + " readings, pages of " + pageSize + ": first draw "
+                + firstDrawMillis[0] + " ms, complete " + completeMillis + " ms");
+    }
+}
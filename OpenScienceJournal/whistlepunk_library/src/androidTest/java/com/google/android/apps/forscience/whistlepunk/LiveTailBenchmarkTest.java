@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.google.android.apps.forscience.javalib.MaybeConsumer;
+import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableSensor;
+import com.google.android.apps.forscience.whistlepunk.sensordb.BatchingScalarWriter;
+import com.google.android.apps.forscience.whistlepunk.sensordb.LiveTailCache;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingPage;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabaseImpl;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StripedExecutor;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.android.apps.forscience.whistlepunk.sensors.SystemScheduler;
+import com.google.common.collect.Range;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * On-device measurement of how long a live chart takes to get its data back when its card
+ * resumes, with and without the {@link LiveTailCache}.  Makes no assertions about speed; results
+ * are written to logcat under {@link #TAG}.
+ */
+public class LiveTailBenchmarkTest extends InstrumentationTestCase {
+    private static final String TAG = "LiveTailBenchmark";
+    private static final String TEST_DATABASE_NAME = "live_tail_sensors.db";
+
+    private static final int SENSOR_COUNT = 4;
+    private static final long READING_INTERVAL_MILLIS = 20;
+    // Three minutes recorded, then the chart's last minute reloaded a page at a time.
+    private static final long RECORDED_MILLIS = TimeUnit.MINUTES.toMillis(3);
+    private static final long RELOADED_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int PAGE_SIZE = 500;
+    private static final int RESUMES = 20;
+
+    public void setUp() {
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+    }
+
+    public void tearDown() {
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+    }
+
+    public void testResumeLoad_withAndWithoutLiveTail() throws Exception {
+        long withoutMillis = timeResumes(new LiveTailCache(LiveTailCache.DEFAULT_WINDOW_MILLIS,
+                LiveTailCache.DEFAULT_TIER_ZERO_SLOTS, 0));
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+        long withMillis = timeResumes(new LiveTailCache());
+        Log.i(TAG, "reloading the last " + RELOADED_MILLIS + " ms of " + SENSOR_COUNT
+                + " sensors: " + (withoutMillis / RESUMES) + " ms from the database, "
+                + (withMillis / RESUMES) + " ms with the live tail");
+    }
+
+    /**
+     * @return total milliseconds from asking for each resume's data to having all of it
+     */
+    private long timeResumes(LiveTailCache liveTail) throws Exception {
+        StripedExecutor sensorDataThreads = StripedExecutor.newFixedLanes(2);
+        ExecutorService sensorReadThread = Executors.newFixedThreadPool(2);
+        Map<String, SensorProvider> providers = new HashMap<>();
+        DataControllerImpl dc = new DataControllerImpl.Builder(
+                new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME),
+                MoreExecutors.directExecutor(), MoreExecutors.directExecutor(),
+                sensorDataThreads, new MemoryMetadataManager(), new CurrentTimeClock(),
+                providers, new ConnectableSensor.Connector(providers))
+                .setSensorReadThread(sensorReadThread)
+                .setBatching(BatchingScalarWriter.DEFAULT_MAX_BATCH_SIZE,
+                        BatchingScalarWriter.DEFAULT_MAX_BATCH_AGE_MILLIS, new SystemScheduler())
+                .setLiveTail(liveTail)
+                .build();
+
+        long now = 0;
+        for (; now < RECORDED_MILLIS; now += READING_INTERVAL_MILLIS) {
+            record(dc, now);
+        }
+
+        long totalMillis = 0;
+        ScalarReadingPage page = new ScalarReadingPage(PAGE_SIZE);
+        for (int resume = 0; resume < RESUMES; resume++) {
+            // Recording goes on between resumes, so some of it is always waiting to be written.
+            for (int i = 0; i < 50; i++, now += READING_INTERVAL_MILLIS) {
+                record(dc, now);
+            }
+            long start = SystemClock.elapsedRealtime();
+            int loaded = 0;
+            for (int sensor = 0; sensor < SENSOR_COUNT; sensor++) {
+                long from = now - RELOADED_MILLIS;
+                do {
+                    loadPage(dc, "sensor" + sensor, from, page);
+                    loaded += page.size();
+                    if (!page.isEmpty()) {
+                        from = page.getLastTimestampMillis() + 1;
+                    }
+                } while (page.isFull());
+            }
+            totalMillis += SystemClock.elapsedRealtime() - start;
+            assertEquals(SENSOR_COUNT * RELOADED_MILLIS / READING_INTERVAL_MILLIS, loaded);
+        }
+
+        sensorReadThread.shutdown();
+        for (int i = 0; i < sensorDataThreads.getLaneCount(); i++) {
+            ((ExecutorService) sensorDataThreads.getLane(i)).shutdown();
+        }
+        return totalMillis;
+    }
+
+    private void record(DataControllerImpl dc, long timestampMillis) {
+        for (int sensor = 0; sensor < SENSOR_COUNT; sensor++) {
+            dc.addScalarReading("sensor" + sensor, 0, timestampMillis,
+                    Math.sin(timestampMillis / 1000.0) + sensor);
+        }
+    }
+
+    private void loadPage(DataController dc, String tag, long from, ScalarReadingPage page)
+            throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        dc.getScalarReadingPage(tag, 0, TimeRange.oldest(Range.atLeast(from)), page,
+                new MaybeConsumer<ScalarReadingPage>() {
+                    @Override
+                    public void success(ScalarReadingPage value) {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void fail(Exception e) {
+                        error.set(e);
+                        done.countDown();
+                    }
+                });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    private Context getContext() {
+        return getInstrumentation().getTargetContext();
+    }
+}
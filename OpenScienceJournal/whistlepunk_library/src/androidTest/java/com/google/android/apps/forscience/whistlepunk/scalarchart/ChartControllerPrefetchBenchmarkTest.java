@@ -0,0 +1,292 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.whistlepunk.CurrentTimeClock;
+import com.google.android.apps.forscience.whistlepunk.DataControllerImpl;
+import com.google.android.apps.forscience.whistlepunk.SensorProvider;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
+import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableSensor;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.android.apps.forscience.whistlepunk.sensordb.BatchingScalarWriter;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarBlockCache;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingBatch;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabaseImpl;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.android.apps.forscience.whistlepunk.sensors.SystemScheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-device measurement of how often run review loads are answered from the
+ * {@link ScalarBlockCache}, and how long each axis change takes to finish loading, over scripted
+ * pan and zoom sessions: with no cache, with the cache alone, and with prefetching.  Makes no
+ * assertions about speed; results are written to logcat under {@link #TAG}.
+ */
+public class ChartControllerPrefetchBenchmarkTest extends InstrumentationTestCase {
+    private static final String TAG = "PrefetchBenchmark";
+    private static final String TEST_DATABASE_NAME = "prefetch_benchmark_sensors.db";
+    private static final String SENSOR_TAG = "sensor";
+    private static final String RUN_ID = "run";
+
+    // An hour at 100 readings a second, with two tiers above.
+    private static final int READING_COUNT = 360000;
+    private static final long READING_INTERVAL_MILLIS = 10;
+    private static final int ZOOM_LEVEL_BETWEEN_TIERS = 20;
+    private static final int TIER_COUNT = 3;
+    private static final long TRIAL_MILLIS = READING_COUNT * READING_INTERVAL_MILLIS;
+
+    // Two minutes in the middle of the trial.
+    private static final long START_RANGE_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    private static final int STEPS = 60;
+    private static final long FRAME_MILLIS = 16;
+
+    private SensorDatabaseImpl mDatabase;
+
+    public void setUp() {
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+        mDatabase = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
+        ScalarReadingBatch batch = new ScalarReadingBatch();
+        for (int i = 0; i < READING_COUNT; i++) {
+            long timestamp = i * READING_INTERVAL_MILLIS;
+            double value = Math.sin(i / 1000.0);
+            batch.add(SENSOR_TAG, 0, timestamp, value);
+            for (int tier = 1, every = ZOOM_LEVEL_BETWEEN_TIERS; tier < TIER_COUNT;
+                    tier++, every *= ZOOM_LEVEL_BETWEEN_TIERS) {
+                if (i % every == 0) {
+                    batch.add(SENSOR_TAG, tier, timestamp, value);
+                }
+            }
+            if (batch.size() >= BatchingScalarWriter.DEFAULT_MAX_BATCH_SIZE) {
+                mDatabase.addScalarReadings(batch);
+                batch.clear();
+            }
+        }
+        mDatabase.addScalarReadings(batch);
+    }
+
+    public void tearDown() {
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+    }
+
+    public void testPanForwardAndBack() throws Exception {
+        long[][] axes = new long[2 * STEPS][];
+        long xMin = (TRIAL_MILLIS - START_RANGE_MILLIS) / 2;
+        for (int i = 0; i < axes.length; i++) {
+            xMin += (i < STEPS ? 1 : -1) * START_RANGE_MILLIS / 10;
+            axes[i] = new long[]{xMin, xMin + START_RANGE_MILLIS};
+        }
+        runSessions("pan", axes);
+    }
+
+    public void testZoomOutAndIn() throws Exception {
+        long[][] axes = new long[2 * STEPS][];
+        long center = TRIAL_MILLIS / 2;
+        double range = START_RANGE_MILLIS;
+        for (int i = 0; i < axes.length; i++) {
+            range = i < STEPS ? range * 1.05 : range / 1.05;
+            long halfRange = Math.min((long) (range / 2), center);
+            axes[i] = new long[]{center - halfRange, center + halfRange};
+        }
+        runSessions("zoom", axes);
+    }
+
+    private void runSessions(String name, long[][] axes) throws Exception {
+        runSession(name + ", no cache", axes, 0, false);
+        runSession(name + ", cache", axes, ScalarBlockCache.DEFAULT_MAX_BYTES, false);
+        runSession(name + ", cache and prefetch", axes, ScalarBlockCache.DEFAULT_MAX_BYTES, true);
+    }
+
+    private void runSession(String name, long[][] axes, long cacheBytes, final boolean prefetch)
+            throws Exception {
+        // Results come back on this thread, as they would on the UI thread.
+        final ExecutorService uiThread = Executors.newSingleThreadExecutor();
+        ExecutorService sensorReadThreads = Executors.newFixedThreadPool(2);
+        Map<String, SensorProvider> providers = new HashMap<>();
+        ScalarBlockCache blockCache = new ScalarBlockCache(
+                ScalarBlockCache.DEFAULT_TIER_ZERO_BLOCK_MILLIS, ZOOM_LEVEL_BETWEEN_TIERS,
+                cacheBytes);
+        final DataControllerImpl dc = new DataControllerImpl(new DataControllerImpl.Builder(
+                mDatabase, uiThread, uiThread, Executors.newSingleThreadExecutor(),
+                new MemoryMetadataManager(), new CurrentTimeClock(), providers,
+                new ConnectableSensor.Connector(providers))
+                .setSensorReadThread(sensorReadThreads)
+                .setBatching(BatchingScalarWriter.DEFAULT_MAX_BATCH_SIZE,
+                        BatchingScalarWriter.DEFAULT_MAX_BATCH_AGE_MILLIS, new SystemScheduler())
+                .setBlockCache(blockCache)) {
+            @Override
+            public void prefetchScalarReadings(String databaseTag, int resolutionTier,
+                    TimeRange timeRange) {
+                if (prefetch) {
+                    super.prefetchScalarReadings(databaseTag, resolutionTier, timeRange);
+                }
+            }
+        };
+        final ChartController chart = new ChartController(
+                ChartOptions.ChartPlacementType.TYPE_RUN_REVIEW, new ScalarDisplayOptions(),
+                ChartData.DEFAULT_THROWAWAY_THRESHOLD, 0, new CurrentTimeClock(),
+                new FailureListener() {
+                    @Override
+                    public void fail(Exception e) {
+                        Log.e(TAG, "Load failed", e);
+                    }
+                });
+        final LoadCounter loads = new LoadCounter();
+        chart.addChartDataLoadedCallback(loads);
+
+        // Show the whole trial, then the first axis, before counting anything.
+        uiThread.submit(new Runnable() {
+            @Override
+            public void run() {
+                GoosciSensorLayout.SensorLayout layout = new GoosciSensorLayout.SensorLayout();
+                layout.sensorId = SENSOR_TAG;
+                chart.loadRunData(makeTrial(), layout, dc, makeStatus(), makeStats(), null,
+                        null);
+            }
+        }).get();
+        waitForLoads(uiThread, loads);
+        axisChanged(uiThread, chart, dc, axes[0]);
+        waitForLoads(uiThread, loads);
+        int hitsBefore = blockCache.getHitCount();
+        int missesBefore = blockCache.getMissCount();
+
+        List<Long> latencies = new ArrayList<>();
+        for (int i = 1; i < axes.length; i++) {
+            long start = SystemClock.elapsedRealtime();
+            axisChanged(uiThread, chart, dc, axes[i]);
+            waitForLoads(uiThread, loads);
+            latencies.add(SystemClock.elapsedRealtime() - start);
+            // Gestures leave some time between frames.
+            SystemClock.sleep(FRAME_MILLIS);
+        }
+        uiThread.shutdown();
+        sensorReadThreads.shutdown();
+
+        int hits = blockCache.getHitCount() - hitsBefore;
+        int misses = blockCache.getMissCount() - missesBefore;
+        Collections.sort(latencies);
+        long total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+        Log.i(TAG, name + ": " + hits + " hits, " + misses + " misses ("
+                + (hits + misses == 0 ? 0 : 100 * hits / (hits + misses)) + "%), "
+                + blockCache.getPrefetchedBlockCount() + " blocks prefetched; load latency mean "
+                + total / latencies.size() + " ms, 95th percentile "
+                + latencies.get(latencies.size() * 95 / 100) + " ms, max "
+                + latencies.get(latencies.size() - 1) + " ms");
+    }
+
+    private void axisChanged(ExecutorService uiThread, final ChartController chart,
+            final DataControllerImpl dc, final long[] axis) throws Exception {
+        uiThread.submit(new Runnable() {
+            @Override
+            public void run() {
+                chart.onGlobalXAxisChanged(axis[0], axis[1], false, dc);
+            }
+        }).get();
+    }
+
+    private void waitForLoads(ExecutorService uiThread, final LoadCounter loads)
+            throws Exception {
+        while (!uiThread.submit(loads::isIdle).get()) {
+            SystemClock.sleep(1);
+        }
+    }
+
+    private static Trial makeTrial() {
+        GoosciTrial.Trial trialProto = new GoosciTrial.Trial();
+        trialProto.trialId = RUN_ID;
+        trialProto.recordingRange = new GoosciTrial.Range();
+        trialProto.recordingRange.startMs = 0;
+        trialProto.recordingRange.endMs = TRIAL_MILLIS - READING_INTERVAL_MILLIS;
+        return Trial.fromTrial(trialProto);
+    }
+
+    private static TrialStats makeStats() {
+        TrialStats stats = new TrialStats(SENSOR_TAG);
+        stats.putStat(GoosciTrial.SensorStat.TOTAL_DURATION, TRIAL_MILLIS);
+        stats.putStat(GoosciTrial.SensorStat.NUM_DATA_POINTS, READING_COUNT);
+        stats.putStat(GoosciTrial.SensorStat.ZOOM_PRESENTER_TIER_COUNT, TIER_COUNT);
+        stats.putStat(GoosciTrial.SensorStat.ZOOM_PRESENTER_ZOOM_LEVEL_BETWEEN_TIERS,
+                ZOOM_LEVEL_BETWEEN_TIERS);
+        return stats;
+    }
+
+    private static ChartController.ChartLoadingStatus makeStatus() {
+        return new ChartController.ChartLoadingStatus() {
+            private int mStatus = GRAPH_LOAD_STATUS_IDLE;
+
+            @Override
+            public int getGraphLoadStatus() {
+                return mStatus;
+            }
+
+            @Override
+            public void setGraphLoadStatus(int graphLoadStatus) {
+                mStatus = graphLoadStatus;
+            }
+
+            @Override
+            public String getRunId() {
+                return RUN_ID;
+            }
+
+            @Override
+            public String getSensorId() {
+                return SENSOR_TAG;
+            }
+        };
+    }
+
+    /**
+     * Counts loads started and finished; only touched on the UI thread.
+     */
+    private static class LoadCounter implements ChartController.ChartDataLoadedCallback {
+        private int mStarted = 0;
+        private int mFinished = 0;
+
+        @Override
+        public void onChartDataLoaded(long firstTimestamp, long lastTimestamp) {
+            mFinished++;
+        }
+
+        @Override
+        public void onLoadAttemptStarted(boolean chartHiddenForLoad) {
+            mStarted++;
+        }
+
+        boolean isIdle() {
+            return mFinished >= mStarted;
+        }
+    }
+}
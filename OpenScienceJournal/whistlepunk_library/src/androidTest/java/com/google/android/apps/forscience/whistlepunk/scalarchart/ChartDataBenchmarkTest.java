@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+/**
+ * Times the {@link ChartData} operations a live chart does most: adding points, searching for
+ * the range to draw, and throwing away points that have scrolled off, at 100k points and more.
+ * Makes no assertions about speed; results are written to logcat under {@link #TAG}.
+ */
+public class ChartDataBenchmarkTest extends InstrumentationTestCase {
+    private static final String TAG = "ChartDataBenchmark";
+    private static final int[] POINT_COUNTS = {100000, 400000};
+    private static final int SEARCHES = 100000;
+    // Trims the way ChartController does while recording: a few points at a time off the front,
+    // as new ones arrive.
+    private static final int POINTS_PER_TRIM = 100;
+
+    public void testAddSearchTrim() {
+        for (int pointCount : POINT_COUNTS) {
+            // Trims whenever asked, rather than waiting to have enough to throw away.
+            ChartData data = new ChartData(0, ChartData.DEFAULT_THROWAWAY_TIME_THRESHOLD);
+
+            long start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < pointCount; i++) {
+                data.addPoint(i * 10, Math.sin(i / 50.0));
+            }
+            long addMillis = SystemClock.elapsedRealtime() - start;
+
+            start = SystemClock.elapsedRealtime();
+            long found = 0;
+            for (int i = 0; i < SEARCHES; i++) {
+                long x = (i * 7919L % pointCount) * 10;
+                int first = data.getFirstIndexInRange(x);
+                found += data.getLastIndexInRange(x + 5000, first) - first;
+                found += data.getClosestIndexToTimestamp(x + 3);
+            }
+            long searchMillis = SystemClock.elapsedRealtime() - start;
+
+            start = SystemClock.elapsedRealtime();
+            int trims = 0;
+            while (data.getNumPoints() > POINTS_PER_TRIM) {
+                data.throwAwayBefore(data.getXMin() + POINTS_PER_TRIM * 10);
+                data.addPoint(data.getXMax() + 10, 0);
+                trims++;
+            }
+            long trimMillis = SystemClock.elapsedRealtime() - start;
+
+            assertTrue(found > 0);
+            Log.i(TAG, pointCount + " points: add " + addMillis + " ms, " + SEARCHES
+                    + " range and closest searches " + searchMillis + " ms, " + trims
+                    + " trims of " + POINTS_PER_TRIM + " points " + trimMillis + " ms");
+        }
+    }
+}
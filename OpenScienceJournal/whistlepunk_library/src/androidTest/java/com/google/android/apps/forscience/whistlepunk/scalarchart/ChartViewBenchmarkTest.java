@@ -0,0 +1,213 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.view.View;
+
+import com.google.android.apps.forscience.whistlepunk.R;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Times drawing a run review chart of 1k to 1M points, through {@link ChartView} and, for
+ * comparison, as a path through every point.  Also counts the pixels in which a path through the
+ * points kept by {@link ColumnDecimator} differs from one through every point, drawn the same
+ * way, and measures the time spent on the UI thread while pinch-zooming a long trial.  Makes no
+ * assertions about speed; results are written to logcat under {@link #TAG}.
+ */
+public class ChartViewBenchmarkTest extends InstrumentationTestCase {
+    private static final String TAG = "ChartViewBenchmark";
+    private static final int[] POINT_COUNTS = {1000, 100000, 1000000};
+    private static final int FRAMES = 20;
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 600;
+    private static final int ZOOM_POINT_COUNT = 1000000;
+    private static final int ZOOM_FRAMES = 120;
+    private static final long FRAME_MILLIS = 16;
+
+    public void testDrawFrames() {
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Bitmap fullBitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Canvas fullCanvas = new Canvas(fullBitmap);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeCap(Paint.Cap.ROUND);
+        paint.setStrokeWidth(getContext().getResources().getDimensionPixelSize(
+                R.dimen.graph_line_width));
+
+        for (int pointCount : POINT_COUNTS) {
+            ChartData data = new ChartData();
+            for (int i = 0; i < pointCount; i++) {
+                data.addPoint(i * 10, Math.sin(i / 100.0) + Math.sin(i * 0.37) / 4);
+            }
+            long xMax = data.getXMax();
+
+            ChartOptions options = new ChartOptions(
+                    ChartOptions.ChartPlacementType.TYPE_RUN_REVIEW);
+            options.setRenderedXRange(0, xMax);
+            options.setRenderedYRange(-2, 2);
+            // Builds the line as it is asked for, so that each frame includes building it.
+            ChartView view = makeView(options, data, MoreExecutors.directExecutor(),
+                    MoreExecutors.directExecutor());
+
+            long start = SystemClock.elapsedRealtime();
+            for (int frame = 0; frame < FRAMES; frame++) {
+                view.redraw();
+                view.draw(canvas);
+            }
+            long chartViewMillis = SystemClock.elapsedRealtime() - start;
+
+            Path path = new Path();
+            start = SystemClock.elapsedRealtime();
+            for (int frame = 0; frame < FRAMES; frame++) {
+                path.reset();
+                path.moveTo(screenX(data.getX(0), xMax), screenY(data.getY(0)));
+                for (int i = 1; i < pointCount; i++) {
+                    path.lineTo(screenX(data.getX(i), xMax), screenY(data.getY(i)));
+                }
+                fullCanvas.drawColor(Color.WHITE);
+                fullCanvas.drawPath(path, paint);
+            }
+            long everyPointMillis = SystemClock.elapsedRealtime() - start;
+
+            ColumnDecimator decimator = new ColumnDecimator();
+            decimator.decimate(data, 0, pointCount - 1, 0, xMax, WIDTH, 0);
+            path.reset();
+            path.moveTo(screenX(decimator.getX(0), xMax), screenY(decimator.getY(0)));
+            for (int i = 1; i < decimator.size(); i++) {
+                path.lineTo(screenX(decimator.getX(i), xMax), screenY(decimator.getY(i)));
+            }
+            canvas.drawColor(Color.WHITE);
+            canvas.drawPath(path, paint);
+
+            Log.i(TAG, pointCount + " points: ChartView " + chartViewMillis / (float) FRAMES
+                    + " ms per frame, every point " + everyPointMillis / (float) FRAMES
+                    + " ms per frame; " + decimator.size() + " points kept, "
+                    + countDifferentPixels(bitmap, fullBitmap) + " pixels differ");
+        }
+    }
+
+    public void testPinchZoom() {
+        ChartData data = new ChartData();
+        for (int i = 0; i < ZOOM_POINT_COUNT; i++) {
+            data.addPoint(i * 10, Math.sin(i / 100.0) + Math.sin(i * 0.37) / 4);
+        }
+        Canvas canvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+
+        // Building on this thread, as the chart did before, then on the chart's build thread.
+        zoom("on the UI thread", data, canvas, MoreExecutors.directExecutor());
+        zoom("in the background", data, canvas, LineGeometryBuilder.getSharedBuildExecutor());
+    }
+
+    /**
+     * Zooms from the whole trial in to a twentieth of it, a frame at a time, with this thread
+     * standing in for the UI thread.
+     */
+    private void zoom(String description, ChartData data, Canvas canvas,
+            Executor buildExecutor) {
+        final ConcurrentLinkedQueue<Runnable> uiQueue = new ConcurrentLinkedQueue<>();
+        Executor uiExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                uiQueue.add(command);
+            }
+        };
+        long xMax = data.getXMax();
+        ChartOptions options = new ChartOptions(ChartOptions.ChartPlacementType.TYPE_RUN_REVIEW);
+        options.setRenderedXRange(0, xMax);
+        options.setRenderedYRange(-2, 2);
+        ChartView view = makeView(options, data, buildExecutor, uiExecutor);
+        runAll(uiQueue);
+
+        long totalMillis = 0;
+        long worstMillis = 0;
+        int jankFrames = 0;
+        for (int frame = 1; frame <= ZOOM_FRAMES; frame++) {
+            long frameStart = SystemClock.elapsedRealtime();
+            runAll(uiQueue);
+            long span = xMax - xMax * 19 / 20 * frame / ZOOM_FRAMES;
+            long center = xMax / 2;
+            options.setRenderedXRange(center - span / 2, center + span / 2);
+            view.onAxisLimitsAdjusted();
+            view.draw(canvas);
+            long frameMillis = SystemClock.elapsedRealtime() - frameStart;
+
+            totalMillis += frameMillis;
+            worstMillis = Math.max(worstMillis, frameMillis);
+            if (frameMillis > FRAME_MILLIS) {
+                jankFrames++;
+            }
+            // Leave the rest of the frame to the build thread.
+            SystemClock.sleep(Math.max(0, FRAME_MILLIS - frameMillis));
+        }
+        Log.i(TAG, "Pinch-zooming " + data.getNumPoints() + " points, building " + description
+                + ": " + totalMillis + " ms on the UI thread over " + ZOOM_FRAMES + " frames, "
+                + "worst frame " + worstMillis + " ms, " + jankFrames + " frames over "
+                + FRAME_MILLIS + " ms");
+    }
+
+    private ChartView makeView(ChartOptions options, ChartData data, Executor buildExecutor,
+            Executor uiExecutor) {
+        ChartView view = new ChartView(getContext());
+        view.setGeometryExecutors(buildExecutor, uiExecutor);
+        view.initialize(options, data);
+        view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, WIDTH, HEIGHT);
+        return view;
+    }
+
+    private static void runAll(ConcurrentLinkedQueue<Runnable> queue) {
+        Runnable next;
+        while ((next = queue.poll()) != null) {
+            next.run();
+        }
+    }
+
+    private static float screenX(long x, long xMax) {
+        return (1.0f * x) / xMax * WIDTH;
+    }
+
+    private static float screenY(double y) {
+        return (float) (HEIGHT * (1 - (y + 2) / 4));
+    }
+
+    private static int countDifferentPixels(Bitmap a, Bitmap b) {
+        int[] aPixels = new int[WIDTH * HEIGHT];
+        int[] bPixels = new int[WIDTH * HEIGHT];
+        a.getPixels(aPixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        b.getPixels(bPixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        int different = 0;
+        for (int i = 0; i < aPixels.length; i++) {
+            if (aPixels[i] != bPixels[i]) {
+                different++;
+            }
+        }
+        return different;
+    }
+}
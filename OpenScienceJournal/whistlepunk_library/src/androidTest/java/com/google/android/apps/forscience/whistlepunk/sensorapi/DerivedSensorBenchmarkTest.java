@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures what it costs to compute typical derived sensors, per input sample.  No assertions are
+ * made about speed; results are written to logcat under {@link #TAG}.
+ */
+public class DerivedSensorBenchmarkTest extends InstrumentationTestCase {
+    private static final String TAG = "DerivedSensorBenchmark";
+    private static final int SAMPLE_COUNT = 300000;
+    private static final long MILLIS_BETWEEN_SAMPLES = 5;
+
+    public void testEvaluation_typicalExpressions() {
+        benchmark("magnitude", "sqrt(x*x + y*y + z*z)", Arrays.asList("x", "y", "z"));
+        benchmark("ratio", "a / b", Arrays.asList("a", "b"));
+        benchmark("smoothed", "smooth(a, 250)", Arrays.asList("a"));
+        benchmark("smoothed magnitude", "smooth(sqrt(x^2 + y^2 + z^2), 250)",
+                Arrays.asList("x", "y", "z"));
+    }
+
+    private void benchmark(String name, String expression, List<String> inputIds) {
+        DerivedSensorEngine engine = new DerivedSensorEngine();
+        final long[] computed = {0};
+        engine.attach("derived", DerivedExpression.parse(expression), inputIds, 100,
+                (timestampMillis, value) -> {
+                    computed[0]++;
+                    return true;
+                });
+
+        // Inputs take turns, as separate sensors reporting at the same rate do.
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            engine.onSample(inputIds.get(i % inputIds.size()), i * MILLIS_BETWEEN_SAMPLES,
+                    Math.sin(i / 100.0) + 2);
+        }
+        long elapsedNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        // A sensor that isn't an input costs only a lookup.
+        long unrelatedStart = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            engine.onSample("unrelated", i * MILLIS_BETWEEN_SAMPLES, i);
+        }
+        long unrelatedNanos = SystemClock.elapsedRealtimeNanos() - unrelatedStart;
+
+        Log.i(TAG, name + " (" + expression + "): " + elapsedNanos / SAMPLE_COUNT
+                + " ns per input sample, " + computed[0] + " values computed; unrelated sensor: "
+                + unrelatedNanos / SAMPLE_COUNT + " ns per sample");
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.view.Choreographer;
+
+import com.google.android.apps.forscience.whistlepunk.StatsAccumulator;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartController;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartOptions;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ScalarDisplayOptions;
+
+import java.text.DecimalFormat;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * On-device comparison of delivering live sensor values to the main thread one at a time versus
+ * once per frame.  No assertions are made about speed; results are written to logcat under
+ * {@link #TAG}.
+ */
+public class LiveDataDeliveryBenchmarkTest extends InstrumentationTestCase {
+    private static final String TAG = "LiveDataBenchmark";
+    private static final int SENSOR_COUNT = 4;
+    private static final int READINGS_PER_SECOND = 200;
+    private static final int SECONDS = 5;
+    private static final int READINGS_PER_SENSOR = READINGS_PER_SECOND * SECONDS;
+
+    // A frame is counted as dropped if it comes more than half a frame late at 60fps.
+    private static final long LATE_FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(25);
+
+    private interface Delivery {
+        void add(long timestampMillis, double value, SensorObserver.Data stats);
+    }
+
+    private interface DeliveryFactory {
+        Delivery create(SensorObserver observer);
+    }
+
+    public void testDelivery_postPerReadingVersusPerFrame() throws Exception {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        Executor uiThread = handler::post;
+
+        // What ScalarSensor used to do: one main-thread message per reading.
+        String perReading = run(observer -> (timestampMillis, value, stats) -> {
+            final SensorObserver.Data data = new SensorObserver.Data();
+            data.setValue(value);
+            data.min = stats.min;
+            data.max = stats.max;
+            data.average = stats.average;
+            handler.post(() -> observer.onNewData(timestampMillis, data));
+        });
+
+        String perFrame = run(observer -> {
+            FrameCoalescer coalescer =
+                    new FrameCoalescer(observer, uiThread, FrameCoalescer.everyFrame());
+            return coalescer::add;
+        });
+
+        Log.i(TAG, "post per reading: " + perReading);
+        Log.i(TAG, "coalesced per frame: " + perFrame);
+    }
+
+    private String run(DeliveryFactory factory) throws InterruptedException {
+        final AtomicInteger delivered = new AtomicInteger();
+        final Delivery[] deliveries = new Delivery[SENSOR_COUNT];
+        getInstrumentation().runOnMainSync(() -> {
+            for (int i = 0; i < SENSOR_COUNT; i++) {
+                deliveries[i] = factory.create(new CardObserver(delivered));
+            }
+        });
+
+        final FrameMonitor frames = new FrameMonitor();
+        final long[] cpuNanos = new long[1];
+        getInstrumentation().runOnMainSync(() -> {
+            cpuNanos[0] = Debug.threadCpuTimeNanos();
+            frames.start();
+        });
+
+        Thread[] sensors = new Thread[SENSOR_COUNT];
+        for (int i = 0; i < SENSOR_COUNT; i++) {
+            final Delivery delivery = deliveries[i];
+            sensors[i] = new Thread(() -> {
+                SensorObserver.Data stats = new SensorObserver.Data();
+                for (int j = 0; j < READINGS_PER_SENSOR; j++) {
+                    double value = Math.sin(j / 20.0);
+                    stats.min = Math.min(stats.min, value);
+                    stats.max = Math.max(stats.max, value);
+                    stats.average = value;
+                    delivery.add(SystemClock.uptimeMillis(), value, stats);
+                    SystemClock.sleep(1000 / READINGS_PER_SECOND);
+                }
+            });
+            sensors[i].start();
+        }
+        for (Thread sensor : sensors) {
+            sensor.join();
+        }
+
+        // Let the last frame's worth of values arrive.
+        SystemClock.sleep(100);
+        getInstrumentation().waitForIdleSync();
+        getInstrumentation().runOnMainSync(() -> {
+            cpuNanos[0] = Debug.threadCpuTimeNanos() - cpuNanos[0];
+            frames.stop();
+        });
+        assertEquals(SENSOR_COUNT * READINGS_PER_SENSOR, delivered.get());
+
+        return TimeUnit.NANOSECONDS.toMillis(cpuNanos[0]) + " ms main thread cpu, "
+                + frames.mDropped + " of " + frames.mFrames + " frames dropped";
+    }
+
+    /**
+     * Does roughly what a sensor card does with each value.  Must be created on the main thread.
+     */
+    private static class CardObserver implements ScalarBatchObserver {
+        private final ChartController mChartController = new ChartController(
+                ChartOptions.ChartPlacementType.TYPE_OBSERVE, new ScalarDisplayOptions());
+        private final StatsAccumulator.StatsDisplay mStatsDisplay =
+                new StatsAccumulator.StatsDisplay(new DecimalFormat());
+        private final AtomicInteger mDelivered;
+
+        CardObserver(AtomicInteger delivered) {
+            mDelivered = delivered;
+        }
+
+        @Override
+        public void onNewData(long timestamp, Data bundle) {
+            mChartController.addPoint(new ChartData.DataPoint(timestamp, bundle.getValue()));
+            mStatsDisplay.updateFromBundle(bundle);
+            mDelivered.incrementAndGet();
+        }
+
+        @Override
+        public void onNewBatch(ScalarBatch batch) {
+            mChartController.addPoints(batch.getTimestamps(), batch.getValues(), batch.size());
+            mStatsDisplay.updateFromBatch(batch);
+            mDelivered.addAndGet(batch.size());
+        }
+    }
+
+    /**
+     * Counts frames, and frames that came late.  Only touched on the main thread.
+     */
+    private static class FrameMonitor implements Choreographer.FrameCallback {
+        private long mLastFrameNanos = 0;
+        private boolean mRunning = false;
+        int mFrames = 0;
+        int mDropped = 0;
+
+        void start() {
+            mRunning = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        void stop() {
+            mRunning = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mLastFrameNanos != 0) {
+                mFrames++;
+                if (frameTimeNanos - mLastFrameNanos > LATE_FRAME_NANOS) {
+                    mDropped++;
+                }
+            }
+            mLastFrameNanos = frameTimeNanos;
+            if (mRunning) {
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the zoom tiers each {@link ZoomDecimation} builds from the same recording: how many
+ * readings each tier stores, and how far a chart drawn from each tier strays from one drawn from
+ * every reading.  No assertions are made about quality; results are written to logcat under
+ * {@link #TAG}.
+ */
+public class ZoomDecimationBenchmarkTest extends InstrumentationTestCase {
+    private static final String TAG = "ZoomDecimationBenchmark";
+    private static final int READING_COUNT = 200000;
+    private static final long MILLIS_BETWEEN_READINGS = 10;
+    // Roughly the width of a chart, in pixels.
+    private static final int COLUMNS = 500;
+
+    public void testDecimation_fidelityAndStorage() {
+        long[] timestamps = new long[READING_COUNT];
+        double[] values = new double[READING_COUNT];
+        fillWithSignal(timestamps, values);
+
+        for (ZoomDecimation decimation : new ZoomDecimation[]{ZoomDecimation.MIN_MAX,
+                ZoomDecimation.M4, ZoomDecimation.LARGEST_TRIANGLE, ZoomDecimation.AVERAGE}) {
+            TierCollector tiers = new TierCollector();
+            ZoomRecorder recorder = new ZoomRecorder("sensor", decimation,
+                    ScalarSensor.DEFAULT_ZOOM_LEVEL_BETWEEN_TIERS, 1);
+            long start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < READING_COUNT; i++) {
+                recorder.addData(timestamps[i], values[i], tiers);
+            }
+            recorder.flushAllTiers(tiers);
+            long elapsedMillis = SystemClock.elapsedRealtime() - start;
+
+            StringBuilder report = new StringBuilder();
+            int stored = 0;
+            for (int tier = 1; tier < tiers.mTiers.size(); tier++) {
+                List<ScalarReading> readings = tiers.mTiers.get(tier);
+                // Min/max pairs are written lowest first, not earliest first.
+                Collections.sort(readings);
+                stored += readings.size();
+                report.append("; tier ").append(tier).append(": ").append(readings.size())
+                        .append(" readings, max error ")
+                        .append(String.format("%.2f%%", 100 * envelopeError(timestamps, values,
+                                readings)));
+            }
+            Log.i(TAG, "decimation " + decimation.getType() + ": " + elapsedMillis
+                    + " ms, tiers above 0 add " + String.format("%.1f%%",
+                    100.0 * stored / READING_COUNT) + " to storage" + report);
+        }
+    }
+
+    /**
+     * Draws every reading and the tier's readings into the same {@link #COLUMNS} columns, as
+     * line charts do, and compares the lowest and highest point drawn in each column.
+     *
+     * @return the largest difference, as a fraction of the range of values
+     */
+    private static double envelopeError(long[] timestamps, double[] values,
+            List<ScalarReading> tier) {
+        double[] baseMin = new double[COLUMNS];
+        double[] baseMax = new double[COLUMNS];
+        double[] tierMin = new double[COLUMNS];
+        double[] tierMax = new double[COLUMNS];
+        for (int c = 0; c < COLUMNS; c++) {
+            baseMin[c] = tierMin[c] = Double.MAX_VALUE;
+            baseMax[c] = tierMax[c] = -Double.MAX_VALUE;
+        }
+
+        long first = timestamps[0];
+        long span = timestamps[timestamps.length - 1] - first + 1;
+        double lowest = Double.MAX_VALUE;
+        double highest = -Double.MAX_VALUE;
+        int next = 0;
+        for (int i = 0; i < timestamps.length; i++) {
+            int column = (int) ((timestamps[i] - first) * COLUMNS / span);
+            baseMin[column] = Math.min(baseMin[column], values[i]);
+            baseMax[column] = Math.max(baseMax[column], values[i]);
+            lowest = Math.min(lowest, values[i]);
+            highest = Math.max(highest, values[i]);
+
+            // What the line between the tier's readings shows at this time.
+            while (next < tier.size()
+                    && tier.get(next).getCollectedTimeMillis() < timestamps[i]) {
+                next++;
+            }
+            double drawn;
+            if (next == 0) {
+                drawn = tier.get(0).getValue();
+            } else if (next == tier.size()) {
+                drawn = tier.get(tier.size() - 1).getValue();
+            } else {
+                ScalarReading before = tier.get(next - 1);
+                ScalarReading after = tier.get(next);
+                long gap = after.getCollectedTimeMillis() - before.getCollectedTimeMillis();
+                double fraction = gap == 0 ? 1
+                        : (timestamps[i] - before.getCollectedTimeMillis()) / (double) gap;
+                drawn = before.getValue() + fraction * (after.getValue() - before.getValue());
+            }
+            tierMin[column] = Math.min(tierMin[column], drawn);
+            tierMax[column] = Math.max(tierMax[column], drawn);
+        }
+
+        double worst = 0;
+        for (int c = 0; c < COLUMNS; c++) {
+            if (baseMin[c] == Double.MAX_VALUE) {
+                continue;
+            }
+            worst = Math.max(worst, Math.abs(baseMin[c] - tierMin[c]));
+            worst = Math.max(worst, Math.abs(baseMax[c] - tierMax[c]));
+        }
+        return worst / (highest - lowest);
+    }
+
+    // A slow wave, with noise, and a few narrow spikes that a good summary should keep.
+    private static void fillWithSignal(long[] timestamps, double[] values) {
+        Random random = new Random(42);
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = 1500000000000L + i * MILLIS_BETWEEN_READINGS;
+            values[i] = 10 * Math.sin(i / 2000.0) + random.nextGaussian();
+            if (random.nextInt(5000) == 0) {
+                values[i] += 25;
+            }
+        }
+    }
+
+    /**
+     * Keeps each tier's readings in memory, in the order they were written.
+     */
+    private static class TierCollector implements RecordingDataController {
+        final List<List<ScalarReading>> mTiers = new ArrayList<>();
+
+        @Override
+        public boolean addScalarReading(String sensorId, int resolutionTier,
+                long timestampMillis, double value) {
+            while (mTiers.size() <= resolutionTier) {
+                mTiers.add(new ArrayList<>());
+            }
+            mTiers.get(resolutionTier).add(new ScalarReading(timestampMillis, value));
+            return true;
+        }
+
+        @Override
+        public void flushScalarReadings() {
+        }
+
+        @Override
+        public double getScalarWriteBacklog() {
+            return 0;
+        }
+
+        @Override
+        public void setDataErrorListenerForSensor(String sensorId, FailureListener listener) {
+        }
+
+        @Override
+        public void clearDataErrorListenerForSensor(String sensorId) {
+        }
+    }
+}
@@ -0,0 +1,690 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.google.android.apps.forscience.whistlepunk.CurrentTimeClock;
+import com.google.android.apps.forscience.whistlepunk.sensors.SystemScheduler;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Range;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-device throughput measurements for the sensor database.  These make no assertions about
+ * speed (device performance varies too much); results are written to logcat under {@link #TAG}.
+ */
+public class SensorDatabaseBenchmarkTest extends InstrumentationTestCase {
+    private static final String TAG = "SensorDbBenchmark";
+    private static final String TEST_DATABASE_NAME = "benchmark_sensors.db";
+    private static final String CHUNKED_DATABASE_NAME = "benchmark_sensor_chunks.db";
+    private static final String UNSHARDED_DATABASE_NAME = "benchmark_unsharded.db";
+    private static final String SHARD_PREFIX = "benchmark_shard_";
+    private static final int SENSOR_COUNT = 4;
+
+    public void setUp() {
+        deleteDatabases();
+    }
+
+    public void tearDown() {
+        deleteDatabases();
+    }
+
+    private void deleteDatabases() {
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+        getContext().deleteDatabase(CHUNKED_DATABASE_NAME);
+        getContext().deleteDatabase(UNSHARDED_DATABASE_NAME);
+        for (String name : getContext().databaseList()) {
+            if (name.startsWith(SHARD_PREFIX)) {
+                getContext().deleteDatabase(name);
+            }
+        }
+    }
+
+    public void testWriteThroughput_perRowVersusBatched() {
+        int readingCount = 5000;
+
+        SensorDatabaseImpl perRowDb = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < readingCount; i++) {
+            perRowDb.addScalarReading(tagFor(i), 0, i, i);
+        }
+        long perRowMillis = SystemClock.elapsedRealtime() - start;
+        assertEquals(readingCount / SENSOR_COUNT, countReadings(perRowDb, tagFor(0)));
+
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+        SensorDatabaseImpl batchedDb = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
+        ScalarReadingBatch batch = new ScalarReadingBatch();
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < readingCount; i++) {
+            batch.add(tagFor(i), 0, i, i);
+            if (batch.size() == BatchingScalarWriter.DEFAULT_MAX_BATCH_SIZE) {
+                batchedDb.addScalarReadings(batch);
+                batch.clear();
+            }
+        }
+        batchedDb.addScalarReadings(batch);
+        long batchedMillis = SystemClock.elapsedRealtime() - start;
+        assertEquals(readingCount / SENSOR_COUNT, countReadings(batchedDb, tagFor(0)));
+
+        report("per-row insert", readingCount, perRowMillis);
+        report("batched insert", readingCount, batchedMillis);
+    }
+
+    public void testIngest_executorPerReadingVersusRing() throws InterruptedException {
+        int readingCount = 200000;
+        final AtomicLong written = new AtomicLong();
+        // Counts readings without storing them, so only the hand-off to the writer is measured.
+        SensorDatabase countingDb = new InMemorySensorDatabase() {
+            @Override
+            public void addScalarReading(String sensorTag, int resolutionTier,
+                    long timestampMillis, double value) {
+                written.incrementAndGet();
+            }
+
+            @Override
+            public void addScalarReadings(ScalarReadingBatch batch) {
+                written.addAndGet(batch.size());
+            }
+        };
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AllocationStats perReading = new AllocationStats();
+        for (int i = 0; i < readingCount; i++) {
+            final String tag = tagFor(i);
+            final long timestamp = i;
+            executor.execute(() -> countingDb.addScalarReading(tag, 0, timestamp, timestamp));
+        }
+        perReading.stop();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        assertEquals(readingCount, written.get());
+
+        written.set(0);
+        executor = Executors.newSingleThreadExecutor();
+        BatchingScalarWriter writer = new BatchingScalarWriter(countingDb, executor,
+                new CurrentTimeClock(), new SystemScheduler(),
+                BatchingScalarWriter.DEFAULT_MAX_BATCH_SIZE,
+                BatchingScalarWriter.DEFAULT_MAX_BATCH_AGE_MILLIS, null);
+        AllocationStats ring = new AllocationStats();
+        for (int i = 0; i < readingCount; i++) {
+            writer.addScalarReading(tagFor(i), 0, i, i);
+        }
+        ring.stop();
+        writer.flush();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        assertEquals(readingCount, written.get() + writer.getDroppedReadingCount());
+
+        report("executor task per reading", readingCount, perReading.mElapsedMillis);
+        Log.i(TAG, "executor task per reading: " + perReading);
+        report("ring", readingCount, ring.mElapsedMillis);
+        Log.i(TAG, "ring: " + ring + "; most queued " + writer.getQueueHighWaterMark() + ", "
+                + writer.getDroppedReadingCount() + " dropped");
+    }
+
+    public void testIngest_ringWithAndWithoutJournal() throws Exception {
+        int readingCount = 200000;
+        File journalFile = new File(getContext().getFilesDir(), "benchmark.journal");
+        journalFile.delete();
+        // Only the hand-off is measured; the writer never runs, as if the process died.
+        Executor neverRuns = command -> { };
+        SensorDatabase unused = new InMemorySensorDatabase();
+        int capacity = readingCount;
+
+        BatchingScalarWriter plain = new BatchingScalarWriter(unused, neverRuns,
+                new CurrentTimeClock(), null, capacity, Long.MAX_VALUE, capacity, null);
+        long start = System.nanoTime();
+        for (int i = 0; i < readingCount; i++) {
+            plain.addScalarReading(tagFor(i), 0, i, i);
+        }
+        long plainNanos = System.nanoTime() - start;
+
+        ScalarReadingJournal journal = new ScalarReadingJournal(journalFile, 2 * capacity);
+        BatchingScalarWriter journaled = new BatchingScalarWriter(unused, neverRuns,
+                new CurrentTimeClock(), null, capacity, Long.MAX_VALUE, capacity, journal, null);
+        AllocationStats journaledStats = new AllocationStats();
+        start = System.nanoTime();
+        for (int i = 0; i < readingCount; i++) {
+            journaled.addScalarReading(tagFor(i), 0, i, i);
+        }
+        long journaledNanos = System.nanoTime() - start;
+        journaledStats.stop();
+
+        // What the next start pays to get them back.
+        start = SystemClock.elapsedRealtime();
+        ScalarReadingJournal reopened = new ScalarReadingJournal(journalFile, 2 * capacity);
+        long openMillis = SystemClock.elapsedRealtime() - start;
+        assertEquals(readingCount, reopened.getRecoveredReadingCount());
+        SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
+        start = SystemClock.elapsedRealtime();
+        reopened.replayInto(db);
+        long replayMillis = SystemClock.elapsedRealtime() - start;
+        assertEquals(readingCount / SENSOR_COUNT, countReadings(db, tagFor(0)));
+        journalFile.delete();
+
+        Log.i(TAG, "ring alone: " + (plainNanos / readingCount) + " ns per reading; with journal: "
+                + (journaledNanos / readingCount) + " ns per reading ("
+                + ((journaledNanos - plainNanos) / readingCount) + " ns journal overhead)");
+        Log.i(TAG, "journaled ring: " + journaledStats);
+        Log.i(TAG, "recovery of " + readingCount + " readings: " + openMillis + " ms to open, "
+                + replayMillis + " ms to replay");
+    }
+
+    public void testIngest_oneToFourWriterLanes() throws Exception {
+        // A dozen sensors recording at once, each on its own thread, as from several devices.
+        int sensorCount = 12;
+        final int readingsPerSensor = 20000;
+        for (int laneCount = 1; laneCount <= 4; laneCount *= 2) {
+            getContext().deleteDatabase(TEST_DATABASE_NAME);
+            SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
+            ExecutorService[] threads = new ExecutorService[laneCount];
+            ScalarReadingJournal[] journals = new ScalarReadingJournal[laneCount];
+            for (int i = 0; i < laneCount; i++) {
+                threads[i] = Executors.newSingleThreadExecutor();
+                File journalFile = new File(getContext().getFilesDir(), "benchmark.journal." + i);
+                journalFile.delete();
+                journals[i] = new ScalarReadingJournal(journalFile,
+                        2 * BatchingScalarWriter.DEFAULT_CAPACITY);
+            }
+            StripedExecutor lanes = new StripedExecutor(threads);
+            final StripedScalarWriter writer = new StripedScalarWriter(db, lanes,
+                    new CurrentTimeClock(), new SystemScheduler(),
+                    BatchingScalarWriter.DEFAULT_MAX_BATCH_SIZE,
+                    BatchingScalarWriter.DEFAULT_MAX_BATCH_AGE_MILLIS,
+                    BatchingScalarWriter.DEFAULT_CAPACITY, journals, null);
+
+            ExecutorService sensors = Executors.newFixedThreadPool(sensorCount);
+            long start = SystemClock.elapsedRealtime();
+            for (int sensor = 0; sensor < sensorCount; sensor++) {
+                final String tag = "sensor" + sensor;
+                sensors.execute(() -> {
+                    for (int i = 0; i < readingsPerSensor; i++) {
+                        writer.addScalarReading(tag, 0, i, i);
+                    }
+                });
+            }
+            sensors.shutdown();
+            assertTrue(sensors.awaitTermination(1, TimeUnit.MINUTES));
+            final CountDownLatch written = new CountDownLatch(1);
+            lanes.execute(() -> {
+                writer.writePendingReadings();
+                written.countDown();
+            });
+            assertTrue(written.await(1, TimeUnit.MINUTES));
+            long elapsedMillis = SystemClock.elapsedRealtime() - start;
+
+            int readingCount = sensorCount * readingsPerSensor;
+            long stored = 0;
+            for (int sensor = 0; sensor < sensorCount; sensor++) {
+                stored += countReadings(db, "sensor" + sensor);
+            }
+            assertEquals(readingCount, stored + writer.getDroppedReadingCount());
+            report(laneCount + " writer lanes", readingCount, elapsedMillis);
+            Log.i(TAG, laneCount + " writer lanes: " + writer.getDroppedReadingCount()
+                    + " dropped");
+            for (int i = 0; i < laneCount; i++) {
+                threads[i].shutdown();
+                new File(getContext().getFilesDir(), "benchmark.journal." + i).delete();
+            }
+        }
+    }
+
+    public void testStorageAndRangeRead_rowsVersusChunks() {
+        // About 3 hours of a single 100Hz sensor.
+        int readingCount = 1 << 20;
+        SensorDatabase rowDb = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
+        SensorDatabase chunkedDb = new ChunkedSensorDatabase(getContext(), CHUNKED_DATABASE_NAME);
+        fillWithSignal(rowDb, readingCount);
+        fillWithSignal(chunkedDb, readingCount);
+
+        Log.i(TAG, "row storage: " + databaseSize(TEST_DATABASE_NAME) + " bytes, chunked storage: "
+                + databaseSize(CHUNKED_DATABASE_NAME) + " bytes for " + readingCount
+                + " readings");
+
+        // A one-minute window, read from several places in the recording.
+        long windowMillis = 60 * 1000;
+        int windows = 20;
+        long rowMillis = timeRangeReads(rowDb, readingCount, windowMillis, windows);
+        long chunkedMillis = timeRangeReads(chunkedDb, readingCount, windowMillis, windows);
+        Log.i(TAG, "range reads of " + windowMillis + " ms x" + windows + ": rows " + rowMillis
+                + " ms, chunks " + chunkedMillis + " ms");
+    }
+
+    public void testRangeRead_beforeAndAfterTagDictionaryMigration() {
+        // Several long recordings' worth of interleaved sensors, in the pre-V4 format.
+        int readingCount = 2 << 20;
+        LegacySensorDatabase legacy = new LegacySensorDatabase(getContext(), TEST_DATABASE_NAME);
+        ScalarReadingBatch batch = new ScalarReadingBatch();
+        for (int i = 0; i < readingCount; i++) {
+            batch.add(tagFor(i), 0, i, i);
+            if (batch.size() == BatchingScalarWriter.DEFAULT_MAX_BATCH_SIZE) {
+                legacy.addScalarReadings(batch);
+                batch.clear();
+            }
+        }
+        legacy.addScalarReadings(batch);
+        legacy.close();
+
+        SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
+        long windowMillis = 10 * 1000;
+        int windows = 20;
+        // Before migration, reads go to the old table through its timestamp-only index.
+        long beforeMillis = timeTaggedRangeReads(db, readingCount, windowMillis, windows);
+
+        long start = SystemClock.elapsedRealtime();
+        int batches = 0;
+        while (db.migrateLegacyReadings(LegacyReadingMigrator.DEFAULT_BATCH_SIZE) > 0) {
+            batches++;
+        }
+        long migrationMillis = SystemClock.elapsedRealtime() - start;
+
+        long afterMillis = timeTaggedRangeReads(db, readingCount, windowMillis, windows);
+        Log.i(TAG, "tagged range reads over " + readingCount + " readings: " + beforeMillis
+                + " ms before migration, " + afterMillis + " ms after");
+        Log.i(TAG, "migration: " + batches + " batches in " + migrationMillis + " ms ("
+                + (migrationMillis / Math.max(1, batches)) + " ms per batch)");
+        Log.i(TAG, "query plan after migration: " + db.explainScalarQuery(
+                new String[] {tagFor(0)}, TimeRange.oldest(Range.closed(0L, windowMillis)), 0,
+                0));
+    }
+
+    private long timeTaggedRangeReads(SensorDatabase db, int readingCount, long windowMillis,
+            int windows) {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < windows; i++) {
+            long windowStart = (long) readingCount * i / windows;
+            int size = db.getScalarReadings(tagFor(i), TimeRange.oldest(
+                    Range.closed(windowStart, windowStart + windowMillis)), 0, 0).size();
+            assertTrue(size > 0);
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    public void testBulkRead_readingObjectsVersusPages() {
+        // A long trial, as loaded into review.
+        int readingCount = 200000;
+        SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
+        fillWithSignal(db, readingCount);
+        TimeRange all = TimeRange.oldest(Range.<Long>all());
+
+        AllocationStats objects = new AllocationStats();
+        Iterable<ScalarReading> readings =
+                db.createScalarObservable(new String[] {"sensor"}, all, 0).blockingIterable();
+        int count = 0;
+        for (ScalarReading reading : readings) {
+            count++;
+        }
+        objects.stop();
+        assertEquals(readingCount, count);
+
+        AllocationStats pages = new AllocationStats();
+        ScalarPageReader reader = db.openScalarPageReader(new String[] {"sensor"}, all, 0);
+        ScalarReadingPage page = new ScalarReadingPage(500);
+        count = 0;
+        try {
+            while (reader.readNextPage(page)) {
+                count += page.size();
+            }
+        } finally {
+            reader.close();
+        }
+        pages.stop();
+        assertEquals(readingCount, count);
+
+        Log.i(TAG, "read " + readingCount + " readings as objects: " + objects);
+        Log.i(TAG, "read " + readingCount + " readings as pages: " + pages);
+    }
+
+    public void testMultiSensorRead_singleQueryVersusMergedSeries() {
+        // A trial with a dozen sensors all sampled together.
+        int sensorCount = 12;
+        int timestampCount = 20000;
+        String[] tags = new String[sensorCount];
+        for (int sensor = 0; sensor < sensorCount; sensor++) {
+            tags[sensor] = "sensor" + sensor;
+        }
+        SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
+        ScalarReadingBatch batch = new ScalarReadingBatch();
+        for (int i = 0; i < timestampCount; i++) {
+            for (int sensor = 0; sensor < sensorCount; sensor++) {
+                batch.add(tags[sensor], 0, i * 10, Math.sin(i / 100.0) + sensor);
+                if (batch.size() == BatchingScalarWriter.DEFAULT_MAX_BATCH_SIZE) {
+                    db.addScalarReadings(batch);
+                    batch.clear();
+                }
+            }
+        }
+        db.addScalarReadings(batch);
+        int readingCount = sensorCount * timestampCount;
+
+        long start = SystemClock.elapsedRealtime();
+        int singleQueryCount = readWithSingleQuery(tags, 500);
+        long singleQueryMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        ScalarPageReader reader = db.openScalarPageReader(tags,
+                TimeRange.oldest(Range.<Long>all()), 0);
+        ScalarReadingPage page = new ScalarReadingPage(500);
+        int mergedCount = 0;
+        try {
+            while (reader.readNextPage(page)) {
+                mergedCount += page.size();
+            }
+        } finally {
+            reader.close();
+        }
+        long mergedMillis = SystemClock.elapsedRealtime() - start;
+        assertEquals(readingCount, mergedCount);
+
+        report("single query for all sensors", readingCount, singleQueryMillis);
+        report("merged per-sensor series", readingCount, mergedMillis);
+        Log.i(TAG, "single query lost " + (readingCount - singleQueryCount)
+                + " readings at page boundaries");
+    }
+
+    /**
+     * Reads the way multi-sensor reads used to: one query for all tags, paged by restarting after
+     * the last timestamp seen.
+     *
+     * @return how many readings were read
+     */
+    public void testCroppedTrial_beforeAndAfterReclaimingSpace() {
+        // A long recording cropped down to a tenth of its length.
+        int readingCount = 1 << 20;
+        SensorDatabase db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
+        fillWithSignal(db, readingCount);
+        long firstMillis = 1500000000000L;
+        long spanMillis = readingCount * 10L;
+        Range<Long> kept = Range.closed(firstMillis + spanMillis * 45 / 100,
+                firstMillis + spanMillis * 55 / 100);
+
+        long sizeBefore = databaseSize(TEST_DATABASE_NAME);
+        long readBeforeMillis = timeWindowReads(db, kept, 20);
+
+        long start = SystemClock.elapsedRealtime();
+        db.deleteScalarReadings("sensor",
+                TimeRange.oldest(Range.closedOpen(firstMillis, kept.lowerEndpoint())));
+        db.deleteScalarReadings("sensor",
+                TimeRange.oldest(Range.greaterThan(kept.upperEndpoint())));
+        long deleteMillis = SystemClock.elapsedRealtime() - start;
+        long sizeAfterDelete = databaseSize(TEST_DATABASE_NAME);
+
+        start = SystemClock.elapsedRealtime();
+        int steps = 0;
+        while (db.reclaimSpace(1024 * 1024) > 0) {
+            steps++;
+        }
+        long reclaimMillis = SystemClock.elapsedRealtime() - start;
+        long sizeAfterReclaim = databaseSize(TEST_DATABASE_NAME);
+        long readAfterMillis = timeWindowReads(db, kept, 20);
+
+        Log.i(TAG, "cropped trial size: " + sizeBefore + " bytes, " + sizeAfterDelete
+                + " after delete (" + deleteMillis + " ms), " + sizeAfterReclaim
+                + " after reclaiming in " + steps + " steps (" + reclaimMillis + " ms)");
+        Log.i(TAG, "cropped range reads x20: " + readBeforeMillis + " ms before, "
+                + readAfterMillis + " ms after");
+        assertTrue(sizeAfterReclaim < sizeBefore / 2);
+    }
+
+    public void testRangeStats_everyReadingVersusSummaries() {
+        // An hour at 100 readings a second.
+        int readingCount = 360000;
+        SensorDatabase db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
+        long start = SystemClock.elapsedRealtime();
+        fillWithSignal(db, readingCount);
+        report("write with summaries", readingCount, SystemClock.elapsedRealtime() - start);
+
+        // Crop-sized ranges, from a few seconds up to most of the recording.
+        long firstMillis = 1500000000000L;
+        long spanMillis = readingCount * 10L;
+        int ranges = 20;
+        long scanMillis = 0;
+        long summaryMillis = 0;
+        for (int i = 0; i < ranges; i++) {
+            long from = firstMillis + spanMillis * i / (ranges * 2) + i * 37;
+            long to = from + 5000 + (spanMillis / ranges) * i;
+            TimeRange range = TimeRange.oldest(Range.closed(from, to));
+
+            start = SystemClock.elapsedRealtime();
+            ScalarStats scanned = ScalarStats.read(
+                    db.openScalarPageReader(new String[] {"sensor"}, range, 0), 500);
+            scanMillis += SystemClock.elapsedRealtime() - start;
+
+            start = SystemClock.elapsedRealtime();
+            ScalarStats summarized = db.getScalarStats("sensor", range);
+            summaryMillis += SystemClock.elapsedRealtime() - start;
+
+            assertEquals(scanned.getCount(), summarized.getCount());
+            assertEquals(scanned.getMin(), summarized.getMin());
+            assertEquals(scanned.getMax(), summarized.getMax());
+            assertEquals(scanned.getLastTimestampMillis(), summarized.getLastTimestampMillis());
+        }
+        Log.i(TAG, "range stats x" + ranges + ": " + scanMillis + " ms reading every reading, "
+                + summaryMillis + " ms from summaries");
+    }
+
+    public void testExperimentDelete_oneDatabaseVersusShards() {
+        // Ten minutes at 100 readings a second per experiment.
+        int readingsPerExperiment = 60000;
+        long experimentMillis = readingsPerExperiment * 10L;
+        for (int experiments : new int[] {1, 4, 16}) {
+            deleteDatabases();
+            SensorDatabase single = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
+            ShardedSensorDatabase sharded = new ShardedSensorDatabase(
+                    new ShardedSensorDatabase.DatabaseFileShards(getContext(), SHARD_PREFIX),
+                    new SensorDatabaseImpl(getContext(), UNSHARDED_DATABASE_NAME));
+            for (int i = 0; i < experiments; i++) {
+                long first = 1500000000000L + i * experimentMillis;
+                Range<Long> times = Range.closedOpen(first, first + experimentMillis);
+                fillRange(single, times, readingsPerExperiment);
+                sharded.startExperimentRecording("experiment" + i, first);
+                fillRange(sharded, times, readingsPerExperiment);
+                sharded.stopExperimentRecording("experiment" + i, times);
+            }
+
+            // Read the newest experiment, as the user looks back at what they just recorded.
+            long newest = 1500000000000L + (experiments - 1) * experimentMillis;
+            Range<Long> window = Range.closed(newest, newest + experimentMillis / 10);
+            long singleReadMillis = timeWindowReads(single, window, 20);
+            long shardedReadMillis = timeWindowReads(sharded, window, 20);
+
+            long start = SystemClock.elapsedRealtime();
+            single.deleteScalarReadings("sensor", TimeRange.oldest(
+                    Range.closedOpen(1500000000000L, 1500000000000L + experimentMillis)));
+            long singleDeleteMillis = SystemClock.elapsedRealtime() - start;
+            start = SystemClock.elapsedRealtime();
+            sharded.deleteExperimentReadings("experiment0");
+            long shardedDeleteMillis = SystemClock.elapsedRealtime() - start;
+
+            Log.i(TAG, experiments + " experiments: deleting one took " + singleDeleteMillis
+                    + " ms in one database, " + shardedDeleteMillis + " ms as a shard; "
+                    + "range reads x20 took " + singleReadMillis + " ms in one database, "
+                    + shardedReadMillis + " ms from shards");
+        }
+    }
+
+    private void fillRange(SensorDatabase db, Range<Long> times, int readingCount) {
+        ScalarReadingBatch batch = new ScalarReadingBatch();
+        long spacing = (times.upperEndpoint() - times.lowerEndpoint()) / readingCount;
+        for (int i = 0; i < readingCount; i++) {
+            batch.add("sensor", 0, times.lowerEndpoint() + i * spacing, Math.sin(i / 500.0));
+            if (batch.size() == BatchingScalarWriter.DEFAULT_MAX_BATCH_SIZE) {
+                db.addScalarReadings(batch);
+                batch.clear();
+            }
+        }
+        db.addScalarReadings(batch);
+    }
+
+    private long timeWindowReads(SensorDatabase db, Range<Long> range, int repeats) {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < repeats; i++) {
+            assertTrue(db.getScalarReadings("sensor", TimeRange.oldest(range), 0, 0).size() > 0);
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private int readWithSingleQuery(String[] tags, int pageSize) {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(
+                getContext().getDatabasePath(TEST_DATABASE_NAME).getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            String sql = "SELECT timestampMillis, value, tagId FROM scalar_readings WHERE tagId IN "
+                    + "(SELECT _id FROM sensor_tags WHERE tag IN ("
+                    + Joiner.on(",").join(Collections.nCopies(tags.length, "?"))
+                    + ")) AND resolutionTier = 0 AND timestampMillis > ? "
+                    + "ORDER BY timestampMillis ASC LIMIT " + pageSize;
+            String[] args = Arrays.copyOf(tags, tags.length + 1);
+            long lastTimestamp = -1;
+            int count = 0;
+            while (true) {
+                args[tags.length] = String.valueOf(lastTimestamp);
+                Cursor cursor = db.rawQuery(sql, args);
+                try {
+                    if (!cursor.moveToFirst()) {
+                        return count;
+                    }
+                    do {
+                        lastTimestamp = cursor.getLong(0);
+                        cursor.getDouble(1);
+                        cursor.getLong(2);
+                        count++;
+                    } while (cursor.moveToNext());
+                } finally {
+                    cursor.close();
+                }
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Allocations and garbage collections on this thread between construction and {@link #stop}.
+     */
+    private static class AllocationStats {
+        private final long mStartMillis = SystemClock.elapsedRealtime();
+        private final long mStartGcCount;
+        private final long mStartGcMillis;
+        private long mElapsedMillis;
+        private int mAllocations;
+        private long mGcCount;
+        private long mGcMillis;
+
+        @SuppressWarnings("deprecation")
+        AllocationStats() {
+            mStartGcCount = gcStat("art.gc.gc-count");
+            mStartGcMillis = gcStat("art.gc.gc-time");
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+        }
+
+        @SuppressWarnings("deprecation")
+        void stop() {
+            Debug.stopAllocCounting();
+            mAllocations = Debug.getThreadAllocCount();
+            mElapsedMillis = SystemClock.elapsedRealtime() - mStartMillis;
+            mGcCount = gcStat("art.gc.gc-count") - mStartGcCount;
+            mGcMillis = gcStat("art.gc.gc-time") - mStartGcMillis;
+        }
+
+        private static long gcStat(String name) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                return 0;
+            }
+            String value = Debug.getRuntimeStat(name);
+            return value == null ? 0 : Long.parseLong(value);
+        }
+
+        @Override
+        public String toString() {
+            return mElapsedMillis + " ms, " + mAllocations + " allocations, " + mGcCount
+                    + " GCs taking " + mGcMillis + " ms (GC stats need API 23)";
+        }
+    }
+
+    private void fillWithSignal(SensorDatabase db, int readingCount) {
+        ScalarReadingBatch batch = new ScalarReadingBatch();
+        long timestamp = 1500000000000L;
+        for (int i = 0; i < readingCount; i++) {
+            // Sensor-like: a slow wave plus jitter, at a fixed resolution, with uneven spacing.
+            double value = Math.round((Math.sin(i / 500.0) * 20 + (i % 7) * 0.1) * 100) / 100.0;
+            timestamp += 10 + (i % 3 == 0 ? 1 : 0);
+            batch.add("sensor", 0, timestamp, value);
+            if (batch.size() == BatchingScalarWriter.DEFAULT_MAX_BATCH_SIZE) {
+                db.addScalarReadings(batch);
+                batch.clear();
+            }
+        }
+        db.addScalarReadings(batch);
+    }
+
+    private long timeRangeReads(SensorDatabase db, int readingCount, long windowMillis,
+            int windows) {
+        long firstMillis = 1500000000000L;
+        long spanMillis = readingCount * 10L;
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < windows; i++) {
+            long windowStart = firstMillis + spanMillis * i / windows;
+            int size = db.getScalarReadings("sensor",
+                    TimeRange.oldest(Range.closed(windowStart, windowStart + windowMillis)), 0,
+                    0).size();
+            assertTrue(size > 0);
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private long databaseSize(String name) {
+        // Recent writes may still be in the write-ahead log.
+        File file = getContext().getDatabasePath(name);
+        return file.length() + new File(file.getPath() + "-wal").length();
+    }
+
+    private String tagFor(int readingIndex) {
+        return "sensor" + (readingIndex % SENSOR_COUNT);
+    }
+
+    private int countReadings(SensorDatabase db, String tag) {
+        return db.getScalarReadings(tag, TimeRange.oldest(Range.<Long>all()), 0, 0).size();
+    }
+
+    private void report(String what, int readingCount, long elapsedMillis) {
+        Log.i(TAG, what + ": " + readingCount + " readings in " + elapsedMillis + " ms ("
+                + (readingCount * 1000L / Math.max(1, elapsedMillis)) + " readings/s)");
+    }
+
+    private Context getContext() {
+        return getInstrumentation().getTargetContext();
+    }
+}
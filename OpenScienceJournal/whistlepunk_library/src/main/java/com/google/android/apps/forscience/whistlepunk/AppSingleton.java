@@ -22,6 +22,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
+import android.util.Log;
 
 import com.google.android.apps.forscience.ble.BleClient;
 import com.google.android.apps.forscience.ble.BleClientImpl;
@@ -29,9 +30,22 @@ import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableS
 import com.google.android.apps.forscience.whistlepunk.devicemanager.SensorDiscoverer;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Label;
 import com.google.android.apps.forscience.whistlepunk.metadata.SimpleMetaDataManager;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.DerivedSensorEngine;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.FrameCoalescer;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironment;
+import com.google.android.apps.forscience.whistlepunk.sensordb.BatchingScalarWriter;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ChunkedSensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.FallbackSensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.LegacyReadingMigrator;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingJournal;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase;
 import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabaseImpl;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ShardedSensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StripedExecutor;
+import com.google.android.apps.forscience.whistlepunk.sensors.SystemScheduler;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Executor;
@@ -44,6 +58,18 @@ import io.reactivex.subjects.PublishSubject;
 
 public class AppSingleton {
     private static final String SENSOR_DATABASE_NAME = "sensors.db";
+    private static final String CHUNKED_SENSOR_DATABASE_NAME = "sensor_chunks.db";
+    // Followed by the experiment id; each experiment's readings are kept in a file of their own.
+    private static final String EXPERIMENT_SENSOR_DATABASE_PREFIX = "sensors_";
+    // Readings waiting to be written, kept across the app being killed.
+    private static final String SCALAR_JOURNAL_NAME = "scalar_readings.journal";
+    // Android gives a write-ahead-logged database at least one reader connection besides the
+    // writer's, and usually more; two threads keep a long chart load from holding up the rest.
+    private static final int SENSOR_READ_THREADS = 2;
+    // Sensors' readings are queued and written on this many threads.  Every lane writes through
+    // the same database connection, one batch at a time, so more lanes would not write any
+    // faster, and each exclusive command would park all of them.
+    private static final int SENSOR_WRITE_LANES = 1;
     private static final String TAG = "AppSingleton";
     private static AppSingleton sInstance;
     private final Context mApplicationContext;
@@ -59,6 +85,7 @@ public class AppSingleton {
     private Map<String, SensorProvider> mExternalSensorProviders;
     private ConnectableSensor.Connector mSensorConnector;
     private PublishSubject<Label> mLabelsAdded = PublishSubject.create();
+    private final DerivedSensorEngine mDerivedSensorEngine = new DerivedSensorEngine();
 
     private SensorEnvironment mSensorEnvironment = new SensorEnvironment() {
                 @Override
@@ -80,6 +107,16 @@ public class AppSingleton {
                 public Single<BleClient> getConnectedBleClient() {
                     return AppSingleton.this.getConnectedBleClient();
                 }
+
+                @Override
+                public FrameCoalescer.FrameScheduler getLiveDataScheduler() {
+                    return FrameCoalescer.everyFrame();
+                }
+
+                @Override
+                public DerivedSensorEngine getDerivedSensorEngine() {
+                    return mDerivedSensorEngine;
+                }
             };
     private DeletedLabel mDeletedLabel;
 
@@ -122,16 +159,79 @@ public class AppSingleton {
     @NonNull
     private DataControllerImpl internalGetDataController() {
         if (mDataController == null) {
-            mDataController = new DataControllerImpl(
-                    new SensorDatabaseImpl(mApplicationContext, SENSOR_DATABASE_NAME),
+            StripedExecutor sensorDataThreads = StripedExecutor.newFixedLanes(SENSOR_WRITE_LANES);
+            mDataController = new DataControllerImpl.Builder(
+                    createSensorDatabase(sensorDataThreads),
                     getUiThreadExecutor(), Executors.newSingleThreadExecutor(),
-                    Executors.newSingleThreadExecutor(),
-                    new SimpleMetaDataManager(mApplicationContext), getDefaultClock(),
-                    getExternalSensorProviders(), getSensorConnector());
+                    sensorDataThreads, new SimpleMetaDataManager(mApplicationContext),
+                    getDefaultClock(), getExternalSensorProviders(), getSensorConnector())
+                    .setSensorReadThread(Executors.newFixedThreadPool(SENSOR_READ_THREADS))
+                    .setBatching(BatchingScalarWriter.DEFAULT_MAX_BATCH_SIZE,
+                            BatchingScalarWriter.DEFAULT_MAX_BATCH_AGE_MILLIS,
+                            new SystemScheduler())
+                    .setJournals(openScalarJournals())
+                    .build();
+            SensorDataCompactionJobService.schedule(mApplicationContext);
         }
         return mDataController;
     }
 
+    private ScalarReadingJournal[] openScalarJournals() {
+        ScalarReadingJournal[] journals = new ScalarReadingJournal[SENSOR_WRITE_LANES];
+        for (int i = 0; i < journals.length; i++) {
+            // The first lane's keeps the name it had before writes were striped.
+            String name = i == 0 ? SCALAR_JOURNAL_NAME : SCALAR_JOURNAL_NAME + "." + i;
+            try {
+                journals[i] = new ScalarReadingJournal(
+                        new File(mApplicationContext.getFilesDir(), name),
+                        2 * BatchingScalarWriter.DEFAULT_CAPACITY);
+            } catch (IOException e) {
+                // Recording still works; this lane's waiting readings just won't survive a crash.
+                Log.e(TAG, "Could not open the scalar reading journal " + name, e);
+            }
+        }
+        return journals;
+    }
+
+    private SensorDatabase createSensorDatabase(Executor sensorDataThread) {
+        SensorDatabase rows = createRowSensorDatabase(sensorDataThread);
+        // Whichever storage is chosen, readings recorded with the other are still read.
+        if (DevOptionsFragment.isChunkedSensorStorageEnabled(mApplicationContext)) {
+            return new FallbackSensorDatabase(new ChunkedSensorDatabase(mApplicationContext,
+                    CHUNKED_SENSOR_DATABASE_NAME), rows);
+        }
+        if (mApplicationContext.getDatabasePath(CHUNKED_SENSOR_DATABASE_NAME).exists()) {
+            return new FallbackSensorDatabase(rows, new ChunkedSensorDatabase(mApplicationContext,
+                    CHUNKED_SENSOR_DATABASE_NAME));
+        }
+        return rows;
+    }
+
+    private SensorDatabase createRowSensorDatabase(Executor sensorDataThread) {
+        SensorDatabaseImpl database =
+                new SensorDatabaseImpl(mApplicationContext, SENSOR_DATABASE_NAME);
+        new LegacyReadingMigrator(database, sensorDataThread,
+                LegacyReadingMigrator.DEFAULT_BATCH_SIZE,
+                new LegacyReadingMigrator.ProgressListener() {
+                    @Override
+                    public void onProgress(long migratedReadings, long totalReadings) {
+                        if (Log.isLoggable(TAG, Log.DEBUG)) {
+                            Log.d(TAG, "Migrated " + migratedReadings + " of " + totalReadings
+                                    + " sensor readings");
+                        }
+                    }
+
+                    @Override
+                    public void onComplete(long totalReadings) {
+                        if (totalReadings > 0 && Log.isLoggable(TAG, Log.INFO)) {
+                            Log.i(TAG, "Finished migrating " + totalReadings + " sensor readings");
+                        }
+                    }
+                }).start();
+        return new ShardedSensorDatabase(new ShardedSensorDatabase.DatabaseFileShards(
+                mApplicationContext, EXPERIMENT_SENSOR_DATABASE_PREFIX), database);
+    }
+
     public SensorAppearanceProvider getSensorAppearanceProvider() {
         if (mSensorAppearanceProvider == null) {
             mSensorAppearanceProvider = new SensorAppearanceProviderImpl(getDataController());
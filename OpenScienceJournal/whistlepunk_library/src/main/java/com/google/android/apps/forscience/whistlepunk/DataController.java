@@ -28,11 +28,14 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciUserMetadat
 import com.google.android.apps.forscience.whistlepunk.metadata.MetaDataManager;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingPage;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarStats;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
 
 import java.util.List;
 import java.util.Map;
 
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
 
 /**
@@ -47,8 +50,69 @@ public interface DataController {
     Observable<ScalarReading> createScalarObservable(String[] sensorIds,
             TimeRange timeRange, final int resolutionTier);
 
+    /**
+     * Fills {@code page} with up to {@link ScalarReadingPage#capacity()} readings, and passes it to
+     * {@code onSuccess}.  Reusing the same page for each request avoids allocating per reading;
+     * the caller must not touch the page until {@code onSuccess} is called.
+     */
+    void getScalarReadingPage(String databaseTag, int resolutionTier, TimeRange timeRange,
+            ScalarReadingPage page, MaybeConsumer<ScalarReadingPage> onSuccess);
+
+    /**
+     * Hints that readings in {@code timeRange} are likely to be asked for soon, so that they can
+     * be read ahead, nearest the start of the range in its order first.  Nothing is passed back.
+     */
+    void prefetchScalarReadings(String databaseTag, int resolutionTier, TimeRange timeRange);
+
+    /**
+     * Passes {@code onSuccess} stats for the full-resolution readings of one sensor in
+     * {@code timeRange}, without reading them all.
+     */
+    void getScalarStats(String databaseTag, TimeRange timeRange,
+            MaybeConsumer<ScalarStats> onSuccess);
+
+    /**
+     * Streams the readings for the given sensors as pages of up to {@code pageSize} readings.
+     * Pages are only read from the database as the subscriber requests them.  A subscriber that
+     * is done with a page should {@link ScalarReadingPage#release() release} it, so that it is
+     * filled again instead of a new page being allocated.
+     */
+    Flowable<ScalarReadingPage> createScalarPageFlowable(String[] sensorIds, TimeRange timeRange,
+            int resolutionTier, int pageSize);
+
     void deleteTrialData(Trial trial, MaybeConsumer<Success> onSuccess);
 
+    /**
+     * Deletes the readings of {@code trial}'s sensors, at every resolution tier, that are inside
+     * the trial's recording range but outside [keepFirstMillis, keepLastMillis].  Zoom tiers are
+     * not rebuilt, so a summary point kept just inside the range may still reflect readings just
+     * outside it (for example, an average over a run that straddles the edge).
+     */
+    void deleteTrialDataOutside(Trial trial, long keepFirstMillis, long keepLastMillis,
+            MaybeConsumer<Success> onSuccess);
+
+    /**
+     * Passes {@code onSuccess} every database tag with sensor data stored, whether or not any
+     * trial still refers to it.
+     */
+    void getSensorDataTags(MaybeConsumer<List<String>> onSuccess);
+
+    /**
+     * Deletes one sensor's readings in {@code timeRange}, at every resolution tier.
+     */
+    void deleteSensorData(String databaseTag, TimeRange timeRange,
+            MaybeConsumer<Success> onSuccess);
+
+    /**
+     * Returns storage left unused by deleted sensor data to the file system, up to roughly
+     * {@code maxBytes}, so that other work can continue in between.  Frees nothing while a trial
+     * is recording (see {@link #setRecordingTrial}).
+     *
+     * @param onSuccess given the number of bytes freed; 0 once there is nothing left to free, or
+     *                  nothing can be freed for now.
+     */
+    void reclaimSensorDataSpace(long maxBytes, MaybeConsumer<Long> onSuccess);
+
     void createExperiment(MaybeConsumer<Experiment> onSuccess);
 
     void deleteExperiment(Experiment experiment, MaybeConsumer<Success> onSuccess);
@@ -61,6 +125,14 @@ public interface DataController {
 
     void saveImmediately(MaybeConsumer<Success> onSuccess);
 
+    /**
+     * Remembers that {@code trialId} is recording, so that if the app dies before it stops, the
+     * trial can be closed the next time the app starts, and so that the readings it records are
+     * stored with its experiment.  Pass a null {@code trialId} once it has stopped, after its end
+     * is saved.
+     */
+    void setRecordingTrial(String experimentId, String trialId);
+
     String generateNewLabelId();
 
     /**
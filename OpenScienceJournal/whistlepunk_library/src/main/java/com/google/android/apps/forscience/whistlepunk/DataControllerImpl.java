@@ -16,23 +16,38 @@
 
 package com.google.android.apps.forscience.whistlepunk;
 
+import android.util.Log;
+
 import com.google.android.apps.forscience.javalib.Consumer;
 import com.google.android.apps.forscience.javalib.FailureListener;
 import com.google.android.apps.forscience.javalib.MaybeConsumer;
 import com.google.android.apps.forscience.javalib.MaybeConsumers;
+import com.google.android.apps.forscience.javalib.Scheduler;
 import com.google.android.apps.forscience.javalib.Success;
 import com.google.android.apps.forscience.whistlepunk.api.scalarinput.InputDeviceSpec;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
 import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableSensor;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.metadata.ExperimentSensors;
 import com.google.android.apps.forscience.whistlepunk.metadata.ExternalSensorSpec;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciUserMetadata;
 import com.google.android.apps.forscience.whistlepunk.metadata.MetaDataManager;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
+import com.google.android.apps.forscience.whistlepunk.sensordb.BatchingScalarWriter;
+import com.google.android.apps.forscience.whistlepunk.sensordb.LiveTailCache;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarBlockCache;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarPageReader;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingJournal;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingPage;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarStats;
 import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StripedExecutor;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StripedScalarWriter;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Range;
@@ -44,6 +59,8 @@ import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
 
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
 import io.reactivex.schedulers.Schedulers;
 
@@ -53,6 +70,11 @@ public class DataControllerImpl implements DataController, RecordingDataControll
     private final Executor mUiThread;
     private final Executor mMetaDataThread;
     private final Executor mSensorDataThread;
+    private final Executor mSensorReadThread;
+    private final StripedScalarWriter mScalarWriter;
+    private final ScalarReadingJournal mJournal;
+    private final LiveTailCache mLiveTail;
+    private final ScalarBlockCache mBlockCache;
     private MetaDataManager mMetaDataManager;
     private Clock mClock;
     private Map<String, FailureListener> mSensorFailureListeners = new HashMap<>();
@@ -60,19 +82,295 @@ public class DataControllerImpl implements DataController, RecordingDataControll
     private long mPrevLabelTimestamp = 0;
     private Map<String, WeakReference<Experiment>> mCachedExperiments = new HashMap<>();
     private ConnectableSensor.Connector mConnector;
+    private volatile boolean mRecording = false;
+    // Only touched on the UI thread.
+    private String mRecordingTrialId;
+    private long mRecordingStartMillis;
+
+    /**
+     * Collects what a {@link DataControllerImpl} is made of.  Everything but the executors and
+     * the metadata it is built from is optional: by default, each scalar reading is written as
+     * soon as it is added, reads run on the sensor data thread, and readings waiting to be
+     * written are kept only in memory.
+     */
+    public static class Builder {
+        private final SensorDatabase mSensorDatabase;
+        private final Executor mUiThread;
+        private final Executor mMetaDataThread;
+        private final MetaDataManager mMetaDataManager;
+        private final Clock mClock;
+        private final Map<String, SensorProvider> mProviderMap;
+        private final ConnectableSensor.Connector mConnector;
+        private StripedExecutor mSensorDataThreads;
+        private Executor mSensorReadThread;
+        private int mMaxBatchSize = 1;
+        private long mMaxBatchAgeMillis = 0;
+        private Scheduler mBatchAgeScheduler;
+        private ScalarReadingJournal[] mJournals;
+        private LiveTailCache mLiveTail;
+        private ScalarBlockCache mBlockCache;
+
+        public Builder(SensorDatabase sensorDatabase, Executor uiThread, Executor metaDataThread,
+                Executor sensorDataThread, MetaDataManager metaDataManager, Clock clock,
+                Map<String, SensorProvider> providerMap, ConnectableSensor.Connector connector) {
+            mSensorDatabase = sensorDatabase;
+            mUiThread = uiThread;
+            mMetaDataThread = metaDataThread;
+            mMetaDataManager = metaDataManager;
+            mClock = clock;
+            mProviderMap = providerMap;
+            mConnector = connector;
+            setSensorDataThread(sensorDataThread);
+        }
+
+        /**
+         * Writes scalar readings on the lanes of {@code sensorDataThreads}, each sensor always on
+         * the same lane.  Other sensor data work, such as deleting a trial's readings, runs
+         * exclusively, in order with the writes around it.
+         */
+        public Builder setSensorDataThreads(StripedExecutor sensorDataThreads) {
+            mSensorDataThreads = sensorDataThreads;
+            return this;
+        }
+
+        public Builder setSensorDataThread(Executor sensorDataThread) {
+            mSensorDataThreads = sensorDataThread instanceof StripedExecutor
+                    ? (StripedExecutor) sensorDataThread : new StripedExecutor(sensorDataThread);
+            return this;
+        }
+
+        /**
+         * Reads sensor data on {@code sensorReadThread}, so that reads don't wait for writes
+         * queued after them, and don't hold up writes while they run.  Reads still see every
+         * reading added before they were requested.
+         *
+         * @param sensorReadThread may run several reads at once, if the sensor database allows
+         *                         reads from other threads than the sensor data thread
+         */
+        public Builder setSensorReadThread(Executor sensorReadThread) {
+            mSensorReadThread = sensorReadThread;
+            return this;
+        }
+
+        /**
+         * Collects scalar readings into batches before writing them.
+         *
+         * @see BatchingScalarWriter#BatchingScalarWriter for the meaning of the parameters
+         */
+        public Builder setBatching(int maxBatchSize, long maxBatchAgeMillis,
+                Scheduler scheduler) {
+            mMaxBatchSize = maxBatchSize;
+            mMaxBatchAgeMillis = maxBatchAgeMillis;
+            mBatchAgeScheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Keeps scalar readings waiting to be written in {@code journals}, so that they survive
+         * the app being killed.  Readings the journals recovered are written first, and a trial
+         * that was still recording when the app died is closed.
+         *
+         * @param journals one journal (or null) for each lane of the sensor data threads.  The
+         *                 first also remembers which trial is recording.  Up to half as many
+         *                 readings as the smallest has slots may wait to be written on each lane.
+         */
+        public Builder setJournals(ScalarReadingJournal... journals) {
+            mJournals = journals;
+            return this;
+        }
+
+        /**
+         * @param liveTail keeps recent readings, to answer reads that only ask for those
+         */
+        public Builder setLiveTail(LiveTailCache liveTail) {
+            mLiveTail = liveTail;
+            return this;
+        }
+
+        /**
+         * @param blockCache keeps blocks of recorded readings, so that pages read again, or
+         *                   prefetched, don't go back to the database
+         */
+        public Builder setBlockCache(ScalarBlockCache blockCache) {
+            mBlockCache = blockCache;
+            return this;
+        }
+
+        public DataControllerImpl build() {
+            return new DataControllerImpl(this);
+        }
+    }
 
+    /**
+     * Creates a controller that writes each scalar reading to the database as soon as it is
+     * added.
+     */
     public DataControllerImpl(SensorDatabase sensorDatabase, Executor uiThread,
             Executor metaDataThread, Executor sensorDataThread, MetaDataManager metaDataManager,
             Clock clock, Map<String, SensorProvider> providerMap,
             ConnectableSensor.Connector connector) {
-        mSensorDatabase = sensorDatabase;
-        mUiThread = uiThread;
-        mMetaDataThread = metaDataThread;
-        mSensorDataThread = sensorDataThread;
-        mMetaDataManager = metaDataManager;
-        mClock = clock;
-        mProviderMap = providerMap;
-        mConnector = connector;
+        this(new Builder(sensorDatabase, uiThread, metaDataThread, sensorDataThread,
+                metaDataManager, clock, providerMap, connector));
+    }
+
+    protected DataControllerImpl(Builder builder) {
+        ScalarReadingJournal[] journals = builder.mJournals;
+        mSensorDatabase = builder.mSensorDatabase;
+        mUiThread = builder.mUiThread;
+        mMetaDataThread = builder.mMetaDataThread;
+        mSensorDataThread = builder.mSensorDataThreads;
+        mSensorReadThread = builder.mSensorReadThread != null ? builder.mSensorReadThread
+                : builder.mSensorDataThreads;
+        mMetaDataManager = builder.mMetaDataManager;
+        mClock = builder.mClock;
+        mProviderMap = builder.mProviderMap;
+        mConnector = builder.mConnector;
+        mJournal = journals == null ? null : journals[0];
+        mLiveTail = builder.mLiveTail != null ? builder.mLiveTail : new LiveTailCache();
+        mBlockCache = builder.mBlockCache != null ? builder.mBlockCache : new ScalarBlockCache();
+        mScalarWriter = new StripedScalarWriter(mSensorDatabase, builder.mSensorDataThreads, mClock,
+                builder.mBatchAgeScheduler, builder.mMaxBatchSize, builder.mMaxBatchAgeMillis,
+                getCapacityPerLane(journals), journals, (sensorTag, e) -> {
+                    // The tail would otherwise have readings the database doesn't.
+                    mLiveTail.invalidate(sensorTag);
+                    mUiThread.execute(() -> notifyFailureListener(sensorTag, e));
+                });
+        if (mJournal != null && mJournal.getRecoveredTrialId() != null) {
+            closeInterruptedTrial(mJournal.getRecoveredExperimentId(),
+                    mJournal.getRecoveredTrialId());
+        }
+    }
+
+    private static int getCapacityPerLane(ScalarReadingJournal[] journals) {
+        int capacity = BatchingScalarWriter.DEFAULT_CAPACITY;
+        boolean journaled = false;
+        for (int i = 0; journals != null && i < journals.length; i++) {
+            if (journals[i] != null) {
+                int journalCapacity = journals[i].getSlotCount() / 2;
+                capacity = journaled ? Math.min(capacity, journalCapacity) : journalCapacity;
+                journaled = true;
+            }
+        }
+        return capacity;
+    }
+
+    /**
+     * Closes a trial that was still recording when the app died.  It ends at its last stored
+     * reading, and since its stats were never saved, they are marked to be recomputed.
+     */
+    private void closeInterruptedTrial(final String experimentId, final String trialId) {
+        getExperimentById(experimentId,
+                new LoggingConsumer<Experiment>(TAG, "load interrupted trial") {
+                    @Override
+                    public void success(final Experiment experiment) {
+                        final Trial trial =
+                                experiment == null ? null : experiment.getTrial(trialId);
+                        if (trial == null || trial.getOriginalLastTimestamp() > 0) {
+                            // Deleted, or stopped and saved after all.
+                            mJournal.clearRecordingTrial(trialId);
+                            return;
+                        }
+                        // Queued behind the journal's recovered readings.
+                        background(mSensorDataThread, new LoggingConsumer<Long>(TAG,
+                                "find end of interrupted trial") {
+                            @Override
+                            public void success(Long endTimeMs) {
+                                finishInterruptedTrial(experiment, trial, endTimeMs);
+                            }
+                        }, () -> getLastReadingTime(trial));
+                    }
+                });
+    }
+
+    private long getLastReadingTime(Trial trial) {
+        long lastTimeMs = trial.getOriginalFirstTimestamp();
+        TimeRange afterStart = TimeRange.newest(Range.atLeast(lastTimeMs));
+        for (String tag : trial.getSensorIds()) {
+            List<ChartData.DataPoint> newest =
+                    mSensorDatabase.getScalarReadings(tag, afterStart, 0, 1).asDataPoints();
+            if (!newest.isEmpty()) {
+                lastTimeMs = Math.max(lastTimeMs, newest.get(0).getX());
+            }
+        }
+        return lastTimeMs;
+    }
+
+    private void finishInterruptedTrial(final Experiment experiment, final Trial trial,
+            long endTimeMs) {
+        // With no readings, the trial is left invalid, as if it had never recorded.
+        trial.setRecordingEndTime(endTimeMs);
+        for (String sensorId : trial.getSensorIds()) {
+            if (trial.getStatsForSensor(sensorId) == null) {
+                TrialStats stats = new TrialStats(sensorId);
+                stats.setStatStatus(GoosciTrial.SensorTrialStats.NEEDS_UPDATE);
+                trial.setStats(stats);
+            }
+        }
+        experiment.updateTrial(trial);
+        updateExperiment(experiment, new LoggingConsumer<Success>(TAG, "close interrupted trial") {
+            @Override
+            public void success(Success value) {
+                mJournal.clearRecordingTrial(trial.getTrialId());
+                if (trial.getOriginalFirstTimestamp() > 0) {
+                    stopExperimentRecording(experiment.getExperimentId(),
+                            trial.getOriginalFirstTimestamp(), trial.getOriginalLastTimestamp());
+                }
+                if (Log.isLoggable(TAG, Log.INFO)) {
+                    Log.i(TAG, "Closed trial " + trial.getTrialId() + ", interrupted at "
+                            + trial.getOriginalLastTimestamp());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void setRecordingTrial(final String experimentId, String trialId) {
+        mRecording = trialId != null;
+        if (mJournal != null) {
+            mJournal.setRecordingTrial(experimentId, trialId);
+        }
+        if (trialId != null) {
+            Trial trial = getCachedTrial(experimentId, trialId);
+            mRecordingTrialId = trialId;
+            mRecordingStartMillis = trial != null && trial.getOriginalFirstTimestamp() > 0
+                    ? trial.getOriginalFirstTimestamp() : mClock.getNow();
+            final long startMillis = mRecordingStartMillis;
+            mSensorDataThread.execute(() -> {
+                // Readings added before the recording started aren't part of it.
+                mScalarWriter.writePendingReadings();
+                mSensorDatabase.startExperimentRecording(experimentId, startMillis);
+            });
+        } else if (mRecordingTrialId != null) {
+            // A trial stopped without saving has no end, so it ends now.
+            Trial trial = getCachedTrial(experimentId, mRecordingTrialId);
+            long endMillis = trial != null
+                    && trial.getOriginalLastTimestamp() >= mRecordingStartMillis
+                    ? trial.getOriginalLastTimestamp() : mClock.getNow();
+            stopExperimentRecording(experimentId, mRecordingStartMillis, endMillis);
+            mRecordingTrialId = null;
+        }
+    }
+
+    /**
+     * Tells the sensor database that the experiment has stopped recording, once every reading
+     * added before now is written.
+     */
+    private void stopExperimentRecording(final String experimentId, long startMillis,
+            long endMillis) {
+        final Range<Long> times = Range.closed(startMillis, Math.max(startMillis, endMillis));
+        mSensorDataThread.execute(() -> {
+            mScalarWriter.writePendingReadings();
+            mSensorDatabase.stopExperimentRecording(experimentId, times);
+        });
+    }
+
+    /**
+     * @return the trial, or null if its experiment isn't loaded
+     */
+    private Trial getCachedTrial(String experimentId, String trialId) {
+        WeakReference<Experiment> cached = mCachedExperiments.get(experimentId);
+        Experiment experiment = cached == null ? null : cached.get();
+        return experiment == null ? null : experiment.getTrial(trialId);
     }
 
     public void replaceSensorInExperiment(final String experimentId, final String oldSensorId,
@@ -108,6 +406,7 @@ public class DataControllerImpl implements DataController, RecordingDataControll
     }
 
     private void removeTrialSensorData(final Trial trial) {
+        invalidateCachedReadings(trial.getSensorIds());
         mSensorDataThread.execute(() -> {
             long firstTimestamp = trial.getOriginalFirstTimestamp();
             long lastTimestamp = trial.getOriginalLastTimestamp();
@@ -116,33 +415,53 @@ public class DataControllerImpl implements DataController, RecordingDataControll
                 // continue to ignore it because we cannot be sure where to stop deleting.
                 return;
             }
+            // Don't leave queued readings behind to be written after the delete.
+            mScalarWriter.writePendingReadings();
             TimeRange times = TimeRange.oldest(Range.closed(firstTimestamp,
                     lastTimestamp));
             for (String tag : trial.getSensorIds()) {
                 mSensorDatabase.deleteScalarReadings(tag, times);
             }
+            invalidateCachedReadings(trial.getSensorIds());
         });
     }
 
+    /**
+     * Forgets the readings kept in memory for {@code sensorIds}, before and after deleting any of
+     * their readings.  Before, so that reads requested after the delete don't see what it
+     * deletes; after, because readings added meanwhile may have been deleted too.
+     */
+    private void invalidateCachedReadings(List<String> sensorIds) {
+        for (String sensorId : sensorIds) {
+            mLiveTail.invalidate(sensorId);
+            mBlockCache.invalidate(sensorId);
+        }
+    }
+
     @Override
-    public void addScalarReading(final String sensorId, final int resolutionTier,
+    public boolean addScalarReading(final String sensorId, final int resolutionTier,
             final long timestampMillis, final double value) {
-        mSensorDataThread.execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    mSensorDatabase.addScalarReading(sensorId, resolutionTier, timestampMillis,
-                            value);
-                } catch (final Exception e) {
-                    mUiThread.execute(new Runnable() {
-                        @Override
-                        public void run() {
-                            notifyFailureListener(sensorId, e);
-                        }
-                    });
-                }
-            }
-        });
+        // A dropped reading is left out of the tail too, so that the two agree.
+        if (!mScalarWriter.addScalarReading(sensorId, resolutionTier, timestampMillis, value)) {
+            return false;
+        }
+        // Both need it, for different reads: the tail keeps the reading, to answer reads of the
+        // last few minutes, while the block cache only keeps readings already written, and must
+        // drop any block it had loaded that the reading lands in (a higher tier's summary is
+        // often added after its block was read).
+        mLiveTail.add(sensorId, resolutionTier, timestampMillis, value);
+        mBlockCache.noteReading(sensorId, resolutionTier, timestampMillis);
+        return true;
+    }
+
+    @Override
+    public void flushScalarReadings() {
+        mScalarWriter.flush();
+    }
+
+    @Override
+    public double getScalarWriteBacklog() {
+        return mScalarWriter.getBacklog();
     }
 
     private void notifyFailureListener(String sensorId, Exception e) {
@@ -157,20 +476,137 @@ public class DataControllerImpl implements DataController, RecordingDataControll
             final TimeRange timeRange, final int maxRecords,
             final MaybeConsumer<ScalarReadingList> onSuccess) {
         Preconditions.checkNotNull(databaseTag);
-        background(mSensorDataThread, onSuccess, new Callable<ScalarReadingList>() {
-            @Override
-            public ScalarReadingList call() throws Exception {
-                return mSensorDatabase.getScalarReadings(databaseTag, timeRange, resolutionTier,
-                        maxRecords);
-            }
-        });
+        ScalarReadingList recent = mLiveTail.getScalarReadings(databaseTag, resolutionTier,
+                timeRange, maxRecords);
+        if (recent != null) {
+            deliver(onSuccess, recent);
+            return;
+        }
+        readSensorData(databaseTag, onSuccess, () -> mSensorDatabase.getScalarReadings(
+                databaseTag, timeRange, resolutionTier, maxRecords));
     }
 
     @Override
     public Observable<ScalarReading> createScalarObservable(final String[] sensorIds,
             final TimeRange timeRange, final int resolutionTier) {
-        return mSensorDatabase.createScalarObservable(sensorIds, timeRange, resolutionTier)
-                .observeOn(Schedulers.from(mSensorDataThread));
+        return writePendingReadings(sensorIds).andThen(
+                mSensorDatabase.createScalarObservable(sensorIds, timeRange, resolutionTier)
+                        .subscribeOn(Schedulers.from(mSensorReadThread)));
+    }
+
+    @Override
+    public void getScalarReadingPage(final String databaseTag, final int resolutionTier,
+            final TimeRange timeRange, final ScalarReadingPage page,
+            final MaybeConsumer<ScalarReadingPage> onSuccess) {
+        Preconditions.checkNotNull(databaseTag);
+        if (mLiveTail.readPage(databaseTag, resolutionTier, timeRange, page)
+                || mBlockCache.readPage(databaseTag, resolutionTier, timeRange, page)) {
+            deliver(onSuccess, page);
+            return;
+        }
+        final long settledBeforeMillis = mClock.getNow();
+        final long ticket = mBlockCache.reserve(databaseTag, settledBeforeMillis);
+        readSensorData(databaseTag, onSuccess, () -> {
+            if (mBlockCache.loadPage(mSensorDatabase, databaseTag, resolutionTier, timeRange,
+                    page, settledBeforeMillis, ticket)) {
+                return page;
+            }
+            ScalarPageReader reader = mSensorDatabase.openScalarPageReader(
+                    new String[] {databaseTag}, timeRange, resolutionTier);
+            try {
+                reader.readNextPage(page);
+            } finally {
+                reader.close();
+            }
+            return page;
+        });
+    }
+
+    @Override
+    public void prefetchScalarReadings(String databaseTag, int resolutionTier,
+            TimeRange timeRange) {
+        final ScalarBlockCache.Prefetch prefetch = mBlockCache.startPrefetch(databaseTag,
+                resolutionTier, timeRange, mClock.getNow());
+        if (prefetch == null) {
+            return;
+        }
+        readSensorData(databaseTag,
+                LoggingConsumer.<Success>expectSuccess(TAG, "prefetching readings"), () -> {
+                    prefetch.run(mSensorDatabase);
+                    return Success.SUCCESS;
+                });
+    }
+
+    @Override
+    public void getScalarStats(final String databaseTag, final TimeRange timeRange,
+            final MaybeConsumer<ScalarStats> onSuccess) {
+        Preconditions.checkNotNull(databaseTag);
+        readSensorData(databaseTag, onSuccess,
+                () -> mSensorDatabase.getScalarStats(databaseTag, timeRange));
+    }
+
+    @Override
+    public Flowable<ScalarReadingPage> createScalarPageFlowable(final String[] sensorIds,
+            final TimeRange timeRange, final int resolutionTier, final int pageSize) {
+        return writePendingReadings(sensorIds).andThen(Flowable.defer(() -> {
+            ScalarReadingPage.Pool pages = new ScalarReadingPage.Pool(pageSize);
+            return Flowable.<ScalarReadingPage, ScalarPageReader>generate(
+                    () -> mSensorDatabase.openScalarPageReader(sensorIds, timeRange,
+                            resolutionTier),
+                    (reader, emitter) -> {
+                        ScalarReadingPage page = pages.obtain();
+                        // Once emitted, the page may be released and refilled at any time.
+                        boolean last = !reader.readNextPage(page) || !page.isFull();
+                        if (page.isEmpty()) {
+                            page.release();
+                        } else {
+                            emitter.onNext(page);
+                        }
+                        if (last) {
+                            emitter.onComplete();
+                        }
+                    }, ScalarPageReader::close);
+        }).subscribeOn(Schedulers.from(mSensorReadThread)));
+    }
+
+    /**
+     * Writes every reading added so far for {@code databaseTag}, then runs {@code job} on the
+     * sensor read thread.  Reads queue behind the writes requested before them on that sensor's
+     * lane, but not behind the ones after, nor behind other lanes.
+     */
+    private <T> void readSensorData(String databaseTag, final MaybeConsumer<T> onSuccess,
+            final Callable<T> job) {
+        readSensorData(new String[] {databaseTag}, onSuccess, job);
+    }
+
+    /**
+     * @param databaseTags null to write every sensor's readings before reading
+     */
+    private <T> void readSensorData(String[] databaseTags, final MaybeConsumer<T> onSuccess,
+            final Callable<T> job) {
+        mScalarWriter.writePendingReadings(databaseTags,
+                () -> background(mSensorReadThread, onSuccess, job));
+    }
+
+    /**
+     * Passes {@code result} to {@code onSuccess} on the UI thread, as {@link #background} would.
+     */
+    private <T> void deliver(final MaybeConsumer<T> onSuccess, final T result) {
+        mUiThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                onSuccess.success(result);
+            }
+        });
+    }
+
+    /**
+     * @return a Completable that writes every reading for {@code sensorIds} added before it is
+     * subscribed to, on their sensor data lanes
+     */
+    private Completable writePendingReadings(final String[] sensorIds) {
+        return Completable.create(
+                emitter -> mScalarWriter.writePendingReadings(sensorIds, emitter::onComplete));
     }
 
     @Override
@@ -184,6 +620,64 @@ public class DataControllerImpl implements DataController, RecordingDataControll
         });
     }
 
+    @Override
+    public void deleteTrialDataOutside(final Trial trial, final long keepFirstMillis,
+            final long keepLastMillis, MaybeConsumer<Success> onSuccess) {
+        invalidateCachedReadings(trial.getSensorIds());
+        background(mSensorDataThread, onSuccess, new Callable<Success>() {
+            @Override
+            public Success call() throws Exception {
+                mScalarWriter.writePendingReadings();
+                long firstTimestamp = trial.getOriginalFirstTimestamp();
+                long lastTimestamp = trial.getOriginalLastTimestamp();
+                for (String tag : trial.getSensorIds()) {
+                    if (firstTimestamp < keepFirstMillis) {
+                        mSensorDatabase.deleteScalarReadings(tag, TimeRange.oldest(
+                                Range.closedOpen(firstTimestamp, keepFirstMillis)));
+                    }
+                    if (keepLastMillis < lastTimestamp) {
+                        mSensorDatabase.deleteScalarReadings(tag, TimeRange.oldest(
+                                Range.openClosed(keepLastMillis, lastTimestamp)));
+                    }
+                }
+                invalidateCachedReadings(trial.getSensorIds());
+                return Success.SUCCESS;
+            }
+        });
+    }
+
+    @Override
+    public void getSensorDataTags(MaybeConsumer<List<String>> onSuccess) {
+        readSensorData((String[]) null, onSuccess, () -> mSensorDatabase.getSensorTags());
+    }
+
+    @Override
+    public void deleteSensorData(final String databaseTag, final TimeRange timeRange,
+            MaybeConsumer<Success> onSuccess) {
+        mLiveTail.invalidate(databaseTag);
+        mBlockCache.invalidate(databaseTag);
+        background(mSensorDataThread, onSuccess, new Callable<Success>() {
+            @Override
+            public Success call() throws Exception {
+                mScalarWriter.writePendingReadings();
+                mSensorDatabase.deleteScalarReadings(databaseTag, timeRange);
+                mLiveTail.invalidate(databaseTag);
+                mBlockCache.invalidate(databaseTag);
+                return Success.SUCCESS;
+            }
+        });
+    }
+
+    @Override
+    public void reclaimSensorDataSpace(final long maxBytes, MaybeConsumer<Long> onSuccess) {
+        if (mRecording) {
+            // Reclaiming holds every sensor data lane; it waits for the next compaction instead.
+            mUiThread.execute(() -> onSuccess.success(0L));
+            return;
+        }
+        background(mSensorDataThread, onSuccess, () -> mSensorDatabase.reclaimSpace(maxBytes));
+    }
+
     @Override
     public void createExperiment(final MaybeConsumer<Experiment> onSuccess) {
         MaybeConsumer<Experiment> onSuccessWrapper = MaybeConsumers.chainFailure(onSuccess,
@@ -223,6 +717,16 @@ public class DataControllerImpl implements DataController, RecordingDataControll
     private void deleteExperimentOnDataThread(Experiment experiment) {
         // TODO: delete invalid run data, as well (b/35794788)
         mMetaDataManager.deleteExperiment(experiment);
+        // Neither tails nor blocks are kept by experiment, so forget them all.
+        mLiveTail.invalidateAll();
+        mBlockCache.invalidateAll();
+        mSensorDataThread.execute(() -> {
+            // Don't leave queued readings behind to be written after the delete.
+            mScalarWriter.writePendingReadings();
+            mSensorDatabase.deleteExperimentReadings(experiment.getExperimentId());
+            mLiveTail.invalidateAll();
+            mBlockCache.invalidateAll();
+        });
     }
 
     @Override
@@ -38,6 +38,8 @@ public class DevOptionsFragment extends PreferenceFragment {
     private static final String KEY_DEV_TOOLS = "dev_tools";
     private static final String KEY_LEAK_CANARY = "leak_canary";
     private static final String KEY_STRICT_MODE = "strict_mode";
+    private static final String KEY_CHUNKED_SENSOR_STORAGE = "chunked_sensor_storage";
+    private static final String KEY_ORPHANED_DATA_DRY_RUN = "orphaned_sensor_data_dry_run";
     public static final String KEY_DEV_SONIFICATION_TYPES = "enable_dev_sonification_types";
     public static final String KEY_AMBIENT_TEMPERATURE_SENSOR = "enable_ambient_temp_sensor";
     private static final String KEY_PERF_DEBUG_SCREEN = "show_perf_tracker_debug";
@@ -112,6 +114,14 @@ public class DevOptionsFragment extends PreferenceFragment {
         return getBoolean(KEY_STRICT_MODE, false, context);
     }
 
+    public static boolean isChunkedSensorStorageEnabled(Context context) {
+        return getBoolean(KEY_CHUNKED_SENSOR_STORAGE, false, context);
+    }
+
+    public static boolean isOrphanedSensorDataDryRun(Context context) {
+        return getBoolean(KEY_ORPHANED_DATA_DRY_RUN, true, context);
+    }
+
     public static boolean isDebugVersion() {
         return BuildConfig.DEBUG;
     }
@@ -35,7 +35,7 @@ import android.util.Log;
 
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
-import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingPage;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
 import com.google.common.collect.Range;
 
@@ -46,13 +46,14 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 
 import io.reactivex.Observable;
-import io.reactivex.Observer;
 import io.reactivex.Single;
-import io.reactivex.disposables.Disposable;
 import io.reactivex.schedulers.Schedulers;
 import io.reactivex.subjects.BehaviorSubject;
 import io.reactivex.subjects.PublishSubject;
 
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
 /**
  * Service for exporting trial data with different options.
  * Can be bound for status updates using {@link #bind(Context)}.
@@ -73,6 +74,9 @@ public class ExportService extends Service {
     private static final String EXTRA_SENSOR_IDS =
             "com.google.android.apps.forscience.whistlepunk.extra.SENSOR_IDS";
 
+    // Readings from all of the exported sensors, merged in timestamp order, per page.
+    private static final int EXPORT_PAGE_SIZE = 2000;
+
     private static final String ACTION_CLEAN_OLD_FILES =
             "com.google.android.apps.forscience.whistlepunk.action.CLEAN_OLD_FILES";
 
@@ -292,9 +296,11 @@ public class ExportService extends Service {
         // Start observing sensor data from here, while grouping them into timestamp equal rows.
         // Then write the rows out.
         Range<Long> range = Range.closed(trial.getFirstTimestamp(), trial.getLastTimestamp());
-        dc.createScalarObservable(sensorIds, TimeRange.oldest(range), 0 /* resolution tier */)
+        dc.createScalarPageFlowable(sensorIds, TimeRange.oldest(range), 0 /* resolution tier */,
+                EXPORT_PAGE_SIZE)
                 .doOnComplete(() -> stopSelf(startId))
-                .observeOn(Schedulers.io())
+                // Pages are written one at a time, so only one is read ahead.
+                .observeOn(Schedulers.io(), false, 1)
                 .subscribe(new TrialDataWriter(trialId, fileName, relativeTime, sensorIds,
                         trial.getFirstTimestamp(), trial.getLastTimestamp()));
     }
@@ -365,14 +371,19 @@ public class ExportService extends Service {
                 });
     }
 
-    private class TrialDataWriter implements Observer<ScalarReading> {
+    private class TrialDataWriter implements Subscriber<ScalarReadingPage> {
 
         private final long mFirstTimeStamp;
         private final long mLastTimeStamp;
         private long mCurrentTimestamp = -1;
         private long mFirstTimeStampWritten = -1;
 
-        private ArrayMap<String, Double> mCurrentRow = new ArrayMap<>();
+        // The column of each sensor, and the values in the current row, by column.
+        private final ArrayMap<String, Integer> mColumns = new ArrayMap<>();
+        private final double[] mCurrentRow;
+        private final boolean[] mHasValue;
+        private boolean mCurrentRowEmpty = true;
+        private Subscription mSubscription;
         private OutputStreamWriter mOutputStreamWriter;
         private final String mFileName;
         private final boolean mRelativeTime;
@@ -387,10 +398,15 @@ public class ExportService extends Service {
             mSensorIds = sensorIds;
             mFirstTimeStamp = firstTimeStamp;
             mLastTimeStamp = lastTimeStamp;
+            mCurrentRow = new double[sensorIds.length];
+            mHasValue = new boolean[sensorIds.length];
+            for (int index = 0; index < sensorIds.length; index++) {
+                mColumns.put(sensorIds[index], index);
+            }
         }
 
         @Override
-        public void onSubscribe(Disposable disposable) {
+        public void onSubscribe(Subscription subscription) {
             // Start writing stream.
             File storageDir = getStorageDir();
 
@@ -398,6 +414,7 @@ public class ExportService extends Service {
             if (!storageDir.exists()) {
                 if (!storageDir.mkdirs()) {
                     Log.e(TAG, "failed to create directory");
+                    subscription.cancel();
                     onError(new IOException("Could not create dir " +
                             storageDir.getAbsolutePath()));
                     return;
@@ -409,6 +426,7 @@ public class ExportService extends Service {
             try {
                 fs = new FileOutputStream(file);
             } catch (FileNotFoundException e) {
+                subscription.cancel();
                 onError(e);
                 return;
             }
@@ -423,30 +441,42 @@ public class ExportService extends Service {
                 }
                 mOutputStreamWriter.write("\n");
             } catch (IOException e) {
+                subscription.cancel();
                 onError(e);
                 return;
             }
             updateProgress(new ExportProgress(mTrialId, ExportProgress.EXPORTING, 0));
+            mSubscription = subscription;
+            subscription.request(1);
         }
 
         @Override
-        public void onNext(ScalarReading scalarReading) {
-            // Check if we have a different timestamp than the current row.
-            if (scalarReading.getCollectedTimeMillis() != mCurrentTimestamp) {
-                if (mCurrentRow != null && mCurrentTimestamp != -1) {
-                    writeRow();
+        public void onNext(ScalarReadingPage page) {
+            for (int i = 0; i < page.size(); i++) {
+                long timestamp = page.getTimestampMillis(i);
+                // Readings with the same timestamp are grouped into one row.
+                if (timestamp != mCurrentTimestamp) {
+                    if (!mCurrentRowEmpty) {
+                        writeRow();
+                    }
+                    if (mCurrentTimestamp == -1) {
+                        mFirstTimeStampWritten = timestamp;
+                    }
+                    mCurrentTimestamp = timestamp;
+                }
+                Integer column = mColumns.get(page.getSensorTag(i));
+                if (column != null) {
+                    mCurrentRow[column] = page.getValue(i);
+                    mHasValue[column] = true;
+                    mCurrentRowEmpty = false;
                 }
-                mCurrentRow.clear();
-            }
-            // If not, just add to current row.
-            mCurrentRow.put(scalarReading.getSensorTag(), scalarReading.getValue());
-            if (mCurrentTimestamp == -1) {
-                mFirstTimeStampWritten = scalarReading.getCollectedTimeMillis();
             }
-            mCurrentTimestamp = scalarReading.getCollectedTimeMillis();
+            page.release();
             int progress = (int) (((mCurrentTimestamp - mFirstTimeStamp) /
                     (double) (mLastTimeStamp - mFirstTimeStamp)) * 100);
             updateProgress(new ExportProgress(mTrialId, ExportProgress.EXPORTING, progress));
+            // Only read the next page once this one is written.
+            mSubscription.request(1);
         }
 
         @Override
@@ -459,7 +489,7 @@ public class ExportService extends Service {
         @Override
         public void onComplete() {
             // Write the last row if necessary.
-            if (!mCurrentRow.isEmpty()) {
+            if (!mCurrentRowEmpty) {
                 writeRow();
             }
 
@@ -476,14 +506,14 @@ public class ExportService extends Service {
                 }
                 mOutputStreamWriter.write(getTimestampString(mCurrentTimestamp));
                 for (int index = 0, length = mSensorIds.length; index < length; ++index) {
-                    String value = "";
-                    if (mCurrentRow.containsKey(mSensorIds[index])) {
-                        value = Double.toString(mCurrentRow.get(mSensorIds[index]));
-                    }
                     mOutputStreamWriter.write(",");
-                    mOutputStreamWriter.write(value);
+                    if (mHasValue[index]) {
+                        mOutputStreamWriter.write(Double.toString(mCurrentRow[index]));
+                        mHasValue[index] = false;
+                    }
                 }
                 mOutputStreamWriter.write("\n");
+                mCurrentRowEmpty = true;
             } catch (IOException e) {
                 onError(e);
             }
@@ -17,33 +17,67 @@
 package com.google.android.apps.forscience.whistlepunk;
 
 import android.support.annotation.NonNull;
-import android.support.v4.util.Pair;
 
 import com.google.android.apps.forscience.javalib.FailureListener;
 import com.google.android.apps.forscience.javalib.FallibleConsumer;
 import com.google.android.apps.forscience.javalib.MaybeConsumers;
-import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
-import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingPage;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
-import com.google.common.collect.DiscreteDomain;
 import com.google.common.collect.Range;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Loads a range of a sensor's readings into an {@link ObservationDisplay}, a page at a time.
+ *
+ * Loading works outward from a focus time, usually the start of the visible part of the chart:
+ * up from it to the end of the visible part first, then on up to the end of the range, and down
+ * from it to the start of the range, newest first.  So each page the display gets is next to what
+ * it already has, and the visible part is drawn first.
+ *
+ * Each part is split by time into a few pieces, each read a page at a time with its own request
+ * in flight, so that a part isn't read one round trip after another.  Once the first visible page
+ * is in, every piece is read at the same time.  Pages of a piece are held until the pieces before
+ * it (and, above the visible part, the visible part itself) are complete.
+ */
 // TODO(saff): port tests from Weather
 public class GraphPopulator {
     // How many datapoints do we grab from the database at one time?
-    private static final int MAX_DATAPOINTS_PER_SENSOR_LOAD = 100;
+    private static final int MAX_DATAPOINTS_PER_SENSOR_LOAD = 500;
+
+    // How many pages a piece may read ahead, and hold until the pieces before it are loaded.
+    private static final int MAX_HELD_PAGES = 4;
 
-    private Range<Long> mRequestedTimes = null;
-    private ObservationDisplay mObservationDisplay;
-    private boolean mRequestInFlight = false;
+    // How many pieces each part is split into, and so how many of its pages are read at once.
+    private static final int MAX_PIECES_PER_PART = 3;
+
+    private final ObservationDisplay mObservationDisplay;
     private final long mRequestId;
+    private final int mPageSize;
+
+    private boolean mStarted = false;
+    private boolean mStopped = false;
+    private GraphStatus mGraphStatus;
+    private DataController mDataController;
+    private FailureListener mFailureListener;
+    private int mResolutionTier;
+    private String mSensorId;
+
+    // The pieces of the visible part, the rest above it, and everything below it, each part's
+    // in the order they are displayed.
+    private final List<Cursor> mCursors = new ArrayList<>();
 
     // TODO: can we pass in the request id, rather than generating it here?
     public GraphPopulator(ObservationDisplay observationDisplay, Clock clock) {
+        this(observationDisplay, clock, MAX_DATAPOINTS_PER_SENSOR_LOAD);
+    }
+
+    public GraphPopulator(ObservationDisplay observationDisplay, Clock clock, int pageSize) {
         mObservationDisplay = observationDisplay;
         mRequestId = clock.getNow();
+        mPageSize = pageSize;
     }
 
     /**
@@ -72,124 +106,260 @@ public class GraphPopulator {
     }
 
     /**
-     * If the graphStatus shows that there are still values that need to be fetched to fill the
-     * currently-displayed graph, this method will begin fetching them.
-     * <p/>
-     * Call only on the UI thread.
+     * Loads the graph's range from its start, oldest first.
      */
     public void requestObservations(final GraphStatus graphStatus,
             final DataController dataController, final FailureListener failureListener,
             final int resolutionTier, final String sensorId) {
-        if (mRequestInFlight) {
+        requestObservations(graphStatus, dataController, failureListener, resolutionTier, sensorId,
+                Range.singleton(graphStatus.getMinTime()));
+    }
+
+    /**
+     * Begins fetching the values that fill the graph's range, starting from the lower end of
+     * {@code visibleTimes}: up to its upper end, then the rest of the range above it and below it.
+     * If {@code visibleTimes} is outside the range, the nearest end of the range is used instead.
+     * A populator loads only once; later calls do nothing.
+     * <p/>
+     * Call only on the UI thread.
+     */
+    public void requestObservations(GraphStatus graphStatus, DataController dataController,
+            FailureListener failureListener, int resolutionTier, String sensorId,
+            Range<Long> visibleTimes) {
+        if (mStarted) {
             return;
         }
-        final TimeRange r = getRequestRange(graphStatus);
-        if (r == null) {
-            mObservationDisplay.onFinish(mRequestId);
+        mStarted = true;
+        mGraphStatus = graphStatus;
+        mDataController = dataController;
+        mFailureListener = failureListener;
+        mResolutionTier = resolutionTier;
+        mSensorId = sensorId;
+
+        long minTime = graphStatus.getMinTime();
+        long maxTime = graphStatus.getMaxTime();
+        long focus = clamp(visibleTimes.lowerEndpoint(), minTime, maxTime);
+        long visibleMax = clamp(visibleTimes.upperEndpoint(), focus, maxTime);
+        if (minTime <= maxTime) {
+            Cursor visible = addPart(focus, visibleMax, true, null);
+            if (visibleMax < maxTime) {
+                addPart(visibleMax + 1, maxTime, true, visible);
+            }
+            if (minTime < focus) {
+                addPart(minTime, focus - 1, false, null);
+            }
+        }
+
+        // The other pieces wait for the first visible page, so it isn't slowed down by them.
+        if (mCursors.isEmpty()) {
+            pump();
         } else {
-            mRequestInFlight = true;
-            dataController.getScalarReadings(sensorId, resolutionTier, r,
-                    MAX_DATAPOINTS_PER_SENSOR_LOAD, MaybeConsumers.chainFailure(failureListener,
-                            new FallibleConsumer<ScalarReadingList>() {
-                                @Override
-                                public void take(ScalarReadingList observations) {
-                                    mRequestInFlight = false;
-                                    if (graphStatus.graphIsStillValid()) {
-                                        final Pair<Range<Long>, Range<Double>> received =
-                                                addObservationsToDisplay(observations);
-                                        if (received.first != null) {
-                                            mObservationDisplay.addRange(observations,
-                                                    received.second, mRequestId);
-                                        }
-                                        addToRequestedTimes(getEffectiveAddedRange(r,
-                                                received.first));
-                                        requestObservations(graphStatus, dataController,
-                                                failureListener, resolutionTier, sensorId);
-                                    }
-                                }
-
-                                public void addToRequestedTimes(Range<Long> effectiveAdded) {
-                                    mRequestedTimes = Ranges.span(mRequestedTimes, effectiveAdded);
-                                }
-
-                                public Pair<Range<Long>, Range<Double>> addObservationsToDisplay(
-                                        ScalarReadingList observations) {
-                                    List<ScalarReading> points = ScalarReading.slurp(observations);
-                                    long xMin = Long.MAX_VALUE;
-                                    long xMax = Long.MIN_VALUE;
-                                    double yMin = Double.MAX_VALUE;
-                                    double yMax = Double.MIN_VALUE;
-                                    Range<Long> timeRange = null;
-                                    Range<Double> valueRange = null;
-                                    for (ScalarReading point : points) {
-                                        if (point.getCollectedTimeMillis() < xMin) {
-                                            xMin = point.getCollectedTimeMillis();
-                                        }
-                                        if (point.getCollectedTimeMillis() > xMax) {
-                                            xMax = point.getCollectedTimeMillis();
-                                        }
-                                        if (point.getValue() < yMin) {
-                                            yMin = point.getValue();
-                                        }
-                                        if (point.getValue() > yMax) {
-                                            yMax = point.getValue();
-                                        }
-                                    }
-                                    if (xMin <= xMax) {
-                                        timeRange = Range.closed(xMin, xMax);
-                                    }
-                                    if (yMin <= yMax) {
-                                        valueRange = Range.closed(yMin, yMax);
-                                    }
-                                    return new Pair<>(timeRange, valueRange);
-                                }
-                            })
-            );
-        }
-        return;
+            mCursors.get(0).request();
+        }
+    }
+
+    /**
+     * Splits {@code from} to {@code to} into pieces, in the order they are read: upward when
+     * oldest first, downward when not.
+     *
+     * @param after whose pages must all be displayed before this part's, or null
+     * @return the last piece
+     */
+    private Cursor addPart(long from, long to, boolean oldestFirst, Cursor after) {
+        int pieces = (int) Math.min(MAX_PIECES_PER_PART, to - from + 1);
+        long pieceMillis = (to - from + 1) / pieces;
+        Cursor previous = after;
+        for (int i = 0; i < pieces; i++) {
+            boolean last = i == pieces - 1;
+            long pieceFrom;
+            long pieceTo;
+            if (oldestFirst) {
+                pieceFrom = from + i * pieceMillis;
+                pieceTo = last ? to : pieceFrom + pieceMillis - 1;
+            } else {
+                pieceTo = to - i * pieceMillis;
+                pieceFrom = last ? from : pieceTo - pieceMillis + 1;
+            }
+            previous = new Cursor(pieceFrom, pieceTo, oldestFirst, previous);
+            mCursors.add(previous);
+        }
+        return previous;
+    }
+
+    public long getRequestId() {
+        return mRequestId;
     }
 
-    private TimeRange getRequestRange(GraphStatus graphStatus) {
-        final long minTime = graphStatus.getMinTime();
-        final long maxTime = graphStatus.getMaxTime();
-        // TODO(saff): push more of this computation to be testable in NextRequestType
-        return computeRequestRange(NextRequestType.compute(mRequestedTimes, minTime, maxTime),
-                minTime, maxTime);
+    private void pump() {
+        if (mStopped) {
+            return;
+        }
+        // In order, so that releasing one piece can release the next.
+        for (Cursor cursor : mCursors) {
+            if (cursor.mHeld && cursor.mAfter.isFinished()) {
+                cursor.release();
+            }
+        }
+        for (Cursor cursor : mCursors) {
+            cursor.request();
+        }
+        // A DataController that answers at once may have finished loading within those requests.
+        if (!mStopped && allFinished()) {
+            mStopped = true;
+            mObservationDisplay.onFinish(mRequestId);
+        }
     }
 
-    private TimeRange computeRequestRange(NextRequestType type, long minTime, long maxTime) {
-        switch (type) {
-            case NONE:
-                return null;
-            case FIRST:
-                return TimeRange.oldest(Range.closed(minTime, maxTime));
-            case NEXT_LOWER:
-                return TimeRange.oldest(Range.closedOpen(minTime, mRequestedTimes.lowerEndpoint()));
-            case NEXT_HIGHER:
-                return TimeRange.oldest(Range.openClosed(mRequestedTimes.upperEndpoint(), maxTime));
-            default:
-                throw new IllegalStateException("Should never happen");
+    private boolean allFinished() {
+        for (Cursor cursor : mCursors) {
+            if (!cursor.isFinished()) {
+                return false;
+            }
         }
+        return true;
     }
 
-    private Range<Long> getEffectiveAddedRange(TimeRange requested, Range<Long> returned) {
-        if (returned == null) {
-            return requested.getTimes().canonical(DiscreteDomain.longs());
+    private void display(ScalarReadingPage observations) {
+        Range<Double> valueRange = getValueRange(observations);
+        if (!observations.isEmpty()) {
+            mObservationDisplay.addRange(observations, valueRange, mRequestId);
         }
+    }
 
-        switch (requested.getOrder()) {
-            case NEWEST_FIRST:
-                return Range.closed(returned.lowerEndpoint(), requested.getTimes().upperEndpoint());
-            case OLDEST_FIRST:
-                return Range.closed(requested.getTimes().lowerEndpoint(), returned.upperEndpoint());
-            default:
-                throw new IllegalArgumentException(
-                        "Unexpected value for enum: " + requested.getOrder());
+    private static Range<Double> getValueRange(ScalarReadingPage observations) {
+        double yMin = Double.MAX_VALUE;
+        double yMax = -Double.MAX_VALUE;
+        double[] values = observations.getValues();
+        for (int i = 0; i < observations.size(); i++) {
+            if (values[i] < yMin) {
+                yMin = values[i];
+            }
+            if (values[i] > yMax) {
+                yMax = values[i];
+            }
         }
+        return yMin <= yMax ? Range.closed(yMin, yMax) : null;
     }
 
-    public long getRequestId() {
-        return mRequestId;
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Reads one piece of the range a page at a time, each page starting where the last ended.
+     * A page starts at the time the last one ended, rather than after it, so that readings at
+     * that time which didn't fit are read too; the ones that did fit are dropped from the page.
+     */
+    private class Cursor {
+        private final boolean mOldestFirst;
+        private final Cursor mAfter;
+        // What is left to read.
+        private long mFrom;
+        private long mTo;
+        // How many readings at the start of the next page have been read already.
+        private int mSkip = 0;
+        private boolean mInFlight = false;
+        private boolean mDone = false;
+        private boolean mHeld;
+        private final ArrayDeque<ScalarReadingPage> mHeldPages = new ArrayDeque<>();
+        private final ArrayDeque<ScalarReadingPage> mFreePages = new ArrayDeque<>();
+
+        /**
+         * @param after whose pages must all be displayed before this one's, or null
+         */
+        Cursor(long from, long to, boolean oldestFirst, Cursor after) {
+            mFrom = from;
+            mTo = to;
+            mOldestFirst = oldestFirst;
+            mAfter = after;
+            mHeld = after != null;
+        }
+
+        /**
+         * @return whether every page has been displayed, and so every page of the pieces before
+         * this one
+         */
+        boolean isFinished() {
+            return mDone && !mInFlight && !mHeld && mHeldPages.isEmpty();
+        }
+
+        void request() {
+            if (mDone || mInFlight || mHeldPages.size() >= MAX_HELD_PAGES) {
+                return;
+            }
+            mInFlight = true;
+            ScalarReadingPage page = mFreePages.isEmpty() ? new ScalarReadingPage(mPageSize)
+                    : mFreePages.poll();
+            Range<Long> times = Range.closed(mFrom, mTo);
+            mDataController.getScalarReadingPage(mSensorId, mResolutionTier,
+                    mOldestFirst ? TimeRange.oldest(times) : TimeRange.newest(times), page,
+                    MaybeConsumers.chainFailure(new FailureListener() {
+                        @Override
+                        public void fail(Exception e) {
+                            mStopped = true;
+                            mFailureListener.fail(e);
+                        }
+                    }, new FallibleConsumer<ScalarReadingPage>() {
+                        @Override
+                        public void take(ScalarReadingPage observations) {
+                            onPage(observations);
+                        }
+                    }));
+        }
+
+        void release() {
+            mHeld = false;
+            while (!mHeldPages.isEmpty()) {
+                ScalarReadingPage page = mHeldPages.poll();
+                display(page);
+                mFreePages.add(page);
+            }
+        }
+
+        private void onPage(ScalarReadingPage observations) {
+            mInFlight = false;
+            if (mStopped || !mGraphStatus.graphIsStillValid()) {
+                return;
+            }
+            int readAlready = mSkip;
+            if (observations.isFull()) {
+                advancePast(observations);
+            } else {
+                mDone = true;
+            }
+            observations.removeFirst(readAlready);
+            if (mHeld && !observations.isEmpty()) {
+                mHeldPages.add(observations);
+            } else {
+                display(observations);
+                mFreePages.add(observations);
+            }
+            pump();
+        }
+
+        /**
+         * Starts what is left to read at the last time on {@code page}.
+         */
+        private void advancePast(ScalarReadingPage page) {
+            long last = page.getLastTimestampMillis();
+            int atLast = 0;
+            for (int i = page.size() - 1; i >= 0 && page.getTimestampMillis(i) == last; i--) {
+                atLast++;
+            }
+            if (atLast == page.size() && last == (mOldestFirst ? mFrom : mTo)) {
+                // More readings at one time than fit in a page: asking from that time again
+                // would only return the same page, so the rest of them are left out.
+                last += mOldestFirst ? 1 : -1;
+                atLast = 0;
+            }
+            if (mOldestFirst) {
+                mFrom = last;
+            } else {
+                mTo = last;
+            }
+            mSkip = atLast;
+            mDone = mFrom > mTo;
+        }
     }
 
     public interface GraphStatus {
@@ -201,8 +371,14 @@ public class GraphPopulator {
     }
 
     public interface ObservationDisplay {
-        void addRange(ScalarReadingList observations, Range<Double> valueRange, long requestId);
+        /**
+         * @param observations only valid until this method returns; the page is then refilled.
+         *                     Its readings are in order, oldest or newest first, and are all
+         *                     next to those already given for this request: either at or after
+         *                     them all, or at or before them all.
+         */
+        void addRange(ScalarReadingPage observations, Range<Double> valueRange, long requestId);
 
         void onFinish(long requestId);
     }
-}
\ No newline at end of file
+}
@@ -127,9 +127,11 @@ public class RecorderControllerImpl implements RecorderController {
     private Supplier<List<GoosciSensorLayout.SensorLayout>> mLayoutSupplier;
 
     /**
-     * The latest recorded value for each sensor
+     * The latest recorded value for each sensor.  Each subject emits its sensor's holder once, when
+     * the first value arrives; later values update the holder in place rather than allocating a
+     * new reading per sample.
      */
-    private Map<String, BehaviorSubject<ScalarReading>> mLatestValues = new HashMap<>();
+    private Map<String, BehaviorSubject<LatestValue>> mLatestValues = new HashMap<>();
 
     public RecorderControllerImpl(Context context) {
         this(context, AppSingleton.getInstance(context).getDataController());
@@ -215,10 +217,12 @@ public class RecorderControllerImpl implements RecorderController {
     private void addServiceObserverIfNeeded(final String sensorId,
             final List<SensorTrigger> activeTriggers, SensorRegistry sensorRegistry) {
         if (!mLatestValues.containsKey(sensorId)) {
-            mLatestValues.put(sensorId, BehaviorSubject.<ScalarReading>create());
+            mLatestValues.put(sensorId, BehaviorSubject.<LatestValue>create());
         }
 
         if (!mServiceObservers.containsKey(sensorId)) {
+            final BehaviorSubject<LatestValue> latestValues = mLatestValues.get(sensorId);
+            final LatestValue latest = new LatestValue();
             String serviceObserverId = mRegistry.putListeners(sensorId,
                     (timestamp, data) -> {
                         if (!ScalarSensor.hasValue(data)) {
@@ -227,10 +231,13 @@ public class RecorderControllerImpl implements RecorderController {
                         double value = ScalarSensor.getValue(data);
 
                         // Remember latest value
-                        mLatestValues.get(sensorId).onNext(new ScalarReading(timestamp, value));
+                        if (latest.set(timestamp, value)) {
+                            latestValues.onNext(latest);
+                        }
 
                         // Fire triggers.
-                        for (SensorTrigger trigger : activeTriggers) {
+                        for (int i = 0; i < activeTriggers.size(); i++) {
+                            SensorTrigger trigger = activeTriggers.get(i);
                             if (!isRecording() && trigger.shouldTriggerOnlyWhenRecording()) {
                                 continue;
                             }
@@ -550,6 +557,9 @@ public class RecorderControllerImpl implements RecorderController {
                                         recorderService.beginServiceRecording(
                                                 recording.getExperimentName(), resumeIntent);
 
+                                        dataController.setRecordingTrial(
+                                                getSelectedExperiment().getExperimentId(),
+                                                mCurrentTrialId);
                                         for (StatefulRecorder recorder : mRecorders.values()) {
                                             recorder.startRecording(recording.getRunId());
                                         }
@@ -633,6 +643,8 @@ public class RecorderControllerImpl implements RecorderController {
                                 new LoggingConsumer<Success>(TAG, "stopTrial") {
                                     @Override
                                     public void success(Success value) {
+                                        mDataController.setRecordingTrial(
+                                                getSelectedExperiment().getExperimentId(), null);
                                         for (StatefulRecorder recorder : mRecorders.values()) {
                                             recorder.stopRecording(trial);
                                         }
@@ -708,12 +720,12 @@ public class RecorderControllerImpl implements RecorderController {
 
     private MaybeSource<GoosciSnapshotValue.SnapshotLabelValue.SensorSnapshot> makeSnapshot(
             String sensorId, SensorRegistry sensorRegistry) throws Exception {
-        BehaviorSubject<ScalarReading> subject = mLatestValues.get(sensorId);
+        BehaviorSubject<LatestValue> subject = mLatestValues.get(sensorId);
         if (subject == null) {
             return Maybe.empty();
         }
         final GoosciSensorSpec.SensorSpec spec = getSensorSpec(sensorId, sensorRegistry);
-        return subject.firstElement().map(value -> generateSnapshot(spec, value));
+        return subject.firstElement().map(latest -> generateSnapshot(spec, latest.get()));
     }
 
     private GoosciSnapshotValue.SnapshotLabelValue buildSnapshotLabelValue(
@@ -752,6 +764,7 @@ public class RecorderControllerImpl implements RecorderController {
             return;
         }
         mCurrentTrialId = "";
+        mDataController.setRecordingTrial(getSelectedExperiment().getExperimentId(), null);
         for (StatefulRecorder recorder : mRecorders.values()) {
             // No trial to update, since we are not saving this.
             recorder.stopRecording(null);
@@ -884,4 +897,29 @@ public class RecorderControllerImpl implements RecorderController {
             }
         };
     }
+
+    /**
+     * Mutable holder for the most recent value seen from a sensor, shared between the sensor's
+     * listener and snapshot requests.
+     */
+    private static class LatestValue {
+        private long mTimestamp;
+        private double mValue;
+        private boolean mHasValue = false;
+
+        /**
+         * @return true if this is the first value set
+         */
+        synchronized boolean set(long timestamp, double value) {
+            mTimestamp = timestamp;
+            mValue = value;
+            boolean first = !mHasValue;
+            mHasValue = true;
+            return first;
+        }
+
+        synchronized ScalarReading get() {
+            return new ScalarReading(mTimestamp, mValue);
+        }
+    }
 }
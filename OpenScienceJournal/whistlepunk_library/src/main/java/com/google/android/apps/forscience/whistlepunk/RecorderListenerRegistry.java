@@ -18,6 +18,8 @@ package com.google.android.apps.forscience.whistlepunk;
 
 import android.os.Bundle;
 
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarBatch;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarBatchObserver;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorObserver;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorStatusListener;
 import com.google.common.collect.HashMultimap;
@@ -40,8 +42,14 @@ import java.util.Map;
  * These methods should all only be called on the service's main thread.
  */
 public class RecorderListenerRegistry implements SensorStatusListener {
+    private static final ListenerSet[] NO_LISTENERS = new ListenerSet[0];
+
     private Multimap<String, ListenerSet> mListeners = HashMultimap.create();
 
+    // A copy of each sensor's listeners, rebuilt whenever they change, so that routing each new
+    // value doesn't allocate a view and iterator of the multimap.
+    private Map<String, ListenerSet[]> mListenerArrays = new HashMap<>();
+
     private static class ListenerSet {
         public final String observerId;
         public final SensorStatusListener statusListener;
@@ -108,6 +116,7 @@ public class RecorderListenerRegistry implements SensorStatusListener {
         String observerId = sensorId + (++mObserverCount);
 
         mListeners.put(sensorId, new ListenerSet(observerId, listener, observer));
+        updateListenerArray(sensorId);
 
         Integer status = mCurrentStatus.get(sensorId);
         if (status != null && listener != null) {
@@ -124,6 +133,7 @@ public class RecorderListenerRegistry implements SensorStatusListener {
                 iterator.remove();
             }
         }
+        updateListenerArray(sensorId);
         if (sensorListeners.isEmpty()) {
             // Then we've just removed the last listener for this sensorID.
             // Remove the status and errors state too.
@@ -146,13 +156,35 @@ public class RecorderListenerRegistry implements SensorStatusListener {
      * any, for the given sensor.
      */
     public SensorObserver makeObserverForRecorder(final String sensorId) {
-        return new SensorObserver() {
+        return new ScalarBatchObserver() {
             @Override
             public void onNewData(long timestamp, Data bundle) {
-                for (ListenerSet set : mListeners.get(sensorId)) {
+                for (ListenerSet set : getListenerArray(sensorId)) {
                     set.observer.onNewData(timestamp, bundle);
                 }
             }
+
+            @Override
+            public void onNewBatch(ScalarBatch batch) {
+                for (ListenerSet set : getListenerArray(sensorId)) {
+                    batch.deliverTo(set.observer);
+                }
+            }
         };
     }
+
+    private void updateListenerArray(String sensorId) {
+        Collection<ListenerSet> sensorListeners = mListeners.get(sensorId);
+        if (sensorListeners.isEmpty()) {
+            mListenerArrays.remove(sensorId);
+        } else {
+            mListenerArrays.put(sensorId,
+                    sensorListeners.toArray(new ListenerSet[sensorListeners.size()]));
+        }
+    }
+
+    private ListenerSet[] getListenerArray(String sensorId) {
+        ListenerSet[] listeners = mListenerArrays.get(sensorId);
+        return listeners == null ? NO_LISTENERS : listeners;
+    }
 }
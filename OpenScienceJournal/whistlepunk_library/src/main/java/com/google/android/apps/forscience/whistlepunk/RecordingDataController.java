@@ -26,11 +26,24 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
  */
 public interface RecordingDataController {
     /**
+     * @return false if the reading was dropped, because too many were waiting to be written
      * @see com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase#addScalarReading(String, int, long, double)
      */
-    void addScalarReading(String sensorId, final int resolutionTier, long timestampMillis,
+    boolean addScalarReading(String sensorId, final int resolutionTier, long timestampMillis,
             double value);
 
+    /**
+     * Makes sure that every reading passed to {@link #addScalarReading} so far is written soon,
+     * rather than waiting for more readings to fill its batch.  Call when recording stops.
+     */
+    void flushScalarReadings();
+
+    /**
+     * @return how much of the queue of readings waiting to be written is in use, from 0 (empty)
+     * to 1 (full, so that further readings are dropped).  Shared by every sensor.
+     */
+    double getScalarWriteBacklog();
+
     /**
      * If an error is encountered storing data or stats for {@code sensorId}, notify {@code
      * listener}
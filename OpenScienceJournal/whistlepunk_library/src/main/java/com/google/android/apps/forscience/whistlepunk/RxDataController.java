@@ -20,6 +20,8 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Label;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.LabelListHolder;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingPage;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
 
 import io.reactivex.Completable;
 import io.reactivex.Maybe;
@@ -43,6 +45,16 @@ public class RxDataController {
         return updateExperiment(dc, e);
     }
 
+    /**
+     * @return a {@link Single} that fills {@code page} and then emits it.  See
+     *         {@link DataController#getScalarReadingPage}.
+     */
+    public static Single<ScalarReadingPage> getScalarReadingPage(DataController dc,
+            String databaseTag, int resolutionTier, TimeRange timeRange, ScalarReadingPage page) {
+        return MaybeConsumers.buildSingle(
+                mc -> dc.getScalarReadingPage(databaseTag, resolutionTier, timeRange, page, mc));
+    }
+
     public static Single<Experiment> getExperimentById(DataController dc, String experimentId) {
         return MaybeConsumers.buildSingle(mc -> dc.getExperimentById(experimentId, mc));
     }
@@ -47,6 +47,8 @@ import com.google.android.apps.forscience.whistlepunk.sensorapi.DataViewOptions;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.NewOptionsStorage;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.OptionsListener;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ReadableSensorOptions;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarBatch;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarBatchObserver;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorChoice;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorObserver;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorPresenter;
@@ -251,6 +253,19 @@ public class SensorCardPresenter {
             return;
         }
         mSensorPresenter.onNewData(timestamp, bundle);
+        updateLiveValue(timestamp, bundle);
+    }
+
+    public void onNewBatch(ScalarBatch batch) {
+        if (mSensorPresenter == null || batch.isEmpty()) {
+            return;
+        }
+        mSensorPresenter.onNewBatch(batch);
+        // The meter only ever shows the newest value.
+        updateLiveValue(batch.getLatestTimestamp(), batch.getLatestData());
+    }
+
+    private void updateLiveValue(long timestamp, SensorObserver.Data bundle) {
         boolean iconTimeHasElapsed =
                 timestamp > mLastUpdatedIconTimestamp + MAX_ICON_UPDATE_TIME_MS;
         mTextTimeHasElapsed = timestamp > mLastUpdatedTextTimestamp + MAX_TEXT_UPDATE_TIME_MS;
@@ -381,11 +396,16 @@ public class SensorCardPresenter {
         }
         mCardTriggerPresenter.setSensorTriggers(triggers);
         mObserverId = mRecorderController.startObserving(mCurrentSource.getId(), triggers,
-                new SensorObserver() {
+                new ScalarBatchObserver() {
                     @Override
                     public void onNewData(long timestamp, Data value) {
                         SensorCardPresenter.this.onNewData(timestamp, value);
                     }
+
+                    @Override
+                    public void onNewBatch(ScalarBatch batch) {
+                        SensorCardPresenter.this.onNewBatch(batch);
+                    }
                 }, getSensorStatusListener(),
                 AbstractReadableSensorOptions.makeTransportable(nonNullOptions), sensorRegistry);
         if (mCardStatus.isConnected() && mParentFragment != null) {
@@ -0,0 +1,232 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import com.google.android.apps.forscience.javalib.MaybeConsumers;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciUserMetadata;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarStats;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Observable;
+import io.reactivex.Single;
+
+/**
+ * Deletes sensor data that no trial refers to, such as data left behind by deleted experiments
+ * or by recordings whose trial was never saved.
+ *
+ * A reading is live if it falls in the recording range of any trial, in any experiment, archived
+ * or not, whatever its tag.  A trial's sensor ids don't name every series it recorded: derived
+ * series, replayed ones, and ones stored under older tags are kept by time alone.  Every other
+ * reading older than {@link #MIN_AGE_MILLIS} is orphaned.  All trials are read before anything is deleted, so a failure to load any of them
+ * stops the collection without deleting anything.
+ */
+public class SensorDataCollector {
+    /**
+     * Readings this recent are never collected, in case the trial they belong to hasn't been
+     * saved yet.
+     */
+    static final long MIN_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * The most full-resolution readings to delete at once, so that no single delete holds the
+     * sensor data thread for long.
+     */
+    static final int MAX_READINGS_PER_BATCH = 10000;
+
+    /**
+     * Outcome of a single collection.
+     */
+    public static class Result {
+        private final boolean mDryRun;
+        private final int mTagsScanned;
+        private final int mBatches;
+        private final long mReadingsCollected;
+        private final long mElapsedMillis;
+
+        public Result(boolean dryRun, int tagsScanned, int batches, long readingsCollected,
+                long elapsedMillis) {
+            mDryRun = dryRun;
+            mTagsScanned = tagsScanned;
+            mBatches = batches;
+            mReadingsCollected = readingsCollected;
+            mElapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return true if nothing was deleted, and the other numbers describe what would have
+         * been
+         */
+        public boolean isDryRun() {
+            return mDryRun;
+        }
+
+        public int getTagsScanned() {
+            return mTagsScanned;
+        }
+
+        public int getBatches() {
+            return mBatches;
+        }
+
+        /**
+         * @return the number of full-resolution readings deleted; lower resolution tiers are
+         * deleted along with them, but not counted
+         */
+        public long getReadingsCollected() {
+            return mReadingsCollected;
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "mDryRun=" + mDryRun +
+                    ", mTagsScanned=" + mTagsScanned +
+                    ", mBatches=" + mBatches +
+                    ", mReadingsCollected=" + mReadingsCollected +
+                    ", mElapsedMillis=" + mElapsedMillis +
+                    '}';
+        }
+    }
+
+    private final DataController mDataController;
+    private final Clock mClock;
+
+    /**
+     * @param clock must give wall-clock time, the same time readings are stamped with
+     */
+    public SensorDataCollector(DataController dataController, Clock clock) {
+        mDataController = dataController;
+        mClock = clock;
+    }
+
+    /**
+     * @param dryRun if true, only counts the orphaned readings
+     */
+    public Single<Result> collect(final boolean dryRun) {
+        final long start = mClock.getNow();
+        return findLiveData().flatMap(live -> getTags().flatMap(tags -> {
+            List<Range<Long>> orphaned = getOrphanedRanges(live, start - MIN_AGE_MILLIS);
+            return Observable.fromIterable(tags)
+                    .concatMap(tag -> Observable.fromIterable(orphaned)
+                            .concatMap(range -> collectRange(tag, range, dryRun)))
+                    .toList()
+                    .map(batches -> {
+                        long readings = 0;
+                        for (long batch : batches) {
+                            readings += batch;
+                        }
+                        return new Result(dryRun, tags.size(), batches.size(), readings,
+                                mClock.getNow() - start);
+                    });
+        }));
+    }
+
+    /**
+     * @return the times at which any trial may have recorded data
+     */
+    private Single<RangeSet<Long>> findLiveData() {
+        return MaybeConsumers.<List<GoosciUserMetadata.ExperimentOverview>>buildSingle(
+                mc -> mDataController.getExperimentOverviews(true, mc))
+                .flatMapObservable(Observable::fromIterable)
+                .concatMap(overview -> RxDataController.getExperimentById(mDataController,
+                        overview.experimentId).toObservable())
+                .<RangeSet<Long>>collect(TreeRangeSet::create, SensorDataCollector::addLiveData);
+    }
+
+    private static void addLiveData(RangeSet<Long> live, Experiment experiment) {
+        for (Trial trial : experiment.getTrials(true, true)) {
+            live.add(getLiveRange(trial));
+        }
+    }
+
+    /**
+     * @return the times at which {@code trial} may have recorded data.  A trial that hasn't
+     * stopped, or never saved when it stopped, keeps everything after it started; one that never
+     * saved when it started keeps everything.
+     */
+    static Range<Long> getLiveRange(Trial trial) {
+        GoosciTrial.Range recorded = trial.getOriginalRecordingRange();
+        if (recorded == null || recorded.startMs <= 0) {
+            // No telling when it recorded.
+            return Range.all();
+        }
+        if (recorded.endMs < recorded.startMs) {
+            return Range.atLeast(recorded.startMs);
+        }
+        return Range.closed(recorded.startMs, recorded.endMs);
+    }
+
+    /**
+     * @param live the times at which any trial may have recorded data
+     * @return the times at which data may be collected
+     */
+    static List<Range<Long>> getOrphanedRanges(RangeSet<Long> live, long cutoffMillis) {
+        RangeSet<Long> orphaned = TreeRangeSet.create();
+        orphaned.add(Range.lessThan(cutoffMillis));
+        orphaned.removeAll(live);
+        return new ArrayList<>(orphaned.asRanges());
+    }
+
+    private Single<List<String>> getTags() {
+        return MaybeConsumers.buildSingle(mc -> mDataController.getSensorDataTags(mc));
+    }
+
+    /**
+     * Deletes the readings of {@code tag} in {@code range}, splitting it in time until each part
+     * has few enough readings to delete at once.
+     *
+     * @return the number of full-resolution readings in each part that had any
+     */
+    private Observable<Long> collectRange(final String tag, final Range<Long> range,
+            final boolean dryRun) {
+        return MaybeConsumers.<ScalarStats>buildSingle(
+                mc -> mDataController.getScalarStats(tag, TimeRange.oldest(range), mc))
+                .flatMapObservable(stats -> {
+                    if (stats.isEmpty()) {
+                        return Observable.empty();
+                    }
+                    long first = stats.getFirstTimestampMillis();
+                    long last = stats.getLastTimestampMillis();
+                    if (stats.getCount() > MAX_READINGS_PER_BATCH && first < last) {
+                        long middle = first + (last - first) / 2;
+                        return collectRange(tag, range.intersection(Range.atMost(middle)), dryRun)
+                                .concatWith(collectRange(tag,
+                                        range.intersection(Range.greaterThan(middle)), dryRun));
+                    }
+                    Observable<Long> count = Observable.just(stats.getCount());
+                    if (dryRun) {
+                        return count;
+                    }
+                    return MaybeConsumers.buildCompleteable(mc -> mDataController.deleteSensorData(
+                            tag, TimeRange.oldest(range), mc)).andThen(count);
+                });
+    }
+}
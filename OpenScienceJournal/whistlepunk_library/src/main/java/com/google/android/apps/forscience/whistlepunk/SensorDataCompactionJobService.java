@@ -0,0 +1,110 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.disposables.Disposable;
+
+/**
+ * Runs a {@link SensorDataCollector} and then a {@link SensorDataCompactor} while the device is
+ * idle and charging, so that the space freed by both is reclaimed together.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class SensorDataCompactionJobService extends JobService {
+    private static final String TAG = "SensorDataCompaction";
+    private static final int JOB_ID = 0x5d47a;
+
+    /**
+     * Data kept on either side of the crop range, so that small crop adjustments still have
+     * readings to show.
+     */
+    private static final long MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private Disposable mCompaction;
+
+    /**
+     * Schedules a daily compaction, if it is not already scheduled.  Does nothing before
+     * Lollipop, where there is no {@link JobScheduler}.
+     */
+    public static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        scheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, SensorDataCompactionJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(TimeUnit.DAYS.toMillis(1))
+                .build());
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        DataController dc = AppSingleton.getInstance(this).getDataController();
+        Clock clock = new CurrentTimeClock();
+        boolean dryRun = DevOptionsFragment.isOrphanedSensorDataDryRun(this);
+        mCompaction = new SensorDataCollector(dc, clock)
+                .collect(dryRun)
+                .flatMap(collected -> {
+                    if (Log.isLoggable(TAG, Log.INFO)) {
+                        Log.i(TAG, (dryRun ? "Found" : "Collected") + " orphaned sensor data: "
+                                + collected);
+                    }
+                    return new SensorDataCompactor(dc, clock, MARGIN_MILLIS).compact();
+                })
+                .subscribe(result -> {
+                    if (Log.isLoggable(TAG, Log.INFO)) {
+                        Log.i(TAG, "Compacted sensor data: " + result);
+                    }
+                    jobFinished(params, false);
+                }, error -> {
+                    if (Log.isLoggable(TAG, Log.ERROR)) {
+                        Log.e(TAG, "Sensor data compaction failed", error);
+                    }
+                    jobFinished(params, false);
+                });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if (mCompaction != null) {
+            mCompaction.dispose();
+            mCompaction = null;
+        }
+        // Whatever was deleted stays deleted; the next periodic run picks up the rest.
+        return false;
+    }
+}
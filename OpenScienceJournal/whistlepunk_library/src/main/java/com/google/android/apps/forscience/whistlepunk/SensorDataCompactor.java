@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import com.google.android.apps.forscience.javalib.MaybeConsumers;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
+import com.google.android.apps.forscience.whistlepunk.metadata.CropHelper;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciUserMetadata;
+
+import java.util.List;
+
+import io.reactivex.Observable;
+import io.reactivex.Single;
+
+/**
+ * Throws away sensor data outside the crop range of every cropped trial, and then gives the
+ * freed space back to the file system.
+ */
+public class SensorDataCompactor {
+    /**
+     * How much space to reclaim in one step, so that a single step never holds the sensor data
+     * thread for long.
+     */
+    static final long RECLAIM_BYTES_PER_STEP = 1024 * 1024;
+
+    /**
+     * Outcome of a single compaction.
+     */
+    public static class Result {
+        private final int mTrialsCompacted;
+        private final long mBytesReclaimed;
+        private final long mElapsedMillis;
+
+        public Result(int trialsCompacted, long bytesReclaimed, long elapsedMillis) {
+            mTrialsCompacted = trialsCompacted;
+            mBytesReclaimed = bytesReclaimed;
+            mElapsedMillis = elapsedMillis;
+        }
+
+        public int getTrialsCompacted() {
+            return mTrialsCompacted;
+        }
+
+        public long getBytesReclaimed() {
+            return mBytesReclaimed;
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "mTrialsCompacted=" + mTrialsCompacted +
+                    ", mBytesReclaimed=" + mBytesReclaimed +
+                    ", mElapsedMillis=" + mElapsedMillis +
+                    '}';
+        }
+    }
+
+    private final DataController mDataController;
+    private final Clock mClock;
+    private final long mMarginMillis;
+
+    /**
+     * @param marginMillis how much data to keep on either side of each crop range
+     */
+    public SensorDataCompactor(DataController dataController, Clock clock, long marginMillis) {
+        mDataController = dataController;
+        mClock = clock;
+        mMarginMillis = marginMillis;
+    }
+
+    public Single<Result> compact() {
+        final long start = mClock.getNow();
+        return compactTrials().flatMap(trialsCompacted -> reclaimSpace().map(
+                bytes -> new Result(trialsCompacted, bytes, mClock.getNow() - start)));
+    }
+
+    private Single<Integer> compactTrials() {
+        return MaybeConsumers.<List<GoosciUserMetadata.ExperimentOverview>>buildSingle(
+                mc -> mDataController.getExperimentOverviews(true, mc))
+                .flatMapObservable(Observable::fromIterable)
+                .concatMap(overview -> RxDataController.getExperimentById(mDataController,
+                        overview.experimentId).toObservable())
+                .concatMap(this::compactExperiment)
+                .filter(compacted -> compacted)
+                .count()
+                .map(Long::intValue);
+    }
+
+    private Observable<Boolean> compactExperiment(Experiment experiment) {
+        return Observable.fromIterable(experiment.getTrials(true, false))
+                .concatMap(trial -> CropHelper.throwAwayDataOutsideCroppedRegion(mDataController,
+                        experiment, trial, mMarginMillis).toObservable());
+    }
+
+    private Single<Long> reclaimSpace() {
+        return MaybeConsumers.<Long>buildSingle(
+                mc -> mDataController.reclaimSensorDataSpace(RECLAIM_BYTES_PER_STEP, mc))
+                .repeat()
+                .takeWhile(bytes -> bytes > 0)
+                .reduce(0L, (total, bytes) -> total + bytes);
+    }
+}
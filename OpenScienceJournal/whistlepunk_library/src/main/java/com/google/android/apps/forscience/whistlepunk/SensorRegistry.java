@@ -37,9 +37,11 @@ import com.google.android.apps.forscience.whistlepunk.sensors.AmbientTemperature
 import com.google.android.apps.forscience.whistlepunk.sensors.BarometerSensor;
 import com.google.android.apps.forscience.whistlepunk.sensors.CompassSensor;
 import com.google.android.apps.forscience.whistlepunk.sensors.DecibelSensor;
+import com.google.android.apps.forscience.whistlepunk.sensors.DerivedSensor;
 import com.google.android.apps.forscience.whistlepunk.sensors.LinearAccelerometerSensor;
 import com.google.android.apps.forscience.whistlepunk.sensors.MagneticStrengthSensor;
 import com.google.android.apps.forscience.whistlepunk.sensors.SineWavePseudoSensor;
+import com.google.android.apps.forscience.whistlepunk.sensors.TrialReplaySensor;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
@@ -68,6 +70,18 @@ public class SensorRegistry {
     public static final String WP_HARDWARE_PROVIDER_ID =
             "com.google.android.apps.forscience.whistlepunk.hardware";
 
+    /**
+     * Provider of sensors computed from other sensors.
+     */
+    public static final String DERIVED_PROVIDER_ID =
+            "com.google.android.apps.forscience.whistlepunk.derived";
+
+    /**
+     * Provider of sensors that play back recorded trials.
+     */
+    public static final String REPLAY_PROVIDER_ID =
+            "com.google.android.apps.forscience.whistlepunk.replay";
+
     private static final String TAG = "SensorRegistry";
 
     private static class SensorRegistryItem {
@@ -170,7 +184,10 @@ public class SensorRegistry {
     private Set<String> getAllExternalSources() {
         Set<String> externalSourceIds = new HashSet<String>();
         for (Map.Entry<String, SensorRegistryItem> entry : mSensorRegistry.entrySet()) {
-            if (!Objects.equals(entry.getValue().providerId, WP_HARDWARE_PROVIDER_ID)) {
+            String providerId = entry.getValue().providerId;
+            if (!Objects.equals(providerId, WP_HARDWARE_PROVIDER_ID)
+                    && !Objects.equals(providerId, DERIVED_PROVIDER_ID)
+                    && !Objects.equals(providerId, REPLAY_PROVIDER_ID)) {
                 externalSourceIds.add(entry.getKey());
             }
         }
@@ -245,6 +262,39 @@ public class SensorRegistry {
         addSource(new SensorRegistryItem(WP_HARDWARE_PROVIDER_ID, null, source, id));
     }
 
+    /**
+     * Adds a sensor computed from other sensors.  It stays until removed, as built-in and
+     * external sensors come and go.
+     */
+    public void addDerivedSensor(DerivedSensor sensor) {
+        addSource(new SensorRegistryItem(DERIVED_PROVIDER_ID, null, sensor,
+                DerivedSensor.LOGGING_ID));
+    }
+
+    public void removeDerivedSensor(String sensorId) {
+        removeSourceOfProvider(sensorId, DERIVED_PROVIDER_ID);
+    }
+
+    /**
+     * Adds a sensor that plays back a recorded trial.  Like a derived sensor, it stays until
+     * removed.
+     */
+    public void addReplaySensor(TrialReplaySensor sensor) {
+        addSource(new SensorRegistryItem(REPLAY_PROVIDER_ID, null, sensor,
+                TrialReplaySensor.LOGGING_ID));
+    }
+
+    public void removeReplaySensor(String sensorId) {
+        removeSourceOfProvider(sensorId, REPLAY_PROVIDER_ID);
+    }
+
+    private void removeSourceOfProvider(String sensorId, String providerId) {
+        SensorRegistryItem item = mSensorRegistry.get(sensorId);
+        if (item != null && Objects.equals(item.providerId, providerId)) {
+            mSensorRegistry.remove(sensorId);
+        }
+    }
+
     @NonNull
     public List<String> updateExternalSensors(List<ConnectableSensor> sensors,
             Map<String, SensorProvider> externalProviders) {
@@ -21,8 +21,10 @@ import android.support.annotation.IntDef;
 
 import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarBatch;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorObserver;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamStat;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarStats;
 import com.google.android.apps.forscience.whistlepunk.wireapi.RecordingMetadata;
 
 import java.lang.annotation.Retention;
@@ -78,6 +80,15 @@ public class StatsAccumulator {
             updateStreamStats(bundle.min, bundle.max, bundle.average);
         }
 
+        /**
+         * Stats accumulate, so only the latest in the batch needs to be shown.
+         */
+        public void updateFromBatch(ScalarBatch batch) {
+            if (!batch.isEmpty()) {
+                updateFromBundle(batch.getLatestData());
+            }
+        }
+
         public List<StreamStat> updateStreamStats(double yMin, double yMax, double average) {
             mMinStat.setValue(yMin);
             mMaxStat.setValue(yMax);
@@ -166,6 +177,20 @@ public class StatsAccumulator {
         }
     }
 
+    // Replaces the stream stats with stats already worked out for a whole range of readings.
+    public void setStats(ScalarStats stats) {
+        clearStats();
+        if (stats.isEmpty()) {
+            return;
+        }
+        mMin = stats.getMin();
+        mMax = stats.getMax();
+        mSum = stats.getSum();
+        mStartTimestamp = stats.getFirstTimestampMillis();
+        mLatestTimestamp = stats.getLastTimestampMillis();
+        mStatSize = (int) stats.getCount();
+    }
+
     private double getAverage() {
         return mSum / mStatSize;
     }
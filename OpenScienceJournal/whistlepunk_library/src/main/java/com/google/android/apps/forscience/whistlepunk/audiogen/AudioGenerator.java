@@ -46,6 +46,13 @@ public interface AudioGenerator {
      */
     void addData(long timestamp, double data, double min, double max);
 
+    /**
+     * Add the first count values, in timestamp order.
+     * @param min The minimum value shown on the graph.
+     * @param max The maximum value shown on the graph.
+     */
+    void addData(long[] timestamps, double[] data, int count, double min, double max);
+
     /**
      * Called when the AudioGenerator should be removed from memory.
      */
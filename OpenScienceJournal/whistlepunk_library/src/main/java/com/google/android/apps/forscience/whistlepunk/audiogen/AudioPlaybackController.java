@@ -24,14 +24,10 @@ import com.google.android.apps.forscience.javalib.MaybeConsumer;
 import com.google.android.apps.forscience.whistlepunk.DataController;
 import com.google.android.apps.forscience.whistlepunk.RunReviewOverlay;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartController;
-import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
-import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingPage;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
 import com.google.common.collect.Range;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class AudioPlaybackController {
 
     public interface AudioPlaybackListener {
@@ -70,7 +66,6 @@ public class AudioPlaybackController {
             return;
         }
         final long xMax = lastTimestamp;
-        final List<ChartData.DataPoint> audioData = new ArrayList<>();
 
         if (xMinToLoad == RunReviewOverlay.NO_TIMESTAMP_SELECTED) {
             xMinToLoad = firstTimestamp;
@@ -83,85 +78,18 @@ public class AudioPlaybackController {
         }
 
         mHandler = new Handler();
-        mPlaybackRunnable = new Runnable() {
-            boolean mFullyLoaded = false;
-            boolean mLoading = false;
-
-            @Override
-            public void run() {
-                if (audioData.size() == 0) {
-                    if (mFullyLoaded) {
-                        stopPlayback();
-                    } else {
-                        // Wait for more data to come in.
-                        mHandler.postDelayed(mPlaybackRunnable, LAST_TONE_DURATION_MS);
-                    }
-                    return;
-                }
-
-                // Every time we play a data point, we remove it from the list.
-                ChartData.DataPoint point = audioData.remove(0);
-                long timestamp = point.getX();
-
-                // Load more data when needed, i.e. when only 10% of the loaded data points are
-                // left in the list, and we aren't fully loaded yet.
-                long lastTimestamp = audioData.size() == 0 ? timestamp :
-                        audioData.get(audioData.size() - 1).getX();
-                if (audioData.size() < DATAPOINTS_PER_AUDIO_PLAYBACK_LOAD / 10 && !mFullyLoaded &&
-                        !mLoading) {
-                    mLoading = true;
-                    dataController.getScalarReadings(sensorId, /* tier 0 */ 0,
-                            TimeRange.oldest(Range.openClosed(lastTimestamp, xMax)),
-                            DATAPOINTS_PER_AUDIO_PLAYBACK_LOAD,
-                            new MaybeConsumer<ScalarReadingList>() {
-                                @Override
-                                public void success(ScalarReadingList list) {
-                                    mLoading = false;
-                                    if (list.size() == 0) {
-                                        mFullyLoaded = true;
-                                    }
-                                    audioData.addAll(list.asDataPoints());
-                                }
-
-                                @Override
-                                public void fail(Exception e) {
-                                    Log.e(TAG, "Error loading audio playback data");
-                                    stopPlayback();
-                                }
-                            });
-                }
-
-                // Now play the tone, and get set up for the next callback, if one is needed.
-                try {
-                    mAudioGenerator.addData(timestamp, point.getY(), mYMin, mYMax);
-                    if (mAudioPlaybackListener != null) {
-                        mAudioPlaybackListener.onTimestampUpdated(timestamp);
-                    }
-                } finally {
-                    // If this is the second to last point, some special handling
-                    // needs to be done to determine when to make the last tone.
-                    if (audioData.size() > 0) {
-                        // Play the next note after the time between this point and the
-                        // next point has elapsed.
-                        // mPlaybackIndex is now the index of the next point.
-                        mHandler.postDelayed(mPlaybackRunnable,
-                                audioData.get(0).getX() - timestamp);
-                    } else {
-                        // The last note gets some duration.
-                        mHandler.postDelayed(mPlaybackRunnable, LAST_TONE_DURATION_MS);
-                    }
-                }
-            }
-        };
+        final PlaybackRunnable playbackRunnable = new PlaybackRunnable(dataController, sensorId,
+                xMax);
+        mPlaybackRunnable = playbackRunnable;
 
         // Load the first set of scalar readings, and start playing as soon as they are loaded.
-        dataController.getScalarReadings(sensorId, /* tier 0 */ 0,
-                TimeRange.oldest(Range.closed(xMinToLoad, xMax)),
-                DATAPOINTS_PER_AUDIO_PLAYBACK_LOAD, new MaybeConsumer<ScalarReadingList>() {
+        dataController.getScalarReadingPage(sensorId, /* tier 0 */ 0,
+                TimeRange.oldest(Range.closed(xMinToLoad, xMax)), playbackRunnable.mPlaying,
+                new MaybeConsumer<ScalarReadingPage>() {
                     @Override
-                    public void success(ScalarReadingList list) {
-                        if (mAudioPlaybackListener != null) {
-                            audioData.addAll(list.asDataPoints());
+                    public void success(ScalarReadingPage page) {
+                        if (mAudioPlaybackListener != null && !page.isEmpty()) {
+                            playbackRunnable.mFullyLoaded = !page.isFull();
                             mAudioGenerator.startPlaying();
                             mPlaybackRunnable.run();
                             mPlaybackStatus = PLAYBACK_STATUS_PLAYING;
@@ -183,6 +111,98 @@ public class AudioPlaybackController {
         mPlaybackStatus = PLAYBACK_STATUS_LOADING;
     }
 
+    /**
+     * Plays one reading per run.  Readings are double-buffered in two pages: one being played,
+     * and one that the next readings are loaded into while the first is still playing.
+     */
+    private class PlaybackRunnable implements Runnable {
+        private final DataController mDataController;
+        private final String mSensorId;
+        private final long mXMax;
+
+        ScalarReadingPage mPlaying = new ScalarReadingPage(DATAPOINTS_PER_AUDIO_PLAYBACK_LOAD);
+        private ScalarReadingPage mNext = new ScalarReadingPage(DATAPOINTS_PER_AUDIO_PLAYBACK_LOAD);
+        private int mPlayIndex = 0;
+        private boolean mNextReady = false;
+        boolean mFullyLoaded = false;
+        private boolean mLoading = false;
+
+        PlaybackRunnable(DataController dataController, String sensorId, long xMax) {
+            mDataController = dataController;
+            mSensorId = sensorId;
+            mXMax = xMax;
+        }
+
+        @Override
+        public void run() {
+            if (mPlayIndex == mPlaying.size()) {
+                if (mNextReady) {
+                    ScalarReadingPage played = mPlaying;
+                    mPlaying = mNext;
+                    mNext = played;
+                    mPlayIndex = 0;
+                    mNextReady = false;
+                } else {
+                    if (mFullyLoaded) {
+                        stopPlayback();
+                    } else {
+                        // Wait for more data to come in.
+                        mHandler.postDelayed(mPlaybackRunnable, LAST_TONE_DURATION_MS);
+                    }
+                    return;
+                }
+            }
+
+            long timestamp = mPlaying.getTimestampMillis(mPlayIndex);
+            double value = mPlaying.getValue(mPlayIndex);
+            mPlayIndex++;
+
+            // Load more data when needed, i.e. when only 10% of the loaded data points are
+            // left, and we aren't fully loaded yet.
+            if (mPlaying.size() - mPlayIndex < DATAPOINTS_PER_AUDIO_PLAYBACK_LOAD / 10
+                    && !mNextReady && !mFullyLoaded && !mLoading) {
+                mLoading = true;
+                mDataController.getScalarReadingPage(mSensorId, /* tier 0 */ 0,
+                        TimeRange.oldest(Range.openClosed(mPlaying.getLastTimestampMillis(),
+                                mXMax)), mNext, new MaybeConsumer<ScalarReadingPage>() {
+                            @Override
+                            public void success(ScalarReadingPage page) {
+                                mLoading = false;
+                                mNextReady = !page.isEmpty();
+                                mFullyLoaded = !page.isFull();
+                            }
+
+                            @Override
+                            public void fail(Exception e) {
+                                Log.e(TAG, "Error loading audio playback data");
+                                stopPlayback();
+                            }
+                        });
+            }
+
+            // Now play the tone, and get set up for the next callback, if one is needed.
+            try {
+                mAudioGenerator.addData(timestamp, value, mYMin, mYMax);
+                if (mAudioPlaybackListener != null) {
+                    mAudioPlaybackListener.onTimestampUpdated(timestamp);
+                }
+            } finally {
+                if (mPlayIndex < mPlaying.size()) {
+                    // Play the next note after the time between this point and the
+                    // next point has elapsed.
+                    mHandler.postDelayed(mPlaybackRunnable,
+                            mPlaying.getTimestampMillis(mPlayIndex) - timestamp);
+                } else if (mNextReady) {
+                    mHandler.postDelayed(mPlaybackRunnable,
+                            mNext.getTimestampMillis(0) - timestamp);
+                } else {
+                    // The last note gets some duration.
+                    mHandler.postDelayed(mPlaybackRunnable, LAST_TONE_DURATION_MS);
+                }
+            }
+        }
+    }
+
     public void stopPlayback() {
         if (mPlaybackStatus == PLAYBACK_STATUS_NOT_PLAYING) {
             return;
@@ -94,6 +94,20 @@ public class SimpleJsynAudioGenerator implements AudioGenerator {
         mAdapter.noteOn(value, min, max, mSynth.createTimeStamp());
     }
 
+    @Override
+    public void addData(long[] unusedTimestamps, double[] values, int count, double min,
+            double max) {
+        if (mAdapter == null) {
+            return;
+        }
+        if (min >= max) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            mAdapter.noteOn(values[i], min, max, mSynth.createTimeStamp());
+        }
+    }
+
     @Override
     public void setSonificationType(String sonificationType) {
         if (TextUtils.equals(sonificationType, mSonificationType)) {
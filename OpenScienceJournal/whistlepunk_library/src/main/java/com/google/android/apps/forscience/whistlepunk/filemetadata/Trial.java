@@ -260,6 +260,36 @@ public class Trial extends LabelListHolder {
         mTrialStats.put(newTrialStats.getSensorId(), newTrialStats);
     }
 
+    /**
+     * Appends changes in how a sensor's readings were thinned out while they arrived too quickly.
+     */
+    public void addOverloadChanges(List<GoosciTrial.SensorOverloadChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        int existing = mTrial.overloadChanges.length;
+        GoosciTrial.SensorOverloadChange[] result =
+                Arrays.copyOf(mTrial.overloadChanges, existing + changes.size());
+        for (int i = 0; i < changes.size(); i++) {
+            result[existing + i] = changes.get(i);
+        }
+        mTrial.overloadChanges = result;
+    }
+
+    /**
+     * Gets the changes in how a sensor's readings were thinned out, in the order they were made.
+     * Empty if the sensor kept up throughout.
+     */
+    public List<GoosciTrial.SensorOverloadChange> getOverloadChanges(String sensorId) {
+        List<GoosciTrial.SensorOverloadChange> result = new ArrayList<>();
+        for (GoosciTrial.SensorOverloadChange change : mTrial.overloadChanges) {
+            if (TextUtils.equals(change.sensorId, sensorId)) {
+                result.add(change);
+            }
+        }
+        return result;
+    }
+
     // The Trial ID cannot be set after it is created.
     public String getTrialId() {
         return mTrial.trialId;
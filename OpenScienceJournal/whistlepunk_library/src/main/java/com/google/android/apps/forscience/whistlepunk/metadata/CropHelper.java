@@ -25,18 +25,19 @@ import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import com.google.android.apps.forscience.javalib.MaybeConsumer;
+import com.google.android.apps.forscience.javalib.MaybeConsumers;
 import com.google.android.apps.forscience.javalib.Success;
 import com.google.android.apps.forscience.whistlepunk.DataController;
 import com.google.android.apps.forscience.whistlepunk.LoggingConsumer;
 import com.google.android.apps.forscience.whistlepunk.R;
+import com.google.android.apps.forscience.whistlepunk.RxDataController;
 import com.google.android.apps.forscience.whistlepunk.StatsAccumulator;
 import com.google.android.apps.forscience.whistlepunk.WhistlePunkApplication;
 import com.google.android.apps.forscience.whistlepunk.analytics.TrackerConstants;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
-import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
-import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarStats;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
 import com.google.common.collect.Range;
 
@@ -44,6 +45,9 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 
+import io.reactivex.Completable;
+import io.reactivex.Single;
+
 /**
  * Helper class for cropping.
  */
@@ -54,8 +58,6 @@ public class CropHelper {
     // If this is changed, make sure to update R.string.crop_failed_range_too_small as well.
     public static final long MINIMUM_CROP_MILLIS = 1000;
 
-    private static final int DATAPOINTS_PER_LOAD = 500;
-
     private static final String ACTION_CROP_STATS_RECALCULATED = "action_crop_stats_recalculated";
     public static final String EXTRA_SENSOR_ID = "extra_sensor_id";
     public static final String EXTRA_TRIAL_ID = "extra_trial_id";
@@ -187,7 +189,6 @@ public class CropHelper {
         private final Experiment mExperiment;
         private final String mTrialId;
         private StatsAccumulator mStatsAccumulator;
-        StreamConsumer mStreamConsumer;
         private Context mContext;
 
         StatsAdjuster(String sensorId, Experiment experiment, String trialId, Context context) {
@@ -195,63 +196,41 @@ public class CropHelper {
             mSensorId = sensorId;
             mExperiment = experiment;
             mTrialId = trialId;
-            mStreamConsumer = new StreamConsumer() {
-                @Override
-                public boolean addData(long timestampMillis, double value) {
-                    mStatsAccumulator.updateRecordingStreamStats(timestampMillis, value);
-                    return true;
-                }
-            };
             mContext = context;
         }
 
-        void recalculateStats(DataController dc) {
+        void recalculateStats(final DataController dc) {
             TimeRange range = TimeRange.oldest(Range.closed(
                     mExperiment.getTrial(mTrialId).getFirstTimestamp(),
                     mExperiment.getTrial(mTrialId).getLastTimestamp()));
-            addReadingsToStats(dc, range);
-        }
-
-        private void addReadingsToStats(final DataController dc, final TimeRange range) {
-            dc.getScalarReadings(mSensorId, /* tier 0 */ 0, range,
-                    DATAPOINTS_PER_LOAD, new MaybeConsumer<ScalarReadingList>() {
-                        @Override
-                        public void success(ScalarReadingList list) {
-                            list.deliver(mStreamConsumer);
-                            Trial trial = mExperiment.getTrial(mTrialId);
-                            if (list.size() == 0 || list.size() < DATAPOINTS_PER_LOAD ||
-                                    mStatsAccumulator.getLatestTimestamp() >=
-                                            trial.getLastTimestamp()) {
-                                if (!mStatsAccumulator.isInitialized()) {
-                                    // There was no data in this region, so the stats are still
-                                    // not valid.
-                                    return;
+            // The database keeps stats by time bucket, so this doesn't read the whole trial.
+            dc.getScalarStats(mSensorId, range, new MaybeConsumer<ScalarStats>() {
+                @Override
+                public void success(ScalarStats stats) {
+                    mStatsAccumulator.setStats(stats);
+                    if (!mStatsAccumulator.isInitialized()) {
+                        // There was no data in this region, so the stats are still not valid.
+                        return;
+                    }
+                    // Done! Save back to the database.
+                    Trial trial = mExperiment.getTrial(mTrialId);
+                    TrialStats fullStats = trial.getStatsForSensor(mSensorId);
+                    mStatsAccumulator.populateTrialStats(fullStats);
+                    trial.setStats(fullStats);
+                    dc.updateExperiment(mExperiment.getExperimentId(),
+                            new LoggingConsumer<Success>(TAG, "update stats") {
+                                @Override
+                                public void success(Success value) {
+                                    sendStatsUpdatedBroadcast(mContext, mSensorId, mTrialId);
                                 }
-                                // Done! Save back to the database.
-                                TrialStats fullStats = trial.getStatsForSensor(mSensorId);
-                                mStatsAccumulator.populateTrialStats(fullStats);
-                                trial.setStats(fullStats);
-                                dc.updateExperiment(mExperiment.getExperimentId(),
-                                        new LoggingConsumer<Success>(TAG, "update stats") {
-                                            @Override
-                                            public void success(Success value) {
-                                                sendStatsUpdatedBroadcast(mContext, mSensorId,
-                                                        mTrialId);
-                                            }
-                                        });
-                            } else {
-                                TimeRange nextRange = TimeRange.oldest(
-                                        Range.openClosed(mStatsAccumulator.getLatestTimestamp(),
-                                                trial.getLastTimestamp()));
-                                addReadingsToStats(dc, nextRange);
-                            }
-                        }
+                            });
+                }
 
-                        @Override
-                        public void fail(Exception e) {
-                            Log.e(TAG, "Error loading data to adjust stats after crop");
-                        }
-                    });
+                @Override
+                public void fail(Exception e) {
+                    Log.e(TAG, "Error loading data to adjust stats after crop");
+                }
+            });
         }
     }
 
@@ -288,7 +267,33 @@ public class CropHelper {
                 CropHelper.MINIMUM_CROP_MILLIS;
     }
 
-    public void throwAwayDataOutsideCroppedRegion(DataController dc, Trial trial) {
-        // TODO
+    /**
+     * Deletes the readings of {@code trial} that are outside its crop range by more than
+     * {@code marginMillis}, then narrows the trial's recording range to the readings that are
+     * left, so that the crop can't later be widened over data that is gone.
+     *
+     * @return a {@link Single} that emits whether any readings were deleted.
+     */
+    public static Single<Boolean> throwAwayDataOutsideCroppedRegion(final DataController dc,
+            final Experiment experiment, final Trial trial, long marginMillis) {
+        GoosciTrial.Range cropRange = trial.getCropRange();
+        final GoosciTrial.Range recordingRange = trial.getOriginalRecordingRange();
+        if (cropRange == null || recordingRange == null
+                || recordingRange.startMs > recordingRange.endMs) {
+            return Single.just(false);
+        }
+        final long keepFirst = Math.max(recordingRange.startMs, cropRange.startMs - marginMillis);
+        final long keepLast = Math.min(recordingRange.endMs, cropRange.endMs + marginMillis);
+        if (keepFirst == recordingRange.startMs && keepLast == recordingRange.endMs) {
+            return Single.just(false);
+        }
+        return MaybeConsumers.buildCompleteable(
+                mc -> dc.deleteTrialDataOutside(trial, keepFirst, keepLast, mc))
+                .andThen(Completable.defer(() -> {
+                    recordingRange.startMs = keepFirst;
+                    recordingRange.endMs = keepLast;
+                    return RxDataController.updateExperiment(dc, experiment);
+                }))
+                .toSingleDefault(true);
     }
 }
@@ -59,6 +59,8 @@ public class RunStats {
                 GoosciTrial.SensorStat.ZOOM_PRESENTER_TIER_COUNT);
         keyMap.put(ZoomRecorder.STATS_KEY_ZOOM_LEVEL_BETWEEN_TIERS,
                 GoosciTrial.SensorStat.ZOOM_PRESENTER_ZOOM_LEVEL_BETWEEN_TIERS);
+        keyMap.put(ZoomRecorder.STATS_KEY_DECIMATION,
+                GoosciTrial.SensorStat.ZOOM_PRESENTER_DECIMATION);
     }
 
     public RunStats(String sensorId) {
@@ -41,6 +41,13 @@ public class ZoomPresenter {
      */
     private static final double THRESHOLD_TO_CHANGE_ZOOM_LEVEL = 0.6;
 
+    /**
+     * How far does our ideal zoom level need to be from the current zoom level before the next
+     * one is worth reading ahead?  Half the way to changing seems early enough to read a tier's
+     * worth of data before a zoom gesture gets there.
+     */
+    private static final double THRESHOLD_TO_PREFETCH_ZOOM_LEVEL = 0.3;
+
     private static final String TAG = "ZoomPresenter";
 
     private final int mIdealNumberOfDisplayedDatapoints;
@@ -70,6 +77,24 @@ public class ZoomPresenter {
         return mCurrentTier;
     }
 
+    /**
+     * @return the tier that zooming further past {@code loadedRange} would change to, if the
+     * ideal tier is getting close to changing, or else the current tier.
+     */
+    public int getApproachingTier(long loadedRange) {
+        if (!hasRequiredStats(mTrialStats)) {
+            return mCurrentTier;
+        }
+        double distance = computeIdealTier(mIdealNumberOfDisplayedDatapoints, mTrialStats,
+                loadedRange) - mCurrentTier;
+        if (Math.abs(distance) < THRESHOLD_TO_PREFETCH_ZOOM_LEVEL) {
+            return mCurrentTier;
+        }
+        int maxTier = (int) mTrialStats.getStatValue(
+                GoosciTrial.SensorStat.ZOOM_PRESENTER_TIER_COUNT, 0) - 1;
+        return Math.max(0, Math.min(maxTier, mCurrentTier + (distance > 0 ? 1 : -1)));
+    }
+
     @VisibleForTesting
     public static int computeTier(int currentTier, int idealNumberOfDisplayedDatapoints,
             TrialStats trialStats, long loadedRange) {
@@ -108,9 +133,15 @@ public class ZoomPresenter {
         double idealTierZeroDatapointsPerDisplayedPoint =
                 expectedTierZeroDatapointsInRange / idealNumberOfDisplayedDatapoints;
 
+        // This is the ratio of readings between tiers, whichever ZoomDecimation built them, and it
+        // can differ from sensor to sensor, so it's always read from the trial.
         int zoomLevelBetweenTiers = (int) trialStats.getStatValue(
                 GoosciTrial.SensorStat.ZOOM_PRESENTER_ZOOM_LEVEL_BETWEEN_TIERS,
                 ScalarSensor.DEFAULT_ZOOM_LEVEL_BETWEEN_TIERS);
+        if (zoomLevelBetweenTiers < 2) {
+            // No tier is any smaller than the one below, so there's no point leaving tier 0.
+            return 0;
+        }
         return Math.log(idealTierZeroDatapointsPerDisplayedPoint) / Math.log(
                 zoomLevelBetweenTiers);
     }
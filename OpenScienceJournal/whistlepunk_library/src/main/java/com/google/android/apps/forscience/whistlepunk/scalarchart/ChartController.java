@@ -41,7 +41,8 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.metadata.ExperimentRun;
 import com.google.android.apps.forscience.whistlepunk.review.ZoomPresenter;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamStat;
-import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingPage;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
 import com.google.android.apps.forscience.whistlepunk.wireapi.RecordingMetadata;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Range;
@@ -93,6 +94,9 @@ public class ChartController {
      */
     private static final long MAX_BLACKOUT_MILLIS_BEFORE_CLEARING = 5000;
 
+    // An axis change that alters the range by more than 1 part in this is a zoom, not a pan.
+    private static final long ZOOM_RANGE_CHANGE_DIVISOR = 100;
+
     private static final long DEFAULT_DATA_LOAD_BUFFER_MILLIS =
             ExternalAxisController.DEFAULT_GRAPH_RANGE_IN_MILLIS / 4;
 
@@ -119,6 +123,9 @@ public class ChartController {
     private static final long NOTHING_LOADED = -1;
     private long mMinLoadedX = NOTHING_LOADED;
     private long mMaxLoadedX;
+    // The axis before the last change, to tell which way a pan or zoom is going.
+    private long mPrevXMin = NOTHING_LOADED;
+    private long mPrevXMax;
     private boolean mNeedsForwardLoad = false;
     private List<Long> mCurrentLoadIds = new ArrayList<>();
     private final Clock mUptimeClock;
@@ -180,9 +187,14 @@ public class ChartController {
 
     // Adds a single point to the end of the path. Assumes points are ordered as they arrive.
     public void addPoint(ChartData.DataPoint point) {
+        addPoint(point.getX(), point.getY());
+    }
+
+    // Adds a single point to the end of the path. Assumes points are ordered as they arrive.
+    public void addPoint(long x, double y) {
         // TODO: extract as a testable object
         if (mResetTime != -1) {
-            if (point.getX() < mResetTime) {
+            if (x < mResetTime) {
                 // straggling datapoint from before the reset, ignore
                 return;
             } else {
@@ -197,14 +209,45 @@ public class ChartController {
             // TODO: Is it possible to call throwAwayBetween less frequently for performance?
             // no need to do so many binary searches in ChartData...
             // TODO: This throwAwayBetween is causing b/28614204.
-            long throwawayBefore = point.getX() - (KEEP_THIS_MANY_SCREENS * mDefaultGraphRange);
+            long throwawayBefore = x - (KEEP_THIS_MANY_SCREENS * mDefaultGraphRange);
             long throwawayAfter = mChartOptions.getRenderedXMax() + mDefaultGraphRange;
             mChartData.throwAwayBetween(throwawayAfter, throwawayBefore);
         }
 
-        mChartData.addPoint(point);
+        mChartData.addPoint(x, y);
         if (mChartView != null && mChartView.isDrawn()) {
-            mChartView.addPointToEndOfPath(point);
+            mChartView.addPointToEndOfPath(x, y);
+        }
+    }
+
+    // Adds the first count points, in order, to the end of the path.  Only one throwaway pass
+    // is made for the whole group, which is what makes a frame's worth of points cheaper than
+    // the same number of calls to addPoint.
+    public void addPoints(long[] timestamps, double[] values, int count) {
+        int start = 0;
+        if (mResetTime != -1) {
+            while (start < count && timestamps[start] < mResetTime) {
+                // straggling datapoints from before the reset, ignore
+                start++;
+            }
+            if (start == count) {
+                return;
+            }
+            mResetTime = -1;
+        }
+        if (!mChartData.isEmpty()) {
+            long throwawayBefore =
+                    timestamps[count - 1] - (KEEP_THIS_MANY_SCREENS * mDefaultGraphRange);
+            long throwawayAfter = mChartOptions.getRenderedXMax() + mDefaultGraphRange;
+            mChartData.throwAwayBetween(throwawayAfter, throwawayBefore);
+        }
+
+        boolean drawn = mChartView != null && mChartView.isDrawn();
+        for (int i = start; i < count; i++) {
+            mChartData.addPoint(timestamps[i], values[i]);
+            if (drawn) {
+                mChartView.addPointToEndOfPath(timestamps[i], values[i]);
+            }
         }
     }
 
@@ -216,9 +259,10 @@ public class ChartController {
         mChartOptions.setPinnedToNow(false);
     }
 
-    private void addOrderedGroupOfPoints(List<ChartData.DataPoint> points, long requestId) {
+    private void addOrderedGroupOfPoints(ScalarReadingPage page, long requestId) {
         if (mCurrentLoadIds.contains(requestId)) {
-            mChartData.addOrderedGroupOfPoints(points);
+            mChartData.addOrderedGroupOfPoints(page.getTimestamps(), page.getValues(),
+                    page.size());
         }
     }
 
@@ -299,8 +343,7 @@ public class ChartController {
     public void setXAxis(long xMin, long xMax) {
         mChartOptions.setRenderedXRange(xMin, xMax);
         if (mChartOptions.isPinnedToNow() && !mChartData.isEmpty()) {
-            mChartOptions.adjustYAxisStep(
-                    mChartData.getPoints().get(mChartData.getNumPoints() - 1));
+            mChartOptions.adjustYAxisStep(mChartData.getPoint(mChartData.getNumPoints() - 1));
         }
         if (mChartView != null) {
             mChartView.onAxisLimitsAdjusted();
@@ -398,13 +441,13 @@ public class ChartController {
             return null;
         }
         int closestIndex = mChartData.getClosestIndexToTimestamp(timestamp);
-        ChartData.DataPoint closestPoint = mChartData.getPoints().get(closestIndex);
+        ChartData.DataPoint closestPoint = mChartData.getPoint(closestIndex);
         // Check if we are above the aboveTimestamp.
         if (closestPoint.getX() >= aboveTimestamp) {
             return closestPoint;
         }
         if (closestIndex + 1 < mChartData.getNumPoints() - 1) {
-            return mChartData.getPoints().get(closestIndex + 1);
+            return mChartData.getPoint(closestIndex + 1);
         }
         return null;
     }
@@ -423,13 +466,13 @@ public class ChartController {
             return null;
         }
         int closestIndex = mChartData.getClosestIndexToTimestamp(timestamp);
-        ChartData.DataPoint closestPoint = mChartData.getPoints().get(closestIndex);
+        ChartData.DataPoint closestPoint = mChartData.getPoint(closestIndex);
         // Check if we are above the aboveTimestamp.
         if (closestPoint.getX() <= belowTimestamp) {
             return closestPoint;
         }
         if (closestIndex - 1 >= 0) {
-            return mChartData.getPoints().get(closestIndex - 1);
+            return mChartData.getPoint(closestIndex - 1);
         }
         return null;
     }
@@ -575,10 +618,10 @@ public class ChartController {
         // Populate the initial graph
         GraphPopulator graphPopulator = new GraphPopulator(new GraphPopulator.ObservationDisplay() {
             @Override
-            public void addRange(ScalarReadingList observations, Range<Double> valueRange,
+            public void addRange(ScalarReadingPage observations, Range<Double> valueRange,
                     long requestId) {
                 updateYRangeFromValueRange(valueRange);
-                addOrderedGroupOfPoints(observations.asDataPoints(), requestId);
+                addOrderedGroupOfPoints(observations, requestId);
             }
 
             @Override
@@ -609,7 +652,31 @@ public class ChartController {
         mCurrentLoadIds.add(graphPopulator.getRequestId());
         graphPopulator.requestObservations(
                 GraphPopulator.constantGraphStatus(firstTimestamp, lastTimestamp), dc,
-                mDataFailureListener, currentTier, mSensorId);
+                mDataFailureListener, currentTier, mSensorId,
+                getLoadPriority(firstTimestamp, lastTimestamp));
+    }
+
+    /**
+     * @return the times to load first: what the chart shows, unless there are points already to
+     * one side of the load, in which case loading works away from them, so that each page lands
+     * at an end of the chart data.
+     */
+    private Range<Long> getLoadPriority(long minToLoad, long maxToLoad) {
+        long renderedXMin = mChartOptions.getRenderedXMin();
+        long renderedXMax = mChartOptions.getRenderedXMax();
+        if (!mChartData.isEmpty()) {
+            if (maxToLoad <= mChartData.getXMin()) {
+                return Range.singleton(maxToLoad);
+            }
+            if (minToLoad >= mChartData.getXMax()) {
+                return Range.closed(minToLoad, Math.max(minToLoad, renderedXMax));
+            }
+        }
+        if (renderedXMin > renderedXMax) {
+            // Nothing shown yet.
+            return Range.singleton(minToLoad);
+        }
+        return Range.closed(renderedXMin, renderedXMax);
     }
 
     private ZoomPresenter getZoomPresenter(TrialStats stats) {
@@ -650,6 +717,10 @@ public class ChartController {
         if (isRunReview || isRecording) {
             long range = xMax - xMin;
             long buffer = isRecording ? mDataLoadBuffer : range / 8;
+            long prevXMin = mPrevXMin;
+            long prevXMax = mPrevXMax;
+            mPrevXMin = xMin;
+            mPrevXMax = xMax;
 
             if (isRunReview) {
                 int oldTier = mZoomPresenter.getCurrentTier();
@@ -698,6 +769,9 @@ public class ChartController {
                 mMaxLoadedX = Math.min(xMax, mChartOptions.getRecordingEndTime());
                 loadReadings(dataController, mMinLoadedX, mMaxLoadedX, false);
             }
+            if (isRunReview) {
+                prefetchAhead(prevXMin, prevXMax, xMin, xMax, dataController);
+            }
         }
         setXAxis(xMin, xMax);
 
@@ -722,6 +796,47 @@ public class ChartController {
         }
     }
 
+    /**
+     * Asks {@code dataController} to read ahead what the next axis change is likely to load, if
+     * the axis keeps moving the way it just did: the range past the loaded edge that a pan is
+     * moving towards, or the visible range at the tier that a zoom is approaching.
+     */
+    private void prefetchAhead(long prevXMin, long prevXMax, long xMin, long xMax,
+            DataController dataController) {
+        if (prevXMin == NOTHING_LOADED || mMinLoadedX == NOTHING_LOADED || mSensorId == null) {
+            return;
+        }
+        long range = xMax - xMin;
+        long start = mChartOptions.getRecordingStartTime();
+        long end = mChartOptions.getRecordingEndTime();
+        int tier = mZoomPresenter.getCurrentTier();
+        if (Math.abs(range - (prevXMax - prevXMin)) * ZOOM_RANGE_CHANGE_DIVISOR > range) {
+            int nextTier = mZoomPresenter.getApproachingTier(range);
+            if (nextTier != tier) {
+                // Zooming out shows more on each side before the tier changes.
+                long padding = nextTier > tier ? range / 2 : 0;
+                prefetch(dataController, nextTier, Math.max(xMin - padding, start),
+                        Math.min(xMax + padding, end), false);
+            }
+        } else if (xMin > prevXMin) {
+            prefetch(dataController, tier, mMaxLoadedX, Math.min(mMaxLoadedX + range, end),
+                    false);
+        } else if (xMin < prevXMin) {
+            // Newest first, so that what's next to the loaded data is read first.
+            prefetch(dataController, tier, Math.max(mMinLoadedX - range, start), mMinLoadedX,
+                    true);
+        }
+    }
+
+    private void prefetch(DataController dataController, int tier, long first, long last,
+            boolean newestFirst) {
+        if (first < last) {
+            Range<Long> times = Range.closed(first, last);
+            dataController.prefetchScalarReadings(mSensorId, tier,
+                    newestFirst ? TimeRange.newest(times) : TimeRange.oldest(times));
+        }
+    }
+
     private boolean isObserving() {
         return mChartOptions.getChartPlacementType() ==
                 ChartOptions.ChartPlacementType.TYPE_OBSERVE;
@@ -748,10 +863,10 @@ public class ChartController {
         int currentTier = mZoomPresenter == null ? 0 : mZoomPresenter.getCurrentTier();
         GraphPopulator graphPopulator = new GraphPopulator(new GraphPopulator.ObservationDisplay() {
             @Override
-            public void addRange(ScalarReadingList observations, Range<Double> valueRange,
+            public void addRange(ScalarReadingPage observations, Range<Double> valueRange,
                     long requestId) {
                 updateYRangeFromValueRange(valueRange);
-                addOrderedGroupOfPoints(observations.asDataPoints(), requestId);
+                addOrderedGroupOfPoints(observations, requestId);
             }
 
             @Override
@@ -771,7 +886,8 @@ public class ChartController {
         }, mUptimeClock);
         mCurrentLoadIds.add(graphPopulator.getRequestId());
         graphPopulator.requestObservations(GraphPopulator.constantGraphStatus(minToLoad, maxToLoad),
-                dataController, mDataFailureListener, currentTier, mSensorId);
+                dataController, mDataFailureListener, currentTier, mSensorId,
+                getLoadPriority(minToLoad, maxToLoad));
 
         callChartDataStartLoadingCallbacks(chartHiddenForLoad);
     }
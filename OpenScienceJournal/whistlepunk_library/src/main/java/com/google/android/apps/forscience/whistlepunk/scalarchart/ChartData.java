@@ -21,12 +21,25 @@ import android.support.annotation.VisibleForTesting;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Label;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamStat;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.RandomAccess;
 
+/**
+ * The points of a chart, in order of X, with the labels and stats drawn over them.
+ *
+ * Points are kept in primitive arrays used as a ring, so that adding a point doesn't allocate
+ * once the arrays are big enough, and throwing away points from either end doesn't move the rest.
+ * Use {@link #getX(int)} and {@link #getY(int)} to read points without boxing them;
+ * {@link #getPoints()} and the lists returned by range queries are views that make a
+ * {@link DataPoint} for each point read from them.
+ *
+ * Points are only changed on the UI thread, which can read them freely.  Other threads must hold
+ * this object's lock while reading them; every method that changes them takes it.
+ */
 public class ChartData {
     public static class DataPoint {
 
@@ -68,7 +81,15 @@ public class ChartData {
     public static final long DEFAULT_THROWAWAY_TIME_THRESHOLD = 1000 * 60 * 2;
     private long mThrowawayDataTimeThreshold = DEFAULT_THROWAWAY_TIME_THRESHOLD;
 
-    private List<DataPoint> mData = new ArrayList<>();
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Point i is at (mHead + i) & (mXs.length - 1); the length is always a power of two.
+    private long[] mXs = new long[INITIAL_CAPACITY];
+    private double[] mYs = new double[INITIAL_CAPACITY];
+    private int mHead = 0;
+    private int mSize = 0;
+
+    private final List<DataPoint> mPointsView = new PointsView();
 
     // The list of data points at which a label should be displayed.
     private List<DataPoint> mLabels = new ArrayList<>();
@@ -81,14 +102,6 @@ public class ChartData {
     // The stats for this list.
     private List<StreamStat> mStats = new ArrayList<>();
 
-    private static final Comparator<? super DataPoint> DATA_POINT_COMPARATOR =
-            new Comparator<DataPoint>() {
-        @Override
-        public int compare(DataPoint lhs, DataPoint rhs) {
-            return Long.compare(lhs.getX(), rhs.getX());
-        }
-    };
-
     public ChartData() {
         this(DEFAULT_THROWAWAY_THRESHOLD, DEFAULT_THROWAWAY_TIME_THRESHOLD);
     }
@@ -101,7 +114,13 @@ public class ChartData {
     // This assumes the data point occurs after all previous data points.
     // Order is not checked.
     public void addPoint(DataPoint point) {
-        mData.add(point);
+        addPoint(point.getX(), point.getY());
+    }
+
+    // This assumes the data point occurs after all previous data points.
+    // Order is not checked.
+    public synchronized void addPoint(long x, double y) {
+        appendPoint(x, y);
         if (mUnaddedLabels.size() > 0) {
             // TODO to avoid extra work, only try again if new data might come in in the direction
             // of these labels...?
@@ -115,43 +134,134 @@ public class ChartData {
         }
     }
 
+    /**
+     * @return a view of the points.  Points added to it are appended, as by
+     * {@link #addPoint(DataPoint)}, except that labels waiting for data are not retried.
+     */
     public List<DataPoint> getPoints() {
-        return mData;
+        return mPointsView;
+    }
+
+    public long getX(int index) {
+        return mXs[physicalIndex(index)];
+    }
+
+    public double getY(int index) {
+        return mYs[physicalIndex(index)];
+    }
+
+    public DataPoint getPoint(int index) {
+        return new DataPoint(getX(index), getY(index));
     }
 
     // This assumes the List<DataPoint> is ordered by timestamp.
-    public void setPoints(List<DataPoint> data) {
-        mData = data;
+    public synchronized void setPoints(List<DataPoint> data) {
+        mHead = 0;
+        mSize = 0;
+        ensureCapacity(data.size());
+        for (int i = 0; i < data.size(); i++) {
+            DataPoint point = data.get(i);
+            appendPoint(point.getX(), point.getY());
+        }
     }
 
     public void addOrderedGroupOfPoints(List<DataPoint> points) {
         if (points == null || points.size() == 0) {
             return;
         }
-        mData.addAll(points);
-        Collections.sort(mData, DATA_POINT_COMPARATOR);
+        long[] xs = new long[points.size()];
+        double[] ys = new double[points.size()];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = points.get(i).getX();
+            ys[i] = points.get(i).getY();
+        }
+        addOrderedGroupOfPoints(xs, ys, xs.length);
+    }
+
+    /**
+     * Adds the first {@code count} points of a group ordered by X, either increasing or
+     * decreasing.  A group that comes after or before all the existing points, as pages loaded
+     * while scrolling do, is added at that end without moving the others; otherwise the two are
+     * merged.  Points with the same X as an existing point go after it.
+     */
+    public synchronized void addOrderedGroupOfPoints(long[] xs, double[] ys, int count) {
+        if (count == 0) {
+            return;
+        }
+        if (xs[0] > xs[count - 1]) {
+            addDecreasingGroupOfPoints(xs, ys, count);
+        } else if (mSize == 0 || xs[0] >= getXMax()) {
+            ensureCapacity(mSize + count);
+            for (int i = 0; i < count; i++) {
+                appendPoint(xs[i], ys[i]);
+            }
+        } else if (xs[count - 1] < getXMin()) {
+            ensureCapacity(mSize + count);
+            for (int i = count - 1; i >= 0; i--) {
+                prependPoint(xs[i], ys[i]);
+            }
+        } else {
+            mergePoints(xs, ys, count);
+        }
+    }
+
+    private void addDecreasingGroupOfPoints(long[] xs, double[] ys, int count) {
+        if (mSize == 0 || xs[count - 1] >= getXMax()) {
+            ensureCapacity(mSize + count);
+            for (int i = count - 1; i >= 0; i--) {
+                appendPoint(xs[i], ys[i]);
+            }
+        } else if (xs[0] < getXMin()) {
+            ensureCapacity(mSize + count);
+            for (int i = 0; i < count; i++) {
+                prependPoint(xs[i], ys[i]);
+            }
+        } else {
+            long[] increasingXs = new long[count];
+            double[] increasingYs = new double[count];
+            for (int i = 0; i < count; i++) {
+                increasingXs[i] = xs[count - 1 - i];
+                increasingYs[i] = ys[count - 1 - i];
+            }
+            mergePoints(increasingXs, increasingYs, count);
+        }
     }
 
     public List<DataPoint> getPointsInRangeToEnd(long xMin) {
-        int startIndex = approximateBinarySearch(xMin, 0, true);
-        return mData.subList(startIndex, mData.size());
+        return mPointsView.subList(getFirstIndexInRange(xMin), mSize);
     }
 
     public List<DataPoint> getPointsInRange(long xMin, long xMax) {
-        int startIndex = approximateBinarySearch(xMin, 0, true);
-        int endIndex = approximateBinarySearch(xMax, startIndex, false);
+        int startIndex = getFirstIndexInRange(xMin);
+        int endIndex = getLastIndexInRange(xMax, startIndex);
         if (startIndex > endIndex) {
             return Collections.emptyList();
         }
-        return mData.subList(startIndex, endIndex + 1);
+        return mPointsView.subList(startIndex, endIndex + 1);
+    }
+
+    /**
+     * @return the index of the first point to draw for a range starting at {@code xMin}, which
+     * may be a few points before it
+     */
+    public int getFirstIndexInRange(long xMin) {
+        return approximateBinarySearch(xMin, 0, true);
+    }
+
+    /**
+     * @return the index of the last point to draw for a range ending at {@code xMax}, which may
+     * be a few points after it.  If it is before {@code firstIndex}, there are no points to draw.
+     */
+    public int getLastIndexInRange(long xMax, int firstIndex) {
+        return approximateBinarySearch(xMax, firstIndex, false);
     }
 
     public DataPoint getClosestDataPointToTimestamp(long timestamp) {
         int index = getClosestIndexToTimestamp(timestamp);
-        if (mData.size() == 0) {
+        if (mSize == 0) {
             return null;
         }
-        return mData.get(index);
+        return getPoint(index);
     }
 
     // Searches for the closest index to a given timestamp, round up or down if the search
@@ -169,7 +279,7 @@ public class ChartData {
      */
     @VisibleForTesting
     int exactBinarySearch(long searchX, int startSearchIndex) {
-        return approximateBinarySearch(searchX, startSearchIndex, mData.size() - 1, true, 0);
+        return approximateBinarySearch(searchX, startSearchIndex, mSize - 1, true, 0);
     }
 
     /**
@@ -183,7 +293,7 @@ public class ChartData {
      * @return The index of an approximate X match in the array
      */
     private int approximateBinarySearch(long searchX, int startSearchIndex, boolean preferStart) {
-        return approximateBinarySearch(searchX, startSearchIndex, mData.size() - 1, preferStart,
+        return approximateBinarySearch(searchX, startSearchIndex, mSize - 1, preferStart,
                 DEFAULT_APPROX_RANGE);
     }
 
@@ -208,66 +318,70 @@ public class ChartData {
     @VisibleForTesting
     int approximateBinarySearch(long searchX, int startIndex, int endIndex,
             boolean preferStart, int searchRange) {
-        if (mData.isEmpty()) {
+        if (mSize == 0) {
             return 0;
         }
 
-        // See if we're already done (need to do this before calculating distances below, in case
-        // searchX is so big or small we're in danger of overflow).
-
-        long startValue = mData.get(startIndex).getX();
-        if (searchX <= startValue) {
-            return startIndex;
-        }
-        long endValue = mData.get(endIndex).getX();
-        if (searchX >= endValue) {
-            return endIndex;
-        }
-        if (endIndex - startIndex <= searchRange) {
-            return preferStart ? startIndex : endIndex;
-        }
-        if (searchRange == 0 && endIndex - startIndex == 1) {
-            long distanceToStart = searchX - startValue;
-            long distanceToEnd = endValue - searchX;
-            if (distanceToStart < distanceToEnd) {
+        // Narrows [startIndex, endIndex] until it is done; a loop rather than recursion, so
+        // searching a long recording doesn't take a stack frame per halving.
+        while (true) {
+            // See if we're already done (need to do this before calculating distances below, in
+            // case searchX is so big or small we're in danger of overflow).
+            long startValue = getX(startIndex);
+            if (searchX <= startValue) {
                 return startIndex;
-            } else if (distanceToStart == distanceToEnd) {
+            }
+            long endValue = getX(endIndex);
+            if (searchX >= endValue) {
+                return endIndex;
+            }
+            if (endIndex - startIndex <= searchRange) {
                 return preferStart ? startIndex : endIndex;
+            }
+            if (searchRange == 0 && endIndex - startIndex == 1) {
+                long distanceToStart = searchX - startValue;
+                long distanceToEnd = endValue - searchX;
+                if (distanceToStart < distanceToEnd) {
+                    return startIndex;
+                } else if (distanceToStart == distanceToEnd) {
+                    return preferStart ? startIndex : endIndex;
+                } else {
+                    return endIndex;
+                }
+            }
+            int mid = (startIndex + endIndex) / 2;
+            long midX = getX(mid);
+            if (midX < searchX) {
+                startIndex = mid;
+            } else if (midX > searchX) {
+                endIndex = mid;
             } else {
-                return endIndex;
+                return mid;
             }
         }
-        int mid = (startIndex + endIndex) / 2;
-        long midX = mData.get(mid).getX();
-        if (midX < searchX) {
-            return approximateBinarySearch(searchX, mid, endIndex, preferStart, searchRange);
-        } else if (midX > searchX) {
-            return approximateBinarySearch(searchX, startIndex, mid, preferStart, searchRange);
-        } else {
-            return mid;
-        }
     }
 
     public int getNumPoints() {
-        return mData.size();
+        return mSize;
     }
 
     public boolean isEmpty() {
-        return mData.isEmpty();
+        return mSize == 0;
     }
 
     // Assume points are ordered
     public long getXMin() {
-        return mData.get(0).getX();
+        return getX(0);
     }
 
     // Assume points are ordered
     public long getXMax() {
-        return mData.get(mData.size() - 1).getX();
+        return getX(mSize - 1);
     }
 
-    public void clear() {
-        mData.clear();
+    public synchronized void clear() {
+        mHead = 0;
+        mSize = 0;
         mLabels.clear();
         mUnaddedLabels.clear();
     }
@@ -291,19 +405,19 @@ public class ChartData {
     @VisibleForTesting
     boolean tryAddingLabel(Label label) {
         long timestamp = label.getTimeStamp();
-        if (mData.isEmpty() || timestamp < getXMin() || timestamp > getXMax()) {
+        if (mSize == 0 || timestamp < getXMin() || timestamp > getXMax()) {
             return false;
         }
         int indexPrev = exactBinarySearch(timestamp, 0);
-        DataPoint start = mData.get(indexPrev);
-        if (timestamp == start.getX()) {
-            mLabels.add(start);
+        long startX = getX(indexPrev);
+        if (timestamp == startX) {
+            mLabels.add(getPoint(indexPrev));
             return true;
-        } else if (indexPrev < mData.size() - 2) {
-            DataPoint end = mData.get(indexPrev + 1);
-            double weight = (timestamp - start.getX()) / (1.0 * end.getX() - start.getX());
-            mLabels.add(
-                    new DataPoint(timestamp, start.getY() * weight + end.getY() * (1 - weight)));
+        } else if (indexPrev < mSize - 2) {
+            long endX = getX(indexPrev + 1);
+            double weight = (timestamp - startX) / (1.0 * endX - startX);
+            mLabels.add(new DataPoint(timestamp,
+                    getY(indexPrev) * weight + getY(indexPrev + 1) * (1 - weight)));
             return true;
         }
         return false;
@@ -329,27 +443,157 @@ public class ChartData {
         throwAwayBetween(throwawayThreshold, Long.MAX_VALUE);
     }
 
-    public void throwAwayBetween(long throwAwayMinX, long throwAwayMaxX) {
+    public synchronized void throwAwayBetween(long throwAwayMinX, long throwAwayMaxX) {
         if (throwAwayMaxX <= throwAwayMinX) {
             return;
         }
 
         // This should be the index to the right of max
-        int indexEnd = approximateBinarySearch(throwAwayMaxX, 0, mData.size() - 1, false, 1);
-        int indexStart = approximateBinarySearch(throwAwayMinX, 0, mData.size() - 1, false, 1);
+        int indexEnd = approximateBinarySearch(throwAwayMaxX, 0, mSize - 1, false, 1);
+        int indexStart = approximateBinarySearch(throwAwayMinX, 0, mSize - 1, false, 1);
 
         // Only throw away in bulk once we reach a threshold, so that all the work is not done on
         // every iteration. Make sure to also throw out very far away old data to avoid
         // "path too long". So if the data is less than the size, and the range is not too long,
         // we can just "return" here.
         if (indexEnd - indexStart < mThrowawayDataSizeThreshold && (
-                indexStart >= 0 && indexEnd < mData.size() &&
-                mData.get(indexEnd).getX() - mData.get(indexStart).getX() <
-                        mThrowawayDataTimeThreshold)) {
+                indexStart >= 0 && indexEnd < mSize &&
+                getX(indexEnd) - getX(indexStart) < mThrowawayDataTimeThreshold)) {
             return;
 
         }
-        mData.subList(indexStart, indexEnd).clear();
+        removeRange(indexStart, indexEnd);
+    }
+
+    /**
+     * Removes the points from {@code fromIndex} up to but not including {@code toIndex}.  Points
+     * removed from either end are just forgotten; from the middle, whichever side is shorter is
+     * moved to close the gap.
+     */
+    private synchronized void removeRange(int fromIndex, int toIndex) {
+        int count = toIndex - fromIndex;
+        if (count <= 0) {
+            return;
+        }
+        if (fromIndex == 0) {
+            mHead = physicalIndex(toIndex);
+        } else if (toIndex < mSize) {
+            if (fromIndex < mSize - toIndex) {
+                for (int i = fromIndex - 1; i >= 0; i--) {
+                    copyPoint(i, i + count);
+                }
+                mHead = physicalIndex(count);
+            } else {
+                for (int i = toIndex; i < mSize; i++) {
+                    copyPoint(i, i - count);
+                }
+            }
+        }
+        mSize -= count;
+        if (mSize == 0) {
+            mHead = 0;
+        }
+    }
+
+    private int physicalIndex(int index) {
+        return (mHead + index) & (mXs.length - 1);
+    }
+
+    private void copyPoint(int fromIndex, int toIndex) {
+        int from = physicalIndex(fromIndex);
+        int to = physicalIndex(toIndex);
+        mXs[to] = mXs[from];
+        mYs[to] = mYs[from];
+    }
+
+    private void appendPoint(long x, double y) {
+        ensureCapacity(mSize + 1);
+        int index = physicalIndex(mSize);
+        mXs[index] = x;
+        mYs[index] = y;
+        mSize++;
+    }
+
+    private void prependPoint(long x, double y) {
+        ensureCapacity(mSize + 1);
+        mHead = (mHead - 1) & (mXs.length - 1);
+        mXs[mHead] = x;
+        mYs[mHead] = y;
+        mSize++;
     }
 
+    private void mergePoints(long[] xs, double[] ys, int count) {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < mSize + count) {
+            capacity *= 2;
+        }
+        long[] mergedXs = new long[capacity];
+        double[] mergedYs = new double[capacity];
+        int existing = 0;
+        int added = 0;
+        for (int i = 0; i < mSize + count; i++) {
+            if (added == count || (existing < mSize && getX(existing) <= xs[added])) {
+                mergedXs[i] = getX(existing);
+                mergedYs[i] = getY(existing);
+                existing++;
+            } else {
+                mergedXs[i] = xs[added];
+                mergedYs[i] = ys[added];
+                added++;
+            }
+        }
+        mXs = mergedXs;
+        mYs = mergedYs;
+        mHead = 0;
+        mSize += count;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mXs.length) {
+            return;
+        }
+        int newLength = mXs.length;
+        while (newLength < capacity) {
+            newLength *= 2;
+        }
+        long[] xs = new long[newLength];
+        double[] ys = new double[newLength];
+        // Unwrap the ring, so the points start at 0.
+        int firstRun = Math.min(mSize, mXs.length - mHead);
+        System.arraycopy(mXs, mHead, xs, 0, firstRun);
+        System.arraycopy(mYs, mHead, ys, 0, firstRun);
+        System.arraycopy(mXs, 0, xs, firstRun, mSize - firstRun);
+        System.arraycopy(mYs, 0, ys, firstRun, mSize - firstRun);
+        mXs = xs;
+        mYs = ys;
+        mHead = 0;
+    }
+
+    private class PointsView extends AbstractList<DataPoint> implements RandomAccess {
+        @Override
+        public DataPoint get(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+            }
+            return getPoint(index);
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @Override
+        public boolean add(DataPoint point) {
+            synchronized (ChartData.this) {
+                appendPoint(point.getX(), point.getY());
+            }
+            return true;
+        }
+
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+            ChartData.this.removeRange(fromIndex, toIndex);
+        }
+    }
 }
\ No newline at end of file
@@ -28,6 +28,8 @@ import android.graphics.Path;
 import android.graphics.PorterDuff;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.VisibleForTesting;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
@@ -41,7 +43,20 @@ import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamStat;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
+/**
+ * Draws a chart of {@link ChartData}.
+ *
+ * The line is built off the UI thread by a {@link LineGeometryBuilder}, into segments placed for
+ * the ranges shown when it was asked for.  Each frame maps those segments to the ranges shown
+ * now, so panning and zooming only rebuild the line when it no longer covers the range shown or
+ * has too little detail for it.  Live points are added straight to the line being drawn.
+ *
+ * Everything else (axes, labels, stats, endpoints and triggers) is placed on the UI thread each
+ * frame from the ranges shown now, so it stays lined up with the line while a new one is built;
+ * labels are only drawn over the part of the data the current line covers.
+ */
 public class ChartView extends View {
     private static final String TAG = "ChartView";
 
@@ -71,9 +86,16 @@ public class ChartView extends View {
     private Paint mBackgroundPaint;
 
     private Paint mPathPaint;
-    private Path mPath;
-    private boolean mHasPath;
+    private LineGeometryBuilder mGeometryBuilder;
     private Matrix mMatrix = new Matrix();
+    private RectF mGeometryRect = new RectF();
+    // The line mapped to the ranges shown, when they differ from those it was built for.
+    // The current geometry as a path, and which points of which geometry it has.
+    private final Path mLinePath = new Path();
+    private final Path mMappedLinePath = new Path();
+    private LineGeometry mPathGeometry;
+    private int mPathResetCount;
+    private int mPathFloatCount;
 
     private Paint mAxisPaint;
     private Paint mAxisTextPaint;
@@ -108,7 +130,6 @@ public class ChartView extends View {
     private float mHeight = 1;
     private float mChartHeight;
     private float mChartWidth;
-    private RectF mChartRect; // Save this to avoid reallocations.
     private RectF mPreviousChartRect = new RectF();
 
     // These describe the minimum and maximum values which the path covers, in the coordinates
@@ -120,8 +141,8 @@ public class ChartView extends View {
     private double mYMinForPathCalcs;
     private double mYMaxForPathCalcs;
 
-    // These track how much data is covered in the path, and are only updated when the path is
-    // redrawn.
+    // These track how much data is covered in the path, and are only updated when a new path is
+    // built or a point is added to it.
     private long mXMinInPath;
     private long mXMaxInPath;
 
@@ -172,10 +193,30 @@ public class ChartView extends View {
 
     private void finishConstruction() {
         createPaints();
-        mPath = new Path();
+        Handler uiHandler = new Handler(Looper.getMainLooper());
+        setGeometryExecutors(LineGeometryBuilder.getSharedBuildExecutor(), uiHandler::post);
         mStatsPath = new Path();
     }
 
+    /**
+     * Builds the line with {@code buildExecutor}, delivering it with {@code uiExecutor}, which
+     * must run things on the UI thread.
+     */
+    @VisibleForTesting
+    public void setGeometryExecutors(Executor buildExecutor, Executor uiExecutor) {
+        mGeometryBuilder = new LineGeometryBuilder(buildExecutor, uiExecutor,
+                new LineGeometryBuilder.Listener() {
+                    @Override
+                    public void onGeometryBuilt(LineGeometry geometry) {
+                        if (geometry.hasPoints()) {
+                            mXMinInPath = geometry.getXMinInLine();
+                            mXMaxInPath = geometry.getXMaxInLine();
+                        }
+                        postInvalidateOnAnimation();
+                    }
+                });
+    }
+
     private void createPaints() {
         mPathPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         mPathPaint.setStyle(Paint.Style.STROKE);
@@ -264,9 +305,6 @@ public class ChartView extends View {
         mStartPadding = chartStartPadding + getPaddingLeft();
         mChartHeight = mHeight - mBottomPadding - mTopPadding;
         mChartWidth = mWidth - mStartPadding - mRightPadding;
-
-        mChartRect = new RectF(mStartPadding, mTopPadding, mChartWidth + mStartPadding,
-                mChartHeight + mTopPadding);
     }
 
     private void makeDashedLinePaint(Paint paint, int colorId, float lineWidth, float dashSize) {
@@ -600,40 +638,16 @@ public class ChartView extends View {
     }
 
     /**
-     * Populates the path from the chart data, from scratch.
+     * Asks for the path to be built from the chart data, from scratch.  Until it is, the old one
+     * is drawn, mapped to the ranges shown.
      */
     private void populatePath(boolean optimizePinnedToEnd) {
-        int numPoints = mChartData.getNumPoints();
-        mPath.reset();
-
-        if (numPoints == 0) {
-            return;
-        }
-
         // Just get the points in the range that we want to render, instead of all the points.
         // Adds some buffer to the load in case of scrolling, if those data points are available.
         updatePathCalcs();
-        List<ChartData.DataPoint> points;
-        if (optimizePinnedToEnd) {
-            // This is a slightly more efficient call, so use it when possible.
-            points = mChartData.getPointsInRangeToEnd(mChartOptions.getRenderedXMin() - BUFFER_MS);
-        } else {
-            points = mChartData.getPointsInRange(mChartOptions.getRenderedXMin() - BUFFER_MS,
-                    mChartOptions.getRenderedXMax() + BUFFER_MS);
-        }
-        int numPlottedPoints = points.size();
-        if (numPlottedPoints == 0) {
-            return;
-        }
-        mPath.moveTo(getPathX(points.get(0).getX()), getPathY(points.get(0).getY()));
-        for (int i = 1; i < numPlottedPoints; i++) {
-            mPath.lineTo(getPathX(points.get(i).getX()), getPathY(points.get(i).getY()));
-        }
-        mHasPath = true;
-
-        // Only update these when the path is redrawn. They track how much data the path covers.
-        mXMinInPath = points.get(0).getX();
-        mXMaxInPath = points.get(numPlottedPoints - 1).getX();
+        mGeometryBuilder.request(mChartData, mXMinForPathCalcs, mXMaxForPathCalcs,
+                mYMinForPathCalcs, mYMaxForPathCalcs, mStartPadding, mTopPadding, mChartWidth,
+                mChartHeight, BUFFER_MS, optimizePinnedToEnd);
     }
 
     /**
@@ -644,8 +658,16 @@ public class ChartView extends View {
      * @param point The data point to add to the end of the path.
      */
     public void addPointToEndOfPath(ChartData.DataPoint point) {
+        addPointToEndOfPath(point.getX(), point.getY());
+    }
+
+    /**
+     * Like {@link #addPointToEndOfPath(ChartData.DataPoint)}, without needing a DataPoint.
+     */
+    public void addPointToEndOfPath(long x, double y) {
         int numPoints = mChartData.getNumPoints();
-        if (!mHasPath || numPoints < MAXIMUM_NUM_POINTS_FOR_POPULATE_PATH ||
+        LineGeometry geometry = mGeometryBuilder.getGeometry();
+        if (!geometry.hasPoints() || numPoints < MAXIMUM_NUM_POINTS_FOR_POPULATE_PATH ||
                 (numPoints % DRAWN_POINTS_REDRAW_THRESHOLD == 0 && mChartOptions.isPinnedToNow())) {
             populatePath(true);
             postInvalidateOnAnimation();
@@ -654,28 +676,22 @@ public class ChartView extends View {
                 populatePath(true);
                 postInvalidateOnAnimation();
             } else if ((mChartOptions.isPinnedToNow()) ||
-                    mChartOptions.getRenderedXMax() >= point.getX() || mLeadingEdgeIsDrawn) {
+                    mChartOptions.getRenderedXMax() >= x || mLeadingEdgeIsDrawn) {
                 // Add the point to the end only if the end is being rendered.
-                // The path is in the previous coordinates, so we can add a point using those
-                // mins/maxes.
-                mPath.lineTo(getPathX(point.getX()), getPathY(point.getY()));
-                mXMaxInPath = point.getX();
+                // The path is in the coordinates it was built for, so the point is placed in
+                // those too.
+                geometry.addPoint(x, y);
+                mXMaxInPath = x;
             }
         }
         mWasPinnedToNow = mChartOptions.isPinnedToNow();
     }
 
     /**
-     * Transform the path by stretching and translating it to meet the new rendered size.
+     * Transform the path by stretching and translating it to meet the new rendered size.  This
+     * happens as the path is drawn, so here it only needs to be drawn again.
      */
     public void transformPath() {
-        // The path needs to be scaled in X and Y based on the range of the new data points.
-        mMatrix.reset();
-        mPreviousChartRect.set(getScreenX(mXMinForPathCalcs), getScreenY(mYMaxForPathCalcs),
-                getScreenX(mXMaxForPathCalcs), getScreenY(mYMinForPathCalcs));
-        mMatrix.setRectToRect(mChartRect, mPreviousChartRect, Matrix.ScaleToFit.FILL);
-        mPath.transform(mMatrix);
-
         updatePathCalcs();
         postInvalidateOnAnimation();
     }
@@ -687,22 +703,6 @@ public class ChartView extends View {
         mYMaxForPathCalcs = mChartOptions.getRenderedYMax();
     }
 
-    // Gets the X coordinate of a point in the current path coordinates, which may be different
-    // from the rendered min/max coordinates if the path has not yet been transformed and drawn.
-    // This should just be used when drawing the path.
-    private float getPathX(long x) {
-        return (1.0f * (x - mXMinForPathCalcs)) / (mXMaxForPathCalcs - mXMinForPathCalcs) *
-                mChartWidth + mStartPadding;
-    }
-
-    // Gets the Y coordinate of a point in the current path coordinates, which may be different
-    // from the rendered min/max coordinates if the path has not yet been transformed and drawn.
-    // This should just be used when drawing the path.
-    private float getPathY(double y) {
-        return (float) (mChartHeight * (1 - ((y - mYMinForPathCalcs) /
-                (mYMaxForPathCalcs - mYMinForPathCalcs))) + mTopPadding);
-    }
-
     @Override
     public void onDraw(Canvas canvas) {
         canvas.drawColor(mBackgroundColor);
@@ -717,7 +717,7 @@ public class ChartView extends View {
 
         // Draw the Y label lines under the path.
         drawYAxis(canvas);
-        canvas.drawPath(mPath, mPathPaint);
+        drawPath(canvas);
         // Try drawing the endpoints, if they are needed.
         tryDrawingEndpoints(canvas);
 
@@ -755,6 +755,50 @@ public class ChartView extends View {
         return mIsDrawn;
     }
 
+    private void drawPath(Canvas canvas) {
+        LineGeometry geometry = mGeometryBuilder.getGeometry();
+        int floatCount = geometry.getLineFloatCount();
+        if (floatCount == 0) {
+            return;
+        }
+        // Map the path from the ranges it was built for to those shown now.
+        mGeometryRect.set(geometry.getLeft(), geometry.getTop(),
+                geometry.getLeft() + geometry.getWidth(), geometry.getTop() + geometry.getHeight());
+        mPreviousChartRect.set(getScreenX(geometry.getXMin()), getScreenY(geometry.getYMax()),
+                getScreenX(geometry.getXMax()), getScreenY(geometry.getYMin()));
+        mMatrix.setRectToRect(mGeometryRect, mPreviousChartRect, Matrix.ScaleToFit.FILL);
+        updateLinePath(geometry, floatCount);
+        if (mMatrix.isIdentity()) {
+            canvas.drawPath(mLinePath, mPathPaint);
+            return;
+        }
+        mLinePath.transform(mMatrix, mMappedLinePath);
+        canvas.drawPath(mMappedLinePath, mPathPaint);
+    }
+
+    /**
+     * Brings {@link #mLinePath} up to date with {@code geometry}, as one connected path so that
+     * its corners are rounded.  Live points only extend it; a new or rebuilt geometry starts it
+     * again.
+     */
+    private void updateLinePath(LineGeometry geometry, int floatCount) {
+        float[] lines = geometry.getLines();
+        int from = mPathFloatCount;
+        if (geometry != mPathGeometry || geometry.getResetCount() != mPathResetCount
+                || floatCount < mPathFloatCount) {
+            mLinePath.reset();
+            mLinePath.moveTo(lines[0], lines[1]);
+            mPathGeometry = geometry;
+            mPathResetCount = geometry.getResetCount();
+            from = 0;
+        }
+        // Each segment starts where the one before it ended, so only its end is needed.
+        for (int i = from; i < floatCount; i += 4) {
+            mLinePath.lineTo(lines[i + 2], lines[i + 3]);
+        }
+        mPathFloatCount = floatCount;
+    }
+
     private void drawTriggers(Canvas canvas) {
         List<Double> triggerValues = mChartOptions.getTriggerValues();
         if (triggerValues == null || triggerValues.size() == 0) {
@@ -808,11 +852,11 @@ public class ChartView extends View {
 
     private void tryDrawingEndpoints(Canvas canvas) {
         if (mChartOptions.isShowLeadingEdge()) {
-            ChartData.DataPoint point = mChartData.getPoints().get(mChartData.getNumPoints() - 1);
-            if (point.getX() == mXMaxInPath && mXMaxInPath <= mXMaxForPathCalcs) {
+            int last = mChartData.getNumPoints() - 1;
+            if (mChartData.getX(last) == mXMaxInPath && mXMaxInPath <= mXMaxForPathCalcs) {
                 mLeadingEdgeIsDrawn = true;
-                canvas.drawCircle(getScreenX(point.getX()), getScreenY(point.getY()),
-                        mLeadingEdgeRadius, mLeadingEdgePaint);
+                canvas.drawCircle(getScreenX(mChartData.getX(last)),
+                        getScreenY(mChartData.getY(last)), mLeadingEdgeRadius, mLeadingEdgePaint);
             } else {
                 mLeadingEdgeIsDrawn = false;
             }
@@ -821,7 +865,7 @@ public class ChartView extends View {
             // start and/or end times.
             if (mChartOptions.getRenderedXMin() < mChartOptions.getRecordingStartTime() &&
                     mChartOptions.getRecordingStartTime() < mChartOptions.getRenderedXMax()) {
-                ChartData.DataPoint start = mChartData.getPoints().get(0);
+                ChartData.DataPoint start = mChartData.getPoint(0);
                 if (start.getX() >= mXMinForPathCalcs) {
                     float screenX = getScreenX(start.getX());
                     float screenY = getScreenY(start.getY());
@@ -831,7 +875,7 @@ public class ChartView extends View {
             }
             if (mChartOptions.getRenderedXMin() < mChartOptions.getRecordingEndTime() &&
                     mChartOptions.getRecordingEndTime() < mChartOptions.getRenderedXMax()) {
-                ChartData.DataPoint end = mChartData.getPoints().get(mChartData.getNumPoints() - 1);
+                ChartData.DataPoint end = mChartData.getPoint(mChartData.getNumPoints() - 1);
                 if (end.getX() <= mXMaxForPathCalcs) {
                     float screenX = getScreenX(end.getX());
                     float screenY = getScreenY(end.getY());
@@ -1015,7 +1059,12 @@ public class ChartView extends View {
                         (mChartOptions.getRenderedXMin() < mXMinInPath &&
                                 mXMinInPath > mChartData.getXMin());
         boolean newRangeTooLarge = getScreenX(mXMaxInPath) - getScreenX(mXMinInPath) > mWidth * 2;
-        if (newRangeOutsideOfPathRange || newRangeTooLarge) {
+        // The path keeps only a few points per pixel column, so stretching it would show the
+        // columns rather than the points in them.
+        LineGeometry geometry = mGeometryBuilder.getGeometry();
+        boolean zoomedInX = mChartOptions.getRenderedXMax() - mChartOptions.getRenderedXMin() <
+                geometry.getXMax() - geometry.getXMin();
+        if (newRangeOutsideOfPathRange || newRangeTooLarge || zoomedInX) {
             populatePath(false);
             postInvalidateOnAnimation();
         } else {
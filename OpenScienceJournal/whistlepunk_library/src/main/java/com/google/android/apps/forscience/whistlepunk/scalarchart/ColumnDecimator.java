@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+/**
+ * Reduces a run of chart points to at most four per pixel column: the first, lowest, highest and
+ * last point in each column, in the order they came.  A line through the points that are kept
+ * covers exactly the same pixels as a line through all of them: within a column both climb
+ * between the same lowest and highest values, and both leave it for the next column from the
+ * same last point to the same first one.  So the cost of building a path is bounded by the width
+ * of the view, not by how many points it shows.
+ *
+ * Kept points are stored in arrays that are reused from one call to the next.
+ */
+public class ColumnDecimator {
+    private long[] mXs = new long[64];
+    private double[] mYs = new double[64];
+    private int mSize = 0;
+
+    /**
+     * Keeps the first, lowest, highest and last of the points from {@code first} to {@code last}
+     * of {@code data} in each pixel column, replacing what was kept before.  A point's column is
+     * the floor of {@code (x - xMin) / (xMax - xMin) * width + left}, which must be worked out
+     * just as the chart places the point on screen.
+     */
+    public void decimate(ChartData data, int first, int last, long xMin, long xMax, float width,
+            float left) {
+        mSize = 0;
+        if (first > last) {
+            return;
+        }
+
+        long column = columnOf(data.getX(first), xMin, xMax, width, left);
+        int firstInColumn = first;
+        int minInColumn = first;
+        int maxInColumn = first;
+        for (int i = first + 1; i <= last; i++) {
+            long nextColumn = columnOf(data.getX(i), xMin, xMax, width, left);
+            if (nextColumn != column) {
+                keepColumn(data, firstInColumn, minInColumn, maxInColumn, i - 1);
+                column = nextColumn;
+                firstInColumn = i;
+                minInColumn = i;
+                maxInColumn = i;
+            } else {
+                double y = data.getY(i);
+                if (y < data.getY(minInColumn)) {
+                    minInColumn = i;
+                } else if (y > data.getY(maxInColumn)) {
+                    maxInColumn = i;
+                }
+            }
+        }
+        keepColumn(data, firstInColumn, minInColumn, maxInColumn, last);
+    }
+
+    /**
+     * @return how many points were kept by the last call to {@link #decimate}
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public long getX(int index) {
+        return mXs[index];
+    }
+
+    public double getY(int index) {
+        return mYs[index];
+    }
+
+    private static long columnOf(long x, long xMin, long xMax, float width, float left) {
+        return (long) Math.floor((1.0f * (x - xMin)) / (xMax - xMin) * width + left);
+    }
+
+    private void keepColumn(ChartData data, int first, int min, int max, int last) {
+        keep(data, first);
+        int lower = Math.min(min, max);
+        int upper = Math.max(min, max);
+        if (lower != first) {
+            keep(data, lower);
+        }
+        if (upper != lower && upper != first) {
+            keep(data, upper);
+        }
+        if (last != upper && last != first) {
+            keep(data, last);
+        }
+    }
+
+    private void keep(ChartData data, int index) {
+        if (mSize == mXs.length) {
+            ensureCapacity(mSize * 2);
+        }
+        mXs[mSize] = data.getX(index);
+        mYs[mSize] = data.getY(index);
+        mSize++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mXs.length) {
+            return;
+        }
+        long[] xs = new long[capacity];
+        double[] ys = new double[capacity];
+        System.arraycopy(mXs, 0, xs, 0, mSize);
+        System.arraycopy(mYs, 0, ys, 0, mSize);
+        mXs = xs;
+        mYs = ys;
+    }
+}
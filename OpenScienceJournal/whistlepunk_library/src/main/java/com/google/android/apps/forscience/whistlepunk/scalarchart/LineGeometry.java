@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+/**
+ * The line of a chart as screen coordinates, four floats per segment, each segment starting where
+ * the one before it ended.
+ *
+ * Points are placed for the ranges and chart area given to {@link #reset}; drawing them when the
+ * chart shows other ranges means mapping them from those.  Arrays are reused from one reset to
+ * the next, so a geometry only allocates when it needs more room than it has had before.
+ */
+public class LineGeometry {
+    private float[] mLines = new float[256];
+    private int mLineFloatCount = 0;
+
+    private long mXMin;
+    private long mXMax;
+    private double mYMin;
+    private double mYMax;
+    private float mLeft;
+    private float mTop;
+    private float mWidth;
+    private float mHeight;
+
+    private int mPointCount = 0;
+    private int mResetCount = 0;
+    private float mLastScreenX;
+    private float mLastScreenY;
+    private long mXMinInLine;
+    private long mXMaxInLine;
+
+    /**
+     * Forgets every point, and places the points added next so that {@code xMin} to {@code xMax}
+     * and {@code yMin} to {@code yMax} fill the chart area at {@code left} and {@code top}.
+     */
+    public void reset(long xMin, long xMax, double yMin, double yMax, float left, float top,
+            float width, float height) {
+        mXMin = xMin;
+        mXMax = xMax;
+        mYMin = yMin;
+        mYMax = yMax;
+        mLeft = left;
+        mTop = top;
+        mWidth = width;
+        mHeight = height;
+        mLineFloatCount = 0;
+        mPointCount = 0;
+        mResetCount++;
+    }
+
+    /**
+     * @return how many times the geometry has been {@link #reset}; while this stays the same,
+     * points are only added to the end
+     */
+    public int getResetCount() {
+        return mResetCount;
+    }
+
+    /**
+     * Extends the line to a point after all the others.
+     */
+    public void addPoint(long x, double y) {
+        float screenX = getScreenX(x);
+        float screenY = getScreenY(y);
+        if (mPointCount == 0) {
+            mXMinInLine = x;
+        } else {
+            if (mLineFloatCount + 4 > mLines.length) {
+                float[] lines = new float[mLines.length * 2];
+                System.arraycopy(mLines, 0, lines, 0, mLineFloatCount);
+                mLines = lines;
+            }
+            mLines[mLineFloatCount++] = mLastScreenX;
+            mLines[mLineFloatCount++] = mLastScreenY;
+            mLines[mLineFloatCount++] = screenX;
+            mLines[mLineFloatCount++] = screenY;
+        }
+        mLastScreenX = screenX;
+        mLastScreenY = screenY;
+        mXMaxInLine = x;
+        mPointCount++;
+    }
+
+    /**
+     * Places an X value as {@link ChartView} does for these ranges.
+     */
+    public float getScreenX(long x) {
+        return (1.0f * (x - mXMin)) / (mXMax - mXMin) * mWidth + mLeft;
+    }
+
+    public float getScreenY(double y) {
+        return (float) (mHeight * (1 - ((y - mYMin) / (mYMax - mYMin))) + mTop);
+    }
+
+    public float[] getLines() {
+        return mLines;
+    }
+
+    /**
+     * @return how many floats of {@link #getLines()} are in use, four for each segment
+     */
+    public int getLineFloatCount() {
+        return mLineFloatCount;
+    }
+
+    public boolean hasPoints() {
+        return mPointCount > 0;
+    }
+
+    /**
+     * @return the X of the first point, if there are any
+     */
+    public long getXMinInLine() {
+        return mXMinInLine;
+    }
+
+    /**
+     * @return the X of the last point, if there are any
+     */
+    public long getXMaxInLine() {
+        return mXMaxInLine;
+    }
+
+    public long getXMin() {
+        return mXMin;
+    }
+
+    public long getXMax() {
+        return mXMax;
+    }
+
+    public double getYMin() {
+        return mYMin;
+    }
+
+    public double getYMax() {
+        return mYMax;
+    }
+
+    public float getLeft() {
+        return mLeft;
+    }
+
+    public float getTop() {
+        return mTop;
+    }
+
+    public float getWidth() {
+        return mWidth;
+    }
+
+    public float getHeight() {
+        return mHeight;
+    }
+}
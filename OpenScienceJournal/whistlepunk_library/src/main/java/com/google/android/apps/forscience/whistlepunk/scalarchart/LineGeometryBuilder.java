@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Builds the {@link LineGeometry} of a chart on a background thread, so that reloading or zooming
+ * a long trial doesn't hold up frames.
+ *
+ * There are two geometries.  The UI thread draws, and appends live points to, the one returned by
+ * {@link #getGeometry()}, while the build thread fills the other; when a build is done, the two
+ * are swapped on the UI thread.  Only one build runs at a time.  Requests made while one is
+ * running replace each other, and only the latest is built next.
+ *
+ * Apart from the builds themselves, everything here happens on the UI thread.
+ */
+public class LineGeometryBuilder {
+    public interface Listener {
+        /**
+         * Called on the UI thread when a new geometry is ready to draw.
+         */
+        void onGeometryBuilt(LineGeometry geometry);
+    }
+
+    private static Executor sSharedBuildExecutor;
+
+    /**
+     * @return the background thread that every chart builds its geometry on
+     */
+    public static synchronized Executor getSharedBuildExecutor() {
+        if (sSharedBuildExecutor == null) {
+            sSharedBuildExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "ChartGeometry");
+                }
+            });
+        }
+        return sSharedBuildExecutor;
+    }
+
+    private static class Request {
+        ChartData data;
+        long xMin;
+        long xMax;
+        double yMin;
+        double yMax;
+        float left;
+        float top;
+        float width;
+        float height;
+        long bufferMillis;
+        boolean toEnd;
+
+        void copy(Request other) {
+            data = other.data;
+            xMin = other.xMin;
+            xMax = other.xMax;
+            yMin = other.yMin;
+            yMax = other.yMax;
+            left = other.left;
+            top = other.top;
+            width = other.width;
+            height = other.height;
+            bufferMillis = other.bufferMillis;
+            toEnd = other.toEnd;
+        }
+    }
+
+    private final Executor mBuildExecutor;
+    private final Executor mUiExecutor;
+    private final Listener mListener;
+
+    private LineGeometry mFront = new LineGeometry();
+    private LineGeometry mBack = new LineGeometry();
+
+    // Only used on the build thread.
+    private final ColumnDecimator mDecimator = new ColumnDecimator();
+
+    // Written on the UI thread before the build starts, and only read by the build.
+    private final Request mBuilding = new Request();
+
+    private final Request mNext = new Request();
+    private boolean mIsBuilding = false;
+    private boolean mHasNext = false;
+
+    private final Runnable mBuild = new Runnable() {
+        @Override
+        public void run() {
+            build();
+            mUiExecutor.execute(mDeliver);
+        }
+    };
+
+    private final Runnable mDeliver = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    public LineGeometryBuilder(Executor buildExecutor, Executor uiExecutor, Listener listener) {
+        mBuildExecutor = buildExecutor;
+        mUiExecutor = uiExecutor;
+        mListener = listener;
+    }
+
+    /**
+     * @return the geometry to draw, and to add live points to
+     */
+    public LineGeometry getGeometry() {
+        return mFront;
+    }
+
+    /**
+     * Asks for the points of {@code data} from {@code xMin - bufferMillis} to
+     * {@code xMax + bufferMillis}, or to the last point if {@code toEnd}, to be placed so that
+     * the given ranges fill the chart area at {@code left} and {@code top}.
+     */
+    public void request(ChartData data, long xMin, long xMax, double yMin, double yMax,
+            float left, float top, float width, float height, long bufferMillis, boolean toEnd) {
+        mNext.data = data;
+        mNext.xMin = xMin;
+        mNext.xMax = xMax;
+        mNext.yMin = yMin;
+        mNext.yMax = yMax;
+        mNext.left = left;
+        mNext.top = top;
+        mNext.width = width;
+        mNext.height = height;
+        mNext.bufferMillis = bufferMillis;
+        mNext.toEnd = toEnd;
+        if (mIsBuilding) {
+            mHasNext = true;
+        } else {
+            startBuild();
+        }
+    }
+
+    private void startBuild() {
+        mBuilding.copy(mNext);
+        mNext.data = null;
+        mHasNext = false;
+        mIsBuilding = true;
+        mBuildExecutor.execute(mBuild);
+    }
+
+    private void build() {
+        Request request = mBuilding;
+        LineGeometry geometry = mBack;
+        geometry.reset(request.xMin, request.xMax, request.yMin, request.yMax, request.left,
+                request.top, request.width, request.height);
+        ChartData data = request.data;
+        synchronized (data) {
+            int first = 0;
+            int last = -1;
+            if (!data.isEmpty()) {
+                first = data.getFirstIndexInRange(request.xMin - request.bufferMillis);
+                last = request.toEnd ? data.getNumPoints() - 1
+                        : data.getLastIndexInRange(request.xMax + request.bufferMillis, first);
+            }
+            mDecimator.decimate(data, first, last, request.xMin, request.xMax, request.width,
+                    request.left);
+        }
+        for (int i = 0; i < mDecimator.size(); i++) {
+            geometry.addPoint(mDecimator.getX(i), mDecimator.getY(i));
+        }
+    }
+
+    private void deliver() {
+        LineGeometry built = mBack;
+        mBack = mFront;
+        mFront = built;
+        mIsBuilding = false;
+
+        ChartData data = mBuilding.data;
+        if (mBuilding.toEnd && built.hasPoints()) {
+            // Live points may have arrived since the build read the data.
+            int first = data.getNumPoints();
+            while (first > 0 && data.getX(first - 1) > built.getXMaxInLine()) {
+                first--;
+            }
+            for (int i = first; i < data.getNumPoints(); i++) {
+                built.addPoint(data.getX(i), data.getY(i));
+            }
+        }
+        mBuilding.data = null;
+
+        mListener.onGeometryBuilt(built);
+        if (mHasNext) {
+            startBuild();
+        }
+    }
+}
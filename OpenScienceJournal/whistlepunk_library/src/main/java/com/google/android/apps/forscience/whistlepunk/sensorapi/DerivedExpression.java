@@ -0,0 +1,367 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An arithmetic expression over the latest values of some other sensors, such as
+ * {@code sqrt(x*x + y*y + z*z)} or {@code smooth(a / b, 500)}.  It is parsed once, into a tree
+ * that can then be evaluated for each sample without allocating.
+ *
+ * Supports numbers, variables (named by identifiers, and bound to sensors by
+ * {@link DerivedSensorEngine}), {@code + - * / ^}, parentheses, and the functions {@code abs},
+ * {@code sqrt}, {@code exp}, {@code log}, {@code sin}, {@code cos}, {@code atan2}, {@code min},
+ * {@code max}, and {@code smooth(value, millis)}, an exponential moving average with the given
+ * time constant.
+ *
+ * Because {@code smooth} remembers earlier values, each sensor being derived should parse its
+ * own copy.  Not thread-safe.
+ */
+public class DerivedExpression {
+    private final String mSource;
+    private final List<String> mVariables = new ArrayList<>();
+    private final Node mRoot;
+
+    // Only used while parsing
+    private int mPosition = 0;
+
+    /**
+     * @throws IllegalArgumentException if {@code source} is not a valid expression
+     */
+    public static DerivedExpression parse(String source) {
+        return new DerivedExpression(source);
+    }
+
+    private DerivedExpression(String source) {
+        mSource = source;
+        mRoot = parseSum();
+        skipSpaces();
+        if (mPosition < mSource.length()) {
+            throw error("Unexpected '" + mSource.charAt(mPosition) + "'");
+        }
+    }
+
+    public String getSource() {
+        return mSource;
+    }
+
+    /**
+     * @return the names of the variables, in the order their values are passed to
+     * {@link #evaluate}
+     */
+    public List<String> getVariables() {
+        return Collections.unmodifiableList(mVariables);
+    }
+
+    /**
+     * @param values the value of each variable, in the order of {@link #getVariables()}
+     */
+    public double evaluate(long timestampMillis, double[] values) {
+        return mRoot.evaluate(timestampMillis, values);
+    }
+
+    private Node parseSum() {
+        Node result = parseProduct();
+        while (true) {
+            if (consume('+')) {
+                result = new Binary('+', result, parseProduct());
+            } else if (consume('-')) {
+                result = new Binary('-', result, parseProduct());
+            } else {
+                return result;
+            }
+        }
+    }
+
+    private Node parseProduct() {
+        Node result = parseUnary();
+        while (true) {
+            if (consume('*')) {
+                result = new Binary('*', result, parseUnary());
+            } else if (consume('/')) {
+                result = new Binary('/', result, parseUnary());
+            } else {
+                return result;
+            }
+        }
+    }
+
+    private Node parseUnary() {
+        if (consume('-')) {
+            return new Binary('-', new Constant(0), parseUnary());
+        }
+        return parsePower();
+    }
+
+    private Node parsePower() {
+        Node base = parsePrimary();
+        if (consume('^')) {
+            // Right-associative, and binds tighter than a leading minus on its right.
+            return new Binary('^', base, parseUnary());
+        }
+        return base;
+    }
+
+    private Node parsePrimary() {
+        skipSpaces();
+        if (consume('(')) {
+            Node inner = parseSum();
+            expect(')');
+            return inner;
+        }
+        if (mPosition >= mSource.length()) {
+            throw error("Expression ends too soon");
+        }
+        char c = mSource.charAt(mPosition);
+        if (Character.isDigit(c) || c == '.') {
+            return parseNumber();
+        }
+        if (Character.isLetter(c) || c == '_') {
+            String name = parseIdentifier();
+            if (consume('(')) {
+                return parseFunction(name);
+            }
+            int index = mVariables.indexOf(name);
+            if (index < 0) {
+                index = mVariables.size();
+                mVariables.add(name);
+            }
+            return new Variable(index);
+        }
+        throw error("Unexpected '" + c + "'");
+    }
+
+    private Node parseNumber() {
+        int start = mPosition;
+        while (mPosition < mSource.length() && (Character.isDigit(mSource.charAt(mPosition))
+                || mSource.charAt(mPosition) == '.')) {
+            mPosition++;
+        }
+        try {
+            return new Constant(Double.parseDouble(mSource.substring(start, mPosition)));
+        } catch (NumberFormatException e) {
+            mPosition = start;
+            throw error("Bad number");
+        }
+    }
+
+    private String parseIdentifier() {
+        int start = mPosition;
+        while (mPosition < mSource.length() && (Character.isLetterOrDigit(
+                mSource.charAt(mPosition)) || mSource.charAt(mPosition) == '_')) {
+            mPosition++;
+        }
+        return mSource.substring(start, mPosition);
+    }
+
+    // Called just after the opening parenthesis.
+    private Node parseFunction(String name) {
+        List<Node> args = new ArrayList<>();
+        if (!consume(')')) {
+            do {
+                args.add(parseSum());
+            } while (consume(','));
+            expect(')');
+        }
+        int function = Function.NAMES.indexOf(name);
+        if (function >= 0) {
+            int count = function < Function.FIRST_WITH_TWO_ARGS ? 1 : 2;
+            checkArgCount(name, args, count);
+            return new Function(function, args.get(0), count == 2 ? args.get(1) : null);
+        }
+        if (name.equals("smooth")) {
+            checkArgCount(name, args, 2);
+            if (!(args.get(1) instanceof Constant)) {
+                throw error("smooth() needs a constant number of milliseconds");
+            }
+            return new Smooth(args.get(0), ((Constant) args.get(1)).mValue);
+        }
+        throw error("Unknown function " + name + "()");
+    }
+
+    private void checkArgCount(String name, List<Node> args, int count) {
+        if (args.size() != count) {
+            throw error(name + "() takes " + count + " argument" + (count == 1 ? "" : "s"));
+        }
+    }
+
+    private boolean consume(char c) {
+        skipSpaces();
+        if (mPosition < mSource.length() && mSource.charAt(mPosition) == c) {
+            mPosition++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        if (!consume(c)) {
+            throw error("Expected '" + c + "'");
+        }
+    }
+
+    private void skipSpaces() {
+        while (mPosition < mSource.length() && Character.isWhitespace(mSource.charAt(mPosition))) {
+            mPosition++;
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(
+                message + " at position " + mPosition + " of \"" + mSource + "\"");
+    }
+
+    private abstract static class Node {
+        abstract double evaluate(long timestampMillis, double[] values);
+    }
+
+    private static class Constant extends Node {
+        private final double mValue;
+
+        Constant(double value) {
+            mValue = value;
+        }
+
+        @Override
+        double evaluate(long timestampMillis, double[] values) {
+            return mValue;
+        }
+    }
+
+    private static class Variable extends Node {
+        private final int mIndex;
+
+        Variable(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        double evaluate(long timestampMillis, double[] values) {
+            return values[mIndex];
+        }
+    }
+
+    private static class Binary extends Node {
+        private final char mOperator;
+        private final Node mLeft;
+        private final Node mRight;
+
+        Binary(char operator, Node left, Node right) {
+            mOperator = operator;
+            mLeft = left;
+            mRight = right;
+        }
+
+        @Override
+        double evaluate(long timestampMillis, double[] values) {
+            double left = mLeft.evaluate(timestampMillis, values);
+            double right = mRight.evaluate(timestampMillis, values);
+            switch (mOperator) {
+                case '+':
+                    return left + right;
+                case '-':
+                    return left - right;
+                case '*':
+                    return left * right;
+                case '/':
+                    return left / right;
+                default:
+                    return Math.pow(left, right);
+            }
+        }
+    }
+
+    private static class Function extends Node {
+        static final List<String> NAMES =
+                Arrays.asList("abs", "sqrt", "exp", "log", "sin", "cos", "atan2", "min", "max");
+        static final int FIRST_WITH_TWO_ARGS = NAMES.indexOf("atan2");
+
+        // Index into NAMES
+        private final int mFunction;
+        private final Node mFirst;
+        private final Node mSecond;
+
+        Function(int function, Node first, Node second) {
+            mFunction = function;
+            mFirst = first;
+            mSecond = second;
+        }
+
+        @Override
+        double evaluate(long timestampMillis, double[] values) {
+            double first = mFirst.evaluate(timestampMillis, values);
+            double second = mSecond == null ? 0 : mSecond.evaluate(timestampMillis, values);
+            switch (mFunction) {
+                case 0:
+                    return Math.abs(first);
+                case 1:
+                    return Math.sqrt(first);
+                case 2:
+                    return Math.exp(first);
+                case 3:
+                    return Math.log(first);
+                case 4:
+                    return Math.sin(first);
+                case 5:
+                    return Math.cos(first);
+                case 6:
+                    return Math.atan2(first, second);
+                case 7:
+                    return Math.min(first, second);
+                default:
+                    return Math.max(first, second);
+            }
+        }
+    }
+
+    /**
+     * Exponential moving average: each new value moves the average toward it by a fraction that
+     * depends on how long it has been since the last value, so that uneven sampling doesn't
+     * change how smooth the result is.
+     */
+    private static class Smooth extends Node {
+        private final Node mInput;
+        private final double mTimeConstantMillis;
+        private boolean mStarted = false;
+        private long mLastTimestamp;
+        private double mAverage;
+
+        Smooth(Node input, double timeConstantMillis) {
+            mInput = input;
+            mTimeConstantMillis = timeConstantMillis;
+        }
+
+        @Override
+        double evaluate(long timestampMillis, double[] values) {
+            double value = mInput.evaluate(timestampMillis, values);
+            if (!mStarted || mTimeConstantMillis <= 0) {
+                mStarted = true;
+                mAverage = value;
+            } else {
+                long elapsed = timestampMillis - mLastTimestamp;
+                double weight = 1 - Math.exp(-elapsed / mTimeConstantMillis);
+                mAverage += weight * (value - mAverage);
+            }
+            mLastTimestamp = timestampMillis;
+            return mAverage;
+        }
+    }
+}
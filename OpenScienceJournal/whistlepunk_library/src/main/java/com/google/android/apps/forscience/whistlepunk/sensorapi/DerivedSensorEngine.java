@@ -0,0 +1,194 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes derived sensors as their inputs' samples arrive.  Every {@link ScalarSensor} passes
+ * each of its samples to {@link #onSample}; each derived sensor with that sensor as an input is
+ * then evaluated over the latest value of each of its inputs, and the result is handed to the
+ * derived sensor's {@link StreamConsumer}.  From there it is recorded, zoom tiers and all, and
+ * shown like any other sensor's values, so review, export and stats need nothing special.
+ */
+public class DerivedSensorEngine {
+    private final Object mLock = new Object();
+
+    // Guarded by mLock
+    private final Map<String, Derivation> mDerivations = new HashMap<>();
+
+    // For each input sensor, the derivations that use it.  Rebuilt under mLock whenever a
+    // derivation is attached or detached, and never changed, so that onSample needs no lock.
+    private volatile Map<String, Binding[]> mBindings = Collections.emptyMap();
+
+    /**
+     * Passes a sample to every derived sensor that uses {@code sensorId}.  May be called from any
+     * thread.
+     */
+    public void onSample(String sensorId, long timestampMillis, double value) {
+        Binding[] bindings = mBindings.get(sensorId);
+        if (bindings == null) {
+            return;
+        }
+        for (Binding binding : bindings) {
+            binding.mDerivation.onInput(binding.mInput, timestampMillis, value);
+        }
+    }
+
+    /**
+     * Starts computing {@code derivedId}, until {@link #detach}.
+     *
+     * @param inputIds              the sensor bound to each of {@code expression}'s variables, in
+     *                              order
+     * @param alignmentWindowMillis a value is only computed once every input has a sample no more
+     *                              than this much older than the sample being evaluated
+     * @param consumer              is passed each computed value
+     * @throws IllegalArgumentException if the derived sensor would depend on itself
+     */
+    public void attach(String derivedId, DerivedExpression expression, List<String> inputIds,
+            long alignmentWindowMillis, StreamConsumer consumer) {
+        Preconditions.checkArgument(inputIds.size() == expression.getVariables().size(),
+                "Each variable needs exactly one input sensor");
+        synchronized (mLock) {
+            for (String inputId : inputIds) {
+                Preconditions.checkArgument(!dependsOn(inputId, derivedId),
+                        "%s can't depend on itself", derivedId);
+            }
+            mDerivations.put(derivedId, new Derivation(expression, inputIds,
+                    alignmentWindowMillis, consumer));
+            rebuildBindings();
+        }
+    }
+
+    public void detach(String derivedId) {
+        synchronized (mLock) {
+            if (mDerivations.remove(derivedId) != null) {
+                rebuildBindings();
+            }
+        }
+    }
+
+    public boolean isAttached(String derivedId) {
+        synchronized (mLock) {
+            return mDerivations.containsKey(derivedId);
+        }
+    }
+
+    // Must hold mLock
+    private boolean dependsOn(String sensorId, String derivedId) {
+        if (sensorId.equals(derivedId)) {
+            return true;
+        }
+        Derivation derivation = mDerivations.get(sensorId);
+        if (derivation == null) {
+            return false;
+        }
+        for (String inputId : derivation.mInputIds) {
+            if (dependsOn(inputId, derivedId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Must hold mLock
+    private void rebuildBindings() {
+        Map<String, List<Binding>> lists = new HashMap<>();
+        for (Derivation derivation : mDerivations.values()) {
+            for (int i = 0; i < derivation.mInputIds.size(); i++) {
+                String inputId = derivation.mInputIds.get(i);
+                if (!lists.containsKey(inputId)) {
+                    lists.put(inputId, new ArrayList<>());
+                }
+                lists.get(inputId).add(new Binding(derivation, i));
+            }
+        }
+        Map<String, Binding[]> bindings = new HashMap<>();
+        for (Map.Entry<String, List<Binding>> entry : lists.entrySet()) {
+            List<Binding> list = entry.getValue();
+            bindings.put(entry.getKey(), list.toArray(new Binding[list.size()]));
+        }
+        mBindings = bindings;
+    }
+
+    private static class Binding {
+        final Derivation mDerivation;
+        final int mInput;
+
+        Binding(Derivation derivation, int input) {
+            mDerivation = derivation;
+            mInput = input;
+        }
+    }
+
+    /**
+     * The latest value of each input of one derived sensor.
+     */
+    private static class Derivation {
+        private final DerivedExpression mExpression;
+        private final List<String> mInputIds;
+        private final long mAlignmentWindowMillis;
+        private final StreamConsumer mConsumer;
+
+        // Guarded by this
+        private final double[] mValues;
+        private final long[] mTimestamps;
+        private final boolean[] mHasValue;
+        private long mLastComputedTimestamp = Long.MIN_VALUE;
+
+        Derivation(DerivedExpression expression, List<String> inputIds,
+                long alignmentWindowMillis, StreamConsumer consumer) {
+            mExpression = expression;
+            mInputIds = new ArrayList<>(inputIds);
+            mAlignmentWindowMillis = alignmentWindowMillis;
+            mConsumer = consumer;
+            mValues = new double[inputIds.size()];
+            mTimestamps = new long[inputIds.size()];
+            mHasValue = new boolean[inputIds.size()];
+        }
+
+        synchronized void onInput(int input, long timestampMillis, double value) {
+            mValues[input] = value;
+            mTimestamps[input] = timestampMillis;
+            mHasValue[input] = true;
+
+            // The derived sensor's timestamps must increase, like any sensor's.
+            if (timestampMillis <= mLastComputedTimestamp) {
+                return;
+            }
+            for (int i = 0; i < mValues.length; i++) {
+                if (!mHasValue[i] || timestampMillis - mTimestamps[i] > mAlignmentWindowMillis) {
+                    // Not every input has a recent enough value to line up with this one.
+                    return;
+                }
+            }
+            double result = mExpression.evaluate(timestampMillis, mValues);
+            if (Double.isNaN(result) || Double.isInfinite(result)) {
+                // For example, a ratio whose denominator is zero.
+                return;
+            }
+            mLastComputedTimestamp = timestampMillis;
+            mConsumer.addData(timestampMillis, result);
+        }
+    }
+}
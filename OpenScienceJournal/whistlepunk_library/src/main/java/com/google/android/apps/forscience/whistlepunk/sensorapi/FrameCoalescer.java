@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Collects one sensor's live values as they arrive, on any thread, and delivers them to an
+ * observer on the main thread in batches, at most once per display frame.  However fast the
+ * sensor, its observer runs (and its card redraws) once a frame, rather than once a value.
+ */
+public class FrameCoalescer {
+    /**
+     * Decides when the next batch is delivered.
+     */
+    public interface FrameScheduler {
+        /**
+         * Called on the main thread; arranges for {@code deliver} to run on the main thread,
+         * typically just before the next frame is drawn.
+         */
+        void postFrame(Runnable deliver);
+    }
+
+    /**
+     * Delivers just before each display frame.
+     */
+    public static FrameScheduler everyFrame() {
+        return deliver -> Choreographer.getInstance().postFrameCallback(
+                frameTimeNanos -> deliver.run());
+    }
+
+    /**
+     * Delivers {@code intervalMillis} after the first value of each batch arrives.
+     */
+    public static FrameScheduler everyInterval(final long intervalMillis) {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return deliver -> handler.postDelayed(deliver, intervalMillis);
+    }
+
+    /**
+     * Delivers as soon as the main thread gets to it, for tests.
+     */
+    public static FrameScheduler immediately() {
+        return Runnable::run;
+    }
+
+    /**
+     * The most values kept waiting for the main thread.  If it falls this far behind, newer values
+     * are dropped until it catches up, so a stalled main thread can't use up memory.
+     */
+    public static final int MAX_PENDING = 4096;
+
+    private final SensorObserver mObserver;
+    private final Executor mUiThread;
+    private final FrameScheduler mScheduler;
+
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private ScalarBatch mFilling = new ScalarBatch(16);
+    private boolean mScheduled = false;
+    private long mDroppedCount = 0;
+
+    // Only touched on the main thread
+    private ScalarBatch mDelivering = new ScalarBatch(16);
+
+    private final Runnable mDeliver = this::deliver;
+    private final Runnable mPostFrame = new Runnable() {
+        @Override
+        public void run() {
+            mScheduler.postFrame(mDeliver);
+        }
+    };
+
+    public FrameCoalescer(SensorObserver observer, Executor uiThread, FrameScheduler scheduler) {
+        mObserver = observer;
+        mUiThread = uiThread;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Queues a value for the next batch.  May be called from any thread.
+     *
+     * @param stats the stats to deliver with this value; only those are read from it
+     */
+    public void add(long timestampMillis, double value, SensorObserver.Data stats) {
+        synchronized (mLock) {
+            if (mFilling.size() >= MAX_PENDING) {
+                mDroppedCount++;
+                return;
+            }
+            mFilling.add(timestampMillis, value, stats);
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        mUiThread.execute(mPostFrame);
+    }
+
+    /**
+     * @return how many values are waiting to be delivered
+     */
+    public int getPendingCount() {
+        synchronized (mLock) {
+            return mFilling.size();
+        }
+    }
+
+    /**
+     * @return how many values have been dropped because too many were waiting
+     */
+    public long getDroppedCount() {
+        synchronized (mLock) {
+            return mDroppedCount;
+        }
+    }
+
+    private void deliver() {
+        synchronized (mLock) {
+            ScalarBatch filled = mFilling;
+            mFilling = mDelivering;
+            mDelivering = filled;
+            mScheduled = false;
+        }
+        try {
+            mDelivering.deliverTo(mObserver);
+        } finally {
+            mDelivering.clear();
+        }
+    }
+}
@@ -16,13 +16,15 @@
 
 package com.google.android.apps.forscience.whistlepunk.sensorapi;
 
-import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
-
-import java.util.LinkedList;
-import java.util.List;
-
 public class FrequencyBuffer implements ValueFilter {
-    private List<ScalarReading> mReadings = new LinkedList<>();
+    private static final int INITIAL_CAPACITY = 64;
+
+    // The window is kept in a pair of circular primitive arrays so that filtering a value doesn't
+    // allocate once the buffer has grown to fit the window.
+    private long[] mTimestamps = new long[INITIAL_CAPACITY];
+    private double[] mValues = new double[INITIAL_CAPACITY];
+    private int mHead = 0;
+    private int mSize = 0;
 
     private long mWindow;
     private final double mDenominatorInMillis;
@@ -42,27 +44,63 @@ public class FrequencyBuffer implements ValueFilter {
 
     public void changeWindow(long newWindowMillis) {
         mWindow = newWindowMillis;
-        if (!mReadings.isEmpty()) {
+        if (mSize > 0) {
             prune(getNewestTimestamp());
         }
     }
 
     @Override
     public double filterValue(long timestamp, double value) {
-        mReadings.add(new ScalarReading(timestamp, value));
+        add(timestamp, value);
         prune(timestamp);
         return getLatestFrequency();
     }
 
+    private void add(long timestamp, double value) {
+        if (mSize == mTimestamps.length) {
+            grow();
+        }
+        int index = slot(mSize);
+        mTimestamps[index] = timestamp;
+        mValues[index] = value;
+        mSize++;
+    }
+
+    private void grow() {
+        int capacity = mTimestamps.length * 2;
+        long[] timestamps = new long[capacity];
+        double[] values = new double[capacity];
+        for (int i = 0; i < mSize; i++) {
+            timestamps[i] = getTimestamp(i);
+            values[i] = getValue(i);
+        }
+        mTimestamps = timestamps;
+        mValues = values;
+        mHead = 0;
+    }
+
     private void prune(long timestamp) {
         long oldestRemaining = timestamp - mWindow;
-        while (mReadings.get(0).getCollectedTimeMillis() < oldestRemaining) {
-            mReadings.remove(0);
+        while (mSize > 0 && getTimestamp(0) < oldestRemaining) {
+            mHead = slot(1);
+            mSize--;
         }
     }
 
+    private int slot(int offset) {
+        return (mHead + offset) % mTimestamps.length;
+    }
+
+    private long getTimestamp(int offset) {
+        return mTimestamps[slot(offset)];
+    }
+
+    private double getValue(int offset) {
+        return mValues[slot(offset)];
+    }
+
     public double getLatestFrequency() {
-        if (mReadings.size() < 2) {
+        if (mSize < 2) {
             return 0.0;
         }
 
@@ -71,16 +109,16 @@ public class FrequencyBuffer implements ValueFilter {
         long firstCrossingTime = -1;
         long lastCrossingTime = -1;
 
-        boolean higherThanAverage = mReadings.get(0).getValue() > average;
-        for (ScalarReading reading : mReadings.subList(1, mReadings.size())) {
-            boolean thisReadingHigher = reading.getValue() > average;
+        boolean higherThanAverage = getValue(0) > average;
+        for (int i = 1; i < mSize; i++) {
+            boolean thisReadingHigher = getValue(i) > average;
             if (higherThanAverage != thisReadingHigher) {
                 higherThanAverage = thisReadingHigher;
                 crossings++;
                 if (firstCrossingTime == -1) {
-                    firstCrossingTime = reading.getCollectedTimeMillis();
+                    firstCrossingTime = getTimestamp(i);
                 } else {
-                    lastCrossingTime = reading.getCollectedTimeMillis();
+                    lastCrossingTime = getTimestamp(i);
                 }
             }
         }
@@ -113,16 +151,15 @@ public class FrequencyBuffer implements ValueFilter {
         // assume for now that doesn't happen.
 
         double total = 0;
-        for (ScalarReading reading : mReadings) {
-            total += reading.getValue();
+        for (int i = 0; i < mSize; i++) {
+            total += getValue(i);
         }
         // Adding mFilter means that variations of less than mFilter won't register as cycles.
-        return total / mReadings.size() + mFilter;
+        return total / mSize + mFilter;
     }
 
     private long getNewestTimestamp() {
-        final ScalarReading mostRecentReading = mReadings.get(mReadings.size() - 1);
-        return mostRecentReading.getCollectedTimeMillis();
+        return getTimestamp(mSize - 1);
     }
 
     public void changeFilter(double newFilter) {
@@ -0,0 +1,194 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import android.support.annotation.IntDef;
+
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Watches whether one sensor's readings are arriving faster than they can be stored and shown,
+ * and if so, decides which readings to keep.
+ *
+ * Every {@link #CHECK_INTERVAL} readings, the writer's backlog and the number of values waiting
+ * for the main thread are compared to thresholds.  While either is too high, the sensor is
+ * overloaded, and its declared policy applies: keep one in N readings for display, or for both
+ * display and storage (doubling N at each check, up to {@link #MAX_KEEP_ONE_IN}), or drop every
+ * reading.  Once both are low again, N is halved at each check until every reading is kept.
+ *
+ * Not thread-safe: call from the thread that delivers the sensor's readings.
+ */
+public class OverloadController {
+    @IntDef({POLICY_DECIMATE_OBSERVATION, POLICY_DECIMATE_ALL, POLICY_DROP})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Policy {}
+
+    /**
+     * Every reading is stored, but only some are shown.
+     */
+    public static final int POLICY_DECIMATE_OBSERVATION =
+            GoosciTrial.SensorOverloadChange.DECIMATE_OBSERVATION;
+
+    /**
+     * Only some readings are stored or shown.
+     */
+    public static final int POLICY_DECIMATE_ALL = GoosciTrial.SensorOverloadChange.DECIMATE_ALL;
+
+    /**
+     * No readings are stored or shown until the writer and main thread catch up.
+     */
+    public static final int POLICY_DROP = GoosciTrial.SensorOverloadChange.DROP;
+
+    /**
+     * Returned from {@link #admit} as flags.
+     */
+    public static final int ADMIT_NONE = 0;
+    public static final int ADMIT_RECORD = 1;
+    public static final int ADMIT_OBSERVE = 2;
+    public static final int ADMIT_ALL = ADMIT_RECORD | ADMIT_OBSERVE;
+
+    public static final int CHECK_INTERVAL = 64;
+    public static final int MAX_KEEP_ONE_IN = 64;
+
+    // Fractions of the writer's queue
+    private static final double WRITE_BACKLOG_OVERLOADED = 0.5;
+    private static final double WRITE_BACKLOG_RECOVERED = 0.125;
+
+    // Values waiting for the main thread; a frame's worth of a fast sensor is a handful.
+    private static final int PENDING_LIVE_VALUES_OVERLOADED = FrameCoalescer.MAX_PENDING / 8;
+    private static final int PENDING_LIVE_VALUES_RECOVERED = FrameCoalescer.MAX_PENDING / 64;
+
+    /**
+     * Where the load comes from.  Both may be called from any thread.
+     */
+    public interface LoadMonitor {
+        /**
+         * @see com.google.android.apps.forscience.whistlepunk.RecordingDataController#getScalarWriteBacklog()
+         */
+        double getWriteBacklog();
+
+        /**
+         * @see FrameCoalescer#getPendingCount()
+         */
+        int getPendingLiveValues();
+    }
+
+    public interface ChangeListener {
+        /**
+         * Called when the number of readings kept changes.
+         *
+         * @param keepOneIn as in {@link #getKeepOneIn()}
+         * @param droppedCount as in {@link #getDroppedCount()}
+         */
+        void onOverloadChange(long timestampMillis, @Policy int policy, int keepOneIn,
+                long droppedCount);
+    }
+
+    private final @Policy int mPolicy;
+    private final LoadMonitor mLoad;
+    private final ChangeListener mListener;
+
+    private int mKeepOneIn = 1;
+    private int mSinceKept = 0;
+    private int mSinceChecked = 0;
+    private long mDroppedCount = 0;
+
+    public OverloadController(@Policy int policy, LoadMonitor load, ChangeListener listener) {
+        mPolicy = policy;
+        mLoad = load;
+        mListener = listener;
+    }
+
+    /**
+     * @return whether {@code value} is one of the {@link Policy} values, for reading them from
+     * sensor options.
+     */
+    public static boolean isPolicy(int value) {
+        return value == POLICY_DECIMATE_OBSERVATION || value == POLICY_DECIMATE_ALL
+                || value == POLICY_DROP;
+    }
+
+    /**
+     * Called for each reading, in order.
+     *
+     * @return {@link #ADMIT_ALL} if the reading should be both stored and shown, otherwise which
+     * of {@link #ADMIT_RECORD} and {@link #ADMIT_OBSERVE} to do, if either.
+     */
+    public int admit(long timestampMillis) {
+        if (++mSinceChecked >= CHECK_INTERVAL) {
+            mSinceChecked = 0;
+            check(timestampMillis);
+        }
+        if (mKeepOneIn == 1) {
+            return ADMIT_ALL;
+        }
+        if (mPolicy == POLICY_DROP) {
+            mDroppedCount++;
+            return ADMIT_NONE;
+        }
+        if (++mSinceKept >= mKeepOneIn) {
+            mSinceKept = 0;
+            return ADMIT_ALL;
+        }
+        if (mPolicy == POLICY_DECIMATE_ALL) {
+            mDroppedCount++;
+            return ADMIT_NONE;
+        }
+        return ADMIT_RECORD;
+    }
+
+    private void check(long timestampMillis) {
+        double backlog = mLoad.getWriteBacklog();
+        int pending = mLoad.getPendingLiveValues();
+        int keepOneIn = mKeepOneIn;
+        if (backlog > WRITE_BACKLOG_OVERLOADED || pending > PENDING_LIVE_VALUES_OVERLOADED) {
+            // Dropping has no degrees: past 1, nothing is kept.
+            keepOneIn = Math.min(keepOneIn * 2, mPolicy == POLICY_DROP ? 2 : MAX_KEEP_ONE_IN);
+        } else if (backlog < WRITE_BACKLOG_RECOVERED && pending < PENDING_LIVE_VALUES_RECOVERED) {
+            keepOneIn = Math.max(keepOneIn / 2, 1);
+        }
+        if (keepOneIn != mKeepOneIn) {
+            mKeepOneIn = keepOneIn;
+            mSinceKept = 0;
+            mListener.onOverloadChange(timestampMillis, mPolicy, getKeepOneIn(), mDroppedCount);
+        }
+    }
+
+    public @Policy int getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * @return 1 if every reading is kept, 0 if none are, otherwise the N of "keep one in N".
+     */
+    public int getKeepOneIn() {
+        if (mKeepOneIn > 1 && mPolicy == POLICY_DROP) {
+            return 0;
+        }
+        return mKeepOneIn;
+    }
+
+    /**
+     * @return how many readings have been neither stored nor shown
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+}
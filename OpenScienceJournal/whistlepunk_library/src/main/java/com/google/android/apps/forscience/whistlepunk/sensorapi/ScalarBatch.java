@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import java.util.Arrays;
+
+/**
+ * A reusable run of one sensor's live values, each with the sensor's stats as of that value, for
+ * delivery to observers several at a time.  Values are kept in primitive arrays, so once the
+ * batch has grown to its working size, adding a value does not allocate.  Not thread-safe.
+ */
+public class ScalarBatch {
+    private long[] mTimestamps;
+    private double[] mValues;
+    private double[] mMins;
+    private double[] mMaxes;
+    private double[] mAverages;
+    private int mSize = 0;
+
+    // Handed to observers that take one value at a time, and overwritten for each value.
+    private final SensorObserver.Data mData = new SensorObserver.Data();
+
+    public ScalarBatch(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        mTimestamps = new long[capacity];
+        mValues = new double[capacity];
+        mMins = new double[capacity];
+        mMaxes = new double[capacity];
+        mAverages = new double[capacity];
+    }
+
+    /**
+     * @param stats the stats to deliver with this value; only those are read from it
+     */
+    public void add(long timestampMillis, double value, SensorObserver.Data stats) {
+        if (mSize == mTimestamps.length) {
+            int capacity = mSize * 2;
+            mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+            mValues = Arrays.copyOf(mValues, capacity);
+            mMins = Arrays.copyOf(mMins, capacity);
+            mMaxes = Arrays.copyOf(mMaxes, capacity);
+            mAverages = Arrays.copyOf(mAverages, capacity);
+        }
+        mTimestamps[mSize] = timestampMillis;
+        mValues[mSize] = value;
+        mMins[mSize] = stats.min;
+        mMaxes[mSize] = stats.max;
+        mAverages[mSize] = stats.average;
+        mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * The arrays returned are only valid until the batch is next changed, and hold
+     * {@link #size()} values; any after that are left over from earlier use.
+     */
+    public long[] getTimestamps() {
+        return mTimestamps;
+    }
+
+    /**
+     * @see #getTimestamps()
+     */
+    public double[] getValues() {
+        return mValues;
+    }
+
+    public long getLatestTimestamp() {
+        return mTimestamps[mSize - 1];
+    }
+
+    /**
+     * @return the latest value, with the stats as of that value.  Only valid until this batch is
+     * next read or changed.
+     */
+    public SensorObserver.Data getLatestData() {
+        return getData(mSize - 1);
+    }
+
+    /**
+     * Passes every value to {@code observer}, as a whole batch if it takes them, or one at a time
+     * if not.  One at a time, every value comes in the same {@link SensorObserver.Data}, so
+     * observers must copy what they need before returning, as
+     * {@link SensorObserver#onNewData} requires.
+     */
+    public void deliverTo(SensorObserver observer) {
+        if (observer instanceof ScalarBatchObserver) {
+            ((ScalarBatchObserver) observer).onNewBatch(this);
+            return;
+        }
+        for (int i = 0; i < mSize; i++) {
+            observer.onNewData(mTimestamps[i], getData(i));
+        }
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    private SensorObserver.Data getData(int index) {
+        mData.setValue(mValues[index]);
+        mData.min = mMins[index];
+        mData.max = mMaxes[index];
+        mData.average = mAverages[index];
+        return mData;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+/**
+ * A {@link SensorObserver} that can take several values at once.  Live values are delivered in
+ * batches of whatever arrived since the last display frame; observers that don't implement this
+ * get them one at a time instead, all in the same frame.
+ *
+ * Assume all calls are on the main thread
+ */
+public interface ScalarBatchObserver extends SensorObserver {
+    /**
+     * Called when new values arrive, in timestamp order.  {@code batch} is reused once this
+     * returns, so copy anything that is needed later.
+     */
+    void onNewBatch(ScalarBatch batch);
+}
@@ -44,7 +44,6 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.SensorTrigger;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartController;
-import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartOptions;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartView;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.UptimeClock;
@@ -54,6 +53,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 
 import java.text.NumberFormat;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executor;
 
@@ -72,8 +72,30 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
     private static final double DENOMINATOR_FOR_RPMS = 60 * 1000.0;
     public static final String BUNDLE_KEY_SENSOR_VALUE = "key_sensor_value";
 
+    /**
+     * Sensor option: the {@link ZoomDecimation} type that recordings' zoom tiers are built with.
+     * Falls back to the sensor's default (see {@link #setZoomTiers}).
+     */
+    public static final String PREFS_KEY_ZOOM_DECIMATION = "zoom_decimation";
+
+    /**
+     * Sensor option: how many readings of each zoom tier go into one run of the tier above.
+     * Falls back to the sensor's default (see {@link #setZoomTiers}).
+     */
+    public static final String PREFS_KEY_ZOOM_LEVEL_BETWEEN_TIERS = "zoom_level_between_tiers";
+
+    /**
+     * Sensor option: the {@link OverloadController.Policy} for readings that arrive faster than
+     * they can be stored and shown.  By default, every reading is stored and only some are shown
+     * ({@link OverloadController#POLICY_DECIMATE_OBSERVATION}).
+     */
+    public static final String PREFS_KEY_OVERLOAD_POLICY = "overload_policy";
+    private static final int DEFAULT_OVERLOAD_POLICY =
+            OverloadController.POLICY_DECIMATE_OBSERVATION;
+
     private final FailureListener mDataFailureListener;
-    private final int mZoomLevelBetweenTiers;
+    private int mZoomLevelBetweenTiers;
+    private ZoomDecimation mZoomDecimation = ZoomDecimation.MIN_MAX;
 
     private final long mDefaultGraphRange;
     private Executor mUiThreadExecutor;
@@ -149,7 +171,7 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
             @Override
             public void onNewData(long timestamp, Data bundle) {
                 double value = bundle.getValue();
-                chartController.addPoint(new ChartData.DataPoint(timestamp, value));
+                chartController.addPoint(timestamp, value);
                 if (mAudioEnabled) {
                     audioGenerator.addData(timestamp, value, chartController.getRenderedYMin(),
                             chartController.getRenderedYMax());
@@ -157,6 +179,17 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
                 statsDisplay.updateFromBundle(bundle);
             }
 
+            @Override
+            public void onNewBatch(ScalarBatch batch) {
+                chartController.addPoints(batch.getTimestamps(), batch.getValues(),
+                        batch.size());
+                if (mAudioEnabled) {
+                    audioGenerator.addData(batch.getTimestamps(), batch.getValues(), batch.size(),
+                            chartController.getRenderedYMin(), chartController.getRenderedYMax());
+                }
+                statsDisplay.updateFromBatch(batch);
+            }
+
             @Override
             public void onRecordingStateChange(boolean isRecording, long recordingStart) {
                 chartController.setRecordingStartTime(recordingStart);
@@ -343,6 +376,20 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
         return bundle.getValue();
     }
 
+    /**
+     * Sets how recordings from this sensor are summarized into zoom tiers by default: each tier
+     * holds 1/{@code zoomLevelBetweenTiers} as many readings as the one below, chosen by
+     * {@code decimation}.  Applies to recorders created after this call, unless their options
+     * set {@link #PREFS_KEY_ZOOM_DECIMATION} or {@link #PREFS_KEY_ZOOM_LEVEL_BETWEEN_TIERS}; each
+     * trial's stats remember what it was recorded with.
+     */
+    public void setZoomTiers(ZoomDecimation decimation, int zoomLevelBetweenTiers) {
+        Preconditions.checkArgument(zoomLevelBetweenTiers > 1,
+                "Each zoom tier must be smaller than the one below");
+        mZoomDecimation = Preconditions.checkNotNull(decimation);
+        mZoomLevelBetweenTiers = zoomLevelBetweenTiers;
+    }
+
     public static boolean hasValue(SensorObserver.Data bundle) {
         return bundle.hasValidValue();
     }
@@ -355,13 +402,11 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
         final RecordingDataController dataController = Preconditions.checkNotNull(
                 environment.getDataController());
 
-        // We need twice the buffer as the zoom level, because in this implementation of zoom, we
-        // decided to store min and max data points at each level.
-        // TODO: make this configurable?
-        int zoomBufferSize = mZoomLevelBetweenTiers * 2;
-        final ZoomRecorder zoomRecorder = new ZoomRecorder(getId(), zoomBufferSize, 1);
-        final ScalarStreamConsumer consumer = new ScalarStreamConsumer(statsAccumulator, observer,
-                dataController, zoomRecorder);
+        final ScalarStreamConsumer consumer = new ScalarStreamConsumer(statsAccumulator,
+                new FrameCoalescer(observer, mUiThreadExecutor,
+                        environment.getLiveDataScheduler()), dataController, mZoomDecimation,
+                mZoomLevelBetweenTiers, DEFAULT_OVERLOAD_POLICY,
+                environment.getDerivedSensorEngine());
         final SensorRecorder recorder = makeScalarControl(consumer, environment, context, listener);
         return new DelegatingSensorRecorder(recorder) {
             private String mRunId;
@@ -378,11 +423,16 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
                 dataController.clearDataErrorListenerForSensor(getId());
             }
 
+            @Override
+            public void applyOptions(ReadableSensorOptions settings) {
+                super.applyOptions(settings);
+                consumer.applyOptions(settings);
+            }
+
             @Override
             public void startRecording(String runId) {
                 mRunId = runId;
                 statsAccumulator.clearStats();
-                zoomRecorder.clear();
                 consumer.startRecording();
                 super.startRecording(runId);
             }
@@ -393,11 +443,14 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
 
                 TrialStats trialStats = statsAccumulator.makeSaveableStats();
                 trialStats.putStat(GoosciTrial.SensorStat.ZOOM_PRESENTER_TIER_COUNT,
-                        zoomRecorder.countTiers());
+                        consumer.getZoomRecorder().countTiers());
                 trialStats.putStat(GoosciTrial.SensorStat.ZOOM_PRESENTER_ZOOM_LEVEL_BETWEEN_TIERS,
-                        mZoomLevelBetweenTiers);
+                        consumer.getZoomLevelBetweenTiers());
+                trialStats.putStat(GoosciTrial.SensorStat.ZOOM_PRESENTER_DECIMATION,
+                        consumer.getZoomDecimation().getType());
                 if (trialToUpdate != null) {
                     trialToUpdate.setStats(trialStats);
+                    trialToUpdate.addOverloadChanges(consumer.getOverloadChanges());
                 }
                 consumer.stopRecording();
                 statsAccumulator.clearStats();
@@ -451,34 +504,186 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
     protected abstract SensorRecorder makeScalarControl(StreamConsumer c,
             SensorEnvironment environment, Context context, SensorStatusListener listener);
 
-    private class ScalarStreamConsumer implements StreamConsumer {
+    private class ScalarStreamConsumer implements StreamConsumer,
+            OverloadController.ChangeListener {
         private static final int NO_DATA_RECORDED = -1;
 
         private final StatsAccumulator mStatsAccumulator;
         private final RecordingDataController mDataController;
-        private final ZoomRecorder mZoomRecorder;
+        // Only changed while not recording.
+        private ZoomDecimation mZoomDecimation;
+        private int mZoomLevelBetweenTiers;
+        private ZoomRecorder mZoomRecorder;
         private boolean mIsRecording = false;
         private long mLastDataTimestampMillis = NO_DATA_RECORDED;
         private long mTimestampBeforeRecordingStart = NO_DATA_RECORDED;
-        private SensorMessage.Pool mMessagePool;
+        private final FrameCoalescer mLiveData;
+        private final DerivedSensorEngine mDerivedSensors;
+        // Reused to carry the stats as of each value.
+        private final SensorObserver.Data mStats = new SensorObserver.Data();
+
+        // Replaced only while not recording.
+        private volatile OverloadController mOverload;
+        // Changes since recording started, guarded by itself.
+        private final List<GoosciTrial.SensorOverloadChange> mOverloadChanges =
+                new ArrayList<>();
+        private long mDroppedBeforeRecordingStart = 0;
+        // Readings the writer had no room for.  Only changed on the thread that adds data.
+        private volatile long mWriterDroppedCount = 0;
+        private long mWriterDroppedBeforeRecordingStart = 0;
+        private long mLiveDroppedBeforeRecordingStart = 0;
 
         public ScalarStreamConsumer(StatsAccumulator statsAccumulator,
-                SensorObserver observer, RecordingDataController dataController,
-                ZoomRecorder zoomRecorder) {
+                final FrameCoalescer liveData, final RecordingDataController dataController,
+                ZoomDecimation zoomDecimation, int zoomLevelBetweenTiers,
+                @OverloadController.Policy int overloadPolicy,
+                DerivedSensorEngine derivedSensors) {
             mStatsAccumulator = statsAccumulator;
+            mDerivedSensors = derivedSensors;
             mDataController = dataController;
-            mZoomRecorder = zoomRecorder;
-            mMessagePool = new SensorMessage.Pool(observer);
+            setZoomTiers(zoomDecimation, zoomLevelBetweenTiers);
+            mLiveData = liveData;
+            setOverloadPolicy(overloadPolicy);
+        }
+
+        private void setOverloadPolicy(@OverloadController.Policy int policy) {
+            mOverload = new OverloadController(policy, new OverloadController.LoadMonitor() {
+                @Override
+                public double getWriteBacklog() {
+                    return mDataController.getScalarWriteBacklog();
+                }
+
+                @Override
+                public int getPendingLiveValues() {
+                    return mLiveData.getPendingCount();
+                }
+            }, this);
+        }
+
+        /**
+         * Takes the zoom tier and overload settings from {@code options}, where they are set.
+         * Ignored while recording, so that each trial is recorded with one setting throughout.
+         */
+        public void applyOptions(ReadableSensorOptions options) {
+            if (mIsRecording) {
+                return;
+            }
+            int zoomLevelBetweenTiers = options.getInt(PREFS_KEY_ZOOM_LEVEL_BETWEEN_TIERS,
+                    ScalarSensor.this.mZoomLevelBetweenTiers);
+            if (zoomLevelBetweenTiers <= 1) {
+                if (Log.isLoggable(TAG, Log.WARN)) {
+                    Log.w(TAG, "Ignoring zoom level " + zoomLevelBetweenTiers + " for " + getId());
+                }
+                zoomLevelBetweenTiers = ScalarSensor.this.mZoomLevelBetweenTiers;
+            }
+            setZoomTiers(ZoomDecimation.forType(options.getInt(PREFS_KEY_ZOOM_DECIMATION,
+                    ScalarSensor.this.mZoomDecimation.getType())), zoomLevelBetweenTiers);
+            int overloadPolicy =
+                    options.getInt(PREFS_KEY_OVERLOAD_POLICY, DEFAULT_OVERLOAD_POLICY);
+            if (overloadPolicy != mOverload.getPolicy()) {
+                setOverloadPolicy(OverloadController.isPolicy(overloadPolicy) ? overloadPolicy
+                        : DEFAULT_OVERLOAD_POLICY);
+            }
+        }
+
+        private void setZoomTiers(ZoomDecimation decimation, int zoomLevelBetweenTiers) {
+            mZoomDecimation = decimation;
+            mZoomLevelBetweenTiers = zoomLevelBetweenTiers;
+            mZoomRecorder = new ZoomRecorder(getId(), decimation, zoomLevelBetweenTiers, 1);
+        }
+
+        public ZoomDecimation getZoomDecimation() {
+            return mZoomDecimation;
+        }
+
+        public int getZoomLevelBetweenTiers() {
+            return mZoomLevelBetweenTiers;
+        }
+
+        public ZoomRecorder getZoomRecorder() {
+            return mZoomRecorder;
         }
 
         public void startRecording() {
+            mZoomRecorder.clear();
+            synchronized (mOverloadChanges) {
+                mOverloadChanges.clear();
+                mDroppedBeforeRecordingStart = mOverload.getDroppedCount();
+                mWriterDroppedBeforeRecordingStart = mWriterDroppedCount;
+                mLiveDroppedBeforeRecordingStart = mLiveData.getDroppedCount();
+                if (mOverload.getKeepOneIn() != 1) {
+                    // Already overloaded, so the trial starts thinned out.
+                    addOverloadChange(mLastDataTimestampMillis, mOverload.getPolicy(),
+                            mOverload.getKeepOneIn(), mOverload.getDroppedCount());
+                }
+            }
             mIsRecording = true;
             mTimestampBeforeRecordingStart = mLastDataTimestampMillis;
         }
 
+        @Override
+        public void onOverloadChange(long timestampMillis, int policy, int keepOneIn,
+                long droppedCount) {
+            if (Log.isLoggable(TAG, Log.INFO)) {
+                Log.i(TAG, getId() + " keeping one in " + keepOneIn + " readings; "
+                        + droppedCount + " dropped so far");
+            }
+            if (mIsRecording) {
+                synchronized (mOverloadChanges) {
+                    addOverloadChange(timestampMillis, policy, keepOneIn, droppedCount);
+                }
+            }
+        }
+
+        private void addOverloadChange(long timestampMillis, int policy, int keepOneIn,
+                long droppedCount) {
+            mOverloadChanges.add(makeOverloadChange(timestampMillis, policy, keepOneIn,
+                    droppedCount));
+        }
+
+        private GoosciTrial.SensorOverloadChange makeOverloadChange(long timestampMillis,
+                int policy, int keepOneIn, long droppedCount) {
+            GoosciTrial.SensorOverloadChange change = new GoosciTrial.SensorOverloadChange();
+            change.sensorId = getId();
+            change.timestampMs = timestampMillis;
+            change.policy = policy;
+            change.keepOneIn = keepOneIn;
+            change.writerDroppedCount = mWriterDroppedCount - mWriterDroppedBeforeRecordingStart;
+            change.droppedCount = droppedCount - mDroppedBeforeRecordingStart
+                    + change.writerDroppedCount;
+            change.liveDroppedCount =
+                    mLiveData.getDroppedCount() - mLiveDroppedBeforeRecordingStart;
+            return change;
+        }
+
+        /**
+         * @return each change in how readings were thinned out since recording started, and if
+         * they still are, or any were dropped since the last change, how many have been dropped
+         * by now.
+         */
+        public List<GoosciTrial.SensorOverloadChange> getOverloadChanges() {
+            synchronized (mOverloadChanges) {
+                List<GoosciTrial.SensorOverloadChange> changes = new ArrayList<>(mOverloadChanges);
+                GoosciTrial.SensorOverloadChange now = makeOverloadChange(
+                        mLastDataTimestampMillis, mOverload.getPolicy(), mOverload.getKeepOneIn(),
+                        mOverload.getDroppedCount());
+                GoosciTrial.SensorOverloadChange last =
+                        changes.isEmpty() ? null : changes.get(changes.size() - 1);
+                // The writer and the display drop readings without changing the policy, so only
+                // the totals show them.
+                if (now.keepOneIn != 1 || (last == null ? now.droppedCount > 0
+                        || now.liveDroppedCount > 0 : now.droppedCount > last.droppedCount
+                        || now.liveDroppedCount > last.liveDroppedCount)) {
+                    changes.add(now);
+                }
+                return changes;
+            }
+        }
+
         public void stopRecording() {
             mIsRecording = false;
             mZoomRecorder.flushAllTiers(mDataController);
+            mDataController.flushScalarReadings();
         }
 
         public boolean maintainsTimeSeries(final long timestampMillis) {
@@ -495,30 +700,37 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
                 return false;
             }
             value = maybeFilter(timestampMillis, value);
-            observeData(timestampMillis, value);
-            recordData(timestampMillis, value);
             mLastDataTimestampMillis = timestampMillis;
+            // Derived sensors see every value, and thin out their own values if they must.
+            mDerivedSensors.onSample(getId(), timestampMillis, value);
+            int admitted = mOverload.admit(timestampMillis);
+            if (admitted == OverloadController.ADMIT_NONE) {
+                // Thinned out so that the writer and the display can catch up.
+                return true;
+            }
+            // Stats cover every reading that is stored, whether or not it is shown.
+            mStatsAccumulator.updateRecordingStreamStats(timestampMillis, value);
+            if ((admitted & OverloadController.ADMIT_OBSERVE) != 0) {
+                observeData(timestampMillis, value);
+            }
+            if ((admitted & OverloadController.ADMIT_RECORD) != 0) {
+                recordData(timestampMillis, value);
+            }
             return true;
         }
 
         public void observeData(final long timestampMillis, double value) {
-            // Each call to obtain is guaranteed to retrieve a currently-unused message...
-            SensorMessage message = mMessagePool.obtain();
-
-            // ...which is set up with the correct values here...
-            message.setTimestamp(timestampMillis);
-            message.getData().setValue(value);
-            mStatsAccumulator.updateRecordingStreamStats(timestampMillis, value);
-            mStatsAccumulator.addStatsToBundle(message.getData());
-
-            // ..and will be cleared and released back to the message pool when getRunnable is run.
-            runOnMainThread(message.getRunnable());
+            mStatsAccumulator.addStatsToBundle(mStats);
+            // Delivered with whatever else arrives before the next frame.
+            mLiveData.add(timestampMillis, value, mStats);
         }
 
         public void recordData(long timestampMillis, double value) {
             if (mIsRecording) {
                 mZoomRecorder.addData(timestampMillis, value, mDataController);
-                mDataController.addScalarReading(getId(), 0, timestampMillis, value);
+                if (!mDataController.addScalarReading(getId(), 0, timestampMillis, value)) {
+                    mWriterDroppedCount++;
+                }
             }
         }
 
@@ -42,4 +42,14 @@ public interface SensorEnvironment {
     Clock getDefaultClock();
 
     SensorHistoryStorage getSensorHistoryStorage();
+
+    /**
+     * @return decides how often live values are delivered to observers on the main thread
+     */
+    FrameCoalescer.FrameScheduler getLiveDataScheduler();
+
+    /**
+     * @return computes derived sensors from the samples of every sensor using this environment
+     */
+    DerivedSensorEngine getDerivedSensorEngine();
 }
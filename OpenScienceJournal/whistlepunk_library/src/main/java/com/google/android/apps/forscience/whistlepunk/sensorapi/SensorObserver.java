@@ -27,9 +27,10 @@ import com.google.android.apps.forscience.whistlepunk.StatsAccumulator;
  */
 public interface SensorObserver {
     /**
-     * Called when new data arrives.  Extender must copy or extract any values from {@code data}
-     * that it wishes to use after returning; caller can re-use the same reference to reduce
-     * allocations.
+     * Called when new data arrives.  {@code data} is only valid until this returns: the caller
+     * may overwrite it with the next value straight away, as {@link ScalarBatch#deliverTo} does
+     * for each value of a batch.  Extender must copy or extract any values it wishes to use after
+     * returning, and must not hold on to {@code data} or pass it to another thread.
      */
     void onNewData(long timestamp, Data data);
 
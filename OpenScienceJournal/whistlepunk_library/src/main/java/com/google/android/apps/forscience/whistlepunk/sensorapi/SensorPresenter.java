@@ -34,9 +34,10 @@ import java.util.List;
  * on this SensorPresenter.  Implementations should respond to these events by updating the
  * capture view, if applicable.
  * <p/>
- * All calls are on the main thread.
+ * All calls are on the main thread.  Live values usually arrive a frame at a time through
+ * {@link #onNewBatch}.
  */
-public interface SensorPresenter extends SensorObserver {
+public interface SensorPresenter extends ScalarBatchObserver {
     /**
      * Sub-presenter based around allowing the user to change options, and applying the
      * view-specific options to the current data display
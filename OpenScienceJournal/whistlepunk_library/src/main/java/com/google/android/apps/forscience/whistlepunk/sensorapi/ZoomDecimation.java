@@ -0,0 +1,414 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * How {@link ZoomRecorder} summarizes each run of readings in one tier as a few readings in the
+ * next tier up.  Each has a stable type, saved with a trial's stats, so that the trial's tiers can
+ * still be read correctly if the sensor's choice changes later.
+ */
+public abstract class ZoomDecimation {
+    @IntDef({TYPE_MIN_MAX, TYPE_M4, TYPE_LARGEST_TRIANGLE, TYPE_AVERAGE})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Type {}
+
+    // These are stored in trial stats: don't renumber them.
+    public static final int TYPE_MIN_MAX = 0;
+    public static final int TYPE_M4 = 1;
+    public static final int TYPE_LARGEST_TRIANGLE = 2;
+    public static final int TYPE_AVERAGE = 3;
+
+    /**
+     * The lowest and highest reading of each run.  Keeps every peak, but loses where in the run
+     * the signal started and ended.
+     */
+    public static final ZoomDecimation MIN_MAX = new ZoomDecimation(TYPE_MIN_MAX, 2) {
+        @Override
+        Summarizer newSummarizer(int runLength) {
+            return new MinMaxSummarizer(runLength);
+        }
+    };
+
+    /**
+     * The first, lowest, highest and last reading of each run, so that lines drawn between runs
+     * join up where the signal actually was.
+     */
+    public static final ZoomDecimation M4 = new ZoomDecimation(TYPE_M4, 4) {
+        @Override
+        Summarizer newSummarizer(int runLength) {
+            return new M4Summarizer(runLength);
+        }
+    };
+
+    /**
+     * One reading per run, chosen to make the largest triangle with the reading chosen from the
+     * run before and the average of the run after ("largest-triangle-three-buckets").  Keeps the
+     * visual shape of the signal with half the readings of {@link #MIN_MAX}, but can miss
+     * narrow peaks.
+     */
+    public static final ZoomDecimation LARGEST_TRIANGLE =
+            new ZoomDecimation(TYPE_LARGEST_TRIANGLE, 1) {
+                @Override
+                Summarizer newSummarizer(int runLength) {
+                    return new LargestTriangleSummarizer(runLength);
+                }
+            };
+
+    /**
+     * The average of each run, at its average time.  Smooths away noise, and peaks with it.
+     */
+    public static final ZoomDecimation AVERAGE = new ZoomDecimation(TYPE_AVERAGE, 1) {
+        @Override
+        Summarizer newSummarizer(int runLength) {
+            return new AverageSummarizer(runLength);
+        }
+    };
+
+    /**
+     * @return the decimation saved as {@code type}, or {@link #MIN_MAX} for types that are
+     * unknown (including trials recorded before the type was saved at all).
+     */
+    public static ZoomDecimation forType(int type) {
+        switch (type) {
+            case TYPE_M4:
+                return M4;
+            case TYPE_LARGEST_TRIANGLE:
+                return LARGEST_TRIANGLE;
+            case TYPE_AVERAGE:
+                return AVERAGE;
+            default:
+                return MIN_MAX;
+        }
+    }
+
+    private final int mType;
+    private final int mReadingsPerRun;
+
+    private ZoomDecimation(@Type int type, int readingsPerRun) {
+        mType = type;
+        mReadingsPerRun = readingsPerRun;
+    }
+
+    public @Type int getType() {
+        return mType;
+    }
+
+    /**
+     * @return how many readings in a tier summarize one run of the tier below.
+     */
+    public int getReadingsPerRun() {
+        return mReadingsPerRun;
+    }
+
+    /**
+     * @return how long a run needs to be for each tier to hold 1/{@code zoomLevelBetweenTiers}
+     * as many readings as the tier below.
+     */
+    public int getRunLength(int zoomLevelBetweenTiers) {
+        return zoomLevelBetweenTiers * mReadingsPerRun;
+    }
+
+    abstract Summarizer newSummarizer(int runLength);
+
+    interface Output {
+        void addReading(long timestampMillis, double value);
+    }
+
+    /**
+     * Summarizes the readings of one tier as they arrive, writing summary readings to
+     * {@link Output} as each run is complete.  Readings are assumed to be in timestamp order.
+     */
+    abstract static class Summarizer {
+        abstract void add(long timestampMillis, double value, Output output);
+
+        /**
+         * Summarizes whatever readings have not been summarized yet, and starts over.
+         */
+        abstract void flush(Output output);
+    }
+
+    private static class MinMaxSummarizer extends Summarizer {
+        private final int mRunLength;
+        private int mSeenThisRun;
+        private long mTimestampOfMinSeen;
+        private double mValueOfMinSeen;
+        private long mTimestampOfMaxSeen;
+        private double mValueOfMaxSeen;
+
+        MinMaxSummarizer(int runLength) {
+            mRunLength = runLength;
+            reset();
+        }
+
+        private void reset() {
+            mSeenThisRun = 0;
+            mValueOfMinSeen = Double.MAX_VALUE;
+            mValueOfMaxSeen = -Double.MAX_VALUE;
+            mTimestampOfMaxSeen = mTimestampOfMinSeen = -1;
+        }
+
+        @Override
+        void add(long timestampMillis, double value, Output output) {
+            mSeenThisRun++;
+            if (value > mValueOfMaxSeen) {
+                mValueOfMaxSeen = value;
+                mTimestampOfMaxSeen = timestampMillis;
+            }
+            if (value < mValueOfMinSeen) {
+                mValueOfMinSeen = value;
+                mTimestampOfMinSeen = timestampMillis;
+            }
+            if (mSeenThisRun == mRunLength) {
+                flush(output);
+            }
+        }
+
+        @Override
+        void flush(Output output) {
+            if (mSeenThisRun > 0) {
+                // In time order, since each tier's readings are kept in memory as they are
+                // added (see LiveTailCache), and the tier above summarizes them as a stream.
+                if (mTimestampOfMinSeen <= mTimestampOfMaxSeen) {
+                    output.addReading(mTimestampOfMinSeen, mValueOfMinSeen);
+                    output.addReading(mTimestampOfMaxSeen, mValueOfMaxSeen);
+                } else {
+                    output.addReading(mTimestampOfMaxSeen, mValueOfMaxSeen);
+                    output.addReading(mTimestampOfMinSeen, mValueOfMinSeen);
+                }
+                reset();
+            }
+        }
+    }
+
+    private static class M4Summarizer extends Summarizer {
+        private final int mRunLength;
+        private int mSeenThisRun = 0;
+        private long mFirstTimestamp;
+        private double mFirstValue;
+        private long mMinTimestamp;
+        private double mMinValue;
+        private long mMaxTimestamp;
+        private double mMaxValue;
+        private long mLastTimestamp;
+        private double mLastValue;
+
+        M4Summarizer(int runLength) {
+            mRunLength = runLength;
+        }
+
+        @Override
+        void add(long timestampMillis, double value, Output output) {
+            if (mSeenThisRun == 0) {
+                mFirstTimestamp = mMinTimestamp = mMaxTimestamp = timestampMillis;
+                mFirstValue = mMinValue = mMaxValue = value;
+            } else if (value < mMinValue) {
+                mMinTimestamp = timestampMillis;
+                mMinValue = value;
+            } else if (value > mMaxValue) {
+                mMaxTimestamp = timestampMillis;
+                mMaxValue = value;
+            }
+            mLastTimestamp = timestampMillis;
+            mLastValue = value;
+            mSeenThisRun++;
+            if (mSeenThisRun == mRunLength) {
+                flush(output);
+            }
+        }
+
+        @Override
+        void flush(Output output) {
+            if (mSeenThisRun == 0) {
+                return;
+            }
+            // In timestamp order, without writing any reading twice.
+            output.addReading(mFirstTimestamp, mFirstValue);
+            long written = mFirstTimestamp;
+            if (mMinTimestamp <= mMaxTimestamp) {
+                written = addIfLater(output, written, mMinTimestamp, mMinValue);
+                written = addIfLater(output, written, mMaxTimestamp, mMaxValue);
+            } else {
+                written = addIfLater(output, written, mMaxTimestamp, mMaxValue);
+                written = addIfLater(output, written, mMinTimestamp, mMinValue);
+            }
+            addIfLater(output, written, mLastTimestamp, mLastValue);
+            mSeenThisRun = 0;
+        }
+
+        private static long addIfLater(Output output, long written, long timestamp,
+                double value) {
+            if (timestamp > written) {
+                output.addReading(timestamp, value);
+                return timestamp;
+            }
+            return written;
+        }
+    }
+
+    /**
+     * The largest-triangle choice for a run needs the average of the run after it, so each run is
+     * held until the next one is complete.
+     */
+    private static class LargestTriangleSummarizer extends Summarizer {
+        private final int mRunLength;
+        private long[] mPendingTimestamps;
+        private double[] mPendingValues;
+        private int mPendingCount = 0;
+        private long[] mFillingTimestamps;
+        private double[] mFillingValues;
+        private int mFillingCount = 0;
+
+        private boolean mHasChosen = false;
+        private long mChosenTimestamp;
+        private double mChosenValue;
+
+        LargestTriangleSummarizer(int runLength) {
+            mRunLength = runLength;
+            mPendingTimestamps = new long[runLength];
+            mPendingValues = new double[runLength];
+            mFillingTimestamps = new long[runLength];
+            mFillingValues = new double[runLength];
+        }
+
+        @Override
+        void add(long timestampMillis, double value, Output output) {
+            mFillingTimestamps[mFillingCount] = timestampMillis;
+            mFillingValues[mFillingCount] = value;
+            mFillingCount++;
+            if (mFillingCount < mRunLength) {
+                return;
+            }
+            if (mPendingCount > 0) {
+                choosePending(averageFillingTimestamp(), averageFillingValue(), output);
+            }
+
+            long[] timestamps = mPendingTimestamps;
+            double[] values = mPendingValues;
+            mPendingTimestamps = mFillingTimestamps;
+            mPendingValues = mFillingValues;
+            mPendingCount = mFillingCount;
+            mFillingTimestamps = timestamps;
+            mFillingValues = values;
+            mFillingCount = 0;
+        }
+
+        @Override
+        void flush(Output output) {
+            if (mPendingCount > 0) {
+                if (mFillingCount > 0) {
+                    choosePending(averageFillingTimestamp(), averageFillingValue(), output);
+                } else {
+                    choosePending(mPendingTimestamps[mPendingCount - 1],
+                            mPendingValues[mPendingCount - 1], output);
+                }
+            }
+            if (mFillingCount > 0) {
+                // Like the end of a whole series, a partial final run is represented by its end.
+                output.addReading(mFillingTimestamps[mFillingCount - 1],
+                        mFillingValues[mFillingCount - 1]);
+            }
+            mPendingCount = 0;
+            mFillingCount = 0;
+            mHasChosen = false;
+        }
+
+        private void choosePending(double nextTimestamp, double nextValue, Output output) {
+            long anchorTimestamp = mHasChosen ? mChosenTimestamp : mPendingTimestamps[0];
+            double anchorValue = mHasChosen ? mChosenValue : mPendingValues[0];
+            // Relative to the anchor, to keep precision with epoch-millisecond timestamps.
+            double nextX = nextTimestamp - anchorTimestamp;
+            double nextY = nextValue - anchorValue;
+
+            int chosen = 0;
+            double largestArea = -1;
+            for (int i = 0; i < mPendingCount; i++) {
+                double x = mPendingTimestamps[i] - anchorTimestamp;
+                double y = mPendingValues[i] - anchorValue;
+                // Twice the triangle's area, which ranks them just as well.
+                double area = Math.abs(nextX * y - x * nextY);
+                if (area > largestArea) {
+                    largestArea = area;
+                    chosen = i;
+                }
+            }
+            mChosenTimestamp = mPendingTimestamps[chosen];
+            mChosenValue = mPendingValues[chosen];
+            mHasChosen = true;
+            output.addReading(mChosenTimestamp, mChosenValue);
+        }
+
+        private double averageFillingTimestamp() {
+            // Relative to the first, so that the sum can't overflow.
+            long first = mFillingTimestamps[0];
+            double sum = 0;
+            for (int i = 0; i < mFillingCount; i++) {
+                sum += mFillingTimestamps[i] - first;
+            }
+            return first + sum / mFillingCount;
+        }
+
+        private double averageFillingValue() {
+            double sum = 0;
+            for (int i = 0; i < mFillingCount; i++) {
+                sum += mFillingValues[i];
+            }
+            return sum / mFillingCount;
+        }
+    }
+
+    private static class AverageSummarizer extends Summarizer {
+        private final int mRunLength;
+        private int mSeenThisRun = 0;
+        private long mFirstTimestamp;
+        private long mTimestampOffsetSum;
+        private double mValueSum;
+
+        AverageSummarizer(int runLength) {
+            mRunLength = runLength;
+        }
+
+        @Override
+        void add(long timestampMillis, double value, Output output) {
+            if (mSeenThisRun == 0) {
+                mFirstTimestamp = timestampMillis;
+                mTimestampOffsetSum = 0;
+                mValueSum = 0;
+            }
+            mTimestampOffsetSum += timestampMillis - mFirstTimestamp;
+            mValueSum += value;
+            mSeenThisRun++;
+            if (mSeenThisRun == mRunLength) {
+                flush(output);
+            }
+        }
+
+        @Override
+        void flush(Output output) {
+            if (mSeenThisRun == 0) {
+                return;
+            }
+            output.addReading(mFirstTimestamp + mTimestampOffsetSum / mSeenThisRun,
+                    mValueSum / mSeenThisRun);
+            mSeenThisRun = 0;
+        }
+    }
+}
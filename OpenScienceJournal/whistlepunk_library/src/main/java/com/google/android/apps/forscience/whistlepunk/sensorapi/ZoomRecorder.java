@@ -19,8 +19,10 @@ package com.google.android.apps.forscience.whistlepunk.sensorapi;
 import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
 
 /**
- * Stores data at multiple granularities.  For each run of N*2 data points in tier X, there are 2
- * data points in tier X+1, and those are the max and min data points over that run.
+ * Stores data at multiple granularities.  For each run of readings in tier X, a few readings are
+ * stored in tier X+1, chosen by a {@link ZoomDecimation}.  By default, for each run of N*2 data
+ * points in tier X, there are 2 data points in tier X+1, and those are the max and min data
+ * points over that run.
  *
  * This seems to allow us to capture the general shape of the graph better than trying to, for
  * example, synthesize an "average" data point for the run.
@@ -38,66 +40,57 @@ public class ZoomRecorder {
      */
     public static final String STATS_KEY_ZOOM_LEVEL_BETWEEN_TIERS = "stats_zoom_level";
 
+    /**
+     * Statistics key for the {@link ZoomDecimation} type used to build the tiers.
+     */
+    public static final String STATS_KEY_DECIMATION = "stats_zoom_decimation";
+
     private final String mSensorId;
-    private final int mZoomBufferSize;
+    private final ZoomDecimation mDecimation;
+    private final int mZoomLevelBetweenTiers;
     private final int mTier;
 
-    private int mSeenThisPass = 0;
-    private long mTimestampOfMinSeen;
-    private double mValueOfMinSeen;
-    private long mTimestampOfMaxSeen;
-    private double mValueOfMaxSeen;
+    private ZoomDecimation.Summarizer mSummarizer;
     private ZoomRecorder mNextTierUp = null;
 
+    // Only set while adding or flushing, for mOutput
+    private RecordingDataController mDataController;
+    private final ZoomDecimation.Output mOutput = this::addReadingAtThisTier;
+
     /**
-     * @param zoomBufferSize how many data points we can store before sending summary data points to
-     *                       the next tier up.  Note that since we send 2 summary points per buffer,
-     *                       (max and min), each tier will hold (2 / zoomBufferSize) as many data
-     *                       points as the next tier down.
+     * @param zoomLevelBetweenTiers each tier will hold (1 / zoomLevelBetweenTiers) as many data
+     *                              points as the next tier down.
      */
-    public ZoomRecorder(String id, int zoomBufferSize, int tier) {
+    public ZoomRecorder(String id, ZoomDecimation decimation, int zoomLevelBetweenTiers,
+            int tier) {
         mSensorId = id;
+        mDecimation = decimation;
+        mZoomLevelBetweenTiers = zoomLevelBetweenTiers;
         mTier = tier;
-        mZoomBufferSize = zoomBufferSize;
-        resetBuffer();
+        mSummarizer = decimation.newSummarizer(decimation.getRunLength(zoomLevelBetweenTiers));
     }
 
     public void clear() {
         mNextTierUp = null;
-        resetBuffer();
-    }
-
-    private void resetBuffer() {
-        mSeenThisPass = 0;
-        mValueOfMinSeen = Double.MAX_VALUE;
-        mValueOfMaxSeen = -Double.MAX_VALUE;
-        mTimestampOfMaxSeen = mTimestampOfMinSeen = -1;
+        mSummarizer = mDecimation.newSummarizer(mDecimation.getRunLength(mZoomLevelBetweenTiers));
     }
 
     public void addData(long timestampMillis, double value, RecordingDataController dc) {
-        mSeenThisPass++;
-        if (value > mValueOfMaxSeen) {
-            mValueOfMaxSeen = value;
-            mTimestampOfMaxSeen = timestampMillis;
-        }
-        if (value < mValueOfMinSeen) {
-            mValueOfMinSeen = value;
-            mTimestampOfMinSeen = timestampMillis;
-        }
-        if (mSeenThisPass == mZoomBufferSize) {
-            flush(dc);
-        }
+        mDataController = dc;
+        mSummarizer.add(timestampMillis, value, mOutput);
+        mDataController = null;
     }
 
-    private void addReadingAtThisTier(RecordingDataController dc, long timestamp,
-            double value) {
+    private void addReadingAtThisTier(long timestamp, double value) {
+        RecordingDataController dc = mDataController;
         dc.addScalarReading(mSensorId, mTier, timestamp, value);
         getNextTierUp().addData(timestamp, value, dc);
     }
 
     private ZoomRecorder getNextTierUp() {
         if (mNextTierUp == null) {
-            mNextTierUp = new ZoomRecorder(mSensorId, mZoomBufferSize, mTier + 1);
+            mNextTierUp = new ZoomRecorder(mSensorId, mDecimation, mZoomLevelBetweenTiers,
+                    mTier + 1);
         }
         return mNextTierUp;
     }
@@ -121,11 +114,8 @@ public class ZoomRecorder {
     }
 
     public void flush(RecordingDataController dc) {
-        if (mSeenThisPass > 0) {
-            // order of adding data to DB doesn't matter
-            addReadingAtThisTier(dc, mTimestampOfMinSeen, mValueOfMinSeen);
-            addReadingAtThisTier(dc, mTimestampOfMaxSeen, mValueOfMaxSeen);
-            resetBuffer();
-        }
+        mDataController = dc;
+        mSummarizer.flush(mOutput);
+        mDataController = null;
     }
 }
@@ -0,0 +1,344 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import android.util.Log;
+
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.javalib.Scheduler;
+import com.google.android.apps.forscience.whistlepunk.Clock;
+import com.google.common.base.Preconditions;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects scalar readings from any thread, and writes them to a {@link SensorDatabase} on the
+ * sensor data thread in batches, each batch in a single transaction.
+ *
+ * A write is scheduled when the pending batch reaches {@code maxBatchSize} readings, when its
+ * oldest reading was added {@code maxBatchAgeMillis} ago, or when {@link #flush()} is called (for
+ * example, when recording stops).  The age is checked as readings are added, and by a timer
+ * started with each batch, so that a sensor that goes quiet doesn't leave its last readings
+ * waiting.  Code running on the sensor data thread that reads from the
+ * database should call {@link #writePendingReadings()} first, so that it sees every reading added
+ * so far.
+ *
+ * Readings wait in a {@link ScalarReadingRing}, so adding one neither locks nor allocates.  If
+ * writes fall so far behind that the ring fills, further readings are dropped until they catch
+ * up; {@link #getDroppedReadingCount()} says how many.
+ *
+ * Given a {@link ScalarReadingJournal}, the writer also copies each reading into it as it is
+ * added, and checkpoints it after each batch is written, so that readings waiting to be written
+ * aren't lost if the process is killed.  Readings the journal recovered from the last process are
+ * written before anything else; if that fails, they are retried with each batch, and the journal
+ * is not checkpointed past them until they are written.
+ */
+public class BatchingScalarWriter {
+    private static final String TAG = "BatchingScalarWriter";
+
+    /**
+     * Notified, on the sensor data thread, when a batch could not be written.
+     */
+    public interface WriteFailureListener {
+        /**
+         * Called once for each sensor that had readings in the failed batch.
+         */
+        void onWriteFailed(String sensorTag, Exception e);
+    }
+
+    /**
+     * Large enough that a transaction's commit cost is spread over many rows, small enough that a
+     * single transaction never holds the database for long.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+
+    public static final long DEFAULT_MAX_BATCH_AGE_MILLIS = 1000;
+
+    /**
+     * A minute of several fast sensors, should the database stall that long.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final SensorDatabase mDatabase;
+    private final Executor mSensorDataThread;
+    private final Clock mClock;
+    private final Scheduler mScheduler;
+    private final Delay mMaxBatchAge;
+    private final int mMaxBatchSize;
+    private final long mMaxBatchAgeMillis;
+    private final WriteFailureListener mFailureListener;
+    // Held while writing, so that writers sharing a database take turns.
+    private final Object mDatabaseLock;
+
+    private final ScalarReadingRing mPending;
+    private final ScalarReadingJournal mJournal;
+    private final AtomicBoolean mWriteScheduled = new AtomicBoolean();
+    // Set by the first reading of each batch, cleared when the batch is drained.
+    private final AtomicBoolean mBatchStarted = new AtomicBoolean();
+    // When the oldest pending reading was added, by mClock.
+    private volatile long mOldestPendingMillis;
+
+    // Only touched on the sensor data thread
+    private final ScalarReadingBatch mWriting = new ScalarReadingBatch();
+    private long mReportedDropCount = 0;
+
+    private final Runnable mWriteRunnable = this::writePendingReadings;
+    private final Runnable mAgeFlush = new Runnable() {
+        @Override
+        public void run() {
+            if (mPending.getDepth() > 0) {
+                flush();
+                return;
+            }
+            // The batch that set this timer was written without cancelling it.
+            mBatchStarted.set(false);
+            if (mPending.getDepth() > 0) {
+                startBatch(mClock.getNow());
+            }
+        }
+    };
+
+    /**
+     * @param scheduler         runs the timer that writes a batch once it is
+     *                          {@code maxBatchAgeMillis} old, should no more readings arrive
+     * @param maxBatchSize      the number of readings that triggers a write.  1 means that every
+     *                          reading is written as soon as it is added.
+     * @param maxBatchAgeMillis how long (by {@code clock}) a reading may wait for its batch to fill
+     *                          before a write is triggered anyway.
+     */
+    public BatchingScalarWriter(SensorDatabase database, Executor sensorDataThread, Clock clock,
+            Scheduler scheduler, int maxBatchSize, long maxBatchAgeMillis,
+            WriteFailureListener failureListener) {
+        this(database, sensorDataThread, clock, scheduler, maxBatchSize, maxBatchAgeMillis,
+                DEFAULT_CAPACITY, failureListener);
+    }
+
+    /**
+     * @param capacity how many readings may wait to be written before more are dropped; rounded
+     *                 up to a power of two, and to at least {@code maxBatchSize}
+     */
+    public BatchingScalarWriter(SensorDatabase database, Executor sensorDataThread, Clock clock,
+            Scheduler scheduler, int maxBatchSize, long maxBatchAgeMillis, int capacity,
+            WriteFailureListener failureListener) {
+        this(database, sensorDataThread, clock, scheduler, maxBatchSize, maxBatchAgeMillis,
+                capacity, null, failureListener);
+    }
+
+    /**
+     * @param journal may be null; otherwise, must have at least twice as many slots as the
+     *                writer's capacity
+     */
+    public BatchingScalarWriter(SensorDatabase database, Executor sensorDataThread, Clock clock,
+            Scheduler scheduler, int maxBatchSize, long maxBatchAgeMillis, int capacity,
+            ScalarReadingJournal journal, WriteFailureListener failureListener) {
+        this(database, sensorDataThread, clock, scheduler, maxBatchSize, maxBatchAgeMillis,
+                capacity, journal, new Object(), failureListener);
+    }
+
+    /**
+     * @param databaseLock held while writing to {@code database}; writers that share a database
+     *                     but not a thread must share this too
+     */
+    BatchingScalarWriter(SensorDatabase database, Executor sensorDataThread, Clock clock,
+            Scheduler scheduler, int maxBatchSize, long maxBatchAgeMillis, int capacity,
+            ScalarReadingJournal journal, Object databaseLock,
+            WriteFailureListener failureListener) {
+        mDatabase = database;
+        mDatabaseLock = databaseLock;
+        mSensorDataThread = sensorDataThread;
+        mClock = clock;
+        mMaxBatchSize = Math.max(1, maxBatchSize);
+        mMaxBatchAgeMillis = maxBatchAgeMillis;
+        // Without batching, or without an age limit, every reading is written as it is added.
+        mScheduler = mMaxBatchSize > 1 && maxBatchAgeMillis > 0 ? scheduler : null;
+        mMaxBatchAge = Delay.millis(maxBatchAgeMillis);
+        mFailureListener = failureListener;
+        mJournal = journal;
+        mPending = new ScalarReadingRing(Math.max(capacity, mMaxBatchSize), journal);
+        if (journal != null) {
+            Preconditions.checkArgument(journal.getSlotCount() >= 2 * mPending.capacity(),
+                    "Journal too small for writer");
+            if (journal.getRecoveredReadingCount() > 0) {
+                mSensorDataThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        replayJournal();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Queues a reading to be written.  May be called from any thread.
+     *
+     * See {@link SensorDatabase#addScalarReading(String, int, long, double)} for semantics of
+     * these params.
+     *
+     * @return false if the reading was dropped, because too many were waiting to be written
+     */
+    public boolean addScalarReading(String sensorTag, int resolutionTier, long timestampMillis,
+            double value) {
+        long now = mClock.getNow();
+        long depth = mPending.offer(sensorTag, resolutionTier, timestampMillis, value);
+        if (depth != 0) {
+            // Not depth == 1: a reading added during a drain counts the readings being drained.
+            startBatch(now);
+        }
+        // A dropped reading still schedules a write, so that the ring drains.
+        if ((depth == 0 || depth >= mMaxBatchSize
+                || now - mOldestPendingMillis >= mMaxBatchAgeMillis)
+                && mWriteScheduled.compareAndSet(false, true)) {
+            mSensorDataThread.execute(mWriteRunnable);
+        }
+        return depth != 0;
+    }
+
+    /**
+     * Starts the age timer, unless the pending batch already started it.
+     */
+    private void startBatch(long now) {
+        if (mBatchStarted.compareAndSet(false, true)) {
+            mOldestPendingMillis = now;
+            if (mScheduler != null) {
+                mScheduler.schedule(mMaxBatchAge, mAgeFlush);
+            }
+        }
+    }
+
+    /**
+     * Schedules a write of every reading added so far, whether or not the batch is full.  May be
+     * called from any thread.
+     */
+    public void flush() {
+        if (mPending.getDepth() > 0 && mWriteScheduled.compareAndSet(false, true)) {
+            mSensorDataThread.execute(mWriteRunnable);
+        }
+    }
+
+    /**
+     * Writes every reading added so far, in one transaction, on the calling thread.  Must only be
+     * called on the sensor data thread.
+     */
+    public void writePendingReadings() {
+        mWriteScheduled.set(false);
+        if (mScheduler != null) {
+            // Before draining: a batch started after the drain schedules its own timer.
+            mScheduler.unschedule(mAgeFlush);
+        }
+        // Before draining, so that any reading the drain misses starts the next batch.
+        mBatchStarted.set(false);
+        reportDrops();
+        int drained = mPending.drainTo(mWriting);
+        if (mPending.getDepth() > 0) {
+            // Added before the flag was cleared, but not finished in time to be drained.
+            startBatch(mClock.getNow());
+        }
+        if (drained == 0) {
+            return;
+        }
+        try {
+            synchronized (mDatabaseLock) {
+                if (mJournal != null && mJournal.getRecoveredReadingCount() > 0) {
+                    // The replay failed; try it again, in the same transaction as this batch.
+                    mJournal.replayInto(mDatabase, mWriting);
+                } else {
+                    mDatabase.addScalarReadings(mWriting);
+                }
+            }
+        } catch (Exception e) {
+            notifyFailure(mWriting, e);
+        } finally {
+            mWriting.clear();
+            // Even after a failure: replaying the batch next time would only fail again.  But
+            // never past recovered readings that are not in the database yet.
+            if (mJournal != null && mJournal.getRecoveredReadingCount() == 0) {
+                mJournal.checkpoint(mPending.getDrainedPosition());
+            }
+        }
+    }
+
+    private void replayJournal() {
+        int recovered = mJournal.getRecoveredReadingCount();
+        try {
+            synchronized (mDatabaseLock) {
+                mJournal.replayInto(mDatabase);
+            }
+            if (Log.isLoggable(TAG, Log.INFO)) {
+                Log.i(TAG, "Recovered " + recovered + " sensor readings from the journal");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not recover " + recovered + " sensor readings; will retry with "
+                    + "the next batch", e);
+        }
+    }
+
+    /**
+     * @return how many readings are waiting to be written
+     */
+    public long getQueueDepth() {
+        return mPending.getDepth();
+    }
+
+    /**
+     * @return how many readings may wait to be written before more are dropped
+     */
+    public int getQueueCapacity() {
+        return mPending.capacity();
+    }
+
+    /**
+     * @return the most readings that have been waiting to be written at once
+     */
+    public long getQueueHighWaterMark() {
+        return mPending.getHighWaterMark();
+    }
+
+    /**
+     * @return how many readings have been dropped because too many were waiting to be written
+     */
+    public long getDroppedReadingCount() {
+        return mPending.getDroppedCount();
+    }
+
+    private void reportDrops() {
+        long dropped = mPending.getDroppedCount();
+        if (dropped > mReportedDropCount) {
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "Dropped " + (dropped - mReportedDropCount) + " sensor readings; "
+                        + "the most waiting at once was " + mPending.getHighWaterMark());
+            }
+            mReportedDropCount = dropped;
+        }
+    }
+
+    private void notifyFailure(ScalarReadingBatch batch, Exception e) {
+        if (mFailureListener == null) {
+            return;
+        }
+        Set<String> failedTags = new HashSet<>();
+        for (int i = 0; i < batch.size(); i++) {
+            failedTags.add(batch.getSensorTag(i));
+        }
+        for (String tag : failedTags) {
+            mFailureListener.onWriteFailed(tag, e);
+        }
+    }
+}
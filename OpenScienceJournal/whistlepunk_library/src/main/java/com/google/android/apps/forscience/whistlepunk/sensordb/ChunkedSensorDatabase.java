@@ -0,0 +1,765 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.VisibleForTesting;
+
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.common.collect.Range;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.reactivex.Observable;
+
+/**
+ * A {@link SensorDatabase} that stores each (sensor tag, resolution tier) series as a sequence of
+ * compressed {@link ScalarChunk}s, rather than one row per reading.
+ *
+ * Each chunk row records the range of timestamps it covers, along with the stats of its readings,
+ * and the table is indexed by (tag, tier, first timestamp), so a time-range read only touches the
+ * chunks that overlap the range, and stats only decode the chunks at either end of it.
+ *
+ * The most recent readings of each series are appended to an encoder in memory, which is also
+ * kept in {@link OpenChunksTable}: one row per series, with the same columns as a chunk,
+ * rewritten in place once for each write that adds to it.  Once the encoder holds
+ * {@link #DEFAULT_POINTS_PER_CHUNK} readings, it is written as a chunk, and its open row deleted,
+ * in the same transaction.
+ *
+ * Reads only look at the file, never at the encoders, so they can run on other threads while
+ * readings are being written.  To a read, an open chunk is just one more chunk.
+ */
+public class ChunkedSensorDatabase implements SensorDatabase {
+    private static class DbVersions {
+        public static final int V1_START = 1;
+        // Open readings kept as one chunk row per series, rather than one row per reading.
+        public static final int V2_OPEN_CHUNKS = 2;
+        public static final int CURRENT = V2_OPEN_CHUNKS;
+    }
+
+    private static class ChunksTable {
+        public static final String NAME = "scalar_chunks";
+
+        public static class Column {
+            public static final String TAG = "tag";
+            public static final String RESOLUTION_TIER = "resolutionTier";
+            public static final String FIRST_TIMESTAMP_MILLIS = "firstTimestampMillis";
+            public static final String LAST_TIMESTAMP_MILLIS = "lastTimestampMillis";
+            public static final String POINT_COUNT = "pointCount";
+            public static final String DATA = "data";
+            public static final String SUM = "sum";
+            public static final String SUM_OF_SQUARES = "sumOfSquares";
+            public static final String MIN_VALUE = "minValue";
+            public static final String MAX_VALUE = "maxValue";
+            public static final String FIRST_VALUE = "firstValue";
+            public static final String LAST_VALUE = "lastValue";
+        }
+
+        public static final String CREATION_SQL = creationSql(NAME);
+
+        /**
+         * @return the SQL that creates a table of chunks named {@code name}
+         */
+        static String creationSql(String name) {
+            return "CREATE TABLE " + name + " (" + Column.TAG + " TEXT, "
+                    + Column.RESOLUTION_TIER + " INTEGER, " + Column.FIRST_TIMESTAMP_MILLIS
+                    + " INTEGER, " + Column.LAST_TIMESTAMP_MILLIS + " INTEGER, "
+                    + Column.POINT_COUNT + " INTEGER, " + Column.DATA + " BLOB, " + Column.SUM
+                    + " REAL, " + Column.SUM_OF_SQUARES + " REAL, " + Column.MIN_VALUE
+                    + " REAL, " + Column.MAX_VALUE + " REAL, " + Column.FIRST_VALUE + " REAL, "
+                    + Column.LAST_VALUE + " REAL);";
+        }
+
+        public static final String INDEX_SQL = "CREATE INDEX chunk_start ON " + NAME + "("
+                + Column.TAG + ", " + Column.RESOLUTION_TIER + ", "
+                + Column.FIRST_TIMESTAMP_MILLIS + ");";
+    }
+
+    /**
+     * The readings of each series that are not yet in a chunk, at most one chunk's worth, as one
+     * row per series with the same columns as {@link ChunksTable}.  A series with no open
+     * readings has no row.
+     */
+    private static class OpenChunksTable {
+        public static final String NAME = "open_chunks";
+
+        public static final String CREATION_SQL = ChunksTable.creationSql(NAME);
+
+        public static final String INDEX_SQL = "CREATE UNIQUE INDEX open_chunk_series ON " + NAME
+                + "(" + ChunksTable.Column.TAG + ", " + ChunksTable.Column.RESOLUTION_TIER + ");";
+
+        public static final String SERIES_WHERE = ChunksTable.Column.TAG + "=? AND "
+                + ChunksTable.Column.RESOLUTION_TIER + "=?";
+    }
+
+    /**
+     * Where versions before {@link DbVersions#V2_OPEN_CHUNKS} kept open readings, one row each.
+     */
+    private static class V1OpenReadingsTable {
+        public static final String NAME = "open_readings";
+
+        public static class Column {
+            public static final String TAG = "tag";
+            public static final String RESOLUTION_TIER = "resolutionTier";
+            public static final String TIMESTAMP_MILLIS = "timestampMillis";
+            public static final String VALUE = "value";
+        }
+    }
+
+    /**
+     * Chunks of one series that overlap a time range, followed by its open chunk if that does.
+     * Being a single statement, it can't see a chunk and also the open chunk it was sealed from.
+     *
+     * Columns: 0 first timestamp, 1 last timestamp, 2 point count, 3 data, 4 sum, 5 sum of
+     * squares, 6 min, 7 max, 8 first value, 9 last value, 10 {@code seq}, which orders chunks
+     * with the same first (or last) timestamp as they were written; the open chunk is always
+     * written last.  Arguments: tag, tier, first and last included timestamps, twice.
+     */
+    private static final String SERIES_SQL = seriesSql(ChunksTable.NAME, "rowid")
+            + " UNION ALL " + seriesSql(OpenChunksTable.NAME, String.valueOf(Long.MAX_VALUE));
+
+    private static String seriesSql(String table, String seq) {
+        return "SELECT " + ChunksTable.Column.FIRST_TIMESTAMP_MILLIS + ", "
+                + ChunksTable.Column.LAST_TIMESTAMP_MILLIS + ", " + ChunksTable.Column.POINT_COUNT
+                + ", " + ChunksTable.Column.DATA + ", " + ChunksTable.Column.SUM + ", "
+                + ChunksTable.Column.SUM_OF_SQUARES + ", " + ChunksTable.Column.MIN_VALUE + ", "
+                + ChunksTable.Column.MAX_VALUE + ", " + ChunksTable.Column.FIRST_VALUE + ", "
+                + ChunksTable.Column.LAST_VALUE + ", " + seq + " AS seq FROM " + table + " WHERE "
+                + ChunksTable.Column.TAG + "=? AND " + ChunksTable.Column.RESOLUTION_TIER
+                + "=? AND " + ChunksTable.Column.LAST_TIMESTAMP_MILLIS + ">=? AND "
+                + ChunksTable.Column.FIRST_TIMESTAMP_MILLIS + "<=?";
+    }
+
+    /**
+     * Big enough that per-chunk overhead is small, small enough that a range read decodes little
+     * more than it needs.
+     */
+    public static final int DEFAULT_POINTS_PER_CHUNK = 1024;
+
+    private final SQLiteOpenHelper mOpenHelper;
+    private final int mPointsPerChunk;
+
+    // The readings not yet in a chunk, for each tag, indexed by resolution tier.
+    private final Map<String, OpenChunk[]> mOpenChunks = new HashMap<>();
+
+    public ChunkedSensorDatabase(Context context, String name) {
+        this(context, name, DEFAULT_POINTS_PER_CHUNK);
+    }
+
+    @VisibleForTesting
+    ChunkedSensorDatabase(Context context, String name, int pointsPerChunk) {
+        mPointsPerChunk = pointsPerChunk;
+        mOpenHelper = new SQLiteOpenHelper(context, name, null, DbVersions.CURRENT) {
+            @Override
+            public void onConfigure(SQLiteDatabase db) {
+                // Before logging is turned on, which writes the header of a new file.
+                IncrementalVacuum.enable(db);
+                db.enableWriteAheadLogging();
+            }
+
+            @Override
+            public void onCreate(SQLiteDatabase db) {
+                db.execSQL(ChunksTable.CREATION_SQL);
+                db.execSQL(ChunksTable.INDEX_SQL);
+                db.execSQL(OpenChunksTable.CREATION_SQL);
+                db.execSQL(OpenChunksTable.INDEX_SQL);
+            }
+
+            @Override
+            public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+                if (oldVersion < DbVersions.V2_OPEN_CHUNKS) {
+                    db.execSQL(OpenChunksTable.CREATION_SQL);
+                    db.execSQL(OpenChunksTable.INDEX_SQL);
+                    moveOpenReadingsToOpenChunks(db);
+                }
+            }
+        };
+    }
+
+    private static class OpenChunk {
+        final String mTag;
+        final int mTier;
+        ScalarChunk mChunk = new ScalarChunk();
+        ScalarStats mStats = new ScalarStats();
+        // Whether OpenChunksTable has a row for this series.
+        boolean mStored = false;
+        // Whether readings have been added since the row was last written.
+        boolean mDirty = false;
+
+        OpenChunk(String tag, int tier) {
+            mTag = tag;
+            mTier = tier;
+        }
+
+        void add(long timestampMillis, double value) {
+            mChunk.add(timestampMillis, value);
+            mStats.add(timestampMillis, value);
+        }
+    }
+
+    @Override
+    public void addScalarReading(String sensorTag, int resolutionTier, long timestampMillis,
+            double value) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            List<OpenChunk> dirty = new ArrayList<>(1);
+            append(db, sensorTag, resolutionTier, timestampMillis, value, dirty);
+            storeOpenChunks(db, dirty);
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            forgetOpenChunks();
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public void addScalarReadings(ScalarReadingBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            List<OpenChunk> dirty = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                append(db, batch.getSensorTag(i), batch.getResolutionTier(i),
+                        batch.getTimestampMillis(i), batch.getValue(i), dirty);
+            }
+            storeOpenChunks(db, dirty);
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            forgetOpenChunks();
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * After a failed write, the in-memory open chunks may be ahead of the file; reload them from
+     * the file when next used.
+     */
+    private void forgetOpenChunks() {
+        mOpenChunks.clear();
+    }
+
+    /**
+     * Adds a reading to its series' open chunk, sealing the chunk if that fills it.
+     *
+     * @param dirty gets each open chunk whose row needs writing, once
+     */
+    private void append(SQLiteDatabase db, String tag, int tier, long timestampMillis,
+            double value, List<OpenChunk> dirty) {
+        OpenChunk open = getOpenChunk(db, tag, tier);
+        open.add(timestampMillis, value);
+        if (open.mChunk.size() >= mPointsPerChunk) {
+            sealChunk(db, open);
+        } else if (!open.mDirty) {
+            open.mDirty = true;
+            dirty.add(open);
+        }
+    }
+
+    /**
+     * Rewrites the row of each open chunk that readings were added to.
+     */
+    private static void storeOpenChunks(SQLiteDatabase db, List<OpenChunk> dirty) {
+        for (OpenChunk open : dirty) {
+            if (!open.mDirty) {
+                // Sealed since.
+                continue;
+            }
+            ContentValues values = chunkValues(open.mChunk, open.mStats);
+            if (open.mStored) {
+                db.update(OpenChunksTable.NAME, values, OpenChunksTable.SERIES_WHERE,
+                        new String[]{open.mTag, String.valueOf(open.mTier)});
+            } else {
+                values.put(ChunksTable.Column.TAG, open.mTag);
+                values.put(ChunksTable.Column.RESOLUTION_TIER, open.mTier);
+                db.insertOrThrow(OpenChunksTable.NAME, null, values);
+                open.mStored = true;
+            }
+            open.mDirty = false;
+        }
+    }
+
+    /**
+     * Writes the open chunk as a chunk row, in place of its open row, and starts a new one.
+     */
+    private void sealChunk(SQLiteDatabase db, OpenChunk open) {
+        ContentValues values = chunkValues(open.mChunk, open.mStats);
+        values.put(ChunksTable.Column.TAG, open.mTag);
+        values.put(ChunksTable.Column.RESOLUTION_TIER, open.mTier);
+        db.insertOrThrow(ChunksTable.NAME, null, values);
+        if (open.mStored) {
+            db.delete(OpenChunksTable.NAME, OpenChunksTable.SERIES_WHERE,
+                    new String[]{open.mTag, String.valueOf(open.mTier)});
+        }
+        open.mChunk = new ScalarChunk();
+        open.mStats = new ScalarStats();
+        open.mStored = false;
+        open.mDirty = false;
+    }
+
+    private static ContentValues chunkValues(ScalarChunk chunk, ScalarStats stats) {
+        ContentValues values = new ContentValues();
+        values.put(ChunksTable.Column.FIRST_TIMESTAMP_MILLIS, chunk.getMinTimestamp());
+        values.put(ChunksTable.Column.LAST_TIMESTAMP_MILLIS, chunk.getMaxTimestamp());
+        values.put(ChunksTable.Column.POINT_COUNT, chunk.size());
+        values.put(ChunksTable.Column.DATA, chunk.toByteArray());
+        values.put(ChunksTable.Column.SUM, stats.getSum());
+        values.put(ChunksTable.Column.SUM_OF_SQUARES, stats.getSumOfSquares());
+        values.put(ChunksTable.Column.MIN_VALUE, stats.getMin());
+        values.put(ChunksTable.Column.MAX_VALUE, stats.getMax());
+        values.put(ChunksTable.Column.FIRST_VALUE, stats.getFirstValue());
+        values.put(ChunksTable.Column.LAST_VALUE, stats.getLastValue());
+        return values;
+    }
+
+    private OpenChunk getOpenChunk(SQLiteDatabase db, String tag, int tier) {
+        OpenChunk[] byTier = mOpenChunks.get(tag);
+        if (byTier == null || byTier.length <= tier) {
+            byTier = byTier == null ? new OpenChunk[tier + 1] : Arrays.copyOf(byTier, tier + 1);
+            mOpenChunks.put(tag, byTier);
+        }
+        if (byTier[tier] == null) {
+            byTier[tier] = loadOpenChunk(db, tag, tier);
+        }
+        return byTier[tier];
+    }
+
+    /**
+     * Picks up appending where the last write to this series left off.
+     */
+    private OpenChunk loadOpenChunk(SQLiteDatabase db, String tag, int tier) {
+        OpenChunk open = new OpenChunk(tag, tier);
+        Cursor cursor = db.query(OpenChunksTable.NAME, new String[]{
+                        ChunksTable.Column.POINT_COUNT, ChunksTable.Column.DATA},
+                OpenChunksTable.SERIES_WHERE, new String[]{tag, String.valueOf(tier)}, null, null,
+                null);
+        try {
+            if (cursor.moveToNext()) {
+                // Re-encoded in the order they were added, so appending carries on as before.
+                ScalarChunk.Reader reader = new ScalarChunk.Reader(cursor.getBlob(1),
+                        cursor.getInt(0));
+                while (reader.hasNext()) {
+                    reader.next();
+                    open.add(reader.getTimestamp(), reader.getValue());
+                }
+                open.mStored = true;
+            }
+            return open;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Replaces the open reading rows of a version 1 file with an open chunk row for each series.
+     */
+    private static void moveOpenReadingsToOpenChunks(SQLiteDatabase db) {
+        Cursor cursor = db.query(V1OpenReadingsTable.NAME, new String[]{
+                        V1OpenReadingsTable.Column.TAG, V1OpenReadingsTable.Column.RESOLUTION_TIER,
+                        V1OpenReadingsTable.Column.TIMESTAMP_MILLIS,
+                        V1OpenReadingsTable.Column.VALUE}, null, null, null, null,
+                V1OpenReadingsTable.Column.TAG + ", " + V1OpenReadingsTable.Column.RESOLUTION_TIER
+                        + ", rowid");
+        try {
+            List<OpenChunk> series = new ArrayList<>();
+            OpenChunk open = null;
+            while (cursor.moveToNext()) {
+                String tag = cursor.getString(0);
+                int tier = cursor.getInt(1);
+                if (open == null || !open.mTag.equals(tag) || open.mTier != tier) {
+                    open = new OpenChunk(tag, tier);
+                    open.mDirty = true;
+                    series.add(open);
+                }
+                open.add(cursor.getLong(2), cursor.getDouble(3));
+            }
+            storeOpenChunks(db, series);
+        } finally {
+            cursor.close();
+        }
+        db.execSQL("DROP TABLE " + V1OpenReadingsTable.NAME);
+    }
+
+    @Override
+    public ScalarReadingList getScalarReadings(String sensorTag, TimeRange range,
+            int resolutionTier, int maxRecords) {
+        final ScalarChunk.Points points = new ScalarChunk.Points(
+                maxRecords > 0 ? maxRecords : mPointsPerChunk);
+        SeriesReader reader = new SeriesReader(mOpenHelper.getReadableDatabase(), sensorTag,
+                resolutionTier, range);
+        try {
+            while ((maxRecords <= 0 || points.size() < maxRecords) && reader.moveToNext()) {
+                points.add(reader.getTimestamp(), reader.getValue());
+            }
+        } finally {
+            reader.close();
+        }
+        return new ScalarReadingList() {
+            @Override
+            public void deliver(StreamConsumer c) {
+                for (int i = 0; i < points.size(); i++) {
+                    c.addData(points.getTimestamp(i), points.getValue(i));
+                }
+            }
+
+            @Override
+            public int size() {
+                return points.size();
+            }
+
+            @Override
+            public List<ChartData.DataPoint> asDataPoints() {
+                List<ChartData.DataPoint> result = new ArrayList<>(points.size());
+                for (int i = 0; i < points.size(); i++) {
+                    result.add(new ChartData.DataPoint(points.getTimestamp(i),
+                            points.getValue(i)));
+                }
+                return result;
+            }
+        };
+    }
+
+    @Override
+    public Observable<ScalarReading> createScalarObservable(final String[] sensorTags,
+            final TimeRange range, final int resolutionTier) {
+        return Observable.create(emitter -> {
+            ScalarPageReader reader = openScalarPageReader(sensorTags, range, resolutionTier);
+            try {
+                ScalarReadingPage page = new ScalarReadingPage(mPointsPerChunk);
+                while (!emitter.isDisposed() && reader.readNextPage(page)) {
+                    for (int i = 0; i < page.size() && !emitter.isDisposed(); i++) {
+                        emitter.onNext(new ScalarReading(page.getTimestampMillis(i),
+                                page.getValue(i), page.getSensorTag(i)));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            emitter.onComplete();
+        });
+    }
+
+    @Override
+    public ScalarPageReader openScalarPageReader(String[] sensorTags, TimeRange range,
+            int resolutionTier) {
+        MergingPageReader reader = new MergingPageReader(range);
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        try {
+            for (String sensorTag : sensorTags) {
+                reader.addSeries(sensorTag, new SeriesReader(db, sensorTag, resolutionTier,
+                        range));
+            }
+        } catch (RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+        return reader;
+    }
+
+    @Override
+    public ScalarStats getScalarStats(String sensorTag, TimeRange range) {
+        long first = range.getFirstIncludedMillis();
+        long last = range.getLastIncludedMillis();
+        ScalarStats stats = new ScalarStats();
+        Cursor cursor = querySeries(mOpenHelper.getReadableDatabase(), sensorTag, 0, first, last,
+                ChunksTable.Column.FIRST_TIMESTAMP_MILLIS + " ASC");
+        try {
+            ScalarChunk.Points points = null;
+            while (cursor.moveToNext()) {
+                if (cursor.getLong(0) >= first && cursor.getLong(1) <= last) {
+                    stats.add(cursor.getInt(2), cursor.getDouble(4), cursor.getDouble(5),
+                            cursor.getDouble(6), cursor.getDouble(7), cursor.getLong(0),
+                            cursor.getDouble(8), cursor.getLong(1), cursor.getDouble(9));
+                    continue;
+                }
+                // Only the chunks at either end of the range need decoding.
+                if (points == null) {
+                    points = new ScalarChunk.Points(mPointsPerChunk);
+                }
+                ScalarChunk.decode(cursor.getBlob(3), cursor.getInt(2), first, last, points);
+                for (int i = 0; i < points.size(); i++) {
+                    stats.add(points.getTimestamp(i), points.getValue(i));
+                }
+            }
+            return stats;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Cursor querySeries(SQLiteDatabase db, String tag, int tier, long first,
+            long last, String orderBy) {
+        String[] series = new String[]{tag, String.valueOf(tier), String.valueOf(first),
+                String.valueOf(last)};
+        String[] args = Arrays.copyOf(series, series.length * 2);
+        System.arraycopy(series, 0, args, series.length, series.length);
+        return db.rawQuery(SERIES_SQL + " ORDER BY " + orderBy, args);
+    }
+
+    private static boolean comesBefore(long timestamp, long other, boolean oldestFirst) {
+        return oldestFirst ? timestamp < other : timestamp > other;
+    }
+
+    @Override
+    public String getFirstDatabaseTagAfter(long timestamp) {
+        String bestTag = null;
+        long bestTimestamp = Long.MAX_VALUE;
+        String columns = ChunksTable.Column.TAG + ", " + ChunksTable.Column.FIRST_TIMESTAMP_MILLIS
+                + ", " + ChunksTable.Column.POINT_COUNT + ", " + ChunksTable.Column.DATA;
+        String where = " WHERE " + ChunksTable.Column.LAST_TIMESTAMP_MILLIS + ">?";
+        String after = String.valueOf(timestamp);
+        Cursor cursor = mOpenHelper.getReadableDatabase().rawQuery("SELECT " + columns + " FROM "
+                + ChunksTable.NAME + where + " UNION ALL SELECT " + columns + " FROM "
+                + OpenChunksTable.NAME + where + " ORDER BY "
+                + ChunksTable.Column.FIRST_TIMESTAMP_MILLIS + " ASC", new String[]{after, after});
+        try {
+            ScalarChunk.Points points = new ScalarChunk.Points(mPointsPerChunk);
+            while (cursor.moveToNext()) {
+                if (bestTag != null && cursor.getLong(1) >= bestTimestamp) {
+                    // Every remaining chunk starts later than the best reading so far.
+                    break;
+                }
+                ScalarChunk.decode(cursor.getBlob(3), cursor.getInt(2), timestamp + 1,
+                        Long.MAX_VALUE, points);
+                if (points.size() > 0 && points.getTimestamp(0) < bestTimestamp) {
+                    bestTimestamp = points.getTimestamp(0);
+                    bestTag = cursor.getString(0);
+                }
+            }
+            return bestTag;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public List<String> getSensorTags() {
+        Cursor cursor = mOpenHelper.getReadableDatabase().rawQuery("SELECT "
+                + ChunksTable.Column.TAG + " FROM " + ChunksTable.NAME + " UNION SELECT "
+                + ChunksTable.Column.TAG + " FROM " + OpenChunksTable.NAME, null);
+        try {
+            List<String> tags = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                tags.add(cursor.getString(0));
+            }
+            return tags;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void deleteScalarReadings(String sensorTag, TimeRange range) {
+        long first = range.getFirstIncludedMillis();
+        long last = range.getLastIncludedMillis();
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            deleteFromChunks(db, ChunksTable.NAME, sensorTag, first, last);
+            deleteFromChunks(db, OpenChunksTable.NAME, sensorTag, first, last);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            // Open chunks for this tag may have changed; reload when next used.
+            mOpenChunks.remove(sensorTag);
+        }
+    }
+
+    /**
+     * Deletes the readings of {@code tag} in [{@code first}, {@code last}] from the chunks in
+     * {@code table}, re-encoding the chunks that keep some of their readings.
+     */
+    private static void deleteFromChunks(SQLiteDatabase db, String table, String tag, long first,
+            long last) {
+        Cursor cursor = db.query(table, new String[]{"rowid",
+                        ChunksTable.Column.FIRST_TIMESTAMP_MILLIS,
+                        ChunksTable.Column.LAST_TIMESTAMP_MILLIS, ChunksTable.Column.POINT_COUNT,
+                        ChunksTable.Column.DATA},
+                ChunksTable.Column.TAG + "=? AND " + ChunksTable.Column.LAST_TIMESTAMP_MILLIS
+                        + ">=? AND " + ChunksTable.Column.FIRST_TIMESTAMP_MILLIS + "<=?",
+                new String[]{tag, String.valueOf(first), String.valueOf(last)}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String[] rowId = new String[]{String.valueOf(cursor.getLong(0))};
+                if (cursor.getLong(1) >= first && cursor.getLong(2) <= last) {
+                    db.delete(table, "rowid=?", rowId);
+                    continue;
+                }
+                ScalarChunk remaining = new ScalarChunk();
+                ScalarStats remainingStats = new ScalarStats();
+                ScalarChunk.Reader reader = new ScalarChunk.Reader(cursor.getBlob(4),
+                        cursor.getInt(3));
+                while (reader.hasNext()) {
+                    reader.next();
+                    long timestamp = reader.getTimestamp();
+                    if (timestamp < first || timestamp > last) {
+                        remaining.add(timestamp, reader.getValue());
+                        remainingStats.add(timestamp, reader.getValue());
+                    }
+                }
+                if (remaining.size() == 0) {
+                    db.delete(table, "rowid=?", rowId);
+                } else {
+                    db.update(table, chunkValues(remaining, remainingStats), "rowid=?", rowId);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public long reclaimSpace(long maxBytes) {
+        return IncrementalVacuum.reclaim(mOpenHelper.getWritableDatabase(), maxBytes);
+    }
+
+    @Override
+    public void startExperimentRecording(String experimentId, long startMillis) {
+        // Every experiment's readings are kept together.
+    }
+
+    @Override
+    public void stopExperimentRecording(String experimentId, Range<Long> times) {
+        // Every experiment's readings are kept together.
+    }
+
+    @Override
+    public void deleteExperimentReadings(String experimentId) {
+        // Every experiment's readings are kept together.
+    }
+
+    /**
+     * Reads one series in timestamp order, decoding a chunk at a time.
+     *
+     * Chunks are visited in order of their first (or, newest-first, last) timestamp.  Because
+     * readings can be appended slightly out of order, neighboring chunks may overlap, so decoded
+     * readings are only handed out once no undecoded chunk could contain an earlier one.  The
+     * open chunk comes from the same query, like any other.
+     */
+    private class SeriesReader implements MergingPageReader.Series {
+        private final Cursor mChunks;
+        private final boolean mOldestFirst;
+        private final long mFirst;
+        private final long mLast;
+
+        private ScalarChunk.Points mPending = new ScalarChunk.Points(mPointsPerChunk);
+        private ScalarChunk.Points mMerged = new ScalarChunk.Points(mPointsPerChunk);
+        private final ScalarChunk.Points mDecoded = new ScalarChunk.Points(mPointsPerChunk);
+        private int mPendingIndex = 0;
+        private boolean mHasNextChunk;
+
+        private long mTimestamp;
+        private double mValue;
+
+        SeriesReader(SQLiteDatabase db, String tag, int tier, TimeRange range) {
+            mOldestFirst = range.getOrder() == TimeRange.ObservationOrder.OLDEST_FIRST;
+            mFirst = range.getFirstIncludedMillis();
+            mLast = range.getLastIncludedMillis();
+            String orderBy = mOldestFirst
+                    ? ChunksTable.Column.FIRST_TIMESTAMP_MILLIS + " ASC, seq ASC"
+                    : ChunksTable.Column.LAST_TIMESTAMP_MILLIS + " DESC, seq DESC";
+            mChunks = querySeries(db, tag, tier, mFirst, mLast, orderBy);
+            mHasNextChunk = mChunks.moveToNext();
+        }
+
+        @Override
+        public boolean moveToNext() {
+            while (mHasNextChunk && (mPendingIndex == mPending.size()
+                    || !comesBefore(mPending.getTimestamp(mPendingIndex), nextChunkBound(),
+                    mOldestFirst))) {
+                mHasNextChunk = decodeNextChunk();
+            }
+            if (mPendingIndex == mPending.size()) {
+                return false;
+            }
+            mTimestamp = mPending.getTimestamp(mPendingIndex);
+            mValue = mPending.getValue(mPendingIndex);
+            mPendingIndex++;
+            return true;
+        }
+
+        private long nextChunkBound() {
+            // The earliest (or latest) timestamp any undecoded chunk could hold.
+            return mChunks.getLong(mOldestFirst ? 0 : 1);
+        }
+
+        /**
+         * @return whether there are more rows after the ones decoded.
+         */
+        private boolean decodeNextChunk() {
+            ScalarChunk.decode(mChunks.getBlob(3), mChunks.getInt(2), mFirst, mLast, mDecoded);
+            if (!mOldestFirst) {
+                mDecoded.reverse();
+            }
+            boolean hasNext = mChunks.moveToNext();
+
+            // Merge what's left of the pending readings with the new chunk's readings.
+            mMerged.clear();
+            mMerged.ensureCapacity(mPending.size() - mPendingIndex + mDecoded.size());
+            int p = mPendingIndex;
+            int d = 0;
+            while (p < mPending.size() || d < mDecoded.size()) {
+                boolean takePending = d == mDecoded.size() || (p < mPending.size()
+                        && !comesBefore(mDecoded.getTimestamp(d), mPending.getTimestamp(p),
+                        mOldestFirst));
+                if (takePending) {
+                    mMerged.add(mPending.getTimestamp(p), mPending.getValue(p));
+                    p++;
+                } else {
+                    mMerged.add(mDecoded.getTimestamp(d), mDecoded.getValue(d));
+                    d++;
+                }
+            }
+            ScalarChunk.Points swap = mPending;
+            mPending = mMerged;
+            mMerged = swap;
+            mPendingIndex = 0;
+            return hasNext;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        @Override
+        public double getValue() {
+            return mValue;
+        }
+
+        @Override
+        public void close() {
+            mChunks.close();
+        }
+    }
+}
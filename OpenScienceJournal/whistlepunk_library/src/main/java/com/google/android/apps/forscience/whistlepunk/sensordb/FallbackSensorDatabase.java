@@ -0,0 +1,192 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.common.collect.Range;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.reactivex.Observable;
+
+/**
+ * Writes readings to one database, and reads them from it together with another that holds
+ * readings written before, such as those recorded while the other sensor storage developer option
+ * was chosen.  Nothing new is written to the fallback, but deletes apply to it too, so that
+ * deleting a trial or an experiment deletes all of its readings.
+ */
+public class FallbackSensorDatabase implements SensorDatabase {
+    // How many readings to read at once from each database when merging them.
+    private static final int PAGE_SIZE = 500;
+
+    private final SensorDatabase mPrimary;
+    private final SensorDatabase mFallback;
+    private final List<SensorDatabase> mDatabases;
+
+    public FallbackSensorDatabase(SensorDatabase primary, SensorDatabase fallback) {
+        mPrimary = primary;
+        mFallback = fallback;
+        mDatabases = Arrays.asList(primary, fallback);
+    }
+
+    @Override
+    public void addScalarReading(String sensorTag, int resolutionTier, long timestampMillis,
+            double value) {
+        mPrimary.addScalarReading(sensorTag, resolutionTier, timestampMillis, value);
+    }
+
+    @Override
+    public void addScalarReadings(ScalarReadingBatch batch) {
+        mPrimary.addScalarReadings(batch);
+    }
+
+    @Override
+    public ScalarReadingList getScalarReadings(String sensorTag, TimeRange range,
+            int resolutionTier, int maxRecords) {
+        final ScalarChunk.Points points = new ScalarChunk.Points(
+                maxRecords > 0 ? maxRecords : PAGE_SIZE);
+        ScalarPageReader reader = openScalarPageReader(new String[] {sensorTag}, range,
+                resolutionTier);
+        try {
+            ScalarReadingPage page = new ScalarReadingPage(PAGE_SIZE);
+            while ((maxRecords <= 0 || points.size() < maxRecords) && reader.readNextPage(page)) {
+                for (int i = 0; i < page.size() && (maxRecords <= 0
+                        || points.size() < maxRecords); i++) {
+                    points.add(page.getTimestampMillis(i), page.getValue(i));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new ScalarReadingList() {
+            @Override
+            public void deliver(StreamConsumer c) {
+                for (int i = 0; i < points.size(); i++) {
+                    c.addData(points.getTimestamp(i), points.getValue(i));
+                }
+            }
+
+            @Override
+            public int size() {
+                return points.size();
+            }
+
+            @Override
+            public List<ChartData.DataPoint> asDataPoints() {
+                List<ChartData.DataPoint> result = new ArrayList<>(points.size());
+                for (int i = 0; i < points.size(); i++) {
+                    result.add(new ChartData.DataPoint(points.getTimestamp(i),
+                            points.getValue(i)));
+                }
+                return result;
+            }
+        };
+    }
+
+    @Override
+    public String getFirstDatabaseTagAfter(long timestamp) {
+        TimeRange after = TimeRange.oldest(Range.greaterThan(timestamp));
+        String firstTag = null;
+        long firstTimestamp = Long.MAX_VALUE;
+        for (SensorDatabase db : mDatabases) {
+            String tag = db.getFirstDatabaseTagAfter(timestamp);
+            if (tag == null) {
+                continue;
+            }
+            List<ChartData.DataPoint> first = db.getScalarReadings(tag, after, 0, 1).asDataPoints();
+            if (!first.isEmpty() && first.get(0).getX() < firstTimestamp) {
+                firstTag = tag;
+                firstTimestamp = first.get(0).getX();
+            }
+        }
+        return firstTag;
+    }
+
+    @Override
+    public List<String> getSensorTags() {
+        Set<String> tags = new LinkedHashSet<>(mPrimary.getSensorTags());
+        tags.addAll(mFallback.getSensorTags());
+        return new ArrayList<>(tags);
+    }
+
+    @Override
+    public void deleteScalarReadings(String sensorTag, TimeRange range) {
+        mPrimary.deleteScalarReadings(sensorTag, range);
+        mFallback.deleteScalarReadings(sensorTag, range);
+    }
+
+    @Override
+    public ScalarStats getScalarStats(String sensorTag, TimeRange range) {
+        ScalarStats stats = mPrimary.getScalarStats(sensorTag, range);
+        stats.add(mFallback.getScalarStats(sensorTag, range));
+        return stats;
+    }
+
+    @Override
+    public long reclaimSpace(long maxBytes) {
+        long freed = mPrimary.reclaimSpace(maxBytes);
+        return freed > 0 ? freed : mFallback.reclaimSpace(maxBytes);
+    }
+
+    @Override
+    public void startExperimentRecording(String experimentId, long startMillis) {
+        mPrimary.startExperimentRecording(experimentId, startMillis);
+    }
+
+    @Override
+    public void stopExperimentRecording(String experimentId, Range<Long> times) {
+        mPrimary.stopExperimentRecording(experimentId, times);
+    }
+
+    @Override
+    public void deleteExperimentReadings(String experimentId) {
+        mPrimary.deleteExperimentReadings(experimentId);
+        mFallback.deleteExperimentReadings(experimentId);
+    }
+
+    @Override
+    public Observable<ScalarReading> createScalarObservable(final String[] sensorTags,
+            final TimeRange range, final int resolutionTier) {
+        return Observable.create(emitter -> {
+            ScalarPageReader reader = openScalarPageReader(sensorTags, range, resolutionTier);
+            try {
+                ScalarReadingPage page = new ScalarReadingPage(PAGE_SIZE);
+                while (!emitter.isDisposed() && reader.readNextPage(page)) {
+                    for (int i = 0; i < page.size() && !emitter.isDisposed(); i++) {
+                        emitter.onNext(new ScalarReading(page.getTimestampMillis(i),
+                                page.getValue(i), page.getSensorTag(i)));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            emitter.onComplete();
+        });
+    }
+
+    @Override
+    public ScalarPageReader openScalarPageReader(String[] sensorTags, TimeRange range,
+            int resolutionTier) {
+        return MergingPageReader.mergeDatabases(mDatabases, sensorTags, range, resolutionTier,
+                PAGE_SIZE);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.VisibleForTesting;
+
+/**
+ * Returns the pages freed by deleted readings to the file system.  SQLite otherwise keeps freed
+ * pages for reuse, so a database never shrinks after readings are deleted.
+ */
+class IncrementalVacuum {
+    // The value of PRAGMA auto_vacuum for incremental mode.
+    private static final long MODE_INCREMENTAL = 2;
+
+    /**
+     * Switching an existing database to incremental vacuuming takes a full VACUUM, which copies
+     * every page still in use and can't be stopped part way.  It is only done once no more than
+     * this much is in use, so that it never holds up the sensor data thread for long.
+     */
+    static final long MAX_CONVERSION_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Turns on incremental vacuuming.  Call from {@code onConfigure}, so that new databases are
+     * created with it; existing databases switch over in {@link #reclaim}, once they are small
+     * enough.
+     */
+    static void enable(SQLiteDatabase db) {
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+    }
+
+    /**
+     * Frees up to roughly {@code maxBytes} of unused pages.  Must not be called inside a
+     * transaction.
+     *
+     * @return the number of bytes freed; 0 once there are no unused pages left, or if they can't
+     *         be freed yet.
+     */
+    static long reclaim(SQLiteDatabase db, long maxBytes) {
+        return reclaim(db, maxBytes, MAX_CONVERSION_BYTES);
+    }
+
+    @VisibleForTesting
+    static long reclaim(SQLiteDatabase db, long maxBytes, long maxConversionBytes) {
+        long freePages = longForPragma(db, "freelist_count");
+        if (freePages == 0) {
+            return 0;
+        }
+        long pageSize = longForPragma(db, "page_size");
+        if (longForPragma(db, "auto_vacuum") != MODE_INCREMENTAL) {
+            // Created before incremental vacuuming was turned on; one full VACUUM switches it on,
+            // and frees every unused page at once.  Until then, SQLite reuses the unused pages for
+            // new readings.
+            long pagesBefore = longForPragma(db, "page_count");
+            if ((pagesBefore - freePages) * pageSize > maxConversionBytes) {
+                return 0;
+            }
+            enable(db);
+            db.execSQL("VACUUM");
+            checkpoint(db);
+            return (pagesBefore - longForPragma(db, "page_count")) * pageSize;
+        }
+
+        long maxPages = Math.max(1, maxBytes / pageSize);
+        // Each step of the statement frees one page, so it has to be read to the end.
+        readToEnd(db, "PRAGMA incremental_vacuum(" + maxPages + ")");
+        checkpoint(db);
+        return (freePages - longForPragma(db, "freelist_count")) * pageSize;
+    }
+
+    /**
+     * With write-ahead logging, the file only shrinks once the log is copied back into it.
+     */
+    private static void checkpoint(SQLiteDatabase db) {
+        if (db.isWriteAheadLoggingEnabled()) {
+            readToEnd(db, "PRAGMA wal_checkpoint(RESTART)");
+        }
+    }
+
+    private static void readToEnd(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                // Nothing to read.
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long longForPragma(SQLiteDatabase db, String pragma) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA " + pragma, null);
+    }
+}
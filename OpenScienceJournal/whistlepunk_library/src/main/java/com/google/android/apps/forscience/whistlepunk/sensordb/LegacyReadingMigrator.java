@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import android.database.SQLException;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Moves readings stored before the tag dictionary was introduced into the current table, one
+ * batch per task on the sensor data thread.  Because each batch re-queues itself, recording and
+ * reads queued on the same thread run between batches instead of waiting for the whole upgrade.
+ */
+public class LegacyReadingMigrator {
+    private static final String TAG = "LegacyReadingMigrator";
+
+    public static final int DEFAULT_BATCH_SIZE = 2000;
+
+    public interface ProgressListener {
+        /**
+         * Called on the sensor data thread after each batch.
+         */
+        void onProgress(long migratedReadings, long totalReadings);
+
+        /**
+         * Called on the sensor data thread once no readings remain in the old format.
+         */
+        void onComplete(long totalReadings);
+    }
+
+    private final SensorDatabaseImpl mDatabase;
+    private final Executor mSensorDataThread;
+    private final int mBatchSize;
+    private final ProgressListener mListener;
+
+    private long mTotalReadings = -1;
+    private long mMigratedReadings = 0;
+
+    /**
+     * @param sensorDataThread must be the executor all other access to {@code database} uses.
+     */
+    public LegacyReadingMigrator(SensorDatabaseImpl database, Executor sensorDataThread,
+            int batchSize, ProgressListener listener) {
+        mDatabase = database;
+        mSensorDataThread = sensorDataThread;
+        mBatchSize = batchSize;
+        mListener = listener;
+    }
+
+    public void start() {
+        mSensorDataThread.execute(this::migrateBatch);
+    }
+
+    private void migrateBatch() {
+        try {
+            if (mTotalReadings < 0) {
+                mTotalReadings = mDatabase.countLegacyReadings();
+            }
+            int moved = mDatabase.migrateLegacyReadings(mBatchSize);
+            if (moved == 0) {
+                mListener.onComplete(mTotalReadings);
+                return;
+            }
+            mMigratedReadings += moved;
+            mListener.onProgress(mMigratedReadings, mTotalReadings);
+        } catch (SQLException e) {
+            // Old readings are still readable where they are; try again next time the app starts.
+            Log.e(TAG, "Migration stopped after " + mMigratedReadings + " readings", e);
+            return;
+        }
+        mSensorDataThread.execute(this::migrateBatch);
+    }
+}
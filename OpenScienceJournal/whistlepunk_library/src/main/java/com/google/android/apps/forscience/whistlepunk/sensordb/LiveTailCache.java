@@ -0,0 +1,335 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the last few minutes of each recording sensor's readings in memory, at each zoom tier, so
+ * that reloading a live chart, or reviewing a trial that is still recording, doesn't wait for
+ * those readings to be written and read back.
+ *
+ * A tier's tail holds every reading added since it started, back to whichever is later:
+ * {@code windowMillis} before its newest reading, or the oldest reading its ring has room for.
+ * A request is answered from the tail only if every timestamp it asks for is at or after that
+ * point, so the answer is the same one the database would give.  A tail can't know what the
+ * database had before it started (from an earlier run of the app, say), so it only covers times
+ * after its first reading.
+ *
+ * Readings must be added in time order for each sensor and tier, as the zoom tiers'
+ * summarizers write them; one that goes back in time restarts that tier's tail.  Whatever deletes readings must {@link #invalidate} their sensor,
+ * both when the delete is requested and after it is done.
+ *
+ * Each ring is allocated in full when its sensor first records at its tier, so adding a reading
+ * allocates nothing.  Tier 0 has {@code tierZeroSlots} slots, each tier above it a quarter as
+ * many, down to {@link #MIN_TIER_SLOTS}, and tiers from {@link #MAX_TIERS} up aren't kept.  At
+ * 16 bytes a slot, the defaults come to about 350 KB per sensor, and under 3 MB in all.  When
+ * {@code maxSensors} sensors have tails, a new sensor only gets one by replacing a sensor that
+ * hasn't recorded within the window.
+ */
+public class LiveTailCache {
+    public static final long DEFAULT_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    // Five minutes at 50 readings a second.
+    public static final int DEFAULT_TIER_ZERO_SLOTS = 1 << 14;
+    public static final int DEFAULT_MAX_SENSORS = 8;
+
+    static final int MAX_TIERS = 6;
+    static final int MIN_TIER_SLOTS = 256;
+
+    private final long mWindowMillis;
+    private final int mTierZeroSlots;
+    private final int mMaxSensors;
+    private final Map<String, Tail> mTails = new ConcurrentHashMap<>();
+
+    public LiveTailCache() {
+        this(DEFAULT_WINDOW_MILLIS, DEFAULT_TIER_ZERO_SLOTS, DEFAULT_MAX_SENSORS);
+    }
+
+    /**
+     * @param tierZeroSlots rounded up to a power of two
+     * @param maxSensors    0 to keep nothing
+     */
+    public LiveTailCache(long windowMillis, int tierZeroSlots, int maxSensors) {
+        mWindowMillis = windowMillis;
+        mTierZeroSlots = tierZeroSlots;
+        mMaxSensors = maxSensors;
+    }
+
+    /**
+     * Adds a reading to its sensor's tail.  May be called from any thread, but each sensor's
+     * readings should come from one thread at a time, so that they stay in order.
+     */
+    public void add(String sensorTag, int resolutionTier, long timestampMillis, double value) {
+        if (resolutionTier >= MAX_TIERS) {
+            return;
+        }
+        Tail tail = mTails.get(sensorTag);
+        if (tail == null) {
+            tail = startTail(sensorTag, timestampMillis);
+            if (tail == null) {
+                return;
+            }
+        }
+        tail.add(resolutionTier, timestampMillis, value);
+    }
+
+    /**
+     * @return the readings the database would return for the same request, or null if the
+     * sensor's tail doesn't cover {@code range}
+     */
+    public ScalarReadingList getScalarReadings(String sensorTag, int resolutionTier,
+            TimeRange range, int maxRecords) {
+        Tail tail = mTails.get(sensorTag);
+        return tail == null ? null : tail.read(resolutionTier, range, maxRecords);
+    }
+
+    /**
+     * Fills {@code page} with the first page of readings the database would return for the same
+     * request.
+     *
+     * @return false, leaving {@code page} as it was, if the sensor's tail doesn't cover
+     * {@code range}
+     */
+    public boolean readPage(String sensorTag, int resolutionTier, TimeRange range,
+            ScalarReadingPage page) {
+        Tail tail = mTails.get(sensorTag);
+        return tail != null && tail.readPage(sensorTag, resolutionTier, range, page);
+    }
+
+    /**
+     * Forgets everything kept for {@code sensorTag}.
+     */
+    public void invalidate(String sensorTag) {
+        mTails.remove(sensorTag);
+    }
+
+    public void invalidateAll() {
+        mTails.clear();
+    }
+
+    private Tail startTail(String sensorTag, long timestampMillis) {
+        synchronized (mTails) {
+            Tail tail = mTails.get(sensorTag);
+            if (tail != null) {
+                return tail;
+            }
+            if (mTails.size() >= mMaxSensors) {
+                // Make room only by replacing a sensor that has stopped recording, so that more
+                // sensors than fit don't take turns replacing each other.
+                String stalest = null;
+                long stalestMillis = timestampMillis - mWindowMillis;
+                for (Map.Entry<String, Tail> entry : mTails.entrySet()) {
+                    if (entry.getValue().mNewestMillis < stalestMillis) {
+                        stalest = entry.getKey();
+                        stalestMillis = entry.getValue().mNewestMillis;
+                    }
+                }
+                if (stalest == null) {
+                    return null;
+                }
+                mTails.remove(stalest);
+            }
+            tail = new Tail();
+            mTails.put(sensorTag, tail);
+            return tail;
+        }
+    }
+
+    private int slotsForTier(int resolutionTier) {
+        return Math.max(Math.min(MIN_TIER_SLOTS, mTierZeroSlots),
+                mTierZeroSlots >> (2 * resolutionTier));
+    }
+
+    /**
+     * One sensor's tails, one per tier.  Readings are added and read under the tail's lock.
+     */
+    private class Tail {
+        private final TierRing[] mRings = new TierRing[MAX_TIERS];
+        volatile long mNewestMillis = Long.MIN_VALUE;
+
+        synchronized void add(int resolutionTier, long timestampMillis, double value) {
+            TierRing ring = mRings[resolutionTier];
+            if (ring == null) {
+                ring = new TierRing(slotsForTier(resolutionTier));
+                mRings[resolutionTier] = ring;
+            }
+            ring.add(timestampMillis, value, mWindowMillis);
+            if (timestampMillis > mNewestMillis) {
+                mNewestMillis = timestampMillis;
+            }
+        }
+
+        synchronized ScalarReadingList read(int resolutionTier, TimeRange range, int maxRecords) {
+            TierRing ring = mRings[resolutionTier];
+            if (ring == null || !ring.covers(range)) {
+                return null;
+            }
+            long first = ring.lowerBound(range.getFirstIncludedMillis());
+            long end = ring.upperBound(range.getLastIncludedMillis());
+            int count = (int) Math.max(0, end - first);
+            if (maxRecords > 0 && count > maxRecords) {
+                count = maxRecords;
+            }
+            long[] timestamps = new long[count];
+            double[] values = new double[count];
+            boolean oldestFirst = range.getOrder() == TimeRange.ObservationOrder.OLDEST_FIRST;
+            for (int i = 0; i < count; i++) {
+                int slot = ring.slot(oldestFirst ? first + i : end - 1 - i);
+                timestamps[i] = ring.mTimestamps[slot];
+                values[i] = ring.mValues[slot];
+            }
+            return new ArrayReadingList(timestamps, values);
+        }
+
+        synchronized boolean readPage(String sensorTag, int resolutionTier, TimeRange range,
+                ScalarReadingPage page) {
+            TierRing ring = mRings[resolutionTier];
+            if (ring == null || !ring.covers(range)) {
+                return false;
+            }
+            long first = ring.lowerBound(range.getFirstIncludedMillis());
+            long end = ring.upperBound(range.getLastIncludedMillis());
+            boolean oldestFirst = range.getOrder() == TimeRange.ObservationOrder.OLDEST_FIRST;
+            page.clear();
+            for (long i = 0; i < end - first && !page.isFull(); i++) {
+                int slot = ring.slot(oldestFirst ? first + i : end - 1 - i);
+                page.add(ring.mTimestamps[slot], ring.mValues[slot], sensorTag);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The newest readings at one tier, oldest first, in a ring of primitive slots.  Positions
+     * count up forever; a position's slot is its low bits.
+     */
+    private static class TierRing {
+        final long[] mTimestamps;
+        final double[] mValues;
+        private final int mMask;
+        private long mHead = 0;
+        private long mTail = 0;
+        // The tail has every reading at or after this; Long.MAX_VALUE before the first reading.
+        private long mCoveredFromMillis = Long.MAX_VALUE;
+
+        TierRing(int slots) {
+            int size = Integer.highestOneBit(Math.max(2, slots) - 1) << 1;
+            mTimestamps = new long[size];
+            mValues = new double[size];
+            mMask = size - 1;
+        }
+
+        int slot(long position) {
+            return (int) (position & mMask);
+        }
+
+        void add(long timestampMillis, double value, long windowMillis) {
+            if (mTail > mHead && timestampMillis < mTimestamps[slot(mTail - 1)]) {
+                // Out of order: start again from here.
+                mHead = mTail;
+                mCoveredFromMillis = Long.MAX_VALUE;
+            }
+            if (mCoveredFromMillis == Long.MAX_VALUE) {
+                mCoveredFromMillis = timestampMillis + 1;
+            }
+            if (mTail - mHead == mTimestamps.length) {
+                evictOldest();
+            }
+            int slot = slot(mTail);
+            mTimestamps[slot] = timestampMillis;
+            mValues[slot] = value;
+            mTail++;
+            long oldestKept = timestampMillis - windowMillis;
+            while (mTimestamps[slot(mHead)] < oldestKept) {
+                evictOldest();
+            }
+        }
+
+        private void evictOldest() {
+            mCoveredFromMillis = Math.max(mCoveredFromMillis, mTimestamps[slot(mHead)] + 1);
+            mHead++;
+        }
+
+        boolean covers(TimeRange range) {
+            return mCoveredFromMillis != Long.MAX_VALUE
+                    && range.getFirstIncludedMillis() >= mCoveredFromMillis;
+        }
+
+        /**
+         * @return the first position whose timestamp is after {@code timestampMillis}, but not
+         * before {@link #mHead}
+         */
+        long upperBound(long timestampMillis) {
+            return timestampMillis == Long.MAX_VALUE ? mTail : lowerBound(timestampMillis + 1);
+        }
+
+        /**
+         * @return the first position whose timestamp is at least {@code timestampMillis}
+         */
+        long lowerBound(long timestampMillis) {
+            long low = mHead;
+            long high = mTail;
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                if (mTimestamps[slot(mid)] < timestampMillis) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private static class ArrayReadingList implements ScalarReadingList {
+        private final long[] mTimestamps;
+        private final double[] mValues;
+
+        ArrayReadingList(long[] timestamps, double[] values) {
+            mTimestamps = timestamps;
+            mValues = values;
+        }
+
+        @Override
+        public void deliver(StreamConsumer c) {
+            for (int i = 0; i < mTimestamps.length; i++) {
+                c.addData(mTimestamps[i], mValues[i]);
+            }
+        }
+
+        @Override
+        public int size() {
+            return mTimestamps.length;
+        }
+
+        @Override
+        public List<ChartData.DataPoint> asDataPoints() {
+            List<ChartData.DataPoint> result = new ArrayList<>(mTimestamps.length);
+            for (int i = 0; i < mTimestamps.length; i++) {
+                result.add(new ChartData.DataPoint(mTimestamps[i], mValues[i]));
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Merges several series of readings, each already in the range's order, into one.  The series
+ * are kept in a heap keyed on each one's next timestamp, so taking a reading costs O(log k) for k
+ * series however many sensors are read together.
+ *
+ * Readings at the same timestamp come in the order their series were added.
+ */
+class MergingPageReader implements ScalarPageReader {
+    /**
+     * One sensor's readings, in the range's order.
+     */
+    interface Series {
+        /**
+         * @return false if there are no more readings.
+         */
+        boolean moveToNext();
+
+        long getTimestamp();
+
+        double getValue();
+
+        void close();
+    }
+
+    /**
+     * Reads one database's readings of one sensor a page at a time, for merging with others.
+     */
+    static class PageSeries implements Series {
+        private final ScalarPageReader mReader;
+        private final ScalarReadingPage mPage;
+        private int mIndex = 0;
+
+        PageSeries(ScalarPageReader reader, int pageSize) {
+            mReader = reader;
+            mPage = new ScalarReadingPage(pageSize);
+        }
+
+        @Override
+        public boolean moveToNext() {
+            if (mIndex + 1 < mPage.size()) {
+                mIndex++;
+                return true;
+            }
+            mIndex = 0;
+            return mReader.readNextPage(mPage);
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mPage.getTimestampMillis(mIndex);
+        }
+
+        @Override
+        public double getValue() {
+            return mPage.getValue(mIndex);
+        }
+
+        @Override
+        public void close() {
+            mReader.close();
+        }
+    }
+
+    /**
+     * @return a reader of each of {@code sensorTags}' readings in every one of {@code databases},
+     * reading {@code pageSize} at a time from each
+     */
+    static MergingPageReader mergeDatabases(List<SensorDatabase> databases, String[] sensorTags,
+            TimeRange range, int resolutionTier, int pageSize) {
+        // Adding each tag's series in turn keeps readings at the same timestamp in tag order.
+        MergingPageReader reader = new MergingPageReader(range);
+        try {
+            for (String sensorTag : sensorTags) {
+                String[] tags = new String[] {sensorTag};
+                for (SensorDatabase db : databases) {
+                    reader.addSeries(sensorTag, new PageSeries(
+                            db.openScalarPageReader(tags, range, resolutionTier), pageSize));
+                }
+            }
+        } catch (RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+        return reader;
+    }
+
+    private final boolean mOldestFirst;
+    private Series[] mSeries = new Series[4];
+    private String[] mTags = new String[4];
+    private int mSeriesCount = 0;
+
+    // Indexes into mSeries of the series that still have a current reading, as a binary heap.
+    private int[] mHeap = new int[4];
+    private int mHeapSize = 0;
+
+    MergingPageReader(TimeRange range) {
+        mOldestFirst = range.getOrder() == TimeRange.ObservationOrder.OLDEST_FIRST;
+    }
+
+    /**
+     * Adds a series to the merge, labelling its readings with {@code sensorTag}.  The reader
+     * takes ownership of it, closing it when the reader is closed.
+     */
+    void addSeries(String sensorTag, Series series) {
+        if (mSeriesCount == mSeries.length) {
+            mSeries = Arrays.copyOf(mSeries, mSeriesCount * 2);
+            mTags = Arrays.copyOf(mTags, mSeriesCount * 2);
+            mHeap = Arrays.copyOf(mHeap, mSeriesCount * 2);
+        }
+        int index = mSeriesCount++;
+        mSeries[index] = series;
+        mTags[index] = sensorTag;
+        if (series.moveToNext()) {
+            int position = mHeapSize++;
+            mHeap[position] = index;
+            siftUp(position);
+        }
+    }
+
+    @Override
+    public boolean readNextPage(ScalarReadingPage page) {
+        page.clear();
+        while (!page.isFull() && mHeapSize > 0) {
+            int next = mHeap[0];
+            Series series = mSeries[next];
+            page.add(series.getTimestamp(), series.getValue(), mTags[next]);
+            if (!series.moveToNext()) {
+                mHeap[0] = mHeap[--mHeapSize];
+            }
+            siftDown(0);
+        }
+        return !page.isEmpty();
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < mSeriesCount; i++) {
+            if (mSeries[i] != null) {
+                mSeries[i].close();
+                mSeries[i] = null;
+            }
+        }
+        mHeapSize = 0;
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (!comesBefore(mHeap[position], mHeap[parent])) {
+                return;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int first = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if (left < mHeapSize && comesBefore(mHeap[left], mHeap[first])) {
+                first = left;
+            }
+            if (right < mHeapSize && comesBefore(mHeap[right], mHeap[first])) {
+                first = right;
+            }
+            if (first == position) {
+                return;
+            }
+            swap(position, first);
+            position = first;
+        }
+    }
+
+    private boolean comesBefore(int series, int other) {
+        long timestamp = mSeries[series].getTimestamp();
+        long otherTimestamp = mSeries[other].getTimestamp();
+        if (timestamp == otherTimestamp) {
+            return series < other;
+        }
+        return mOldestFirst ? timestamp < otherTimestamp : timestamp > otherTimestamp;
+    }
+
+    private void swap(int position, int other) {
+        int swap = mHeap[position];
+        mHeap[position] = mHeap[other];
+        mHeap[other] = swap;
+    }
+}
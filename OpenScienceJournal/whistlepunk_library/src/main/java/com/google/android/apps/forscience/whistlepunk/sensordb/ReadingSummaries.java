@@ -0,0 +1,410 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps {@link ScalarStats} for each sensor's full-resolution readings in fixed time buckets, at
+ * several levels: each level's buckets are {@link #FANOUT} times as wide as the level below.
+ * Stats for any range then come from at most a couple of dozen buckets per level, plus the raw
+ * readings in the partial buckets at either end, however long the range is.
+ *
+ * Buckets are kept up to date as readings are written and deleted, in the same transaction.
+ * Only the writer may call the methods that change them.
+ */
+class ReadingSummaries {
+    static final String NAME = "reading_summaries";
+
+    static class Column {
+        static final String TAG_ID = "tagId";
+        static final String LEVEL = "level";
+        static final String BUCKET_START_MILLIS = "bucketStartMillis";
+        static final String COUNT = "count";
+        static final String SUM = "sum";
+        static final String SUM_OF_SQUARES = "sumOfSquares";
+        static final String MIN = "min";
+        static final String MAX = "max";
+        static final String FIRST_TIMESTAMP_MILLIS = "firstTimestampMillis";
+        static final String FIRST_VALUE = "firstValue";
+        static final String LAST_TIMESTAMP_MILLIS = "lastTimestampMillis";
+        static final String LAST_VALUE = "lastValue";
+    }
+
+    static final String CREATION_SQL = "CREATE TABLE " + NAME + " (" + Column.TAG_ID
+            + " INTEGER NOT NULL, " + Column.LEVEL + " INTEGER NOT NULL, "
+            + Column.BUCKET_START_MILLIS + " INTEGER NOT NULL, " + Column.COUNT
+            + " INTEGER NOT NULL, " + Column.SUM + " REAL NOT NULL, " + Column.SUM_OF_SQUARES
+            + " REAL NOT NULL, " + Column.MIN + " REAL NOT NULL, " + Column.MAX
+            + " REAL NOT NULL, " + Column.FIRST_TIMESTAMP_MILLIS + " INTEGER NOT NULL, "
+            + Column.FIRST_VALUE + " REAL NOT NULL, " + Column.LAST_TIMESTAMP_MILLIS
+            + " INTEGER NOT NULL, " + Column.LAST_VALUE + " REAL NOT NULL, PRIMARY KEY ("
+            + Column.TAG_ID + ", " + Column.LEVEL + ", " + Column.BUCKET_START_MILLIS + "));";
+
+    // The insert and the update bind the same numbered parameters, so one binding serves both.
+    private static final String INSERT_SQL = "INSERT INTO " + NAME + " (" + Column.TAG_ID + ", "
+            + Column.LEVEL + ", " + Column.BUCKET_START_MILLIS + ", " + Column.COUNT + ", "
+            + Column.SUM + ", " + Column.SUM_OF_SQUARES + ", " + Column.MIN + ", " + Column.MAX
+            + ", " + Column.FIRST_TIMESTAMP_MILLIS + ", " + Column.FIRST_VALUE + ", "
+            + Column.LAST_TIMESTAMP_MILLIS + ", " + Column.LAST_VALUE
+            + ") VALUES (?1, ?2, ?3, ?4, ?5, ?6, ?7, ?8, ?9, ?10, ?11, ?12);";
+
+    // SQLite computes every new value from the row as it was, so the endpoint values can be
+    // compared against the old endpoint timestamps before those are replaced.
+    private static final String UPDATE_SQL = "UPDATE " + NAME + " SET "
+            + Column.COUNT + " = " + Column.COUNT + " + ?4, "
+            + Column.SUM + " = " + Column.SUM + " + ?5, "
+            + Column.SUM_OF_SQUARES + " = " + Column.SUM_OF_SQUARES + " + ?6, "
+            + Column.MIN + " = MIN(" + Column.MIN + ", ?7), "
+            + Column.MAX + " = MAX(" + Column.MAX + ", ?8), "
+            + Column.FIRST_VALUE + " = CASE WHEN ?9 < " + Column.FIRST_TIMESTAMP_MILLIS
+            + " OR (?9 = " + Column.FIRST_TIMESTAMP_MILLIS + " AND ?10 < " + Column.FIRST_VALUE
+            + ") THEN ?10 ELSE " + Column.FIRST_VALUE + " END, "
+            + Column.FIRST_TIMESTAMP_MILLIS + " = MIN(" + Column.FIRST_TIMESTAMP_MILLIS + ", ?9), "
+            + Column.LAST_VALUE + " = CASE WHEN ?11 > " + Column.LAST_TIMESTAMP_MILLIS
+            + " OR (?11 = " + Column.LAST_TIMESTAMP_MILLIS + " AND ?12 > " + Column.LAST_VALUE
+            + ") THEN ?12 ELSE " + Column.LAST_VALUE + " END, "
+            + Column.LAST_TIMESTAMP_MILLIS + " = MAX(" + Column.LAST_TIMESTAMP_MILLIS + ", ?11)"
+            + " WHERE " + Column.TAG_ID + " = ?1 AND " + Column.LEVEL + " = ?2 AND "
+            + Column.BUCKET_START_MILLIS + " = ?3;";
+
+    private static final String[] STATS_COLUMNS = new String[]{Column.COUNT, Column.SUM,
+            Column.SUM_OF_SQUARES, Column.MIN, Column.MAX, Column.FIRST_TIMESTAMP_MILLIS,
+            Column.FIRST_VALUE, Column.LAST_TIMESTAMP_MILLIS, Column.LAST_VALUE};
+
+    private static final String BUCKETS_SELECTION = Column.TAG_ID + " = ? AND " + Column.LEVEL
+            + " = ? AND " + Column.BUCKET_START_MILLIS + " >= ? AND "
+            + Column.BUCKET_START_MILLIS + " < ?";
+
+    // A bit over 4 seconds: at 100 readings a second, the partial buckets at each end of a range
+    // hold a few hundred readings at most, and slow sensors don't get a bucket per reading.
+    static final long BASE_BUCKET_MILLIS = 4096;
+    static final int FANOUT = 16;
+    // The top level's buckets are about three days wide.
+    static final int LEVELS = 5;
+
+    /**
+     * Where level 0's buckets come from.
+     */
+    interface Readings {
+        /**
+         * Adds the full-resolution readings of {@code tagId} from {@code fromMillis} (inclusive)
+         * to {@code toMillis} (exclusive) to {@code stats}.
+         */
+        void addTo(SQLiteDatabase db, long tagId, long fromMillis, long toMillis,
+                ScalarStats stats);
+    }
+
+    private final Readings mReadings;
+
+    // Level 0 stats for readings written since the last flush.
+    private final Map<Bucket, ScalarStats> mPending = new HashMap<>();
+
+    // Consecutive readings almost always land in the same bucket; this skips the map lookup.
+    private Bucket mLastBucket;
+    private ScalarStats mLastStats;
+
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mUpdateStatement;
+    private SQLiteDatabase mStatementDatabase;
+
+    ReadingSummaries(Readings readings) {
+        mReadings = readings;
+    }
+
+    static long bucketWidthMillis(int level) {
+        long width = BASE_BUCKET_MILLIS;
+        for (int i = 0; i < level; i++) {
+            width *= FANOUT;
+        }
+        return width;
+    }
+
+    private static long floor(long timestampMillis, long width) {
+        long offset = timestampMillis % width;
+        return offset < 0 ? timestampMillis - offset - width : timestampMillis - offset;
+    }
+
+    private static long ceil(long timestampMillis, long width) {
+        long floor = floor(timestampMillis, width);
+        return floor == timestampMillis ? floor : floor + width;
+    }
+
+    /**
+     * Notes a full-resolution reading, to be added to the stored buckets by the next
+     * {@link #flush}.
+     */
+    void add(long tagId, long timestampMillis, double value) {
+        long start = floor(timestampMillis, BASE_BUCKET_MILLIS);
+        if (mLastBucket == null || mLastBucket.mTagId != tagId || mLastBucket.mStart != start) {
+            mLastBucket = new Bucket(tagId, 0, start);
+            mLastStats = mPending.get(mLastBucket);
+            if (mLastStats == null) {
+                mLastStats = new ScalarStats();
+                mPending.put(mLastBucket, mLastStats);
+            }
+        }
+        mLastStats.add(timestampMillis, value);
+    }
+
+    /**
+     * Adds the readings noted since the last call to the stored buckets, at every level.  Call
+     * inside the transaction that wrote the readings.
+     */
+    void flush(SQLiteDatabase db) {
+        Map<Bucket, ScalarStats> level = mPending;
+        for (int i = 0; i < LEVELS && !level.isEmpty(); i++) {
+            Map<Bucket, ScalarStats> parents = new HashMap<>();
+            for (Map.Entry<Bucket, ScalarStats> entry : level.entrySet()) {
+                merge(db, entry.getKey(), entry.getValue());
+                Bucket parent = entry.getKey().getParent();
+                ScalarStats parentStats = parents.get(parent);
+                if (parentStats == null) {
+                    parentStats = new ScalarStats();
+                    parents.put(parent, parentStats);
+                }
+                parentStats.add(entry.getValue());
+            }
+            level = parents;
+        }
+        discard();
+    }
+
+    /**
+     * Forgets readings noted since the last flush, when their transaction has failed.
+     */
+    void discard() {
+        mPending.clear();
+        mLastBucket = null;
+        mLastStats = null;
+    }
+
+    private void merge(SQLiteDatabase db, Bucket bucket, ScalarStats stats) {
+        if (mStatementDatabase != db) {
+            mInsertStatement = db.compileStatement(INSERT_SQL);
+            mUpdateStatement = db.compileStatement(UPDATE_SQL);
+            mStatementDatabase = db;
+        }
+        bind(mUpdateStatement, bucket, stats);
+        if (mUpdateStatement.executeUpdateDelete() == 0) {
+            bind(mInsertStatement, bucket, stats);
+            mInsertStatement.executeInsert();
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, Bucket bucket, ScalarStats stats) {
+        statement.bindLong(1, bucket.mTagId);
+        statement.bindLong(2, bucket.mLevel);
+        statement.bindLong(3, bucket.mStart);
+        statement.bindLong(4, stats.getCount());
+        statement.bindDouble(5, stats.getSum());
+        statement.bindDouble(6, stats.getSumOfSquares());
+        statement.bindDouble(7, stats.getMin());
+        statement.bindDouble(8, stats.getMax());
+        statement.bindLong(9, stats.getFirstTimestampMillis());
+        statement.bindDouble(10, stats.getFirstValue());
+        statement.bindLong(11, stats.getLastTimestampMillis());
+        statement.bindDouble(12, stats.getLastValue());
+    }
+
+    /**
+     * Brings the buckets up to date after the full-resolution readings of {@code tagId} from
+     * {@code firstMillis} to {@code lastMillis} (both inclusive) were deleted.  Buckets wholly
+     * inside the range are dropped; the one or two it cuts through are recomputed, level 0 from
+     * the readings left and each level above from the level below.
+     */
+    void onDelete(SQLiteDatabase db, long tagId, long firstMillis, long lastMillis) {
+        long[] range = clampToStored(db, tagId, firstMillis, lastMillis);
+        if (range == null) {
+            return;
+        }
+        long from = range[0];
+        long to = range[1];
+        for (int level = 0; level < LEVELS; level++) {
+            long width = bucketWidthMillis(level);
+            long wholeFrom = ceil(from, width);
+            long wholeTo = floor(to, width);
+            if (wholeFrom < wholeTo) {
+                deleteBuckets(db, tagId, level, wholeFrom, wholeTo);
+            }
+            long firstCut = floor(from, width);
+            boolean firstIsCut = firstCut < from;
+            if (firstIsCut) {
+                recompute(db, new Bucket(tagId, level, firstCut));
+            }
+            long lastCut = floor(to, width);
+            if (lastCut < to && !(firstIsCut && lastCut == firstCut)) {
+                recompute(db, new Bucket(tagId, level, lastCut));
+            }
+        }
+    }
+
+    private void recompute(SQLiteDatabase db, Bucket bucket) {
+        long width = bucketWidthMillis(bucket.mLevel);
+        ScalarStats stats = new ScalarStats();
+        if (bucket.mLevel == 0) {
+            mReadings.addTo(db, bucket.mTagId, bucket.mStart, bucket.mStart + width, stats);
+        } else {
+            addBuckets(db, bucket.mTagId, bucket.mLevel - 1, bucket.mStart,
+                    bucket.mStart + width, stats);
+        }
+        deleteBuckets(db, bucket.mTagId, bucket.mLevel, bucket.mStart, bucket.mStart + width);
+        if (!stats.isEmpty()) {
+            merge(db, bucket, stats);
+        }
+    }
+
+    private static void deleteBuckets(SQLiteDatabase db, long tagId, int level, long fromMillis,
+            long toMillis) {
+        db.delete(NAME, BUCKETS_SELECTION, bucketArgs(tagId, level, fromMillis, toMillis));
+    }
+
+    /**
+     * @return stats for the full-resolution readings of {@code tagId} from {@code firstMillis} to
+     * {@code lastMillis}, both inclusive.
+     */
+    ScalarStats query(SQLiteDatabase db, long tagId, long firstMillis, long lastMillis) {
+        ScalarStats stats = new ScalarStats();
+        long[] range = clampToStored(db, tagId, firstMillis, lastMillis);
+        if (range == null) {
+            return stats;
+        }
+        long from = range[0];
+        long to = range[1];
+
+        // Peel off what doesn't fill a whole bucket of the next level up, from both ends, until
+        // nothing is left in the middle.
+        long width = BASE_BUCKET_MILLIS;
+        long alignedFrom = Math.min(ceil(from, width), to);
+        long alignedTo = Math.max(floor(to, width), alignedFrom);
+        addReadings(db, tagId, from, alignedFrom, stats);
+        addReadings(db, tagId, alignedTo, to, stats);
+        from = alignedFrom;
+        to = alignedTo;
+        for (int level = 0; level < LEVELS && from < to; level++) {
+            if (level + 1 < LEVELS) {
+                width = bucketWidthMillis(level + 1);
+                alignedFrom = Math.min(ceil(from, width), to);
+                alignedTo = Math.max(floor(to, width), alignedFrom);
+            } else {
+                alignedFrom = alignedTo = to;
+            }
+            addBuckets(db, tagId, level, from, alignedFrom, stats);
+            addBuckets(db, tagId, level, alignedTo, to, stats);
+            from = alignedFrom;
+            to = alignedTo;
+        }
+        return stats;
+    }
+
+    private void addReadings(SQLiteDatabase db, long tagId, long fromMillis, long toMillis,
+            ScalarStats stats) {
+        if (fromMillis < toMillis) {
+            mReadings.addTo(db, tagId, fromMillis, toMillis, stats);
+        }
+    }
+
+    private static void addBuckets(SQLiteDatabase db, long tagId, int level, long fromMillis,
+            long toMillis, ScalarStats stats) {
+        if (fromMillis >= toMillis) {
+            return;
+        }
+        Cursor cursor = db.query(NAME, STATS_COLUMNS, BUCKETS_SELECTION,
+                bucketArgs(tagId, level, fromMillis, toMillis), null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                stats.add(cursor.getLong(0), cursor.getDouble(1), cursor.getDouble(2),
+                        cursor.getDouble(3), cursor.getDouble(4), cursor.getLong(5),
+                        cursor.getDouble(6), cursor.getLong(7), cursor.getDouble(8));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Narrows an inclusive range to the top-level buckets that exist, which also keeps the
+     * arithmetic above clear of overflow for unbounded ranges.
+     *
+     * @return the narrowed range as {from (inclusive), to (exclusive)}, or null if there are no
+     * readings in it.
+     */
+    private static long[] clampToStored(SQLiteDatabase db, long tagId, long firstMillis,
+            long lastMillis) {
+        Cursor cursor = db.rawQuery("SELECT MIN(" + Column.BUCKET_START_MILLIS + "), MAX("
+                + Column.BUCKET_START_MILLIS + ") FROM " + NAME + " WHERE " + Column.TAG_ID
+                + " = ? AND " + Column.LEVEL + " = ?",
+                new String[]{String.valueOf(tagId), String.valueOf(LEVELS - 1)});
+        try {
+            if (!cursor.moveToNext() || cursor.isNull(0)) {
+                return null;
+            }
+            long from = Math.max(firstMillis, cursor.getLong(0));
+            long last = Math.min(lastMillis,
+                    cursor.getLong(1) + bucketWidthMillis(LEVELS - 1) - 1);
+            return from <= last ? new long[]{from, last + 1} : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String[] bucketArgs(long tagId, int level, long fromMillis, long toMillis) {
+        return new String[]{String.valueOf(tagId), String.valueOf(level),
+                String.valueOf(fromMillis), String.valueOf(toMillis)};
+    }
+
+    private static class Bucket {
+        final long mTagId;
+        final int mLevel;
+        final long mStart;
+
+        Bucket(long tagId, int level, long start) {
+            mTagId = tagId;
+            mLevel = level;
+            mStart = start;
+        }
+
+        Bucket getParent() {
+            return new Bucket(mTagId, mLevel + 1, floor(mStart, bucketWidthMillis(mLevel + 1)));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Bucket that = (Bucket) o;
+            return mTagId == that.mTagId && mLevel == that.mLevel && mStart == that.mStart;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (mTagId ^ (mTagId >>> 32));
+            result = 31 * result + mLevel;
+            result = 31 * result + (int) (mStart ^ (mStart >>> 32));
+            return result;
+        }
+    }
+}
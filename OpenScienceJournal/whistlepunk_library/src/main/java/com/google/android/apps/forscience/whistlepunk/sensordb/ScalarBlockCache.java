@@ -0,0 +1,488 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
+import com.google.common.collect.Range;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps blocks of already-recorded readings in memory, so that panning or zooming back over part
+ * of a run that was just shown doesn't read it from the database again.
+ *
+ * Each tier's timeline is cut into aligned blocks: {@code tierZeroBlockMillis} long at tier 0,
+ * and {@code zoomLevelBetweenTiers} times longer at each tier above, so that a block holds about
+ * as many readings at every tier.  A block is kept by sensor tag, tier and index; readings are
+ * stored by tag and time, so blocks from different trials of the same sensor never overlap.  The
+ * least recently used blocks are dropped to stay under {@code maxBytes}, counting 16 bytes a
+ * reading.
+ *
+ * Only blocks that end before the time a read is requested are loaded, since later ones may still
+ * be recording.  A reading added later at a time that has been read (a late sensor timestamp, or
+ * a summary at a higher tier) must be passed to {@link #noteReading}, which drops its block and
+ * keeps loads already under way from being kept.  Whatever deletes readings must
+ * {@link #invalidate} their sensor, both when the delete is requested and after it is done.
+ */
+public class ScalarBlockCache {
+    public static final long DEFAULT_TIER_ZERO_BLOCK_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    static final int BYTES_PER_READING = 16;
+    private static final int BYTES_PER_BLOCK = 64;
+
+    /**
+     * Reads that need more blocks than this are left to the database, as are blocks bigger than
+     * an eighth of the budget.
+     */
+    static final int MAX_BLOCKS_PER_READ = 32;
+
+    // Blocks stop growing past this tier, so that their length can't overflow.
+    private static final int MAX_SCALED_TIER = 8;
+
+    private final long[] mBlockMillis = new long[MAX_SCALED_TIER + 1];
+    private final long mMaxBytes;
+    private final int mMaxBlockReadings;
+
+    // Guarded by this
+    private final LinkedHashMap<BlockKey, Block> mBlocks = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<BlockKey> mPrefetching = new HashSet<>();
+    private final Map<String, Long> mGenerations = new HashMap<>();
+    private long mEpoch = 0;
+    private long mBytes = 0;
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+    private int mPrefetchedBlockCount = 0;
+
+    // For each sensor, the time before which readings have been read, and so may be cached.
+    private final Map<String, Long> mReadBefore = new ConcurrentHashMap<>();
+
+    public ScalarBlockCache() {
+        this(DEFAULT_TIER_ZERO_BLOCK_MILLIS, ScalarSensor.DEFAULT_ZOOM_LEVEL_BETWEEN_TIERS,
+                DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes 0 to keep nothing
+     */
+    public ScalarBlockCache(long tierZeroBlockMillis, int zoomLevelBetweenTiers, long maxBytes) {
+        mBlockMillis[0] = tierZeroBlockMillis;
+        for (int tier = 1; tier <= MAX_SCALED_TIER; tier++) {
+            mBlockMillis[tier] = mBlockMillis[tier - 1] * Math.max(1, zoomLevelBetweenTiers);
+        }
+        mMaxBytes = maxBytes;
+        mMaxBlockReadings = (int) Math.min(Integer.MAX_VALUE - 1, maxBytes / BYTES_PER_READING / 8);
+    }
+
+    /**
+     * Fills {@code page} with the first page of readings the database would return for the same
+     * request, if every block it needs is in memory.
+     *
+     * @return false, leaving {@code page} as it was, if some block isn't
+     */
+    public boolean readPage(String sensorTag, int resolutionTier, TimeRange range,
+            ScalarReadingPage page) {
+        List<Block> blocks = collectBlocks(sensorTag, resolutionTier, range, page.capacity(),
+                null, 0, 0);
+        synchronized (this) {
+            if (blocks == null) {
+                mMissCount++;
+                return false;
+            }
+            mHitCount++;
+        }
+        fill(sensorTag, range, blocks, page);
+        return true;
+    }
+
+    /**
+     * Marks readings of {@code sensorTag} before {@code settledBeforeMillis} as about to be read,
+     * so that any added to them from now on are passed on to loads.  Must be called before the
+     * readings queued to be written are written, and before the read.
+     *
+     * @return the ticket to pass to {@link #loadPage}
+     */
+    public long reserve(String sensorTag, long settledBeforeMillis) {
+        synchronized (this) {
+            Long readBefore = mReadBefore.get(sensorTag);
+            if (readBefore == null || readBefore < settledBeforeMillis) {
+                mReadBefore.put(sensorTag, settledBeforeMillis);
+            }
+            return getTicket(sensorTag);
+        }
+    }
+
+    /**
+     * Like {@link #readPage}, but loads the blocks it needs from {@code database} that end before
+     * {@code settledBeforeMillis}.  Runs on a thread that may read the database.
+     *
+     * @param ticket from {@link #reserve}; loaded blocks are only kept if nothing was invalidated
+     *               since
+     * @return false, leaving {@code page} as it was, if the read still can't be answered from
+     * blocks
+     */
+    public boolean loadPage(SensorDatabase database, String sensorTag, int resolutionTier,
+            TimeRange range, ScalarReadingPage page, long settledBeforeMillis, long ticket) {
+        List<Block> blocks = collectBlocks(sensorTag, resolutionTier, range, page.capacity(),
+                database, settledBeforeMillis, ticket);
+        if (blocks == null) {
+            return false;
+        }
+        fill(sensorTag, range, blocks, page);
+        return true;
+    }
+
+    /**
+     * Claims the blocks in {@code range} that aren't in memory or already being prefetched, to
+     * be loaded by running the returned prefetch, nearest the start of {@code range} first.
+     *
+     * @return null if there is nothing to load
+     */
+    public Prefetch startPrefetch(String sensorTag, int resolutionTier, TimeRange range,
+            long settledBeforeMillis) {
+        long first = range.getFirstIncludedMillis();
+        long last = Math.min(range.getLastIncludedMillis(), settledBeforeMillis - 1);
+        if (first == Long.MIN_VALUE || first > last) {
+            return null;
+        }
+        long blockMillis = getBlockMillis(resolutionTier);
+        long firstIndex = blockIndex(first, blockMillis);
+        long lastIndex = blockIndex(last, blockMillis);
+        boolean oldestFirst = range.getOrder() == TimeRange.ObservationOrder.OLDEST_FIRST;
+        List<BlockKey> keys = new ArrayList<>();
+        synchronized (this) {
+            for (long i = 0; i <= lastIndex - firstIndex && i < MAX_BLOCKS_PER_READ; i++) {
+                BlockKey key = new BlockKey(sensorTag, resolutionTier,
+                        oldestFirst ? firstIndex + i : lastIndex - i);
+                if ((key.mIndex + 1) * blockMillis <= settledBeforeMillis
+                        && !mBlocks.containsKey(key) && mPrefetching.add(key)) {
+                    keys.add(key);
+                }
+            }
+            if (keys.isEmpty()) {
+                return null;
+            }
+            return new Prefetch(keys, reserve(sensorTag, settledBeforeMillis));
+        }
+    }
+
+    /**
+     * Drops the block holding a reading just added, if it had been read.  May be called from any
+     * thread, for every reading added; it only takes a lock for readings at times already read.
+     */
+    public void noteReading(String sensorTag, int resolutionTier, long timestampMillis) {
+        Long readBefore = mReadBefore.get(sensorTag);
+        if (readBefore == null || timestampMillis >= readBefore) {
+            return;
+        }
+        synchronized (this) {
+            bumpGeneration(sensorTag);
+            Block block = mBlocks.remove(new BlockKey(sensorTag, resolutionTier,
+                    blockIndex(timestampMillis, getBlockMillis(resolutionTier))));
+            if (block != null) {
+                mBytes -= block.getBytes();
+            }
+        }
+    }
+
+    /**
+     * Forgets every block kept for {@code sensorTag}.
+     */
+    public synchronized void invalidate(String sensorTag) {
+        bumpGeneration(sensorTag);
+        Iterator<Map.Entry<BlockKey, Block>> iterator = mBlocks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<BlockKey, Block> entry = iterator.next();
+            if (entry.getKey().mSensorTag.equals(sensorTag)) {
+                mBytes -= entry.getValue().getBytes();
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        mEpoch++;
+        mBlocks.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * @return how many calls to {@link #readPage} were answered from memory
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return how many calls to {@link #readPage} weren't
+     */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return how many blocks prefetches have loaded
+     */
+    public synchronized int getPrefetchedBlockCount() {
+        return mPrefetchedBlockCount;
+    }
+
+    public synchronized long getByteCount() {
+        return mBytes;
+    }
+
+    long getBlockMillis(int resolutionTier) {
+        return mBlockMillis[Math.min(resolutionTier, MAX_SCALED_TIER)];
+    }
+
+    /**
+     * @return the blocks covering {@code range}, in its order, up to the first one that brings
+     * the readings in range to {@code capacity}, or null if any of them isn't in memory and
+     * can't be loaded from {@code database}
+     */
+    private List<Block> collectBlocks(String sensorTag, int resolutionTier, TimeRange range,
+            int capacity, SensorDatabase database, long settledBeforeMillis, long ticket) {
+        long first = range.getFirstIncludedMillis();
+        long last = range.getLastIncludedMillis();
+        boolean oldestFirst = range.getOrder() == TimeRange.ObservationOrder.OLDEST_FIRST;
+        if (first > last) {
+            return Collections.emptyList();
+        }
+        if (oldestFirst ? first == Long.MIN_VALUE : last == Long.MAX_VALUE) {
+            return null;
+        }
+        long blockMillis = getBlockMillis(resolutionTier);
+        long firstIndex = blockIndex(first, blockMillis);
+        long lastIndex = blockIndex(last, blockMillis);
+        List<Block> blocks = new ArrayList<>();
+        int readings = 0;
+        for (int i = 0; i < MAX_BLOCKS_PER_READ; i++) {
+            BlockKey key = new BlockKey(sensorTag, resolutionTier,
+                    oldestFirst ? firstIndex + i : lastIndex - i);
+            Block block = getBlock(key);
+            if (block == null && database != null) {
+                block = loadBlock(database, key, blockMillis, settledBeforeMillis, ticket);
+            }
+            if (block == null) {
+                return null;
+            }
+            blocks.add(block);
+            readings += block.upperBound(last) - block.lowerBound(first);
+            if (readings >= capacity || key.mIndex == (oldestFirst ? lastIndex : firstIndex)) {
+                return blocks;
+            }
+        }
+        return null;
+    }
+
+    private void fill(String sensorTag, TimeRange range, List<Block> blocks,
+            ScalarReadingPage page) {
+        long first = range.getFirstIncludedMillis();
+        long last = range.getLastIncludedMillis();
+        boolean oldestFirst = range.getOrder() == TimeRange.ObservationOrder.OLDEST_FIRST;
+        page.clear();
+        for (Block block : blocks) {
+            int from = block.lowerBound(first);
+            int to = block.upperBound(last);
+            for (int i = 0; i < to - from && !page.isFull(); i++) {
+                int index = oldestFirst ? from + i : to - 1 - i;
+                page.add(block.mTimestamps[index], block.mValues[index], sensorTag);
+            }
+        }
+    }
+
+    /**
+     * Reads a block from {@code database}, and keeps it if nothing was invalidated since
+     * {@code ticket}.  Even if it isn't kept, it has every reading added before the ticket.
+     *
+     * @return null if the block doesn't end before {@code settledBeforeMillis}, or is too big
+     */
+    private Block loadBlock(SensorDatabase database, BlockKey key, long blockMillis,
+            long settledBeforeMillis, long ticket) {
+        long start = key.mIndex * blockMillis;
+        if (start + blockMillis > settledBeforeMillis) {
+            return null;
+        }
+        ScalarReadingList readings = database.getScalarReadings(key.mSensorTag,
+                TimeRange.oldest(Range.closedOpen(start, start + blockMillis)), key.mTier,
+                mMaxBlockReadings + 1);
+        if (readings.size() > mMaxBlockReadings) {
+            return null;
+        }
+        Block block = new Block(readings.size());
+        readings.deliver(block::add);
+        synchronized (this) {
+            if (ticket == getTicket(key.mSensorTag)) {
+                putBlock(key, block);
+            }
+        }
+        return block;
+    }
+
+    private synchronized Block getBlock(BlockKey key) {
+        return mBlocks.get(key);
+    }
+
+    // Guarded by this
+    private void putBlock(BlockKey key, Block block) {
+        Block replaced = mBlocks.put(key, block);
+        if (replaced != null) {
+            mBytes -= replaced.getBytes();
+        }
+        mBytes += block.getBytes();
+        Iterator<Block> eldest = mBlocks.values().iterator();
+        while (mBytes > mMaxBytes && eldest.hasNext()) {
+            mBytes -= eldest.next().getBytes();
+            eldest.remove();
+        }
+    }
+
+    // Guarded by this.  Generations only go up, so the sum changes whenever either does.
+    private long getTicket(String sensorTag) {
+        Long generation = mGenerations.get(sensorTag);
+        return mEpoch + (generation == null ? 0 : generation);
+    }
+
+    // Guarded by this
+    private void bumpGeneration(String sensorTag) {
+        Long generation = mGenerations.get(sensorTag);
+        mGenerations.put(sensorTag, generation == null ? 1 : generation + 1);
+    }
+
+    private static long blockIndex(long timestampMillis, long blockMillis) {
+        long index = timestampMillis / blockMillis;
+        return timestampMillis < 0 && index * blockMillis != timestampMillis ? index - 1 : index;
+    }
+
+    /**
+     * Blocks claimed by {@link #startPrefetch}, to be loaded on a thread that may read the
+     * database.
+     */
+    public class Prefetch {
+        private final List<BlockKey> mKeys;
+        private final long mTicket;
+
+        private Prefetch(List<BlockKey> keys, long ticket) {
+            mKeys = keys;
+            mTicket = ticket;
+        }
+
+        public void run(SensorDatabase database) {
+            try {
+                for (BlockKey key : mKeys) {
+                    // Claimed blocks ended before the time they were claimed.
+                    if (getBlock(key) == null && loadBlock(database, key,
+                            getBlockMillis(key.mTier), Long.MAX_VALUE, mTicket) != null) {
+                        synchronized (ScalarBlockCache.this) {
+                            mPrefetchedBlockCount++;
+                        }
+                    }
+                }
+            } finally {
+                synchronized (ScalarBlockCache.this) {
+                    mPrefetching.removeAll(mKeys);
+                }
+            }
+        }
+    }
+
+    private static class BlockKey {
+        final String mSensorTag;
+        final int mTier;
+        final long mIndex;
+
+        BlockKey(String sensorTag, int tier, long index) {
+            mSensorTag = sensorTag;
+            mTier = tier;
+            mIndex = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey other = (BlockKey) o;
+            return mIndex == other.mIndex && mTier == other.mTier
+                    && mSensorTag.equals(other.mSensorTag);
+        }
+
+        @Override
+        public int hashCode() {
+            return (mSensorTag.hashCode() * 31 + mTier) * 31 + (int) (mIndex ^ (mIndex >>> 32));
+        }
+    }
+
+    /**
+     * One block's readings, oldest first.  Filled once by its loader, then only read.
+     */
+    private static class Block {
+        final long[] mTimestamps;
+        final double[] mValues;
+        private int mSize = 0;
+
+        Block(int size) {
+            mTimestamps = new long[size];
+            mValues = new double[size];
+        }
+
+        boolean add(long timestampMillis, double value) {
+            mTimestamps[mSize] = timestampMillis;
+            mValues[mSize] = value;
+            mSize++;
+            return true;
+        }
+
+        long getBytes() {
+            return BYTES_PER_BLOCK + (long) mTimestamps.length * BYTES_PER_READING;
+        }
+
+        /**
+         * @return the index of the first reading at or after {@code timestampMillis}
+         */
+        int lowerBound(long timestampMillis) {
+            int low = 0;
+            int high = mSize;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mTimestamps[mid] < timestampMillis) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return the index of the first reading after {@code timestampMillis}
+         */
+        int upperBound(long timestampMillis) {
+            return timestampMillis == Long.MAX_VALUE ? mSize : lowerBound(timestampMillis + 1);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import java.util.Arrays;
+
+/**
+ * A compressed, append-only run of readings from a single sensor at a single resolution tier.
+ *
+ * Timestamps are stored as delta-of-deltas in variable-width buckets, and values as the XOR of
+ * each value's bits with the previous value's, storing only the meaningful bits.  Regularly-sampled
+ * sensors with slowly changing values typically need a few bits per reading, rather than the 16
+ * bytes of a raw (timestamp, value) pair.
+ *
+ * Readings need not be appended in timestamp order; {@link #decode} returns them sorted.
+ */
+public class ScalarChunk {
+    private final BitWriter mBits;
+    private int mCount = 0;
+    private long mMinTimestamp = Long.MAX_VALUE;
+    private long mMaxTimestamp = Long.MIN_VALUE;
+
+    private long mPrevTimestamp;
+    private long mPrevDelta;
+    private long mPrevValueBits;
+    private int mPrevLeadingZeros;
+    private int mPrevTrailingZeros;
+
+    public ScalarChunk() {
+        mBits = new BitWriter(64);
+    }
+
+    public void add(long timestampMillis, double value) {
+        long valueBits = Double.doubleToRawLongBits(value);
+        if (mCount == 0) {
+            mBits.writeBits(timestampMillis, 64);
+            mBits.writeBits(valueBits, 64);
+            mPrevDelta = 0;
+            mPrevLeadingZeros = -1;
+        } else {
+            long delta = timestampMillis - mPrevTimestamp;
+            writeDeltaOfDelta(delta - mPrevDelta);
+            mPrevDelta = delta;
+            writeValue(valueBits);
+        }
+        mPrevTimestamp = timestampMillis;
+        mPrevValueBits = valueBits;
+        mMinTimestamp = Math.min(mMinTimestamp, timestampMillis);
+        mMaxTimestamp = Math.max(mMaxTimestamp, timestampMillis);
+        mCount++;
+    }
+
+    private void writeDeltaOfDelta(long dod) {
+        if (dod == 0) {
+            mBits.writeBits(0b0, 1);
+        } else if (dod >= -64 && dod <= 63) {
+            mBits.writeBits(0b10, 2);
+            mBits.writeBits(dod, 7);
+        } else if (dod >= -256 && dod <= 255) {
+            mBits.writeBits(0b110, 3);
+            mBits.writeBits(dod, 9);
+        } else if (dod >= -2048 && dod <= 2047) {
+            mBits.writeBits(0b1110, 4);
+            mBits.writeBits(dod, 12);
+        } else {
+            mBits.writeBits(0b1111, 4);
+            mBits.writeBits(dod, 64);
+        }
+    }
+
+    private void writeValue(long valueBits) {
+        long xor = valueBits ^ mPrevValueBits;
+        if (xor == 0) {
+            mBits.writeBits(0b0, 1);
+            return;
+        }
+        mBits.writeBits(0b1, 1);
+        int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailingZeros = Long.numberOfTrailingZeros(xor);
+        if (mPrevLeadingZeros >= 0 && leadingZeros >= mPrevLeadingZeros
+                && trailingZeros >= mPrevTrailingZeros) {
+            // Meaningful bits fit in the previous window: reuse it.
+            mBits.writeBits(0b0, 1);
+            mBits.writeBits(xor >>> mPrevTrailingZeros,
+                    64 - mPrevLeadingZeros - mPrevTrailingZeros);
+        } else {
+            int significantBits = 64 - leadingZeros - trailingZeros;
+            mBits.writeBits(0b1, 1);
+            mBits.writeBits(leadingZeros, 5);
+            mBits.writeBits(significantBits - 1, 6);
+            mBits.writeBits(xor >>> trailingZeros, significantBits);
+            mPrevLeadingZeros = leadingZeros;
+            mPrevTrailingZeros = trailingZeros;
+        }
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public long getMinTimestamp() {
+        return mMinTimestamp;
+    }
+
+    public long getMaxTimestamp() {
+        return mMaxTimestamp;
+    }
+
+    public byte[] toByteArray() {
+        return mBits.toByteArray();
+    }
+
+    /**
+     * Decodes {@code count} readings from {@code data} into {@code out}, sorted by timestamp,
+     * keeping only those in [{@code firstMillis}, {@code lastMillis}].
+     */
+    public static void decode(byte[] data, int count, long firstMillis, long lastMillis,
+            Points out) {
+        out.clear();
+        Reader reader = new Reader(data, count);
+        boolean sorted = true;
+        long prev = Long.MIN_VALUE;
+        while (reader.hasNext()) {
+            reader.next();
+            long timestamp = reader.getTimestamp();
+            if (timestamp >= firstMillis && timestamp <= lastMillis) {
+                sorted &= timestamp >= prev;
+                prev = timestamp;
+                out.add(timestamp, reader.getValue());
+            }
+        }
+        if (!sorted) {
+            out.sort();
+        }
+    }
+
+    /**
+     * Sequentially decodes the readings of a chunk, in the order they were appended.
+     */
+    public static class Reader {
+        private final BitReader mBits;
+        private final int mCount;
+        private int mRead = 0;
+        private long mTimestamp;
+        private long mDelta;
+        private long mValueBits;
+        private int mLeadingZeros;
+        private int mTrailingZeros;
+
+        public Reader(byte[] data, int count) {
+            mBits = new BitReader(data);
+            mCount = count;
+        }
+
+        public boolean hasNext() {
+            return mRead < mCount;
+        }
+
+        public void next() {
+            if (mRead == 0) {
+                mTimestamp = mBits.readBits(64);
+                mValueBits = mBits.readBits(64);
+                mDelta = 0;
+            } else {
+                mDelta += readDeltaOfDelta();
+                mTimestamp += mDelta;
+                readValue();
+            }
+            mRead++;
+        }
+
+        private long readDeltaOfDelta() {
+            if (!mBits.readBit()) {
+                return 0;
+            }
+            if (!mBits.readBit()) {
+                return mBits.readSignedBits(7);
+            }
+            if (!mBits.readBit()) {
+                return mBits.readSignedBits(9);
+            }
+            if (!mBits.readBit()) {
+                return mBits.readSignedBits(12);
+            }
+            return mBits.readBits(64);
+        }
+
+        private void readValue() {
+            if (!mBits.readBit()) {
+                return;
+            }
+            if (mBits.readBit()) {
+                mLeadingZeros = (int) mBits.readBits(5);
+                int significantBits = (int) mBits.readBits(6) + 1;
+                mTrailingZeros = 64 - mLeadingZeros - significantBits;
+            }
+            int significantBits = 64 - mLeadingZeros - mTrailingZeros;
+            mValueBits ^= mBits.readBits(significantBits) << mTrailingZeros;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public double getValue() {
+            return Double.longBitsToDouble(mValueBits);
+        }
+    }
+
+    /**
+     * A growable pair of parallel primitive arrays of readings.
+     */
+    public static class Points {
+        private long[] mTimestamps;
+        private double[] mValues;
+        private int mSize = 0;
+
+        public Points(int initialCapacity) {
+            int capacity = Math.max(1, initialCapacity);
+            mTimestamps = new long[capacity];
+            mValues = new double[capacity];
+        }
+
+        public void add(long timestampMillis, double value) {
+            if (mSize == mTimestamps.length) {
+                ensureCapacity(mSize * 2);
+            }
+            mTimestamps[mSize] = timestampMillis;
+            mValues[mSize] = value;
+            mSize++;
+        }
+
+        public void ensureCapacity(int capacity) {
+            if (capacity > mTimestamps.length) {
+                mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+                mValues = Arrays.copyOf(mValues, capacity);
+            }
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public long getTimestamp(int index) {
+            return mTimestamps[index];
+        }
+
+        public double getValue(int index) {
+            return mValues[index];
+        }
+
+        public void clear() {
+            mSize = 0;
+        }
+
+        public void reverse() {
+            for (int i = 0, j = mSize - 1; i < j; i++, j--) {
+                long t = mTimestamps[i];
+                mTimestamps[i] = mTimestamps[j];
+                mTimestamps[j] = t;
+                double v = mValues[i];
+                mValues[i] = mValues[j];
+                mValues[j] = v;
+            }
+        }
+
+        /**
+         * Stable sort by timestamp.  Insertion sort, since out-of-order readings (such as the
+         * min/max pairs written by ZoomRecorder) are only ever slightly out of place.
+         */
+        void sort() {
+            for (int i = 1; i < mSize; i++) {
+                long t = mTimestamps[i];
+                double v = mValues[i];
+                int j = i - 1;
+                while (j >= 0 && mTimestamps[j] > t) {
+                    mTimestamps[j + 1] = mTimestamps[j];
+                    mValues[j + 1] = mValues[j];
+                    j--;
+                }
+                mTimestamps[j + 1] = t;
+                mValues[j + 1] = v;
+            }
+        }
+    }
+
+    private static class BitWriter {
+        private byte[] mBuffer;
+        private int mBitPosition = 0;
+
+        BitWriter(int initialBytes) {
+            mBuffer = new byte[initialBytes];
+        }
+
+        /**
+         * Writes the low {@code bitCount} bits of {@code value}, most significant first.
+         */
+        void writeBits(long value, int bitCount) {
+            while (bitCount > 0) {
+                int byteIndex = mBitPosition >>> 3;
+                if (byteIndex == mBuffer.length) {
+                    mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+                }
+                int free = 8 - (mBitPosition & 7);
+                int take = Math.min(free, bitCount);
+                int bits = (int) (value >>> (bitCount - take)) & ((1 << take) - 1);
+                mBuffer[byteIndex] |= (byte) (bits << (free - take));
+                mBitPosition += take;
+                bitCount -= take;
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBuffer, (mBitPosition + 7) >>> 3);
+        }
+    }
+
+    private static class BitReader {
+        private final byte[] mData;
+        private int mBitPosition = 0;
+
+        BitReader(byte[] data) {
+            mData = data;
+        }
+
+        boolean readBit() {
+            int bit = (mData[mBitPosition >>> 3] >>> (7 - (mBitPosition & 7))) & 1;
+            mBitPosition++;
+            return bit == 1;
+        }
+
+        long readBits(int bitCount) {
+            long result = 0;
+            while (bitCount > 0) {
+                int available = 8 - (mBitPosition & 7);
+                int take = Math.min(available, bitCount);
+                int bits = ((mData[mBitPosition >>> 3] & 0xFF) >>> (available - take))
+                        & ((1 << take) - 1);
+                result = (result << take) | bits;
+                mBitPosition += take;
+                bitCount -= take;
+            }
+            return result;
+        }
+
+        long readSignedBits(int bitCount) {
+            long raw = readBits(bitCount);
+            // Sign-extend from bitCount bits.
+            return (raw << (64 - bitCount)) >> (64 - bitCount);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+/**
+ * Reads the readings selected by
+ * {@link SensorDatabase#openScalarPageReader(String[], TimeRange, int)} a page at a time.  The
+ * caller decides when (and whether) to read the next page, so nothing is read ahead of need.
+ *
+ * Like the database that created it, a reader must only be used from one thread.
+ */
+public interface ScalarPageReader {
+    /**
+     * Clears {@code page} and fills it with as many of the next readings as fit.
+     *
+     * @return false if there were no readings left to add.  A page that is returned but not full
+     * is the last one.
+     */
+    boolean readNextPage(ScalarReadingPage page);
+
+    /**
+     * Releases any resources held by the reader.  Safe to call more than once.
+     */
+    void close();
+}
@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import java.util.Arrays;
+
+/**
+ * A reusable batch of scalar readings waiting to be written to a {@link SensorDatabase}.
+ *
+ * Readings are kept in parallel primitive arrays, so once the batch has grown to its working size,
+ * adding a reading does not allocate.  Not thread-safe.
+ */
+public class ScalarReadingBatch {
+    private static final int DEFAULT_INITIAL_CAPACITY = 64;
+
+    private String[] mSensorTags;
+    private int[] mResolutionTiers;
+    private long[] mTimestamps;
+    private double[] mValues;
+    private int mSize = 0;
+
+    public ScalarReadingBatch() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public ScalarReadingBatch(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        mSensorTags = new String[capacity];
+        mResolutionTiers = new int[capacity];
+        mTimestamps = new long[capacity];
+        mValues = new double[capacity];
+    }
+
+    /**
+     * See {@link SensorDatabase#addScalarReading(String, int, long, double)} for the semantics of
+     * these params.
+     */
+    public void add(String sensorTag, int resolutionTier, long timestampMillis, double value) {
+        if (mSize == mTimestamps.length) {
+            grow();
+        }
+        mSensorTags[mSize] = sensorTag;
+        mResolutionTiers[mSize] = resolutionTier;
+        mTimestamps[mSize] = timestampMillis;
+        mValues[mSize] = value;
+        mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public String getSensorTag(int index) {
+        return mSensorTags[index];
+    }
+
+    public int getResolutionTier(int index) {
+        return mResolutionTiers[index];
+    }
+
+    public long getTimestampMillis(int index) {
+        return mTimestamps[index];
+    }
+
+    public double getValue(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * Empties the batch, keeping its storage for reuse.
+     */
+    public void clear() {
+        // Don't hold on to tags longer than needed.
+        Arrays.fill(mSensorTags, 0, mSize, null);
+        mSize = 0;
+    }
+
+    private void grow() {
+        int newCapacity = mTimestamps.length * 2;
+        mSensorTags = Arrays.copyOf(mSensorTags, newCapacity);
+        mResolutionTiers = Arrays.copyOf(mResolutionTiers, newCapacity);
+        mTimestamps = Arrays.copyOf(mTimestamps, newCapacity);
+        mValues = Arrays.copyOf(mValues, newCapacity);
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A memory-mapped file that holds a copy of every scalar reading waiting in a
+ * {@link BatchingScalarWriter}, so that readings not yet in the database survive the process
+ * being killed.  Pages of a mapped file belong to the kernel, so what has been written to them is
+ * kept even if the process dies before the next line runs.  (They are not forced to the disk, so
+ * a power loss may still lose them.)
+ *
+ * Each reading is written to the slot for its position in the writer's queue, and
+ * {@link #checkpoint(long)} records the position before which every reading is in the database.
+ * When the journal is opened again, readings at or after the checkpoint are recovered, to be
+ * written by {@link #replayInto(SensorDatabase)}.  The journal has twice as many slots as the
+ * writer's queue, so a slot isn't reused until the reading it held has been committed.
+ *
+ * The journal also remembers which trial is recording, if any, so that a trial interrupted by the
+ * process dying can be closed on the next start.
+ */
+public class ScalarReadingJournal {
+    private static final String TAG = "ScalarReadingJournal";
+
+    private static final int MAGIC = 0x53524a31;  // "SRJ1"
+
+    // Header
+    private static final int MAGIC_OFFSET = 0;
+    private static final int SLOT_COUNT_OFFSET = 4;
+    private static final int TAG_COUNT_OFFSET = 8;
+    private static final int TAG_BYTES_OFFSET = 12;
+    private static final int CHECKPOINT_OFFSET = 16;
+    private static final int HEADER_BYTES = 64;
+
+    // The recording trial: lengths of its experiment and trial ids, then their bytes.
+    private static final int TRIAL_OFFSET = HEADER_BYTES;
+    private static final int TRIAL_BYTES = 448;
+
+    // Sensor tags, each a length then its bytes, in the order of the writer's tag indexes.
+    private static final int TAGS_OFFSET = TRIAL_OFFSET + TRIAL_BYTES;
+    private static final int TAGS_BYTES = 16 * 1024;
+
+    // One reading per slot: position (written last), timestamp, value, tag index, tier.
+    private static final int SLOTS_OFFSET = TAGS_OFFSET + TAGS_BYTES;
+    private static final int SLOT_BYTES = 32;
+    private static final int SLOT_TIMESTAMP = 8;
+    private static final int SLOT_VALUE = 16;
+    private static final int SLOT_TAG_INDEX = 24;
+    private static final int SLOT_TIER = 28;
+    private static final long EMPTY_SLOT = -1;
+
+    private final MappedByteBuffer mBuffer;
+    private final int mSlotMask;
+    private final long mFirstPosition;
+
+    // Readings and trial left by the last process, until they are replayed.
+    private volatile ScalarReadingBatch mRecovered;
+    private final String mRecoveredExperimentId;
+    private final String mRecoveredTrialId;
+
+    // Tags kept from the last process, which recovered readings refer to.
+    private final List<String> mTags;
+
+    // Guarded by this
+    private int mTagCount = 0;
+    private int mTagBytes = 0;
+
+    /**
+     * Opens the journal at {@code file}, recovering whatever it holds from the last process.
+     *
+     * @param slotCount rounded up to a power of two; must be at least twice the capacity of the
+     *                  writer that uses this journal
+     */
+    public ScalarReadingJournal(File file, int slotCount) throws IOException {
+        int slots = Integer.highestOneBit(Math.max(2, slotCount) - 1) << 1;
+        mSlotMask = slots - 1;
+        long size = SLOTS_OFFSET + (long) slots * SLOT_BYTES;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // The mapping stays valid after the file is closed.
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        if (mBuffer.getInt(MAGIC_OFFSET) == MAGIC && mBuffer.getInt(SLOT_COUNT_OFFSET) == slots) {
+            mRecoveredExperimentId = readTrialString(0);
+            mRecoveredTrialId = readTrialString(1);
+            mFirstPosition = recoverReadings(readTags());
+        } else {
+            mRecoveredExperimentId = null;
+            mRecoveredTrialId = null;
+            mFirstPosition = 0;
+            format(slots);
+        }
+
+        if (mRecovered == null) {
+            // Nothing refers to the old tags; start over.
+            mTags = Collections.emptyList();
+            mBuffer.putInt(TAG_COUNT_OFFSET, 0);
+            mBuffer.putInt(TAG_BYTES_OFFSET, 0);
+        } else {
+            // Keep them, and their indexes, in case this process dies before replaying.
+            mTags = readTags();
+            mTagCount = mTags.size();
+            mTagBytes = mBuffer.getInt(TAG_BYTES_OFFSET);
+        }
+    }
+
+    /**
+     * @return how many readings the journal can hold
+     */
+    public int getSlotCount() {
+        return mSlotMask + 1;
+    }
+
+    /**
+     * @return the queue position the writer should start from, after every recovered reading, so
+     * that the recovered readings stay in the journal until they have been replayed.
+     */
+    long getFirstPosition() {
+        return mFirstPosition;
+    }
+
+    /**
+     * @return the tags already in the journal, which the writer must give the same indexes
+     */
+    List<String> getTags() {
+        return mTags;
+    }
+
+    /**
+     * @return how many readings were recovered and not yet replayed
+     */
+    public int getRecoveredReadingCount() {
+        ScalarReadingBatch recovered = mRecovered;
+        return recovered == null ? 0 : recovered.size();
+    }
+
+    /**
+     * Writes the recovered readings to {@code database} in one transaction, and moves the
+     * checkpoint past them.  Must be called on the sensor data thread, before any batch is
+     * written.
+     *
+     * @return how many readings were replayed
+     */
+    public int replayInto(SensorDatabase database) {
+        return replayInto(database, null);
+    }
+
+    /**
+     * Writes the recovered readings, followed by {@code batch} if it isn't null, to
+     * {@code database} in one transaction.  If that fails, the recovered readings are kept, to be
+     * replayed along with the next batch; until then, the writer must not move the checkpoint, so
+     * that they are recovered again should the process die first.
+     *
+     * @return how many recovered readings were replayed
+     */
+    int replayInto(SensorDatabase database, ScalarReadingBatch batch) {
+        ScalarReadingBatch recovered = mRecovered;
+        if (recovered == null) {
+            return 0;
+        }
+        if (batch == null || batch.isEmpty()) {
+            database.addScalarReadings(recovered);
+        } else {
+            ScalarReadingBatch both = new ScalarReadingBatch(recovered.size() + batch.size());
+            addAll(both, recovered);
+            addAll(both, batch);
+            database.addScalarReadings(both);
+        }
+        checkpoint(mFirstPosition);
+        mRecovered = null;
+        return recovered.size();
+    }
+
+    private static void addAll(ScalarReadingBatch to, ScalarReadingBatch from) {
+        for (int i = 0; i < from.size(); i++) {
+            to.add(from.getSensorTag(i), from.getResolutionTier(i), from.getTimestampMillis(i),
+                    from.getValue(i));
+        }
+    }
+
+    /**
+     * @return the experiment that was recording when the last process ended, or null if none was.
+     */
+    public String getRecoveredExperimentId() {
+        return mRecoveredExperimentId;
+    }
+
+    /**
+     * @return the trial that was recording when the last process ended, or null if none was.
+     */
+    public String getRecoveredTrialId() {
+        return mRecoveredTrialId;
+    }
+
+    /**
+     * Remembers which trial is recording, or that none is if {@code trialId} is null.
+     */
+    public synchronized void setRecordingTrial(String experimentId, String trialId) {
+        // Forget the old trial first, so a half-written one is never recovered.
+        mBuffer.putShort(TRIAL_OFFSET, (short) 0);
+        mBuffer.putShort(TRIAL_OFFSET + 2, (short) 0);
+        if (trialId == null) {
+            return;
+        }
+        byte[] experimentBytes = experimentId.getBytes(StandardCharsets.UTF_8);
+        byte[] trialBytes = trialId.getBytes(StandardCharsets.UTF_8);
+        if (4 + experimentBytes.length + trialBytes.length > TRIAL_BYTES) {
+            Log.w(TAG, "Trial id too long to remember: " + trialId);
+            return;
+        }
+        int offset = TRIAL_OFFSET + 4;
+        for (byte b : experimentBytes) {
+            mBuffer.put(offset++, b);
+        }
+        for (byte b : trialBytes) {
+            mBuffer.put(offset++, b);
+        }
+        mBuffer.putShort(TRIAL_OFFSET + 2, (short) trialBytes.length);
+        mBuffer.putShort(TRIAL_OFFSET, (short) experimentBytes.length);
+    }
+
+    /**
+     * Forgets the recording trial, if it is still {@code trialId}.
+     */
+    public synchronized void clearRecordingTrial(String trialId) {
+        if (trialId.equals(readTrialString(1))) {
+            setRecordingTrial(null, null);
+        }
+    }
+
+    /**
+     * Records the sensor tag that the writer will refer to as {@code tagIndex}.  Tags must be
+     * added in index order.
+     *
+     * @return false if there is no room left for tags, so readings for this one won't be kept
+     */
+    synchronized boolean addTag(int tagIndex, String sensorTag) {
+        byte[] bytes = sensorTag.getBytes(StandardCharsets.UTF_8);
+        if (tagIndex != mTagCount || mTagBytes + 2 + bytes.length > TAGS_BYTES) {
+            return false;
+        }
+        int offset = TAGS_OFFSET + mTagBytes;
+        mBuffer.putShort(offset, (short) bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            mBuffer.put(offset + 2 + i, bytes[i]);
+        }
+        mTagBytes += 2 + bytes.length;
+        mTagCount++;
+        // Publish the tag only once its bytes are in place.
+        mBuffer.putInt(TAG_BYTES_OFFSET, mTagBytes);
+        mBuffer.putInt(TAG_COUNT_OFFSET, mTagCount);
+        return true;
+    }
+
+    /**
+     * Writes a reading to the slot for {@code position}.  May be called from several threads at
+     * once, for different positions: absolute puts don't touch the buffer's own position.
+     */
+    void record(long position, int tagIndex, int resolutionTier, long timestampMillis,
+            double value) {
+        int offset = SLOTS_OFFSET + ((int) position & mSlotMask) * SLOT_BYTES;
+        mBuffer.putLong(offset + SLOT_TIMESTAMP, timestampMillis);
+        mBuffer.putDouble(offset + SLOT_VALUE, value);
+        mBuffer.putInt(offset + SLOT_TAG_INDEX, tagIndex);
+        mBuffer.putInt(offset + SLOT_TIER, resolutionTier);
+        // Last, so that a slot only claims a position once its reading is complete.
+        mBuffer.putLong(offset, position);
+    }
+
+    /**
+     * Records that every reading before {@code position} is in the database.
+     */
+    void checkpoint(long position) {
+        mBuffer.putLong(CHECKPOINT_OFFSET, position);
+    }
+
+    private void format(int slots) {
+        mBuffer.putInt(MAGIC_OFFSET, 0);
+        mBuffer.putInt(SLOT_COUNT_OFFSET, slots);
+        mBuffer.putLong(CHECKPOINT_OFFSET, 0);
+        mBuffer.putShort(TRIAL_OFFSET, (short) 0);
+        mBuffer.putShort(TRIAL_OFFSET + 2, (short) 0);
+        for (int i = 0; i < slots; i++) {
+            mBuffer.putLong(SLOTS_OFFSET + i * SLOT_BYTES, EMPTY_SLOT);
+        }
+        mBuffer.putInt(MAGIC_OFFSET, MAGIC);
+    }
+
+    /**
+     * Collects the readings at or after the checkpoint, in the order they were queued.
+     *
+     * @return the position after the last of them
+     */
+    private long recoverReadings(List<String> tags) {
+        long checkpoint = mBuffer.getLong(CHECKPOINT_OFFSET);
+        long next = checkpoint;
+        List<Long> positions = new ArrayList<>();
+        for (int slot = 0; slot <= mSlotMask; slot++) {
+            int offset = SLOTS_OFFSET + slot * SLOT_BYTES;
+            long position = mBuffer.getLong(offset);
+            // Anything else is committed, or was never finished.
+            if (position >= checkpoint && ((int) position & mSlotMask) == slot
+                    && mBuffer.getInt(offset + SLOT_TAG_INDEX) < tags.size()) {
+                positions.add(position);
+            }
+            next = Math.max(next, position + 1);
+        }
+        if (positions.isEmpty()) {
+            return next;
+        }
+
+        Collections.sort(positions);
+        ScalarReadingBatch recovered = new ScalarReadingBatch(positions.size());
+        for (long position : positions) {
+            int offset = SLOTS_OFFSET + ((int) position & mSlotMask) * SLOT_BYTES;
+            recovered.add(tags.get(mBuffer.getInt(offset + SLOT_TAG_INDEX)),
+                    mBuffer.getInt(offset + SLOT_TIER), mBuffer.getLong(offset + SLOT_TIMESTAMP),
+                    mBuffer.getDouble(offset + SLOT_VALUE));
+        }
+        mRecovered = recovered;
+        return next;
+    }
+
+    private List<String> readTags() {
+        int count = mBuffer.getInt(TAG_COUNT_OFFSET);
+        int end = Math.min(mBuffer.getInt(TAG_BYTES_OFFSET), TAGS_BYTES);
+        List<String> tags = new ArrayList<>(Math.max(0, count));
+        int offset = 0;
+        while (tags.size() < count && offset + 2 <= end) {
+            int length = mBuffer.getShort(TAGS_OFFSET + offset);
+            if (length < 0 || offset + 2 + length > end) {
+                break;
+            }
+            tags.add(readString(TAGS_OFFSET + offset + 2, length));
+            offset += 2 + length;
+        }
+        return tags;
+    }
+
+    /**
+     * @param index 0 for the experiment id, 1 for the trial id
+     * @return null if no trial is remembered
+     */
+    private String readTrialString(int index) {
+        int experimentLength = mBuffer.getShort(TRIAL_OFFSET);
+        int trialLength = mBuffer.getShort(TRIAL_OFFSET + 2);
+        if (experimentLength <= 0 || trialLength <= 0
+                || 4 + experimentLength + trialLength > TRIAL_BYTES) {
+            return null;
+        }
+        int offset = TRIAL_OFFSET + 4;
+        return index == 0 ? readString(offset, experimentLength)
+                : readString(offset + experimentLength, trialLength);
+    }
+
+    private String readString(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
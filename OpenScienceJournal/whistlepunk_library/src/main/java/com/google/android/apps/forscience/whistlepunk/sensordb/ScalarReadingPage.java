@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A fixed-capacity page of readings, stored in parallel primitive arrays so that reading a long
+ * trial doesn't allocate an object per reading.  Pages are meant to be refilled: a reader clears
+ * and fills the same page for each batch it hands out.
+ */
+public class ScalarReadingPage {
+    /**
+     * Hands out pages to fill, taking back the ones {@link #release() released} so they can be
+     * filled again.  Pages may be released on any thread.
+     */
+    public static class Pool {
+        // Enough for a page being filled, one waiting, and one being consumed.
+        private static final int MAX_FREE_PAGES = 3;
+
+        private final int mPageCapacity;
+        private final BlockingQueue<ScalarReadingPage> mFree =
+                new ArrayBlockingQueue<>(MAX_FREE_PAGES);
+
+        public Pool(int pageCapacity) {
+            mPageCapacity = pageCapacity;
+        }
+
+        /**
+         * @return an empty page, reused if one has been released, or else new
+         */
+        public ScalarReadingPage obtain() {
+            ScalarReadingPage page = mFree.poll();
+            if (page == null) {
+                return new ScalarReadingPage(mPageCapacity, this);
+            }
+            page.clear();
+            return page;
+        }
+
+        private void recycle(ScalarReadingPage page) {
+            // If enough pages are free already, this one is left to the garbage collector.
+            mFree.offer(page);
+        }
+    }
+
+    private final long[] mTimestamps;
+    private final double[] mValues;
+    private final String[] mSensorTags;
+    private final Pool mPool;
+    private int mSize = 0;
+
+    public ScalarReadingPage(int capacity) {
+        this(capacity, null);
+    }
+
+    private ScalarReadingPage(int capacity, Pool pool) {
+        mTimestamps = new long[capacity];
+        mValues = new double[capacity];
+        mSensorTags = new String[capacity];
+        mPool = pool;
+    }
+
+    public int capacity() {
+        return mTimestamps.length;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean isFull() {
+        return mSize == mTimestamps.length;
+    }
+
+    /**
+     * @throws IllegalStateException if the page is full
+     */
+    public void add(long timestampMillis, double value, String sensorTag) {
+        if (isFull()) {
+            throw new IllegalStateException("Page is full at " + mSize + " readings");
+        }
+        mTimestamps[mSize] = timestampMillis;
+        mValues[mSize] = value;
+        mSensorTags[mSize] = sensorTag;
+        mSize++;
+    }
+
+    public long getTimestampMillis(int index) {
+        return mTimestamps[index];
+    }
+
+    public double getValue(int index) {
+        return mValues[index];
+    }
+
+    public String getSensorTag(int index) {
+        return mSensorTags[index];
+    }
+
+    public long getFirstTimestampMillis() {
+        return mTimestamps[0];
+    }
+
+    public long getLastTimestampMillis() {
+        return mTimestamps[mSize - 1];
+    }
+
+    /**
+     * The backing array of timestamps.  Only the first {@link #size()} entries are valid, and
+     * they are overwritten when the page is next filled.
+     */
+    public long[] getTimestamps() {
+        return mTimestamps;
+    }
+
+    /**
+     * The backing array of values, with the same caveats as {@link #getTimestamps()}.
+     */
+    public double[] getValues() {
+        return mValues;
+    }
+
+    /**
+     * Delivers the readings on this page, in order, to the given consumer, on the calling thread.
+     */
+    public void deliver(StreamConsumer c) {
+        for (int i = 0; i < mSize; i++) {
+            c.addData(mTimestamps[i], mValues[i]);
+        }
+    }
+
+    /**
+     * Hands this page back to the {@link Pool} it came from, to be filled again.  The page must
+     * not be used afterwards.  Does nothing to a page that didn't come from a pool.
+     */
+    public void release() {
+        if (mPool != null) {
+            mPool.recycle(this);
+        }
+    }
+
+    /**
+     * Removes the first {@code count} readings, moving the rest to the front.
+     */
+    public void removeFirst(int count) {
+        count = Math.min(count, mSize);
+        int remaining = mSize - count;
+        System.arraycopy(mTimestamps, count, mTimestamps, 0, remaining);
+        System.arraycopy(mValues, count, mValues, 0, remaining);
+        System.arraycopy(mSensorTags, count, mSensorTags, 0, remaining);
+        for (int i = remaining; i < mSize; i++) {
+            mSensorTags[i] = null;
+        }
+        mSize = remaining;
+    }
+
+    public void clear() {
+        // Drop tag references, but leave the primitive arrays as they are.
+        for (int i = 0; i < mSize; i++) {
+            mSensorTags[i] = null;
+        }
+        mSize = 0;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded queue of scalar readings that any number of threads may add to without locking, and
+ * one thread drains.  Readings are kept in preallocated primitive slots, with each sensor's tag
+ * stored once and referred to by index, so adding a reading allocates nothing.
+ *
+ * Each slot has a sequence number that says whose turn it is: a producer claims the next slot by
+ * advancing the tail, fills it, then publishes it by setting its sequence; the consumer takes
+ * slots in order while they are published, and hands each one back by setting its sequence to the
+ * producer's next lap.  A reading that finds the ring full is dropped and counted.
+ *
+ * If the ring has a {@link ScalarReadingJournal}, each reading is also written to the journal,
+ * at the same position, before it is published.
+ */
+class ScalarReadingRing {
+    private final int mMask;
+    private final AtomicLongArray mSequences;
+    private final int[] mTagIndexes;
+    private final int[] mResolutionTiers;
+    private final long[] mTimestamps;
+    private final double[] mValues;
+
+    private final AtomicLong mTail;
+    // Only written by the consumer.
+    private volatile long mHead;
+
+    private final ScalarReadingJournal mJournal;
+    // Tags with indexes below this have been added to mJournal.
+    private volatile int mJournaledTagCount = 0;
+
+    private final AtomicLong mHighWaterMark = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private final Map<String, Integer> mTagIndexesByTag = new ConcurrentHashMap<>();
+    // Replaced, never modified, when a tag is added.
+    private volatile String[] mTags = new String[0];
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    ScalarReadingRing(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param capacity rounded up to a power of two
+     * @param journal  may be null; otherwise, must have at least twice as many slots as the ring
+     */
+    ScalarReadingRing(int capacity, ScalarReadingJournal journal) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mMask = size - 1;
+        mJournal = journal;
+        // Continue from where the journal's last process stopped, so as not to overwrite the
+        // readings it recovered.
+        long first = journal == null ? 0 : journal.getFirstPosition();
+        mTail = new AtomicLong(first);
+        mHead = first;
+        mSequences = new AtomicLongArray(size);
+        for (long position = first; position < first + size; position++) {
+            mSequences.set((int) position & mMask, position);
+        }
+        mTagIndexes = new int[size];
+        mResolutionTiers = new int[size];
+        mTimestamps = new long[size];
+        mValues = new double[size];
+        if (journal != null) {
+            // Keep the indexes the journal's recovered readings refer to.
+            for (String tag : journal.getTags()) {
+                putTag(tag);
+            }
+            mJournaledTagCount = mTags.length;
+        }
+    }
+
+    /**
+     * Adds a reading.  May be called from any thread.
+     *
+     * @return how many readings are queued, including this one; 0 if the ring was full and the
+     * reading was dropped
+     */
+    long offer(String sensorTag, int resolutionTier, long timestampMillis, double value) {
+        int tagIndex = getTagIndex(sensorTag);
+        long tail;
+        int slot;
+        while (true) {
+            tail = mTail.get();
+            slot = (int) tail & mMask;
+            long lag = mSequences.get(slot) - tail;
+            if (lag == 0) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    break;
+                }
+            } else if (lag < 0) {
+                // The consumer hasn't taken this slot's reading from the last lap yet.
+                mDropped.incrementAndGet();
+                return 0;
+            }
+            // Otherwise another producer claimed the slot first; try the next one.
+        }
+        mTagIndexes[slot] = tagIndex;
+        mResolutionTiers[slot] = resolutionTier;
+        mTimestamps[slot] = timestampMillis;
+        mValues[slot] = value;
+        if (mJournal != null && tagIndex < mJournaledTagCount) {
+            mJournal.record(tail, tagIndex, resolutionTier, timestampMillis, value);
+        }
+        mSequences.lazySet(slot, tail + 1);
+
+        long depth = tail + 1 - mHead;
+        long highWaterMark;
+        while (depth > (highWaterMark = mHighWaterMark.get())
+                && !mHighWaterMark.compareAndSet(highWaterMark, depth)) {
+            // Lost a race with another producer; check again.
+        }
+        return depth;
+    }
+
+    /**
+     * Moves queued readings into {@code batch}, oldest first, stopping at the first one whose
+     * producer hasn't finished adding it.  Must only be called from one thread at a time.
+     *
+     * @return how many readings were moved
+     */
+    int drainTo(ScalarReadingBatch batch) {
+        String[] tags = mTags;
+        long head = mHead;
+        // Only what was queued when the drain started, so busy producers can't keep it going.
+        long end = mTail.get();
+        int drained = 0;
+        while (head < end) {
+            int slot = (int) head & mMask;
+            if (mSequences.get(slot) != head + 1) {
+                break;
+            }
+            int tagIndex = mTagIndexes[slot];
+            if (tagIndex >= tags.length) {
+                // Added after we looked.
+                tags = mTags;
+            }
+            batch.add(tags[tagIndex], mResolutionTiers[slot], mTimestamps[slot], mValues[slot]);
+            mSequences.lazySet(slot, head + mMask + 1);
+            head++;
+            drained++;
+        }
+        mHead = head;
+        return drained;
+    }
+
+    /**
+     * @return the position of the next reading to be drained; every reading before it has been
+     * drained
+     */
+    long getDrainedPosition() {
+        return mHead;
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @return how many readings are queued, including any still being added
+     */
+    long getDepth() {
+        return Math.max(0, mTail.get() - mHead);
+    }
+
+    /**
+     * @return the most readings that have been queued at once
+     */
+    long getHighWaterMark() {
+        return mHighWaterMark.get();
+    }
+
+    /**
+     * @return how many readings have been dropped because the ring was full
+     */
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    private int getTagIndex(String sensorTag) {
+        Integer index = mTagIndexesByTag.get(sensorTag);
+        return index != null ? index : addTag(sensorTag);
+    }
+
+    private synchronized int addTag(String sensorTag) {
+        Integer index = mTagIndexesByTag.get(sensorTag);
+        if (index != null) {
+            return index;
+        }
+        // Journal the tag before publishing its index, so its first readings are journaled too.
+        int newIndex = mTags.length;
+        if (mJournal != null && mJournaledTagCount == newIndex
+                && mJournal.addTag(newIndex, sensorTag)) {
+            mJournaledTagCount = newIndex + 1;
+        }
+        return putTag(sensorTag);
+    }
+
+    private int putTag(String sensorTag) {
+        String[] tags = Arrays.copyOf(mTags, mTags.length + 1);
+        tags[tags.length - 1] = sensorTag;
+        // Publish the tag before its index, so a consumer that sees the index can find it.
+        mTags = tags;
+        mTagIndexesByTag.put(sensorTag, tags.length - 1);
+        return tags.length - 1;
+    }
+}
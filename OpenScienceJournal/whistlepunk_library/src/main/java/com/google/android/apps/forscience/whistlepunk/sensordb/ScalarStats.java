@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+/**
+ * Count, sum, extremes and endpoints of a set of scalar readings.  Stats for two sets can be
+ * combined without going back to the readings, which is what lets a database keep them per time
+ * bucket and answer for a range from a handful of buckets.
+ *
+ * The first reading is the one with the earliest timestamp, and the last the one with the latest;
+ * readings at the same timestamp are ordered by value, as reads return them.
+ */
+public class ScalarStats {
+    private long mCount = 0;
+    private double mSum = 0;
+    private double mSumOfSquares = 0;
+    private double mMin = Double.MAX_VALUE;
+    private double mMax = -Double.MAX_VALUE;
+    private long mFirstTimestampMillis;
+    private double mFirstValue;
+    private long mLastTimestampMillis;
+    private double mLastValue;
+
+    /**
+     * @return stats for every reading {@code reader} has left.  Closes the reader.
+     */
+    public static ScalarStats read(ScalarPageReader reader, int pageSize) {
+        ScalarStats stats = new ScalarStats();
+        ScalarReadingPage page = new ScalarReadingPage(pageSize);
+        try {
+            while (reader.readNextPage(page)) {
+                for (int i = 0; i < page.size(); i++) {
+                    stats.add(page.getTimestampMillis(i), page.getValue(i));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return stats;
+    }
+
+    public void add(long timestampMillis, double value) {
+        add(1, value, value * value, value, value, timestampMillis, value, timestampMillis, value);
+    }
+
+    public void add(ScalarStats other) {
+        if (other.isEmpty()) {
+            return;
+        }
+        add(other.mCount, other.mSum, other.mSumOfSquares, other.mMin, other.mMax,
+                other.mFirstTimestampMillis, other.mFirstValue, other.mLastTimestampMillis,
+                other.mLastValue);
+    }
+
+    void add(long count, double sum, double sumOfSquares, double min, double max,
+            long firstTimestampMillis, double firstValue, long lastTimestampMillis,
+            double lastValue) {
+        if (mCount == 0 || firstTimestampMillis < mFirstTimestampMillis
+                || (firstTimestampMillis == mFirstTimestampMillis && firstValue < mFirstValue)) {
+            mFirstTimestampMillis = firstTimestampMillis;
+            mFirstValue = firstValue;
+        }
+        if (mCount == 0 || lastTimestampMillis > mLastTimestampMillis
+                || (lastTimestampMillis == mLastTimestampMillis && lastValue > mLastValue)) {
+            mLastTimestampMillis = lastTimestampMillis;
+            mLastValue = lastValue;
+        }
+        mCount += count;
+        mSum += sum;
+        mSumOfSquares += sumOfSquares;
+        mMin = Math.min(mMin, min);
+        mMax = Math.max(mMax, max);
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public double getSum() {
+        return mSum;
+    }
+
+    public double getSumOfSquares() {
+        return mSumOfSquares;
+    }
+
+    /**
+     * Only meaningful if not {@link #isEmpty()}, as are the other getters below.
+     */
+    public double getMin() {
+        return mMin;
+    }
+
+    public double getMax() {
+        return mMax;
+    }
+
+    public double getAverage() {
+        return mSum / mCount;
+    }
+
+    public long getFirstTimestampMillis() {
+        return mFirstTimestampMillis;
+    }
+
+    public double getFirstValue() {
+        return mFirstValue;
+    }
+
+    public long getLastTimestampMillis() {
+        return mLastTimestampMillis;
+    }
+
+    public double getLastValue() {
+        return mLastValue;
+    }
+
+    @Override
+    public String toString() {
+        return "ScalarStats{" + "count=" + mCount + ", sum=" + mSum + ", sumOfSquares="
+                + mSumOfSquares + ", min=" + mMin + ", max=" + mMax + ", first="
+                + mFirstTimestampMillis + ":" + mFirstValue + ", last=" + mLastTimestampMillis
+                + ":" + mLastValue + '}';
+    }
+}
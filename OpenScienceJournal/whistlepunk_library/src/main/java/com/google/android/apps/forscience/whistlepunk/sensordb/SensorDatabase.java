@@ -16,11 +16,18 @@
 
 package com.google.android.apps.forscience.whistlepunk.sensordb;
 
+import com.google.common.collect.Range;
+
+import java.util.List;
+
 import io.reactivex.Observable;
 
 /**
- * Stores and retrieves sensor data from on-device storage.  All access should be be from a single
- * background thread; all calls are blocking, and do not perform internal synchronization.
+ * Stores and retrieves sensor data from on-device storage.  All calls are blocking.
+ *
+ * Writes, deletes and {@link #reclaimSpace} must all come from a single background thread.
+ * Reads may come from other threads at the same time, unless the implementation says otherwise;
+ * a read sees every write that finished before it started.
  */
 public interface SensorDatabase {
 
@@ -29,6 +36,12 @@ public interface SensorDatabase {
      */
     void addScalarReading(String sensorTag, int resolutionTier, long timestampMillis, double value);
 
+    /**
+     * Adds every reading in {@code batch} in a single transaction: either all of them are stored,
+     * or none are.  Does not modify {@code batch}.
+     */
+    void addScalarReadings(ScalarReadingBatch batch);
+
     /**
      * Get stored scalar records
      *
@@ -52,11 +65,69 @@ public interface SensorDatabase {
      */
     String getFirstDatabaseTagAfter(long timestamp);
 
+    /**
+     * @return every tag that has readings stored, in no particular order.  May also include tags
+     * whose readings have all been deleted.
+     */
+    List<String> getSensorTags();
+
     /**
      * Deletes the scalar records for the given sensor for the given time range.
      */
     void deleteScalarReadings(String sensorTag, TimeRange range);
 
+    /**
+     * Summarizes the full-resolution readings of {@code sensorTag} in {@code range}; the range's
+     * order doesn't matter.  Implementations may keep summaries as they write, so that this costs
+     * far less than reading every reading in a long range.
+     */
+    ScalarStats getScalarStats(String sensorTag, TimeRange range);
+
+    /**
+     * Returns storage left unused by deleted readings to the file system, up to roughly
+     * {@code maxBytes} at a time so that other work can run in between.
+     *
+     * @return the number of bytes freed; 0 once there is nothing left to free, or nothing can be
+     *         freed without holding up other work for too long.
+     */
+    long reclaimSpace(long maxBytes);
+
+    /**
+     * Says that readings added from now on, until {@link #stopExperimentRecording}, are recorded
+     * in the experiment with the given id, from {@code startMillis}.  Databases that keep each
+     * experiment's readings apart store them with it; others ignore this.  Must be called where
+     * readings are added, after every reading added before the recording started.
+     */
+    void startExperimentRecording(String experimentId, long startMillis);
+
+    /**
+     * Says that the experiment's recording has stopped, and that it recorded at {@code times}.
+     * Also used for a recording that was interrupted in an earlier process.  Must be called where
+     * readings are added, after every reading added before the recording stopped.
+     *
+     * @param times must have a lower bound
+     */
+    void stopExperimentRecording(String experimentId, Range<Long> times);
+
+    /**
+     * Deletes every reading stored for the experiment with the given id, if this database keeps
+     * each experiment's readings apart.  Others do nothing, leaving the readings to be deleted
+     * by range.
+     */
+    void deleteExperimentReadings(String experimentId);
+
     Observable<ScalarReading> createScalarObservable(String[] sensorTags, TimeRange range,
             int resolutionTier);
+
+    /**
+     * Opens a reader over the readings with any of the given tags in {@code range}, in the
+     * range's order.  Nothing is read until the caller asks for a page, and then only that page
+     * is held in memory, so this suits reading whole trials.  The caller must close the reader.
+     * Readings at the same timestamp come in the order their tags are given.
+     *
+     * See {@link #getScalarReadings(String, TimeRange, int, int)} for the meaning of the
+     * other parameters.
+     */
+    ScalarPageReader openScalarPageReader(String[] sensorTags, TimeRange range,
+            int resolutionTier);
 }
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.support.annotation.VisibleForTesting;
 import android.support.v4.util.Pair;
 
@@ -33,20 +34,37 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Range;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import io.reactivex.Observable;
-import io.reactivex.ObservableEmitter;
-import io.reactivex.ObservableOnSubscribe;
 
+/**
+ * Stores each reading as its own row.  Uses write-ahead logging, so reads can run on other
+ * threads, each on its own connection, while readings are being written.
+ *
+ * Full-resolution readings are also summarized per time bucket in {@link ReadingSummaries}, which
+ * is what answers {@link #getScalarStats}.
+ */
 public class SensorDatabaseImpl implements SensorDatabase {
     private static class DbVersions {
         public static final int V1_START = 1;
         public static final int V2_INDEX = 2;
         public static final int V3_TIER = 3;
-        public static final int CURRENT = V3_TIER;
+        public static final int V4_TAG_DICTIONARY = 4;
+        public static final int CURRENT = V4_TAG_DICTIONARY;
     }
 
+    /**
+     * Before V4, every reading stored its full tag.  Databases upgraded from earlier versions keep
+     * this table until {@link LegacyReadingMigrator} has moved all of its rows into
+     * {@link ScalarReadingsTable}, and then drop it.
+     */
     private static class ScalarSensorsTable {
         public static final String NAME = "scalar_sensors";
 
@@ -57,22 +75,90 @@ public class SensorDatabaseImpl implements SensorDatabase {
             public static final String VALUE = "value";
         }
 
-        public static final String CREATION_SQL = "CREATE TABLE " + NAME + " (" + Column.TAG + " " +
-                " TEXT, " + Column.TIMESTAMP_MILLIS + " INTEGER, " + Column.VALUE + " REAL,"
-                + Column.RESOLUTION_TIER + " INTEGER DEFAULT 0);";
-
         public static final String INDEX_SQL =
                 "CREATE INDEX timestamp ON " + NAME + "(" + Column.TIMESTAMP_MILLIS + ");";
     }
 
+    private static class SensorTagsTable {
+        public static final String NAME = "sensor_tags";
+
+        public static class Column {
+            public static final String ID = "_id";
+            public static final String TAG = "tag";
+        }
+
+        public static final String CREATION_SQL = "CREATE TABLE " + NAME + " (" + Column.ID
+                + " INTEGER PRIMARY KEY AUTOINCREMENT, " + Column.TAG
+                + " TEXT NOT NULL UNIQUE);";
+    }
+
+    private static class ScalarReadingsTable {
+        public static final String NAME = "scalar_readings";
+
+        public static class Column {
+            public static final String TAG_ID = "tagId";
+            public static final String RESOLUTION_TIER = "resolutionTier";
+            public static final String TIMESTAMP_MILLIS = "timestampMillis";
+            public static final String VALUE = "value";
+        }
+
+        public static final String CREATION_SQL = "CREATE TABLE " + NAME + " (" + Column.TAG_ID
+                + " INTEGER NOT NULL, " + Column.RESOLUTION_TIER + " INTEGER NOT NULL, "
+                + Column.TIMESTAMP_MILLIS + " INTEGER NOT NULL, " + Column.VALUE + " REAL);";
+
+        // Every read filters on tag and tier before timestamp; including the value means reads
+        // never have to visit the table itself.
+        public static final String SERIES_INDEX_NAME = "readings_by_series";
+        public static final String SERIES_INDEX_SQL = "CREATE INDEX " + SERIES_INDEX_NAME + " ON "
+                + NAME + "(" + Column.TAG_ID + ", " + Column.RESOLUTION_TIER + ", "
+                + Column.TIMESTAMP_MILLIS + ", " + Column.VALUE + ");";
+
+        // For getFirstDatabaseTagAfter, which looks across all tags.
+        public static final String TIME_INDEX_SQL = "CREATE INDEX readings_by_time ON " + NAME
+                + "(" + Column.TIMESTAMP_MILLIS + ");";
+
+        public static final String INSERT_SQL = "INSERT INTO " + NAME + " (" + Column.TAG_ID + ", "
+                + Column.RESOLUTION_TIER + ", " + Column.TIMESTAMP_MILLIS + ", " + Column.VALUE
+                + ") VALUES (?, ?, ?, ?);";
+    }
+
+    // Stands in for a tag that has never been stored; matches no readings.
+    private static final long NO_TAG_ID = -1;
+
+    // How many readings of each sensor to query for at once when reading several in order.
+    private static final int DEFAULT_BATCH_SIZE = 500;
+
     private final SQLiteOpenHelper mOpenHelper;
 
+    // Compiled once, and re-bound for every insert, rather than building ContentValues per row.
+    private SQLiteStatement mInsertStatement;
+    private SQLiteDatabase mInsertStatementDatabase;
+
+    // Shared by the writer and any number of readers; only the writer adds tags to the file.
+    private final Map<String, Long> mTagIds = new ConcurrentHashMap<>();
+    private final Map<Long, String> mTagsById = new ConcurrentHashMap<>();
+
+    // Null until checked.
+    private volatile Boolean mHasLegacyReadings;
+
+    // Held for reading while a query that may include the pre-V4 table is built and read, and for
+    // writing while that table is dropped, so no query runs against a table that is gone.
+    private final ReadWriteLock mLegacyTableLock = new ReentrantReadWriteLock();
+
+    private final ReadingSummaries mSummaries = new ReadingSummaries(this::addTierZeroReadings);
+
     public SensorDatabaseImpl(Context context, String name) {
         mOpenHelper = new SQLiteOpenHelper(context, name, null, DbVersions.CURRENT) {
+            @Override
+            public void onConfigure(SQLiteDatabase db) {
+                // Before logging is turned on, which writes the header of a new file.
+                IncrementalVacuum.enable(db);
+                db.enableWriteAheadLogging();
+            }
+
             @Override
             public void onCreate(SQLiteDatabase db) {
-                db.execSQL(ScalarSensorsTable.CREATION_SQL);
-                db.execSQL(ScalarSensorsTable.INDEX_SQL);
+                createReadingTables(db);
             }
 
             @Override
@@ -85,43 +171,268 @@ public class SensorDatabaseImpl implements SensorDatabase {
                         db.execSQL("ALTER TABLE " + ScalarSensorsTable.NAME + " ADD COLUMN "
                                 + ScalarSensorsTable.Column.RESOLUTION_TIER + " INTEGER DEFAULT 0;");
                         oldVersion = DbVersions.V3_TIER;
+                    } else if (oldVersion == DbVersions.V3_TIER) {
+                        // Existing readings stay where they are, and are moved in the background,
+                        // which also summarizes them.
+                        createReadingTables(db);
+                        oldVersion = DbVersions.V4_TAG_DICTIONARY;
                     }
                 }
             }
         };
     }
 
+    private static void createReadingTables(SQLiteDatabase db) {
+        db.execSQL(SensorTagsTable.CREATION_SQL);
+        db.execSQL(ScalarReadingsTable.CREATION_SQL);
+        db.execSQL(ScalarReadingsTable.SERIES_INDEX_SQL);
+        db.execSQL(ScalarReadingsTable.TIME_INDEX_SQL);
+        db.execSQL(ReadingSummaries.CREATION_SQL);
+    }
+
     @Override
     public void addScalarReading(String sourceTag, int resolutionTier, long timestampMillis,
             double value) {
-        ContentValues values = new ContentValues();
-        values.put(ScalarSensorsTable.Column.TAG, sourceTag);
-        values.put(ScalarSensorsTable.Column.TIMESTAMP_MILLIS, timestampMillis);
-        values.put(ScalarSensorsTable.Column.VALUE, value);
-        values.put(ScalarSensorsTable.Column.RESOLUTION_TIER, resolutionTier);
-        mOpenHelper.getWritableDatabase().insert(ScalarSensorsTable.NAME, null, values);
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            insertReading(getInsertStatement(db), getTagId(db, sourceTag, true), resolutionTier,
+                    timestampMillis, value);
+            mSummaries.flush(db);
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            forgetWrites();
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public void addScalarReadings(ScalarReadingBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        SQLiteStatement insert = getInsertStatement(db);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                insertReading(insert, getTagId(db, batch.getSensorTag(i), true),
+                        batch.getResolutionTier(i), batch.getTimestampMillis(i),
+                        batch.getValue(i));
+            }
+            mSummaries.flush(db);
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            forgetWrites();
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private SQLiteStatement getInsertStatement(SQLiteDatabase db) {
+        if (mInsertStatement == null || mInsertStatementDatabase != db) {
+            mInsertStatement = db.compileStatement(ScalarReadingsTable.INSERT_SQL);
+            mInsertStatementDatabase = db;
+        }
+        return mInsertStatement;
+    }
+
+    /**
+     * Full-resolution readings are also noted for the summaries, which must be flushed before the
+     * transaction ends.
+     */
+    private void insertReading(SQLiteStatement insert, long tagId, int resolutionTier,
+            long timestampMillis, double value) {
+        insert.bindLong(1, tagId);
+        insert.bindLong(2, resolutionTier);
+        insert.bindLong(3, timestampMillis);
+        insert.bindDouble(4, value);
+        insert.executeInsert();
+        if (resolutionTier == 0) {
+            mSummaries.add(tagId, timestampMillis, value);
+        }
+    }
+
+    /**
+     * @param create whether to add {@code tag} to the dictionary if it isn't there yet
+     * @return the id for {@code tag}, or {@link #NO_TAG_ID} if it has none and {@code create} is
+     * false
+     */
+    private long getTagId(SQLiteDatabase db, String tag, boolean create) {
+        Long id = mTagIds.get(tag);
+        if (id != null) {
+            return id;
+        }
+        Cursor cursor = db.query(SensorTagsTable.NAME, new String[]{SensorTagsTable.Column.ID},
+                SensorTagsTable.Column.TAG + "=?", new String[]{tag}, null, null, null);
+        try {
+            if (cursor.moveToNext()) {
+                id = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (id == null) {
+            if (!create) {
+                return NO_TAG_ID;
+            }
+            ContentValues values = new ContentValues();
+            values.put(SensorTagsTable.Column.TAG, tag);
+            id = db.insertOrThrow(SensorTagsTable.NAME, null, values);
+        }
+        mTagIds.put(tag, id);
+        mTagsById.put(id, tag);
+        return id;
+    }
+
+    private String getTag(SQLiteDatabase db, long tagId) {
+        String tag = mTagsById.get(tagId);
+        if (tag != null) {
+            return tag;
+        }
+        Cursor cursor = db.query(SensorTagsTable.NAME, new String[]{SensorTagsTable.Column.TAG},
+                SensorTagsTable.Column.ID + "=?", new String[]{String.valueOf(tagId)}, null, null,
+                null);
+        try {
+            if (cursor.moveToNext()) {
+                tag = cursor.getString(0);
+                mTagIds.put(tag, tagId);
+                mTagsById.put(tagId, tag);
+            }
+            return tag;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Drops what was remembered about writes in a transaction that was rolled back: tags interned
+     * in it, and readings not yet summarized.
+     */
+    private void forgetWrites() {
+        mTagIds.clear();
+        mTagsById.clear();
+        mSummaries.discard();
+    }
+
+    private boolean hasLegacyReadings(SQLiteDatabase db) {
+        if (mHasLegacyReadings == null) {
+            Cursor cursor = db.rawQuery("SELECT 1 FROM sqlite_master WHERE type='table' AND name=?",
+                    new String[]{ScalarSensorsTable.NAME});
+            try {
+                mHasLegacyReadings = cursor.moveToNext();
+            } finally {
+                cursor.close();
+            }
+        }
+        return mHasLegacyReadings;
+    }
+
+    /**
+     * @return how many readings are still stored in the pre-V4 format.
+     */
+    long countLegacyReadings() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        if (!hasLegacyReadings(db)) {
+            return 0;
+        }
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + ScalarSensorsTable.NAME, null);
+        try {
+            return cursor.moveToNext() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Moves up to {@code maxRows} readings from the pre-V4 table into the current one, in a
+     * single transaction.  Once there are none left, drops the old table.
+     *
+     * @return the number of readings moved; 0 once migration is complete.
+     */
+    int migrateLegacyReadings(int maxRows) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        if (!hasLegacyReadings(db)) {
+            return 0;
+        }
+        SQLiteStatement insert = getInsertStatement(db);
+        int moved = 0;
+        db.beginTransaction();
+        try {
+            long lastRowId = -1;
+            Cursor cursor = db.query(ScalarSensorsTable.NAME, new String[]{"rowid",
+                            ScalarSensorsTable.Column.TAG,
+                            ScalarSensorsTable.Column.RESOLUTION_TIER,
+                            ScalarSensorsTable.Column.TIMESTAMP_MILLIS,
+                            ScalarSensorsTable.Column.VALUE}, null, null, null, null,
+                    "rowid ASC", String.valueOf(maxRows));
+            try {
+                while (cursor.moveToNext()) {
+                    lastRowId = cursor.getLong(0);
+                    moved++;
+                    if (cursor.isNull(1)) {
+                        // Can't be read back by any tag, so there's nothing to keep.
+                        continue;
+                    }
+                    insertReading(insert, getTagId(db, cursor.getString(1), true),
+                            cursor.getInt(2), cursor.getLong(3), cursor.getDouble(4));
+                }
+            } finally {
+                cursor.close();
+            }
+            if (moved > 0) {
+                db.delete(ScalarSensorsTable.NAME, "rowid<=?",
+                        new String[]{String.valueOf(lastRowId)});
+            }
+            mSummaries.flush(db);
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            forgetWrites();
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
+        if (moved == 0) {
+            dropLegacyTable(db);
+        }
+        return moved;
+    }
+
+    private void dropLegacyTable(SQLiteDatabase db) {
+        mLegacyTableLock.writeLock().lock();
+        try {
+            db.execSQL("DROP TABLE " + ScalarSensorsTable.NAME);
+            mHasLegacyReadings = false;
+        } finally {
+            mLegacyTableLock.writeLock().unlock();
+        }
     }
 
     /**
      * Gets the selection string and selectionArgs based on the tag, range and resolution tier.
      *
+     * @param tagColumn the column holding each reading's tag, or tag id
+     * @param tagValues values of {@code tagColumn} to select
      * @return a pair where the first element is the selection string and the second element is the
      * array of selectionArgs.
      */
-    private Pair<String, String[]> getSelectionAndArgs(String[] sensorTags, TimeRange range,
-            int resolutionTier) {
+    private Pair<String, String[]> getSelectionAndArgs(String tagColumn, String[] tagValues,
+            TimeRange range, int resolutionTier) {
         List<String> clauses = new ArrayList<>();
         List<String> values = new ArrayList<>();
 
-        if (sensorTags != null || sensorTags.length == 0) {
-          if (sensorTags.length == 1) {
-              clauses.add(ScalarSensorsTable.Column.TAG + " = ?");
-              values.add(sensorTags[0]);
+        if (tagValues != null || tagValues.length == 0) {
+          if (tagValues.length == 1) {
+              clauses.add(tagColumn + " = ?");
+              values.add(tagValues[0]);
           } else {
               // Generate "(?,?...") for length.
               StringBuilder bindString = new StringBuilder();
-              for (String sensorTag : sensorTags) {
-                  values.add(sensorTag);
+              for (String tagValue : tagValues) {
+                  values.add(tagValue);
                   if (bindString.length() == 0) {
                       bindString.append("(?");
                   } else {
@@ -129,13 +440,13 @@ public class SensorDatabaseImpl implements SensorDatabase {
                   }
               }
               bindString.append(")");
-              clauses.add(ScalarSensorsTable.Column.TAG + " IN " + bindString.toString());
+              clauses.add(tagColumn + " IN " + bindString.toString());
           }
         }
 
 
         if (resolutionTier >= 0) {
-            clauses.add(ScalarSensorsTable.Column.RESOLUTION_TIER + " = ?");
+            clauses.add(ScalarReadingsTable.Column.RESOLUTION_TIER + " = ?");
             values.add(String.valueOf(resolutionTier));
         }
 
@@ -144,13 +455,13 @@ public class SensorDatabaseImpl implements SensorDatabase {
         if (canonicalTimes.hasLowerBound()) {
             String comparator = (canonicalTimes.lowerBoundType() == BoundType.CLOSED) ?
                     " >= ?" : " > ?";
-            clauses.add(ScalarSensorsTable.Column.TIMESTAMP_MILLIS + comparator);
+            clauses.add(ScalarReadingsTable.Column.TIMESTAMP_MILLIS + comparator);
             values.add(String.valueOf(canonicalTimes.lowerEndpoint()));
         }
         if (canonicalTimes.hasUpperBound()) {
             String comparator = (canonicalTimes.upperBoundType() == BoundType.CLOSED) ?
                     " <= ?" : " < ?";
-            clauses.add(ScalarSensorsTable.Column.TIMESTAMP_MILLIS + comparator);
+            clauses.add(ScalarReadingsTable.Column.TIMESTAMP_MILLIS + comparator);
             values.add(String.valueOf(canonicalTimes.upperEndpoint()));
         }
 
@@ -161,143 +472,491 @@ public class SensorDatabaseImpl implements SensorDatabase {
     @Override
     public ScalarReadingList getScalarReadings(String sensorTag, TimeRange range,
             int resolutionTier, int maxRecords) {
-
-        Cursor cursor = getCursor(new String[] {sensorTag}, range, resolutionTier, maxRecords);
+        mLegacyTableLock.readLock().lock();
         try {
-            final int max = maxRecords <= 0 ? cursor.getCount() : maxRecords;
-            final long[] readTimestamps = new long[max];
-            final double[] readValues = new double[max];
-            int i = 0;
-            while (cursor.moveToNext()) {
-                readTimestamps[i] = cursor.getLong(0);
-                readValues[i] = cursor.getDouble(1);
-                i++;
-            }
-            final int actualCount = i;
-            return new ScalarReadingList() {
-                @Override
-                public void deliver(StreamConsumer c) {
-                    for (int i = 0; i < actualCount; i++) {
-                        c.addData(readTimestamps[i], readValues[i]);
-                    }
+            Cursor cursor = getCursor(new String[] {sensorTag}, range, resolutionTier,
+                    maxRecords);
+            try {
+                final int max = maxRecords <= 0 ? cursor.getCount() : maxRecords;
+                final long[] readTimestamps = new long[max];
+                final double[] readValues = new double[max];
+                int i = 0;
+                while (cursor.moveToNext()) {
+                    readTimestamps[i] = cursor.getLong(0);
+                    readValues[i] = cursor.getDouble(1);
+                    i++;
                 }
+                final int actualCount = i;
+                return new ScalarReadingList() {
+                    @Override
+                    public void deliver(StreamConsumer c) {
+                        for (int i = 0; i < actualCount; i++) {
+                            c.addData(readTimestamps[i], readValues[i]);
+                        }
+                    }
 
-                @Override
-                public int size() {
-                    return actualCount;
-                }
+                    @Override
+                    public int size() {
+                        return actualCount;
+                    }
 
-                @Override
-                public List<ChartData.DataPoint> asDataPoints() {
-                    List<ChartData.DataPoint> result = new ArrayList<>();
-                    for (int i = 0; i < actualCount; i++) {
-                        result.add(new ChartData.DataPoint(readTimestamps[i], readValues[i]));
+                    @Override
+                    public List<ChartData.DataPoint> asDataPoints() {
+                        List<ChartData.DataPoint> result = new ArrayList<>();
+                        for (int i = 0; i < actualCount; i++) {
+                            result.add(new ChartData.DataPoint(readTimestamps[i], readValues[i]));
+                        }
+                        return result;
                     }
-                    return result;
-                }
-            };
+                };
+            } finally {
+                cursor.close();
+            }
         } finally {
-            cursor.close();
+            mLegacyTableLock.readLock().unlock();
         }
     }
 
     @Override
     public Observable<ScalarReading> createScalarObservable(String[] sensorTags,
             final TimeRange range, int resolutionTier) {
-        return createScalarObservable(sensorTags, range, resolutionTier, 500);
+        return createScalarObservable(sensorTags, range, resolutionTier, DEFAULT_BATCH_SIZE);
     }
 
     @VisibleForTesting
-    Observable<ScalarReading> createScalarObservable(String[] sensorTags, final TimeRange range,
-            int resolutionTier, int pageSize) {
-        return Observable.create(new ObservableOnSubscribe<ScalarReading>() {
-
-            private long mLastTimeStampWritten = -1;
-
-            @Override
-            public void subscribe(ObservableEmitter<ScalarReading> observableEmitter)
-                    throws Exception {
-                // Start by opening the cursor.
-                TimeRange searchRange = range;
-                while (true) {
-                    Cursor c = null;
-                    try {
-                        c = getCursor(sensorTags, searchRange, resolutionTier, pageSize);
-                        if (c != null) {
-                            int count = 0;
-                            while (c.moveToNext()) {
-                                long timeStamp = c.getLong(0);
-                                observableEmitter.onNext(new ScalarReading(timeStamp,
-                                        c.getDouble(1), c.getString(2)));
-                                mLastTimeStampWritten = timeStamp;
-                                count++;
-                            }
-                            if (count == 0 || observableEmitter.isDisposed()) {
-                                break;
-                            }
-                        }
-                    } finally {
-                        if (c != null) {
-                            c.close();
-                        }
-                    }
-                    if (mLastTimeStampWritten >= range.getTimes().upperEndpoint()) {
-                        break;
-                    } else {
-                        Range<Long> times = Range.openClosed(mLastTimeStampWritten,
-                                range.getTimes().upperEndpoint());
-                        searchRange = TimeRange.oldest(times);
-                    }
-                    if (observableEmitter.isDisposed()) {
-                        break;
+    Observable<ScalarReading> createScalarObservable(final String[] sensorTags,
+            final TimeRange range, final int resolutionTier, final int pageSize) {
+        return Observable.create(emitter -> {
+            ScalarPageReader reader = openScalarPageReader(sensorTags, range, resolutionTier,
+                    pageSize);
+            try {
+                ScalarReadingPage page = new ScalarReadingPage(pageSize);
+                while (!emitter.isDisposed() && reader.readNextPage(page)) {
+                    for (int i = 0; i < page.size() && !emitter.isDisposed(); i++) {
+                        emitter.onNext(new ScalarReading(page.getTimestampMillis(i),
+                                page.getValue(i), page.getSensorTag(i)));
                     }
                 }
-                observableEmitter.onComplete();
+            } finally {
+                reader.close();
             }
+            emitter.onComplete();
         });
     }
 
+    /**
+     * @return a cursor over (timestamp, value, tag id) for the matching readings.
+     */
     private Cursor getCursor(String[] sensorTags, TimeRange range, int resolutionTier,
             int maxRecords) {
-        String[] columns = new String[] {ScalarSensorsTable.Column.TIMESTAMP_MILLIS,
-                ScalarSensorsTable.Column.VALUE, ScalarSensorsTable.Column.TAG};
-        Pair<String, String[]> selectionAndArgs = getSelectionAndArgs(sensorTags,
-                range, resolutionTier);
-        String selection = selectionAndArgs.first;
-        String[] selectionArgs = selectionAndArgs.second;
-        String orderBy = ScalarSensorsTable.Column.TIMESTAMP_MILLIS + (range.getOrder().equals(
-                TimeRange.ObservationOrder.OLDEST_FIRST) ? " ASC" : " DESC");
-        String limit = maxRecords <= 0 ? null : String.valueOf(maxRecords);
-        return mOpenHelper.getReadableDatabase().query(ScalarSensorsTable.NAME,
-                columns,  selection, selectionArgs, null, null, orderBy,
-                limit);
-    }
-
-    // TODO: test
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Pair<String, String[]> query = buildScalarQuery(db, sensorTags, range, resolutionTier,
+                maxRecords);
+        return db.rawQuery(query.first, query.second);
+    }
+
+    /**
+     * @return the SQL and arguments to select (timestamp, value, tag id) for the given readings,
+     * including any that have not yet been moved out of the pre-V4 table.
+     */
+    private Pair<String, String[]> buildScalarQuery(SQLiteDatabase db, String[] sensorTags,
+            TimeRange range, int resolutionTier, int maxRecords) {
+        boolean hasLegacyReadings = hasLegacyReadings(db);
+        String[] tagIds = new String[sensorTags.length];
+        for (int i = 0; i < sensorTags.length; i++) {
+            // While old readings remain, a tag can have readings before it has an id; those are
+            // still found by tag in the old table.
+            tagIds[i] = String.valueOf(getTagId(db, sensorTags[i], false));
+        }
+        Pair<String, String[]> selection = getSelectionAndArgs(
+                ScalarReadingsTable.Column.TAG_ID, tagIds, range, resolutionTier);
+        StringBuilder sql = new StringBuilder("SELECT ")
+                .append(ScalarReadingsTable.Column.TIMESTAMP_MILLIS).append(", ")
+                .append(ScalarReadingsTable.Column.VALUE).append(", ")
+                .append(ScalarReadingsTable.Column.TAG_ID)
+                .append(" FROM ").append(ScalarReadingsTable.NAME)
+                .append(" WHERE ").append(selection.first);
+        List<String> args = Lists.newArrayList(selection.second);
+
+        if (hasLegacyReadings) {
+            Pair<String, String[]> legacySelection = getSelectionAndArgs(
+                    ScalarSensorsTable.Column.TAG, sensorTags, range, resolutionTier);
+            sql.append(" UNION ALL SELECT ")
+                    .append(ScalarSensorsTable.Column.TIMESTAMP_MILLIS).append(", ")
+                    .append(ScalarSensorsTable.Column.VALUE).append(", (SELECT ")
+                    .append(SensorTagsTable.Column.ID).append(" FROM ")
+                    .append(SensorTagsTable.NAME).append(" WHERE ").append(SensorTagsTable.NAME)
+                    .append(".").append(SensorTagsTable.Column.TAG).append(" = ")
+                    .append(ScalarSensorsTable.NAME).append(".")
+                    .append(ScalarSensorsTable.Column.TAG).append(")")
+                    .append(" FROM ").append(ScalarSensorsTable.NAME)
+                    .append(" WHERE ").append(legacySelection.first);
+            args.addAll(Arrays.asList(legacySelection.second));
+        }
+
+        // Ties are broken by the remaining columns, so readings come back in the same order
+        // every time.
+        String direction = range.getOrder().equals(TimeRange.ObservationOrder.OLDEST_FIRST)
+                ? " ASC" : " DESC";
+        sql.append(" ORDER BY ").append(ScalarReadingsTable.Column.TIMESTAMP_MILLIS)
+                .append(direction).append(", ").append(ScalarReadingsTable.Column.TAG_ID)
+                .append(direction).append(", ").append(ScalarReadingsTable.Column.VALUE)
+                .append(direction);
+        if (maxRecords > 0) {
+            sql.append(" LIMIT ").append(maxRecords);
+        }
+        return new Pair<>(sql.toString(), args.toArray(new String[args.size()]));
+    }
+
     @Override
-    public String getFirstDatabaseTagAfter(long timestamp) {
-        final String timestampString = String.valueOf(timestamp);
-        final Cursor cursor = mOpenHelper.getReadableDatabase().query(ScalarSensorsTable.NAME,
-                new String[]{ScalarSensorsTable.Column.TAG},
-                ScalarSensorsTable.Column.TIMESTAMP_MILLIS + ">?", new String[]{timestampString},
-                null, null, ScalarSensorsTable.Column.TIMESTAMP_MILLIS + " ASC", "1");
+    public ScalarPageReader openScalarPageReader(String[] sensorTags, TimeRange range,
+            int resolutionTier) {
+        return openScalarPageReader(sensorTags, range, resolutionTier, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param batchSize how many readings to query for at a time, for each sensor
+     */
+    @VisibleForTesting
+    ScalarPageReader openScalarPageReader(String[] sensorTags, TimeRange range,
+            int resolutionTier, int batchSize) {
+        MergingPageReader reader = new MergingPageReader(range);
         try {
-            if (cursor.moveToNext()) {
-                return cursor.getString(0);
+            for (String sensorTag : sensorTags) {
+                reader.addSeries(sensorTag, new SeriesQuery(sensorTag, range, resolutionTier,
+                        batchSize));
+            }
+        } catch (RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+        return reader;
+    }
+
+    /**
+     * Reads one sensor's readings a batch at a time.  Each batch is a LIMITed
+     * query that seeks to where the last one left off.
+     *
+     * Readings at one timestamp are never split across batches, so the last timestamp read is
+     * enough to say where to start again: a batch that ends partway through a timestamp's
+     * readings gives them back, to be read whole with the next batch.  That keeps every query in
+     * timestamp order, which the series index can produce without sorting.
+     *
+     * Each query also covers readings not yet migrated out of the pre-V4 table, so readings that
+     * move between batches are still read exactly once.
+     */
+    private class SeriesQuery implements MergingPageReader.Series {
+        // Just the one tag, as getCursor takes them.
+        private final String[] mSensorTags;
+        private final TimeRange mRange;
+        private final int mResolutionTier;
+        private final int mBatchSize;
+
+        private TimeRange mSearchRange;
+        private long[] mTimestamps;
+        private double[] mValues;
+        private int mSize = 0;
+        private int mIndex = 0;
+        private boolean mHasMoreBatches = true;
+
+        SeriesQuery(String sensorTag, TimeRange range, int resolutionTier, int batchSize) {
+            mSensorTags = new String[] {sensorTag};
+            mRange = range;
+            mSearchRange = range;
+            mResolutionTier = resolutionTier;
+            mBatchSize = batchSize;
+            mTimestamps = new long[batchSize];
+            mValues = new double[batchSize];
+        }
+
+        @Override
+        public boolean moveToNext() {
+            if (mIndex + 1 < mSize) {
+                mIndex++;
+                return true;
+            }
+            while (mHasMoreBatches) {
+                readNextBatch();
+                if (mSize > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void readNextBatch() {
+            mIndex = 0;
+            mSize = query(mSearchRange, mBatchSize);
+            if (mSize < mBatchSize) {
+                mHasMoreBatches = false;
+                return;
+            }
+            long last = mTimestamps[mSize - 1];
+            int whole = mSize;
+            while (whole > 0 && mTimestamps[whole - 1] == last) {
+                whole--;
+            }
+            if (whole > 0) {
+                // Leave the readings at the last timestamp for the next batch.
+                mSize = whole;
+                mSearchRange = narrowSearch(last, true);
+            } else {
+                // More readings at one timestamp than fit in a batch; read all of them.
+                mSize = query(TimeRange.oldest(Range.singleton(last)), 0 /* no limit */);
+                mSearchRange = narrowSearch(last, false);
+            }
+        }
+
+        private TimeRange narrowSearch(long from, boolean inclusive) {
+            Range<Long> times = mRange.getTimes();
+            if (mRange.getOrder() == TimeRange.ObservationOrder.OLDEST_FIRST) {
+                return TimeRange.oldest(times.intersection(
+                        inclusive ? Range.atLeast(from) : Range.greaterThan(from)));
             } else {
-                return null;
+                return TimeRange.newest(times.intersection(
+                        inclusive ? Range.atMost(from) : Range.lessThan(from)));
+            }
+        }
+
+        /**
+         * Reads readings in {@code range} into the arrays, from the start.
+         *
+         * @return the number of readings read
+         */
+        private int query(TimeRange range, int maxRecords) {
+            mLegacyTableLock.readLock().lock();
+            try {
+                Cursor cursor = getCursor(mSensorTags, range, mResolutionTier, maxRecords);
+                try {
+                    int count = 0;
+                    while (cursor.moveToNext()) {
+                        if (count == mTimestamps.length) {
+                            mTimestamps = Arrays.copyOf(mTimestamps, count * 2);
+                            mValues = Arrays.copyOf(mValues, count * 2);
+                        }
+                        mTimestamps[count] = cursor.getLong(0);
+                        mValues[count] = cursor.getDouble(1);
+                        count++;
+                    }
+                    return count;
+                } finally {
+                    cursor.close();
+                }
+            } finally {
+                mLegacyTableLock.readLock().unlock();
             }
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mTimestamps[mIndex];
+        }
+
+        @Override
+        public double getValue() {
+            return mValues[mIndex];
+        }
+
+        @Override
+        public void close() {
+            // Each batch's cursor is closed as soon as the batch is read.
+            mHasMoreBatches = false;
+            mSize = 0;
+        }
+    }
+
+    /**
+     * @return SQLite's description of how it would run the query for these readings, one step per
+     * line.
+     */
+    @VisibleForTesting
+    String explainScalarQuery(String[] sensorTags, TimeRange range, int resolutionTier,
+            int maxRecords) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Pair<String, String[]> query = buildScalarQuery(db, sensorTags, range, resolutionTier,
+                maxRecords);
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + query.first, query.second);
+        try {
+            StringBuilder plan = new StringBuilder();
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append("\n");
+            }
+            return plan.toString();
         } finally {
             cursor.close();
         }
     }
 
+    @Override
+    public String getFirstDatabaseTagAfter(long timestamp) {
+        mLegacyTableLock.readLock().lock();
+        try {
+            final String[] timestampArgs = new String[]{String.valueOf(timestamp)};
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            String tag = null;
+            long tagTimestamp = Long.MAX_VALUE;
+            Cursor cursor = db.query(ScalarReadingsTable.NAME,
+                    new String[]{ScalarReadingsTable.Column.TAG_ID,
+                            ScalarReadingsTable.Column.TIMESTAMP_MILLIS},
+                    ScalarReadingsTable.Column.TIMESTAMP_MILLIS + ">?", timestampArgs, null, null,
+                    ScalarReadingsTable.Column.TIMESTAMP_MILLIS + " ASC", "1");
+            try {
+                if (cursor.moveToNext()) {
+                    tag = getTag(db, cursor.getLong(0));
+                    tagTimestamp = cursor.getLong(1);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (hasLegacyReadings(db)) {
+                cursor = db.query(ScalarSensorsTable.NAME,
+                        new String[]{ScalarSensorsTable.Column.TAG,
+                                ScalarSensorsTable.Column.TIMESTAMP_MILLIS},
+                        ScalarSensorsTable.Column.TIMESTAMP_MILLIS + ">?", timestampArgs, null,
+                        null, ScalarSensorsTable.Column.TIMESTAMP_MILLIS + " ASC", "1");
+                try {
+                    if (cursor.moveToNext() && cursor.getLong(1) < tagTimestamp) {
+                        tag = cursor.getString(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            return tag;
+        } finally {
+            mLegacyTableLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> getSensorTags() {
+        mLegacyTableLock.readLock().lock();
+        try {
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            LinkedHashSet<String> tags = new LinkedHashSet<>();
+            Cursor cursor = db.query(SensorTagsTable.NAME,
+                    new String[]{SensorTagsTable.Column.TAG}, null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    tags.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            if (hasLegacyReadings(db)) {
+                cursor = db.query(true, ScalarSensorsTable.NAME,
+                        new String[]{ScalarSensorsTable.Column.TAG},
+                        ScalarSensorsTable.Column.TAG + " IS NOT NULL", null, null, null, null,
+                        null);
+                try {
+                    while (cursor.moveToNext()) {
+                        tags.add(cursor.getString(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            return new ArrayList<>(tags);
+        } finally {
+            mLegacyTableLock.readLock().unlock();
+        }
+    }
+
     @Override
     public void deleteScalarReadings(String sensorTag, TimeRange range) {
-        Pair<String, String[]> selectionAndArgs = getSelectionAndArgs(new String[] {sensorTag},
-                range, -1 /* delete all resolutions */);
-        String selection = selectionAndArgs.first;
-        String[] selectionArgs = selectionAndArgs.second;
-        mOpenHelper.getWritableDatabase().delete(ScalarSensorsTable.NAME, selection, selectionArgs);
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long tagId = getTagId(db, sensorTag, false);
+            if (tagId != NO_TAG_ID) {
+                Pair<String, String[]> selectionAndArgs = getSelectionAndArgs(
+                        ScalarReadingsTable.Column.TAG_ID, new String[] {String.valueOf(tagId)},
+                        range, -1 /* delete all resolutions */);
+                db.delete(ScalarReadingsTable.NAME, selectionAndArgs.first,
+                        selectionAndArgs.second);
+                mSummaries.onDelete(db, tagId, range.getFirstIncludedMillis(),
+                        range.getLastIncludedMillis());
+            }
+            if (hasLegacyReadings(db)) {
+                Pair<String, String[]> selectionAndArgs = getSelectionAndArgs(
+                        ScalarSensorsTable.Column.TAG, new String[] {sensorTag}, range,
+                        -1 /* delete all resolutions */);
+                db.delete(ScalarSensorsTable.NAME, selectionAndArgs.first,
+                        selectionAndArgs.second);
+            }
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            forgetWrites();
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public ScalarStats getScalarStats(String sensorTag, TimeRange range) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        if (hasLegacyReadings(db)) {
+            // Readings still in the pre-V4 table aren't summarized yet, so add up every reading.
+            return ScalarStats.read(openScalarPageReader(new String[]{sensorTag}, range, 0),
+                    DEFAULT_BATCH_SIZE);
+        }
+        long tagId = getTagId(db, sensorTag, false);
+        if (tagId == NO_TAG_ID) {
+            return new ScalarStats();
+        }
+        return mSummaries.query(db, tagId, range.getFirstIncludedMillis(),
+                range.getLastIncludedMillis());
+    }
+
+    /**
+     * Implements {@link ReadingSummaries.Readings}.
+     */
+    private void addTierZeroReadings(SQLiteDatabase db, long tagId, long fromMillis,
+            long toMillis, ScalarStats stats) {
+        Cursor cursor = db.query(ScalarReadingsTable.NAME,
+                new String[]{ScalarReadingsTable.Column.TIMESTAMP_MILLIS,
+                        ScalarReadingsTable.Column.VALUE},
+                ScalarReadingsTable.Column.TAG_ID + "=? AND "
+                        + ScalarReadingsTable.Column.RESOLUTION_TIER + "=0 AND "
+                        + ScalarReadingsTable.Column.TIMESTAMP_MILLIS + ">=? AND "
+                        + ScalarReadingsTable.Column.TIMESTAMP_MILLIS + "<?",
+                new String[]{String.valueOf(tagId), String.valueOf(fromMillis),
+                        String.valueOf(toMillis)}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                stats.add(cursor.getLong(0), cursor.getDouble(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public long reclaimSpace(long maxBytes) {
+        return IncrementalVacuum.reclaim(mOpenHelper.getWritableDatabase(), maxBytes);
+    }
+
+    @Override
+    public void startExperimentRecording(String experimentId, long startMillis) {
+        // Every experiment's readings are kept together.
+    }
+
+    @Override
+    public void stopExperimentRecording(String experimentId, Range<Long> times) {
+        // Every experiment's readings are kept together.
+    }
+
+    @Override
+    public void deleteExperimentReadings(String experimentId) {
+        // Every experiment's readings are kept together.
+    }
+
+    /**
+     * Closes the database file.  The instance must not be used afterwards.
+     */
+    public void close() {
+        mOpenHelper.close();
     }
 }
@@ -0,0 +1,606 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.common.base.Function;
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeMap;
+import com.google.common.collect.TreeRangeMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.reactivex.Observable;
+
+/**
+ * Keeps each experiment's readings in a database of its own, so that deleting an experiment
+ * deletes a file rather than its readings one by one, and a long history of other experiments
+ * doesn't slow down reading this one.
+ *
+ * Readings are written to the shard of the experiment that is recording, between
+ * {@link #startExperimentRecording} and {@link #stopExperimentRecording}, and to the unsharded
+ * database when none is.  Each recording also routes its times to its experiment, open-ended
+ * until it stops, so that reads know which shards to look in.  Reads consult the unsharded
+ * database as well as every shard routed in the range, so readings stored before this class was,
+ * which stay in the unsharded database, are found too.
+ *
+ * Routes are kept by {@link Shards#saveRoutes}, so readings are found in their shards after a
+ * restart, including those of a recording the restart interrupted.
+ *
+ * Each shard is opened once, and every operation that uses it holds it until it's done, so a
+ * shard is only closed or deleted once nothing is reading from it.  A shard that is neither
+ * recording nor routed to is closed as soon as the last operation using it is done.
+ */
+public class ShardedSensorDatabase implements SensorDatabase {
+    // How many readings to read at once when merging shards.
+    private static final int PAGE_SIZE = 500;
+
+    /**
+     * Creates and deletes the databases that hold each experiment's readings.
+     */
+    public interface Shards {
+        /**
+         * Opens the experiment's database, creating it if there isn't one yet.
+         */
+        SensorDatabase open(String experimentId);
+
+        /**
+         * @return the ids of the experiments that have a database
+         */
+        List<String> getExperimentIds();
+
+        /**
+         * Deletes the experiment's database.
+         *
+         * @param opened the instance {@link #open} returned, which nothing is using any more, or
+         *               null if it wasn't opened
+         */
+        void delete(String experimentId, @Nullable SensorDatabase opened);
+
+        /**
+         * Closes an instance {@link #open} returned.
+         */
+        void close(SensorDatabase opened);
+
+        /**
+         * @return the routes last passed to {@link #saveRoutes}; empty if there were none
+         */
+        RangeMap<Long, String> loadRoutes();
+
+        /**
+         * Keeps {@code routes}, from time ranges to the experiment ids they go to, for
+         * {@link #loadRoutes} to return after a restart.
+         */
+        void saveRoutes(RangeMap<Long, String> routes);
+    }
+
+    /**
+     * Keeps each experiment's readings in a {@link SensorDatabaseImpl} file named after it.
+     */
+    public static class DatabaseFileShards implements Shards {
+        private static final String SUFFIX = ".db";
+        private static final String KEY_ROUTES = "routes";
+
+        private final Context mContext;
+        private final String mPrefix;
+
+        public DatabaseFileShards(Context context, String prefix) {
+            mContext = context;
+            mPrefix = prefix;
+        }
+
+        @Override
+        public SensorDatabase open(String experimentId) {
+            return new SensorDatabaseImpl(mContext, getName(experimentId));
+        }
+
+        @Override
+        public List<String> getExperimentIds() {
+            List<String> ids = new ArrayList<>();
+            for (String name : mContext.databaseList()) {
+                // Skip the journal and write-ahead log files that sit beside each database.
+                if (name.startsWith(mPrefix) && name.endsWith(SUFFIX)) {
+                    ids.add(name.substring(mPrefix.length(), name.length() - SUFFIX.length()));
+                }
+            }
+            return ids;
+        }
+
+        @Override
+        public void delete(String experimentId, @Nullable SensorDatabase opened) {
+            if (opened != null) {
+                close(opened);
+            }
+            mContext.deleteDatabase(getName(experimentId));
+        }
+
+        @Override
+        public void close(SensorDatabase opened) {
+            ((SensorDatabaseImpl) opened).close();
+        }
+
+        /**
+         * Each route is stored as "lower:upper:experimentId", where each bound is empty if there
+         * is none, and otherwise marked closed or open the way ranges are written: "[3:7]:id".
+         */
+        @Override
+        public RangeMap<Long, String> loadRoutes() {
+            RangeMap<Long, String> routes = TreeRangeMap.create();
+            for (String route : getPrefs().getStringSet(KEY_ROUTES,
+                    Collections.<String>emptySet())) {
+                String[] split = route.split(":", 3);
+                routes.put(decodeRange(split[0], split[1]), split[2]);
+            }
+            return routes;
+        }
+
+        @Override
+        public void saveRoutes(RangeMap<Long, String> routes) {
+            Set<String> encoded = new HashSet<>();
+            for (Map.Entry<Range<Long>, String> route : routes.asMapOfRanges().entrySet()) {
+                Range<Long> times = route.getKey();
+                String lower = !times.hasLowerBound() ? "" : (times.lowerBoundType()
+                        == BoundType.CLOSED ? "[" : "(") + times.lowerEndpoint();
+                String upper = !times.hasUpperBound() ? "" : times.upperEndpoint()
+                        + (times.upperBoundType() == BoundType.CLOSED ? "]" : ")");
+                encoded.add(lower + ":" + upper + ":" + route.getValue());
+            }
+            getPrefs().edit().putStringSet(KEY_ROUTES, encoded).apply();
+        }
+
+        private static Range<Long> decodeRange(String lower, String upper) {
+            Range<Long> range = Range.all();
+            if (!lower.isEmpty()) {
+                range = range.intersection(Range.downTo(Long.valueOf(lower.substring(1)),
+                        lower.charAt(0) == '[' ? BoundType.CLOSED : BoundType.OPEN));
+            }
+            if (!upper.isEmpty()) {
+                int end = upper.length() - 1;
+                range = range.intersection(Range.upTo(Long.valueOf(upper.substring(0, end)),
+                        upper.charAt(end) == ']' ? BoundType.CLOSED : BoundType.OPEN));
+            }
+            return range;
+        }
+
+        private SharedPreferences getPrefs() {
+            return mContext.getSharedPreferences(mPrefix + KEY_ROUTES, Context.MODE_PRIVATE);
+        }
+
+        private String getName(String experimentId) {
+            return mPrefix + experimentId + SUFFIX;
+        }
+    }
+
+    private final Shards mShards;
+    private final SensorDatabase mUnsharded;
+
+    // All guarded by this.
+    private final RangeMap<Long, String> mRoutes = TreeRangeMap.create();
+    private final Map<String, OpenShard> mOpenShards = new HashMap<>();
+    // Null when nothing is recording.
+    private String mRecordingExperimentId;
+    // Deleted experiments whose shards are still in use, and are deleted once they're not.
+    private final Set<String> mDeletedShards = new HashSet<>();
+
+    /**
+     * A shard that is open, and how many operations are using it.
+     */
+    private static class OpenShard {
+        final String mExperimentId;
+        final SensorDatabase mDatabase;
+        int mUsers = 0;
+        boolean mDeleted = false;
+
+        OpenShard(String experimentId, SensorDatabase database) {
+            mExperimentId = experimentId;
+            mDatabase = database;
+        }
+    }
+
+    /**
+     * The databases one operation is using.  Every shard among them stays open until
+     * {@link #release} is called.
+     */
+    private class Acquired {
+        final List<SensorDatabase> mDatabases = new ArrayList<>();
+        private final List<OpenShard> mShards = new ArrayList<>();
+
+        void add(@Nullable OpenShard shard) {
+            SensorDatabase db = shard == null ? mUnsharded : shard.mDatabase;
+            if (!mDatabases.contains(db)) {
+                mDatabases.add(db);
+                if (shard != null) {
+                    shard.mUsers++;
+                    mShards.add(shard);
+                }
+            }
+        }
+
+        void release() {
+            ShardedSensorDatabase.this.release(mShards);
+        }
+    }
+
+    /**
+     * @param unsharded holds readings added while no experiment is recording, including every
+     *                  reading stored before this class was
+     */
+    public ShardedSensorDatabase(Shards shards, SensorDatabase unsharded) {
+        mShards = shards;
+        mUnsharded = unsharded;
+        mRoutes.putAll(shards.loadRoutes());
+    }
+
+    @Override
+    public synchronized void startExperimentRecording(String experimentId, long startMillis) {
+        mRecordingExperimentId = experimentId;
+        // Open-ended, so that readings the recording stores are found should it never stop.
+        mRoutes.put(Range.atLeast(startMillis), experimentId);
+        mShards.saveRoutes(mRoutes);
+    }
+
+    @Override
+    public synchronized void stopExperimentRecording(String experimentId, Range<Long> times) {
+        if (experimentId.equals(mRecordingExperimentId)) {
+            mRecordingExperimentId = null;
+        }
+        // Replaces the open-ended route the recording started with, so that nothing after its
+        // end is routed to it.
+        List<Range<Long>> started = new ArrayList<>();
+        for (Map.Entry<Range<Long>, String> route : mRoutes.subRangeMap(
+                Range.atLeast(times.lowerEndpoint())).asMapOfRanges().entrySet()) {
+            if (route.getValue().equals(experimentId)) {
+                started.add(route.getKey());
+            }
+        }
+        for (Range<Long> route : started) {
+            mRoutes.remove(route);
+        }
+        mRoutes.put(times, experimentId);
+        mShards.saveRoutes(mRoutes);
+    }
+
+    /**
+     * Reads that are still using the experiment's shard, such as a chart loading on another
+     * thread, finish first; the shard is deleted when the last of them is done.
+     */
+    @Override
+    public synchronized void deleteExperimentReadings(String experimentId) {
+        if (experimentId.equals(mRecordingExperimentId)) {
+            mRecordingExperimentId = null;
+        }
+        List<Range<Long>> routed = new ArrayList<>();
+        for (Map.Entry<Range<Long>, String> route : mRoutes.asMapOfRanges().entrySet()) {
+            if (route.getValue().equals(experimentId)) {
+                routed.add(route.getKey());
+            }
+        }
+        for (Range<Long> times : routed) {
+            mRoutes.remove(times);
+        }
+        mShards.saveRoutes(mRoutes);
+
+        OpenShard shard = mOpenShards.remove(experimentId);
+        if (shard == null) {
+            mShards.delete(experimentId, null);
+        } else if (shard.mUsers == 0) {
+            mShards.delete(experimentId, shard.mDatabase);
+        } else {
+            shard.mDeleted = true;
+            mDeletedShards.add(experimentId);
+        }
+    }
+
+    @Override
+    public void addScalarReading(String sensorTag, int resolutionTier, long timestampMillis,
+            double value) {
+        Acquired acquired = acquireRecording();
+        try {
+            acquired.mDatabases.get(0).addScalarReading(sensorTag, resolutionTier,
+                    timestampMillis, value);
+        } finally {
+            acquired.release();
+        }
+    }
+
+    @Override
+    public void addScalarReadings(ScalarReadingBatch batch) {
+        Acquired acquired = acquireRecording();
+        try {
+            acquired.mDatabases.get(0).addScalarReadings(batch);
+        } finally {
+            acquired.release();
+        }
+    }
+
+    @Override
+    public ScalarReadingList getScalarReadings(String sensorTag, TimeRange range,
+            int resolutionTier, int maxRecords) {
+        Acquired acquired = acquire(range.getTimes());
+        final ScalarChunk.Points points = new ScalarChunk.Points(
+                maxRecords > 0 ? maxRecords : PAGE_SIZE);
+        try {
+            List<SensorDatabase> databases = acquired.mDatabases;
+            if (databases.size() == 1) {
+                return databases.get(0).getScalarReadings(sensorTag, range, resolutionTier,
+                        maxRecords);
+            }
+            ScalarPageReader reader = MergingPageReader.mergeDatabases(databases,
+                    new String[] {sensorTag}, range, resolutionTier, PAGE_SIZE);
+            try {
+                ScalarReadingPage page = new ScalarReadingPage(PAGE_SIZE);
+                while ((maxRecords <= 0 || points.size() < maxRecords)
+                        && reader.readNextPage(page)) {
+                    for (int i = 0; i < page.size() && (maxRecords <= 0
+                            || points.size() < maxRecords); i++) {
+                        points.add(page.getTimestampMillis(i), page.getValue(i));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            acquired.release();
+        }
+        return new ScalarReadingList() {
+            @Override
+            public void deliver(StreamConsumer c) {
+                for (int i = 0; i < points.size(); i++) {
+                    c.addData(points.getTimestamp(i), points.getValue(i));
+                }
+            }
+
+            @Override
+            public int size() {
+                return points.size();
+            }
+
+            @Override
+            public List<ChartData.DataPoint> asDataPoints() {
+                List<ChartData.DataPoint> result = new ArrayList<>(points.size());
+                for (int i = 0; i < points.size(); i++) {
+                    result.add(new ChartData.DataPoint(points.getTimestamp(i),
+                            points.getValue(i)));
+                }
+                return result;
+            }
+        };
+    }
+
+    @Override
+    public String getFirstDatabaseTagAfter(long timestamp) {
+        TimeRange after = TimeRange.oldest(Range.greaterThan(timestamp));
+        String firstTag = null;
+        long firstTimestamp = Long.MAX_VALUE;
+        Acquired acquired = acquire(after.getTimes());
+        try {
+            for (SensorDatabase db : acquired.mDatabases) {
+                String tag = db.getFirstDatabaseTagAfter(timestamp);
+                if (tag == null) {
+                    continue;
+                }
+                List<ChartData.DataPoint> first =
+                        db.getScalarReadings(tag, after, 0, 1).asDataPoints();
+                if (!first.isEmpty() && first.get(0).getX() < firstTimestamp) {
+                    firstTag = tag;
+                    firstTimestamp = first.get(0).getX();
+                }
+            }
+        } finally {
+            acquired.release();
+        }
+        return firstTag;
+    }
+
+    @Override
+    public List<String> getSensorTags() {
+        Set<String> tags = new LinkedHashSet<>(mUnsharded.getSensorTags());
+        for (String experimentId : mShards.getExperimentIds()) {
+            List<String> shardTags = withShard(experimentId, SensorDatabase::getSensorTags);
+            if (shardTags != null) {
+                tags.addAll(shardTags);
+            }
+        }
+        return new ArrayList<>(tags);
+    }
+
+    @Override
+    public void deleteScalarReadings(String sensorTag, TimeRange range) {
+        Acquired acquired = acquire(range.getTimes());
+        try {
+            for (SensorDatabase db : acquired.mDatabases) {
+                db.deleteScalarReadings(sensorTag, range);
+            }
+        } finally {
+            acquired.release();
+        }
+    }
+
+    @Override
+    public ScalarStats getScalarStats(String sensorTag, TimeRange range) {
+        ScalarStats stats = new ScalarStats();
+        Acquired acquired = acquire(range.getTimes());
+        try {
+            for (SensorDatabase db : acquired.mDatabases) {
+                stats.add(db.getScalarStats(sensorTag, range));
+            }
+        } finally {
+            acquired.release();
+        }
+        return stats;
+    }
+
+    @Override
+    public long reclaimSpace(long maxBytes) {
+        long freed = mUnsharded.reclaimSpace(maxBytes);
+        if (freed > 0) {
+            return freed;
+        }
+        for (String experimentId : mShards.getExperimentIds()) {
+            Long shardFreed = withShard(experimentId, shard -> shard.reclaimSpace(maxBytes));
+            if (shardFreed != null && shardFreed > 0) {
+                return shardFreed;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public Observable<ScalarReading> createScalarObservable(final String[] sensorTags,
+            final TimeRange range, final int resolutionTier) {
+        return Observable.create(emitter -> {
+            ScalarPageReader reader = openScalarPageReader(sensorTags, range, resolutionTier);
+            try {
+                ScalarReadingPage page = new ScalarReadingPage(PAGE_SIZE);
+                while (!emitter.isDisposed() && reader.readNextPage(page)) {
+                    for (int i = 0; i < page.size() && !emitter.isDisposed(); i++) {
+                        emitter.onNext(new ScalarReading(page.getTimestampMillis(i),
+                                page.getValue(i), page.getSensorTag(i)));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            emitter.onComplete();
+        });
+    }
+
+    @Override
+    public ScalarPageReader openScalarPageReader(String[] sensorTags, TimeRange range,
+            int resolutionTier) {
+        final Acquired acquired = acquire(range.getTimes());
+        final ScalarPageReader reader;
+        try {
+            List<SensorDatabase> databases = acquired.mDatabases;
+            reader = databases.size() == 1
+                    ? databases.get(0).openScalarPageReader(sensorTags, range, resolutionTier)
+                    : MergingPageReader.mergeDatabases(databases, sensorTags, range,
+                            resolutionTier, PAGE_SIZE);
+        } catch (RuntimeException e) {
+            acquired.release();
+            throw e;
+        }
+        // The shards stay in use until the reader is closed.
+        return new ScalarPageReader() {
+            private boolean mClosed = false;
+
+            @Override
+            public boolean readNextPage(ScalarReadingPage page) {
+                return reader.readNextPage(page);
+            }
+
+            @Override
+            public void close() {
+                if (!mClosed) {
+                    mClosed = true;
+                    reader.close();
+                    acquired.release();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the unsharded database, then each shard routed somewhere in {@code times}, all in
+     * use until released
+     */
+    private synchronized Acquired acquire(Range<Long> times) {
+        Acquired acquired = new Acquired();
+        acquired.add(null);
+        for (String experimentId : mRoutes.subRangeMap(times).asMapOfRanges().values()) {
+            acquired.add(getShard(experimentId));
+        }
+        return acquired;
+    }
+
+    /**
+     * @return the one database that readings added now go to, in use until released
+     */
+    private synchronized Acquired acquireRecording() {
+        Acquired acquired = new Acquired();
+        acquired.add(mRecordingExperimentId == null ? null : getShard(mRecordingExperimentId));
+        return acquired;
+    }
+
+    /**
+     * @return the experiment's shard, opening it if it isn't open yet.  Every operation on a
+     * shard goes through the one instance this returns.
+     */
+    private synchronized OpenShard getShard(String experimentId) {
+        OpenShard shard = mOpenShards.get(experimentId);
+        if (shard == null) {
+            shard = new OpenShard(experimentId, mShards.open(experimentId));
+            mOpenShards.put(experimentId, shard);
+        }
+        return shard;
+    }
+
+    /**
+     * Ends one operation's use of {@code shards}.  A shard nothing uses any more is deleted if
+     * its experiment was deleted meanwhile, and closed if it is neither recording nor routed to,
+     * so that visiting every shard doesn't leave them all open.
+     */
+    private synchronized void release(List<OpenShard> shards) {
+        for (OpenShard shard : shards) {
+            if (--shard.mUsers > 0) {
+                continue;
+            }
+            if (shard.mDeleted) {
+                mDeletedShards.remove(shard.mExperimentId);
+                mShards.delete(shard.mExperimentId, shard.mDatabase);
+            } else if (!shard.mExperimentId.equals(mRecordingExperimentId)
+                    && !mRoutes.asMapOfRanges().containsValue(shard.mExperimentId)) {
+                mOpenShards.remove(shard.mExperimentId);
+                mShards.close(shard.mDatabase);
+            }
+        }
+    }
+
+    /**
+     * Applies {@code use} to the experiment's shard.
+     *
+     * @return the result of {@code use}, or null if the experiment has been deleted
+     */
+    @Nullable
+    private <T> T withShard(String experimentId, Function<SensorDatabase, T> use) {
+        Acquired acquired = new Acquired();
+        synchronized (this) {
+            if (mDeletedShards.contains(experimentId)) {
+                return null;
+            }
+            acquired.add(getShard(experimentId));
+        }
+        try {
+            return use.apply(acquired.mDatabases.get(0));
+        } finally {
+            acquired.release();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs sensor data work on several serial lanes.  Work for one sensor always goes to the same
+ * lane, so it runs in the order it was submitted.  Different sensors' work may run at the same
+ * time, but anything sharing a resource, such as a database connection, still takes turns.
+ *
+ * Used as a plain {@link Executor}, it runs each command exclusively: after everything submitted
+ * to any lane before it, and before anything submitted after it, with every lane waiting
+ * meanwhile.  That is how work that touches every sensor, such as deleting a trial's readings,
+ * stays in order with the writes around it.
+ *
+ * With more than one lane, each lane must run on its own thread, since lanes wait for each other.
+ */
+public class StripedExecutor implements Executor {
+    private final Executor[] mLanes;
+    private final Object mLock = new Object();
+
+    /**
+     * @return an executor with {@code laneCount} lanes, each its own thread
+     */
+    public static StripedExecutor newFixedLanes(int laneCount) {
+        Executor[] lanes = new Executor[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor();
+        }
+        return new StripedExecutor(lanes);
+    }
+
+    /**
+     * @param lanes each must run its commands one at a time, in order
+     */
+    public StripedExecutor(Executor... lanes) {
+        Preconditions.checkArgument(lanes.length > 0, "Need at least one lane");
+        mLanes = lanes.clone();
+    }
+
+    public int getLaneCount() {
+        return mLanes.length;
+    }
+
+    /**
+     * @return the lane for work on {@code key}, which is always the same
+     */
+    public int laneFor(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % mLanes.length;
+    }
+
+    public Executor getLane(int lane) {
+        return mLanes[lane];
+    }
+
+    /**
+     * Runs {@code command} exclusively, on one of the lanes.
+     */
+    @Override
+    public void execute(final Runnable command) {
+        if (mLanes.length == 1) {
+            mLanes[0].execute(command);
+            return;
+        }
+        final AtomicInteger waiting = new AtomicInteger(mLanes.length);
+        final CountDownLatch done = new CountDownLatch(1);
+        Runnable arrive = new Runnable() {
+            @Override
+            public void run() {
+                if (waiting.decrementAndGet() > 0) {
+                    // Held here until the last lane arrives and runs the command.
+                    Uninterruptibles.awaitUninterruptibly(done);
+                    return;
+                }
+                try {
+                    command.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        // Two exclusive commands must reach every lane in the same order, or each would hold
+        // some lanes while waiting for the others.
+        synchronized (mLock) {
+            for (Executor lane : mLanes) {
+                lane.execute(arrive);
+            }
+        }
+    }
+}
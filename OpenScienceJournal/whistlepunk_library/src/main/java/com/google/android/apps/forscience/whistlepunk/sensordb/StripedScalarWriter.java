@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import com.google.android.apps.forscience.javalib.Scheduler;
+import com.google.android.apps.forscience.whistlepunk.Clock;
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads scalar readings across several {@link BatchingScalarWriter}s by sensor, each queueing
+ * and writing on its own lane of a {@link StripedExecutor}.  Each sensor's readings, at every
+ * tier, go through one writer, so they are written in the order they were added, and a sensor
+ * that floods its lane's queue only drops readings of sensors on that lane.
+ *
+ * This is not write parallelism.  Every lane writes through the same database, which takes one
+ * batch at a time, so lanes take turns behind a shared lock; and an exclusive command on the
+ * {@link StripedExecutor} parks every lane until it finishes.
+ */
+public class StripedScalarWriter {
+    private final StripedExecutor mLanes;
+    private final BatchingScalarWriter[] mWriters;
+
+    /**
+     * @param capacityPerLane see {@link BatchingScalarWriter#BatchingScalarWriter}
+     * @param journals        null, or one journal (or null) for each lane.  Each must have at
+     *                        least twice as many slots as {@code capacityPerLane}.
+     */
+    public StripedScalarWriter(SensorDatabase database, StripedExecutor lanes, Clock clock,
+            Scheduler scheduler, int maxBatchSize, long maxBatchAgeMillis, int capacityPerLane,
+            ScalarReadingJournal[] journals,
+            BatchingScalarWriter.WriteFailureListener failureListener) {
+        Preconditions.checkArgument(journals == null || journals.length == lanes.getLaneCount(),
+                "Need a journal for each lane");
+        mLanes = lanes;
+        mWriters = new BatchingScalarWriter[lanes.getLaneCount()];
+        Object databaseLock = new Object();
+        for (int i = 0; i < mWriters.length; i++) {
+            mWriters[i] = new BatchingScalarWriter(database, lanes.getLane(i), clock, scheduler,
+                    maxBatchSize, maxBatchAgeMillis, capacityPerLane,
+                    journals == null ? null : journals[i], databaseLock, failureListener);
+        }
+    }
+
+    /**
+     * Queues a reading to be written.  May be called from any thread.
+     *
+     * @return false if the reading was dropped, because too many were waiting on its lane
+     * @see BatchingScalarWriter#addScalarReading
+     */
+    public boolean addScalarReading(String sensorTag, int resolutionTier, long timestampMillis,
+            double value) {
+        BatchingScalarWriter writer =
+                mWriters.length == 1 ? mWriters[0] : mWriters[mLanes.laneFor(sensorTag)];
+        return writer.addScalarReading(sensorTag, resolutionTier, timestampMillis, value);
+    }
+
+    /**
+     * Schedules a write, on each lane, of every reading added so far.  May be called from any
+     * thread.
+     */
+    public void flush() {
+        for (BatchingScalarWriter writer : mWriters) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Writes every reading added so far, on the calling thread.  Must only be called from a
+     * command the {@link StripedExecutor} is running exclusively.
+     */
+    public void writePendingReadings() {
+        for (BatchingScalarWriter writer : mWriters) {
+            writer.writePendingReadings();
+        }
+    }
+
+    /**
+     * Writes every reading added so far for {@code sensorTags}, each on its own lane, then runs
+     * {@code then} on the lane that finished last.  Only those lanes take part, and none waits
+     * for another, so writes queued on other lanes carry on meanwhile.  Work the
+     * {@link StripedExecutor} runs exclusively still stays in order with this.  May be called
+     * from any thread.
+     *
+     * Writing still holds the database lock the lanes share, since the database takes one batch
+     * at a time; this only avoids holding every lane while waiting for it.
+     *
+     * @param sensorTags null to write every lane's readings
+     */
+    public void writePendingReadings(String[] sensorTags, final Runnable then) {
+        final boolean[] lanes = new boolean[mWriters.length];
+        if (sensorTags == null) {
+            Arrays.fill(lanes, true);
+        } else {
+            for (String tag : sensorTags) {
+                lanes[mWriters.length == 1 ? 0 : mLanes.laneFor(tag)] = true;
+            }
+        }
+        int laneCount = 0;
+        for (boolean lane : lanes) {
+            laneCount += lane ? 1 : 0;
+        }
+        if (laneCount == 0) {
+            then.run();
+            return;
+        }
+        final AtomicInteger remaining = new AtomicInteger(laneCount);
+        for (int i = 0; i < lanes.length; i++) {
+            if (!lanes[i]) {
+                continue;
+            }
+            final BatchingScalarWriter writer = mWriters[i];
+            mLanes.getLane(i).execute(() -> {
+                writer.writePendingReadings();
+                if (remaining.decrementAndGet() == 0) {
+                    then.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return how much of the fullest lane's queue is in use, from 0 (empty) to 1 (full, so that
+     * its sensors' readings are being dropped)
+     */
+    public double getBacklog() {
+        double backlog = 0;
+        for (BatchingScalarWriter writer : mWriters) {
+            backlog = Math.max(backlog,
+                    (double) writer.getQueueDepth() / writer.getQueueCapacity());
+        }
+        return backlog;
+    }
+
+    /**
+     * @return how many readings have been dropped, on every lane, because too many were waiting
+     * to be written
+     */
+    public long getDroppedReadingCount() {
+        long dropped = 0;
+        for (BatchingScalarWriter writer : mWriters) {
+            dropped += writer.getDroppedReadingCount();
+        }
+        return dropped;
+    }
+
+    public int getLaneCount() {
+        return mWriters.length;
+    }
+}
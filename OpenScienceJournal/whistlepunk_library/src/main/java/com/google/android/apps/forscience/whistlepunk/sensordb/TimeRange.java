@@ -16,6 +16,7 @@
 
 package com.google.android.apps.forscience.whistlepunk.sensordb;
 
+import com.google.common.collect.BoundType;
 import com.google.common.collect.Range;
 
 public class TimeRange {
@@ -55,6 +56,30 @@ public class TimeRange {
         return mOrder;
     }
 
+    /**
+     * @return the earliest timestamp included in this range, or {@link Long#MIN_VALUE} if the
+     * range has no lower bound.
+     */
+    public long getFirstIncludedMillis() {
+        if (mTimes == null || !mTimes.hasLowerBound()) {
+            return Long.MIN_VALUE;
+        }
+        long lower = mTimes.lowerEndpoint();
+        return mTimes.lowerBoundType() == BoundType.CLOSED ? lower : lower + 1;
+    }
+
+    /**
+     * @return the latest timestamp included in this range, or {@link Long#MAX_VALUE} if the range
+     * has no upper bound.
+     */
+    public long getLastIncludedMillis() {
+        if (mTimes == null || !mTimes.hasUpperBound()) {
+            return Long.MAX_VALUE;
+        }
+        long upper = mTimes.upperEndpoint();
+        return mTimes.upperBoundType() == BoundType.CLOSED ? upper : upper - 1;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
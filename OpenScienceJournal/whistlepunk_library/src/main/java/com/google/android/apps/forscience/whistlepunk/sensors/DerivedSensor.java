@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensors;
+
+import android.content.Context;
+import android.support.annotation.VisibleForTesting;
+
+import com.google.android.apps.forscience.whistlepunk.sensorapi.AbstractSensorRecorder;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.DerivedExpression;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.DerivedSensorEngine;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironment;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorRecorder;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorStatusListener;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * A virtual sensor whose values are computed from other sensors' values as they arrive, such as
+ * the magnitude of acceleration, {@code sqrt(x*x + y*y + z*z)}, with x, y and z bound to the
+ * three accelerometer axes.  Its values are recorded like any hardware sensor's.
+ *
+ * It only has values while all of its inputs are being observed.
+ */
+public class DerivedSensor extends ScalarSensor {
+    public static final String LOGGING_ID = "derived";
+
+    /**
+     * By default, inputs are combined as long as each has had a value within this long.
+     */
+    public static final long DEFAULT_ALIGNMENT_WINDOW_MILLIS = 500;
+
+    private final String mExpression;
+    private final List<String> mInputIds;
+    private final long mAlignmentWindowMillis;
+
+    /**
+     * @param expression            see {@link DerivedExpression}
+     * @param inputs                the id of the sensor bound to each variable in {@code
+     *                              expression}
+     * @param alignmentWindowMillis how close in time the latest values of the inputs must be
+     *                              for a value to be computed from them
+     * @throws IllegalArgumentException if {@code expression} isn't valid, or one of its
+     *                                  variables isn't bound to a sensor
+     */
+    public DerivedSensor(String id, String expression, Map<String, String> inputs,
+            long alignmentWindowMillis) {
+        super(id);
+        mExpression = expression;
+        mInputIds = bindInputs(id, expression, inputs);
+        mAlignmentWindowMillis = alignmentWindowMillis;
+    }
+
+    @VisibleForTesting
+    public DerivedSensor(String id, String expression, Map<String, String> inputs,
+            long alignmentWindowMillis, Executor uiThreadExecutor) {
+        super(id, uiThreadExecutor);
+        mExpression = expression;
+        mInputIds = bindInputs(id, expression, inputs);
+        mAlignmentWindowMillis = alignmentWindowMillis;
+    }
+
+    private static List<String> bindInputs(String id, String expression,
+            Map<String, String> inputs) {
+        // Parsed here as well as when observing, so that a bad definition is caught right away.
+        List<String> inputIds = new ArrayList<>();
+        for (String variable : DerivedExpression.parse(expression).getVariables()) {
+            String inputId = inputs.get(variable);
+            Preconditions.checkArgument(inputId != null, "No sensor for %s in %s", variable,
+                    expression);
+            Preconditions.checkArgument(!inputId.equals(id), "%s can't depend on itself", id);
+            inputIds.add(inputId);
+        }
+        return Collections.unmodifiableList(inputIds);
+    }
+
+    public String getExpression() {
+        return mExpression;
+    }
+
+    /**
+     * @return the sensors this sensor is computed from
+     */
+    public List<String> getInputIds() {
+        return mInputIds;
+    }
+
+    @Override
+    protected SensorRecorder makeScalarControl(final StreamConsumer c,
+            final SensorEnvironment environment, Context context,
+            final SensorStatusListener listener) {
+        final DerivedSensorEngine engine = environment.getDerivedSensorEngine();
+        return new AbstractSensorRecorder() {
+            @Override
+            public void startObserving() {
+                // A fresh copy, so that smoothing starts over.
+                engine.attach(getId(), DerivedExpression.parse(mExpression), mInputIds,
+                        mAlignmentWindowMillis, c);
+                listener.onSourceStatus(getId(), SensorStatusListener.STATUS_CONNECTED);
+            }
+
+            @Override
+            public void stopObserving() {
+                engine.detach(getId());
+                listener.onSourceStatus(getId(), SensorStatusListener.STATUS_DISCONNECTED);
+            }
+        };
+    }
+}
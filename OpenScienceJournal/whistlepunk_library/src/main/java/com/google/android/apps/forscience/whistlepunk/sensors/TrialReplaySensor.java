@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensors;
+
+import android.content.Context;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.google.android.apps.forscience.javalib.Scheduler;
+import com.google.android.apps.forscience.whistlepunk.DataController;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.AbstractSensorRecorder;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironment;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorRecorder;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorStatusListener;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.common.collect.Range;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A pseudo-sensor that plays back a recorded trial's readings of another sensor, through the
+ * same live pipeline as a real one: charts, recording, triggers and audio all see it as a sensor.
+ * Useful as a repeatable load for profiling.  Timing comes from the environment's default clock.
+ *
+ * @see TrialReplayer
+ */
+public class TrialReplaySensor extends ScalarSensor {
+    public static final String LOGGING_ID = "replay";
+    private static final String TAG = "TrialReplaySensor";
+
+    private final DataController mDataController;
+    private final String mSourceSensorId;
+    private final Range<Long> mTimes;
+    private final double mSpeed;
+    private final Scheduler mScheduler;
+
+    /**
+     * @param sourceSensorId the sensor whose readings to play
+     * @param times          the trial's recorded range
+     * @param speed          see {@link TrialReplayer#TrialReplayer}
+     */
+    public TrialReplaySensor(String id, DataController dataController, String sourceSensorId,
+            Range<Long> times, double speed) {
+        super(id);
+        mDataController = dataController;
+        mSourceSensorId = sourceSensorId;
+        mTimes = times;
+        mSpeed = speed;
+        mScheduler = new SystemScheduler();
+    }
+
+    @VisibleForTesting
+    public TrialReplaySensor(String id, DataController dataController, String sourceSensorId,
+            Range<Long> times, double speed, Scheduler scheduler, Executor uiThreadExecutor) {
+        super(id, uiThreadExecutor);
+        mDataController = dataController;
+        mSourceSensorId = sourceSensorId;
+        mTimes = times;
+        mSpeed = speed;
+        mScheduler = scheduler;
+    }
+
+    public String getSourceSensorId() {
+        return mSourceSensorId;
+    }
+
+    @Override
+    protected SensorRecorder makeScalarControl(final StreamConsumer c,
+            final SensorEnvironment environment, Context context,
+            final SensorStatusListener listener) {
+        return new AbstractSensorRecorder() {
+            private TrialReplayer mReplayer;
+
+            @Override
+            public void startObserving() {
+                listener.onSourceStatus(getId(), SensorStatusListener.STATUS_CONNECTED);
+                mReplayer = new TrialReplayer(mDataController, mSourceSensorId, mTimes, mSpeed,
+                        environment.getDefaultClock(), mScheduler,
+                        TrialReplayer.DEFAULT_PAGE_SIZE, c, new TrialReplayer.Listener() {
+                            @Override
+                            public void onReplayFinished(long readingCount) {
+                                if (Log.isLoggable(TAG, Log.INFO)) {
+                                    Log.i(TAG, "Replayed " + readingCount + " readings of "
+                                            + mSourceSensorId);
+                                }
+                            }
+
+                            @Override
+                            public void onReplayFailed(Exception e) {
+                                listener.onSourceError(getId(),
+                                        SensorStatusListener.ERROR_UNKNOWN, e.getMessage());
+                            }
+                        });
+                mReplayer.start();
+            }
+
+            @Override
+            public void stopObserving() {
+                if (mReplayer != null) {
+                    mReplayer.stop();
+                    mReplayer = null;
+                }
+                listener.onSourceStatus(getId(), SensorStatusListener.STATUS_DISCONNECTED);
+            }
+        };
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensors;
+
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.javalib.MaybeConsumer;
+import com.google.android.apps.forscience.javalib.Scheduler;
+import com.google.android.apps.forscience.whistlepunk.Clock;
+import com.google.android.apps.forscience.whistlepunk.DataController;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingPage;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Range;
+
+/**
+ * Plays a sensor's stored readings back into a {@link StreamConsumer}, as if they were arriving
+ * live, so that the live pipeline can be loaded realistically without hardware.
+ *
+ * Readings are read a page at a time, with the next page loading while the current one plays.
+ * At a given speed, each reading is passed on when the clock says it is due: its offset from the
+ * first reading, divided by the speed, after {@link #start()}.  Its timestamp is when it was due,
+ * so that downstream it looks like a sensor that really is that fast.  Readings due within
+ * {@link #MIN_TICK_MILLIS} of each other are passed on together.
+ *
+ * {@link #AS_FAST_AS_POSSIBLE} passes each page on as soon as it is read, without a scheduler,
+ * keeping the readings' original spacing from the start time.  With a DataController whose
+ * executors run commands directly, as in JVM tests, {@link #start()} then replays the whole range
+ * before returning.
+ *
+ * Not thread-safe: call everything, and deliver the DataController's results and scheduled
+ * tasks, on one thread.
+ */
+public class TrialReplayer {
+    /**
+     * Plays readings as fast as they can be read.
+     */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    /**
+     * The shortest wait between passing readings on; about one display frame.
+     */
+    public static final long MIN_TICK_MILLIS = 15;
+
+    public interface Listener {
+        void onReplayFinished(long readingCount);
+
+        void onReplayFailed(Exception e);
+    }
+
+    private final DataController mDataController;
+    private final String mSensorTag;
+    private final long mFirstMillis;
+    private final long mLastMillis;
+    private final double mSpeed;
+    private final Clock mClock;
+    private final Scheduler mScheduler;
+    private final StreamConsumer mConsumer;
+    private final Listener mListener;
+
+    // Playing from mPlaying while mLoading loads.
+    private ScalarReadingPage mPlaying;
+    private ScalarReadingPage mLoading;
+    private int mPlayIndex;
+    private boolean mLoadRequested = false;
+    private boolean mLoaded = false;
+    private boolean mLastPageLoaded = false;
+    // The next load starts at this time, and skips this many readings at it, already loaded.
+    private long mNextLoadMillis;
+    private int mNextLoadSkip;
+    // How many readings at the start of mLoading were already played.
+    private int mLoadedSkip;
+
+    private boolean mRunning = false;
+    private boolean mPumping = false;
+    // Tells results of loads from an earlier start() to be ignored.
+    private int mGeneration = 0;
+    private long mStartMillis;
+    private long mFirstReadingMillis;
+    private long mPlayedCount;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            pump();
+        }
+    };
+
+    /**
+     * @param times     the range of stored readings to play, usually a trial's
+     * @param speed     how many times faster than they were recorded to play readings, or
+     *                  {@link #AS_FAST_AS_POSSIBLE}
+     * @param scheduler may be null when playing {@link #AS_FAST_AS_POSSIBLE}
+     */
+    public TrialReplayer(DataController dataController, String sensorTag, Range<Long> times,
+            double speed, Clock clock, Scheduler scheduler, int pageSize, StreamConsumer consumer,
+            Listener listener) {
+        Preconditions.checkArgument(times.hasLowerBound() && times.hasUpperBound(),
+                "Replay needs a bounded range, not %s", times);
+        Preconditions.checkArgument(speed == AS_FAST_AS_POSSIBLE || scheduler != null,
+                "Paced replay needs a scheduler");
+        mDataController = dataController;
+        mSensorTag = sensorTag;
+        mFirstMillis = times.lowerEndpoint();
+        mLastMillis = times.upperEndpoint();
+        mSpeed = speed;
+        mClock = clock;
+        mScheduler = scheduler;
+        mConsumer = consumer;
+        mListener = listener;
+        mPlaying = new ScalarReadingPage(pageSize);
+        mLoading = new ScalarReadingPage(pageSize);
+    }
+
+    /**
+     * Starts playing from the beginning of the range.
+     */
+    public void start() {
+        stop();
+        mRunning = true;
+        mStartMillis = mClock.getNow();
+        mPlaying.clear();
+        mPlayIndex = 0;
+        mNextLoadMillis = mFirstMillis;
+        mNextLoadSkip = 0;
+        mLoadRequested = false;
+        mLoaded = false;
+        mLastPageLoaded = false;
+        mFirstReadingMillis = Long.MIN_VALUE;
+        mPlayedCount = 0;
+        pump();
+    }
+
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mGeneration++;
+        if (mLoadRequested && !mLoaded) {
+            // Left to the load still in flight, which may yet fill it.
+            mLoading = new ScalarReadingPage(mLoading.capacity());
+        }
+        if (mScheduler != null) {
+            mScheduler.unschedule(mTick);
+        }
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return how many readings have been played since {@link #start()}
+     */
+    public long getPlayedCount() {
+        return mPlayedCount;
+    }
+
+    /**
+     * Plays whatever is due, then waits for the next page or the next due reading.  Loads that
+     * finish within it (as they do with direct executors) just let its loop carry on, rather than
+     * recursing.
+     */
+    private void pump() {
+        if (mPumping || !mRunning) {
+            return;
+        }
+        mPumping = true;
+        try {
+            boolean paced = mSpeed != AS_FAST_AS_POSSIBLE;
+            long now = paced ? mClock.getNow() : 0;
+            while (mRunning) {
+                if (mPlayIndex >= mPlaying.size()) {
+                    if (mLoaded) {
+                        ScalarReadingPage played = mPlaying;
+                        mPlaying = mLoading;
+                        mLoading = played;
+                        mPlayIndex = mLoadedSkip;
+                        mLoaded = false;
+                        mLoadRequested = false;
+                    } else if (mLastPageLoaded && !mLoadRequested) {
+                        finish();
+                        return;
+                    } else if (!mLoadRequested) {
+                        load();
+                    } else {
+                        // Carried on by the load's result.
+                        return;
+                    }
+                    continue;
+                }
+                if (!mLoadRequested && !mLastPageLoaded) {
+                    load();
+                }
+                long timestamp = mPlaying.getTimestampMillis(mPlayIndex);
+                if (mFirstReadingMillis == Long.MIN_VALUE) {
+                    mFirstReadingMillis = timestamp;
+                }
+                long offset = timestamp - mFirstReadingMillis;
+                long dueMillis;
+                if (paced) {
+                    dueMillis = mStartMillis + Math.round(offset / mSpeed);
+                    if (dueMillis > now) {
+                        now = mClock.getNow();
+                    }
+                    if (dueMillis > now) {
+                        mScheduler.schedule(Delay.millis(Math.max(MIN_TICK_MILLIS,
+                                dueMillis - now)), mTick);
+                        return;
+                    }
+                } else {
+                    dueMillis = mStartMillis + offset;
+                }
+                mConsumer.addData(dueMillis, mPlaying.getValue(mPlayIndex));
+                mPlayIndex++;
+                mPlayedCount++;
+            }
+        } finally {
+            mPumping = false;
+        }
+    }
+
+    private void load() {
+        mLoadRequested = true;
+        final int generation = mGeneration;
+        mDataController.getScalarReadingPage(mSensorTag, 0,
+                TimeRange.oldest(Range.closed(mNextLoadMillis, mLastMillis)), mLoading,
+                new MaybeConsumer<ScalarReadingPage>() {
+                    @Override
+                    public void success(ScalarReadingPage page) {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mLoadedSkip = Math.min(mNextLoadSkip, page.size());
+                        if (page.isFull()) {
+                            setNextLoad(page);
+                        } else {
+                            mLastPageLoaded = true;
+                        }
+                        mLoaded = true;
+                        pump();
+                    }
+
+                    @Override
+                    public void fail(Exception e) {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        stop();
+                        if (mListener != null) {
+                            mListener.onReplayFailed(e);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Starts the next load at the last time in {@code page}, rather than after it, so that
+     * readings at that time that didn't fit are still played; the ones that did are skipped.
+     */
+    private void setNextLoad(ScalarReadingPage page) {
+        long lastMillis = page.getLastTimestampMillis();
+        int atLast = 0;
+        for (int i = page.size() - 1; i >= 0 && page.getTimestampMillis(i) == lastMillis; i--) {
+            atLast++;
+        }
+        if (atLast == page.size() && lastMillis == mNextLoadMillis) {
+            // More readings at one time than fit in a page: loading from that time again would
+            // only return the same page, so the rest of them are left out.
+            mNextLoadMillis = lastMillis + 1;
+            mNextLoadSkip = 0;
+        } else {
+            mNextLoadMillis = lastMillis;
+            mNextLoadSkip = atLast;
+        }
+    }
+
+    private void finish() {
+        mRunning = false;
+        if (mListener != null) {
+            mListener.onReplayFinished(mPlayedCount);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.javalib.MaybeConsumer;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MonotonicClock;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingPage;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.collect.Range;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class GraphPopulatorTest {
+    private static final int READING_COUNT = 1234;
+    private static final FailureListener FAIL = new FailureListener() {
+        @Override
+        public void fail(Exception e) {
+            throw new AssertionError(e);
+        }
+    };
+
+    private final InMemorySensorDatabase mDb = new InMemorySensorDatabase();
+    private final DataController mDataController =
+            mDb.makeSimpleController(new MemoryMetadataManager());
+    private final ChartDisplay mDisplay = new ChartDisplay();
+
+    public GraphPopulatorTest() {
+        for (int i = 0; i < READING_COUNT; i++) {
+            mDb.addScalarReading("sensor", 0, i * 10, i);
+        }
+    }
+
+    @Test
+    public void loadsVisibleTimesFirstThenOutward() {
+        GraphPopulator populator = new GraphPopulator(mDisplay, new MonotonicClock(), 100);
+        populator.requestObservations(GraphPopulator.constantGraphStatus(0, 20000),
+                mDataController, FAIL, 0, "sensor", Range.closed(5000L, 6000L));
+
+        assertEquals(1, mDisplay.finishCount);
+        assertEquals(5000, mDisplay.firstPageStarts.get(0).longValue());
+        assertAllReadingsInOrder();
+    }
+
+    @Test
+    public void visibleTimesOutsideRangeStartAtNearestEnd() {
+        GraphPopulator populator = new GraphPopulator(mDisplay, new MonotonicClock(), 100);
+        populator.requestObservations(GraphPopulator.constantGraphStatus(0, 20000),
+                mDataController, FAIL, 0, "sensor", Range.closed(30000L, 40000L));
+
+        assertEquals(1, mDisplay.finishCount);
+        // Everything is below the focus, so it is read newest first.
+        assertEquals(12330, mDisplay.firstPageStarts.get(0).longValue());
+        assertAllReadingsInOrder();
+    }
+
+    @Test
+    public void keepsRequestsInFlightAndHoldsPagesAboveVisibleTimes() {
+        DeferredDataController deferred = new DeferredDataController(mDataController);
+        GraphPopulator populator = new GraphPopulator(mDisplay, new MonotonicClock(), 100);
+        populator.requestObservations(GraphPopulator.constantGraphStatus(0, 20000), deferred,
+                FAIL, 0, "sensor", Range.closed(5000L, 6500L));
+
+        // Only the visible part is asked for, until its first page is in.
+        assertEquals(1, deferred.pending.size());
+        deferred.answer(0);
+        assertEquals(1, mDisplay.firstPageStarts.size());
+        // Then every other piece: the first visible piece fit in one page, and the two after it,
+        // the part above and the part below are three pieces each.
+        assertEquals(8, deferred.pending.size());
+        int abovePieces = 0;
+        for (TimeRange range : deferred.pendingRanges) {
+            if (range.getFirstIncludedMillis() > 6500) {
+                abovePieces++;
+            }
+        }
+        assertEquals(3, abovePieces);
+
+        // Pages above the visible part wait for the rest of it.
+        int above = indexOfPendingFrom(deferred, 6501);
+        deferred.answer(above);
+        assertEquals(1, mDisplay.firstPageStarts.size());
+
+        deferred.answerAll();
+        assertEquals(1, mDisplay.finishCount);
+        assertAllReadingsInOrder();
+    }
+
+    @Test
+    public void readingsAtTheSameTimeAcrossPagesAreLoadedOnce() {
+        // Three readings at each time, so that most pages of four end partway through a time.
+        for (int i = 0; i < 36; i++) {
+            mDb.addScalarReading("dup", 0, (i / 3) * 10, i);
+        }
+        GraphPopulator populator = new GraphPopulator(mDisplay, new MonotonicClock(), 4);
+        populator.requestObservations(GraphPopulator.constantGraphStatus(0, 110),
+                mDataController, FAIL, 0, "dup", Range.closed(50L, 80L));
+
+        assertEquals(1, mDisplay.finishCount);
+        ChartData data = mDisplay.chartData;
+        assertEquals(36, data.getNumPoints());
+        List<Double> values = new ArrayList<>();
+        for (int i = 0; i < 36; i++) {
+            assertEquals((i / 3) * 10, data.getX(i));
+            values.add(data.getY(i));
+        }
+        Collections.sort(values);
+        for (int i = 0; i < 36; i++) {
+            assertEquals(i, values.get(i), 0.0);
+        }
+    }
+
+    @Test
+    public void emptyRangeFinishesAtOnce() {
+        GraphPopulator populator = new GraphPopulator(mDisplay, new MonotonicClock(), 100);
+        populator.requestObservations(GraphPopulator.constantGraphStatus(100, 50),
+                mDataController, FAIL, 0, "sensor");
+        assertEquals(1, mDisplay.finishCount);
+        assertEquals(0, mDisplay.chartData.getNumPoints());
+    }
+
+    private static int indexOfPendingFrom(DeferredDataController deferred, long firstMillis) {
+        for (int i = 0; i < deferred.pendingRanges.size(); i++) {
+            if (deferred.pendingRanges.get(i).getFirstIncludedMillis() == firstMillis) {
+                return i;
+            }
+        }
+        throw new AssertionError("Nothing pending from " + firstMillis);
+    }
+
+    private void assertAllReadingsInOrder() {
+        ChartData data = mDisplay.chartData;
+        assertEquals(READING_COUNT, data.getNumPoints());
+        for (int i = 0; i < READING_COUNT; i++) {
+            assertEquals(i * 10, data.getX(i));
+            assertEquals(i, data.getY(i), 0.0);
+        }
+    }
+
+    /**
+     * Adds pages to a ChartData, checking that each lands at one end of it.
+     */
+    private static class ChartDisplay implements GraphPopulator.ObservationDisplay {
+        final ChartData chartData = new ChartData();
+        final List<Long> firstPageStarts = new ArrayList<>();
+        int finishCount = 0;
+
+        @Override
+        public void addRange(ScalarReadingPage observations, Range<Double> valueRange,
+                long requestId) {
+            long first = Math.min(observations.getFirstTimestampMillis(),
+                    observations.getLastTimestampMillis());
+            long last = Math.max(observations.getFirstTimestampMillis(),
+                    observations.getLastTimestampMillis());
+            // Readings at the same time may be split across pages.
+            assertTrue(chartData.isEmpty() || first >= chartData.getXMax()
+                    || last <= chartData.getXMin());
+            firstPageStarts.add(observations.getFirstTimestampMillis());
+            chartData.addOrderedGroupOfPoints(observations.getTimestamps(),
+                    observations.getValues(), observations.size());
+        }
+
+        @Override
+        public void onFinish(long requestId) {
+            finishCount++;
+        }
+    }
+
+    /**
+     * Holds page requests until the test answers them.
+     */
+    private static class DeferredDataController extends StubDataController {
+        private final DataController mDelegate;
+        final List<Runnable> pending = new ArrayList<>();
+        final List<TimeRange> pendingRanges = new ArrayList<>();
+
+        DeferredDataController(DataController delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public void getScalarReadingPage(final String databaseTag, final int resolutionTier,
+                final TimeRange timeRange, final ScalarReadingPage page,
+                final MaybeConsumer<ScalarReadingPage> onSuccess) {
+            pendingRanges.add(timeRange);
+            pending.add(new Runnable() {
+                @Override
+                public void run() {
+                    mDelegate.getScalarReadingPage(databaseTag, resolutionTier, timeRange, page,
+                            onSuccess);
+                }
+            });
+        }
+
+        void answer(int index) {
+            pendingRanges.remove(index);
+            pending.remove(index).run();
+        }
+
+        void answerAll() {
+            while (!pending.isEmpty()) {
+                answer(0);
+            }
+        }
+    }
+}
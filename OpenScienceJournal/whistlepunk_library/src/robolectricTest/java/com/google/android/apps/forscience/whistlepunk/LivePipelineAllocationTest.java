@@ -0,0 +1,195 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.whistlepunk.devicemanager.FakeUnitAppearanceProvider;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.SensorTrigger;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartController;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartOptions;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ScalarDisplayOptions;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.FakeBleClient;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.FrequencyBuffer;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ManualSensor;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.MemorySensorEnvironment;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorObserver;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorRecorder;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StubStatusListener;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ZoomDecimation;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MonotonicClock;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingBatch;
+import com.google.android.apps.forscience.whistlepunk.sensors.DerivedSensor;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+
+/**
+ * Pushes synthetic samples through each stage of the live pipeline, and fails if, once warmed up,
+ * a stage allocates more per sample than its budget.  At hundreds of samples per second per
+ * sensor, a few objects a sample is enough to keep the garbage collector busy while recording.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class LivePipelineAllocationTest {
+    private static final int WARMUP_SAMPLES = 20000;
+    private static final int MEASURED_SAMPLES = 50000;
+
+    // Leaves room for the occasional allocation that isn't per sample, such as a new zoom tier.
+    private static final double ALLOCATION_FREE = 1;
+
+    private static final String SENSOR_ID = "sensorId";
+
+    private interface SampleSink {
+        void push(long timestampMillis, double value);
+    }
+
+    @Test
+    public void frequencyFilterDoesNotAllocate() {
+        FrequencyBuffer filter = new FrequencyBuffer(1000, 60 * 1000, 0);
+        assertWithinBudget("frequency filter", ALLOCATION_FREE, filter::filterValue);
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        for (ZoomDecimation decimation : new ZoomDecimation[]{ZoomDecimation.MIN_MAX,
+                ZoomDecimation.M4, ZoomDecimation.LARGEST_TRIANGLE, ZoomDecimation.AVERAGE}) {
+            ManualSensor sensor = new ManualSensor(SENSOR_ID, 1000, 10);
+            sensor.setZoomTiers(decimation, 10);
+            SensorRecorder recorder = sensor.createRecorder(null, new NullObserver(),
+                    new StubStatusListener(), makeEnvironment());
+            recorder.startObserving();
+            recorder.startRecording("runId");
+            assertWithinBudget("recording with decimation " + decimation.getType(),
+                    ALLOCATION_FREE, sensor::pushValue);
+            recorder.stopRecording(null);
+            recorder.stopObserving();
+        }
+    }
+
+    @Test
+    public void derivedSensorDoesNotAllocate() {
+        MemorySensorEnvironment environment = makeEnvironment();
+        ManualSensor input = new ManualSensor(SENSOR_ID, 1000, 10);
+        DerivedSensor derived = new DerivedSensor("derived", "smooth(sqrt(2 * x * x), 100)",
+                ImmutableMap.of("x", SENSOR_ID), 100, MoreExecutors.directExecutor());
+        SensorRecorder inputRecorder = input.createRecorder(null, new NullObserver(),
+                new StubStatusListener(), environment);
+        SensorRecorder derivedRecorder = derived.createRecorder(null, new NullObserver(),
+                new StubStatusListener(), environment);
+        inputRecorder.startRecording("runId");
+        derivedRecorder.startObserving();
+        derivedRecorder.startRecording("runId");
+        assertWithinBudget("derived sensor", ALLOCATION_FREE, input::pushValue);
+        derivedRecorder.stopRecording(null);
+        inputRecorder.stopRecording(null);
+    }
+
+    @Test
+    public void observingThroughRecorderControllerDoesNotAllocate() {
+        ManualSensorRegistry registry = new ManualSensorRegistry();
+        ManualSensor sensor = registry.addSensor(SENSOR_ID, "sensor");
+        RecorderControllerImpl rc = new RecorderControllerImpl(null, makeEnvironment(),
+                new RecorderListenerRegistry(), null, null, null, Delay.ZERO,
+                new FakeUnitAppearanceProvider());
+        String observerId = rc.startObserving(SENSOR_ID, Collections.<SensorTrigger>emptyList(),
+                new NullObserver(), new StubStatusListener(), null, registry);
+        assertWithinBudget("recorder controller", ALLOCATION_FREE, sensor::pushValue);
+        rc.stopObserving(SENSOR_ID, observerId);
+    }
+
+    @Test
+    public void chartAddsPointsWithoutAllocating() {
+        ChartController chart = new ChartController(ChartOptions.ChartPlacementType.TYPE_OBSERVE,
+                new ScalarDisplayOptions(), new MonotonicClock());
+        chart.setDefaultGraphRange(1000);
+        final long[] timestamps = new long[16];
+        final double[] values = new double[16];
+        final int[] count = {0};
+        assertWithinBudget("chart", ALLOCATION_FREE, (timestampMillis, value) -> {
+            // Adds a frame's worth at a time, as FrameCoalescer does.
+            timestamps[count[0]] = timestampMillis;
+            values[count[0]] = value;
+            count[0]++;
+            if (count[0] == timestamps.length) {
+                chart.addPoints(timestamps, values, count[0]);
+                count[0] = 0;
+            }
+        });
+    }
+
+    private static void assertWithinBudget(String stage, double budgetBytesPerSample,
+            SampleSink sink) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        long timestamp = 1;
+        for (int i = 0; i < WARMUP_SAMPLES; i++, timestamp++) {
+            sink.push(timestamp, valueAt(timestamp));
+        }
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_SAMPLES; i++, timestamp++) {
+            sink.push(timestamp, valueAt(timestamp));
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        double bytesPerSample = (double) allocated / MEASURED_SAMPLES;
+        assertTrue(stage + " allocated " + bytesPerSample + " bytes per sample, over its budget of "
+                + budgetBytesPerSample, bytesPerSample <= budgetBytesPerSample);
+    }
+
+    // A wave, so that the frequency filter sees crossings and the decimations see extremes.
+    private static double valueAt(long timestamp) {
+        return 10 * Math.sin(timestamp / 20.0);
+    }
+
+    private static MemorySensorEnvironment makeEnvironment() {
+        return new MemorySensorEnvironment(
+                new DiscardingDatabase().makeSimpleRecordingController(new MemoryMetadataManager()),
+                new FakeBleClient(null), new MemorySensorHistoryStorage(), null);
+    }
+
+    /**
+     * Goes through the real writer, but doesn't keep the readings, so that only the pipeline's
+     * own allocations are counted.
+     */
+    private static class DiscardingDatabase extends InMemorySensorDatabase {
+        @Override
+        public void addScalarReadings(ScalarReadingBatch batch) {
+        }
+    }
+
+    private static class NullObserver implements SensorObserver {
+        @Override
+        public void onNewData(long timestamp, Data bundle) {
+        }
+    }
+}
@@ -33,6 +33,7 @@ import com.google.android.apps.forscience.whistlepunk.sensorapi.BlankReadableSen
 import com.google.android.apps.forscience.whistlepunk.sensorapi.DataViewOptions;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ManualSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.NewOptionsStorage;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarBatch;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.OptionsListener;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorChoice;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorPresenter;
@@ -188,6 +189,11 @@ public class SensorCardPresenterUnitTest {
         public void onNewData(long timestamp, Data data) {
 
         }
+
+        @Override
+        public void onNewBatch(ScalarBatch batch) {
+
+        }
     }
 
 }
\ No newline at end of file
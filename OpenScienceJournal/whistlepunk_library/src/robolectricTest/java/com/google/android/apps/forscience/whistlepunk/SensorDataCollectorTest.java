@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.javalib.Success;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StoringConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.collect.Range;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link SensorDataCollector}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class SensorDataCollectorTest {
+    // Readings from 2500 on are too recent to collect.
+    private static final long NOW = SensorDataCollector.MIN_AGE_MILLIS + 2500;
+
+    private final InMemorySensorDatabase mSensorDatabase = new InMemorySensorDatabase();
+    private final DataControllerImpl mDataController =
+            mSensorDatabase.makeSimpleController(new MemoryMetadataManager());
+
+    @Test
+    public void testCollect_neverRemovesLiveData() {
+        addExperiment(false, makeTrial("a1", "a", 1000, 2000));
+        addExperiment(false, makeTrial("a2", "a", 2200, 2300));
+        addExperiment(true, makeTrial("archived", "b", 1000, 1500));
+        for (String tag : new String[] {"a", "b", "deleted"}) {
+            addReadings(tag);
+        }
+
+        SensorDataCollector.Result dryRun = collector().collect(true).blockingGet();
+        assertTrue(dryRun.isDryRun());
+        assertEquals(3, dryRun.getTagsScanned());
+        assertEquals(3 * 12, dryRun.getReadingsCollected());
+        assertEquals(31, getTimestamps("deleted").size());
+
+        SensorDataCollector.Result result = collector().collect(false).blockingGet();
+        assertEquals(dryRun.getReadingsCollected(), result.getReadingsCollected());
+        assertEquals(dryRun.getBatches(), result.getBatches());
+        for (String tag : new String[] {"a", "b", "deleted"}) {
+            assertEquals(timestamps(1000, 2000, 2200, 2300, 2500, 3000), getTimestamps(tag));
+        }
+
+        // A second run has nothing left to do.
+        assertEquals(0, collector().collect(false).blockingGet().getReadingsCollected());
+    }
+
+    @Test
+    public void testCollect_keepsEverythingAfterAnUnfinishedTrial() {
+        // Started, but never stopped.
+        addExperiment(false, makeTrial("unfinished", "c", 1000, 0));
+        addReadings("c");
+
+        assertEquals(10, collector().collect(false).blockingGet().getReadingsCollected());
+        assertEquals(timestamps(1000, 3000), getTimestamps("c"));
+    }
+
+    @Test
+    public void testCollect_keepsEverythingWhenATrialNeverSavedItsStart() {
+        addExperiment(false, makeTrial("unstarted", "c", 0, 0));
+        addReadings("other");
+
+        assertEquals(0, collector().collect(false).blockingGet().getReadingsCollected());
+        assertEquals(31, getTimestamps("other").size());
+    }
+
+    @Test
+    public void testCollect_keepsSeriesTheTrialDoesNotName() {
+        addExperiment(false, makeTrial("trial", "a", 1000, 2000));
+        // None of these is one of the trial's sensor ids: a series computed from "a", one
+        // recorded from a replay of an earlier trial, and one stored under a tag from an older
+        // version of the app.
+        String[] unnamed = new String[] {"a_derived", "replay_of_a", "LegacyAccelerometerTag"};
+        for (String tag : unnamed) {
+            addReadings(tag);
+        }
+
+        collector().collect(false).blockingGet();
+        for (String tag : unnamed) {
+            assertEquals(timestamps(1000, 2000, 2500, 3000), getTimestamps(tag));
+        }
+    }
+
+    @Test
+    public void testCollect_deletesInBatches() {
+        int count = SensorDataCollector.MAX_READINGS_PER_BATCH * 2 + 1;
+        for (int i = 0; i < count; i++) {
+            mSensorDatabase.addScalarReading("deleted", 0, i % 2000, i);
+        }
+        mSensorDatabase.addScalarReading("deleted", 1, 1000, 0);
+
+        SensorDataCollector.Result result = collector().collect(false).blockingGet();
+        assertEquals(count, result.getReadingsCollected());
+        assertTrue("Only " + result.getBatches() + " batches", result.getBatches() >= 3);
+        assertTrue(getTimestamps("deleted").isEmpty());
+        assertEquals(0, mSensorDatabase.getScalarReadings("deleted",
+                TimeRange.oldest(Range.<Long>all()), 1, 0).size());
+    }
+
+    private void addReadings(String tag) {
+        for (int i = 0; i <= 3000; i += 100) {
+            mSensorDatabase.addScalarReading(tag, 0, i, i);
+        }
+    }
+
+    private SensorDataCollector collector() {
+        return new SensorDataCollector(mDataController, () -> NOW);
+    }
+
+    private List<Long> getTimestamps(String tag) {
+        List<Long> timestamps = new ArrayList<>();
+        for (ScalarReading reading : ScalarReading.slurp(mSensorDatabase.getScalarReadings(tag,
+                TimeRange.oldest(Range.<Long>all()), 0, 0))) {
+            timestamps.add(reading.getCollectedTimeMillis());
+        }
+        return timestamps;
+    }
+
+    /**
+     * @param bounds pairs of inclusive bounds, each covering every 100 ms
+     */
+    private static List<Long> timestamps(long... bounds) {
+        List<Long> timestamps = new ArrayList<>();
+        for (int i = 0; i < bounds.length; i += 2) {
+            for (long t = bounds[i]; t <= bounds[i + 1]; t += 100) {
+                timestamps.add(t);
+            }
+        }
+        return timestamps;
+    }
+
+    private void addExperiment(boolean archived, Trial trial) {
+        StoringConsumer<Experiment> cExperiment = new StoringConsumer<>();
+        mDataController.createExperiment(cExperiment);
+        Experiment experiment = cExperiment.getValue();
+        experiment.setArchived(archived);
+        experiment.addTrial(trial);
+        mDataController.updateExperiment(experiment.getExperimentId(),
+                TestConsumers.<Success>expectingSuccess());
+    }
+
+    private Trial makeTrial(String trialId, String sensorId, long startMs, long endMs) {
+        GoosciTrial.Trial trialProto = new GoosciTrial.Trial();
+        trialProto.trialId = trialId;
+        GoosciSensorLayout.SensorLayout layout = new GoosciSensorLayout.SensorLayout();
+        layout.sensorId = sensorId;
+        trialProto.sensorLayouts = new GoosciSensorLayout.SensorLayout[] {layout};
+        trialProto.recordingRange = new GoosciTrial.Range();
+        trialProto.recordingRange.startMs = startMs;
+        trialProto.recordingRange.endMs = endMs;
+        return Trial.fromTrial(trialProto);
+    }
+}
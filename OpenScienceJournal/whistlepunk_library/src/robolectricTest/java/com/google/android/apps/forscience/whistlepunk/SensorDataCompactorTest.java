@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.android.apps.forscience.javalib.Success;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MonotonicClock;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StoringConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.collect.Range;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests for {@link SensorDataCompactor}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class SensorDataCompactorTest {
+    private final InMemorySensorDatabase mSensorDatabase = new InMemorySensorDatabase();
+    private final DataControllerImpl mDataController =
+            mSensorDatabase.makeSimpleController(new MemoryMetadataManager());
+
+    @Test
+    public void testCompact_onlyCroppedTrials() {
+        addExperiment(false, makeTrial("cropped", "a", 1000, 2000, Range.closed(1400L, 1600L)));
+        addExperiment(true, makeTrial("archived", "b", 1000, 2000, Range.closed(1000L, 1500L)));
+        addExperiment(false, makeTrial("uncropped", "c", 1000, 2000, null));
+        for (String tag : new String[] {"a", "b", "c"}) {
+            for (int i = 1000; i <= 2000; i += 100) {
+                mSensorDatabase.addScalarReading(tag, 0, i, i);
+            }
+        }
+
+        SensorDataCompactor.Result result =
+                new SensorDataCompactor(mDataController, new MonotonicClock(), 100)
+                        .compact().blockingGet();
+        assertEquals(2, result.getTrialsCompacted());
+        assertEquals(0, result.getBytesReclaimed());
+        assertEquals(1, result.getElapsedMillis());
+        assertEquals(5, countReadings("a"));
+        assertEquals(7, countReadings("b"));
+        assertEquals(11, countReadings("c"));
+
+        // A second run has nothing left to do.
+        assertEquals(0, new SensorDataCompactor(mDataController, new MonotonicClock(), 100)
+                .compact().blockingGet().getTrialsCompacted());
+    }
+
+    private int countReadings(String tag) {
+        return ScalarReading.slurp(mSensorDatabase.getScalarReadings(tag,
+                TimeRange.oldest(Range.<Long>all()), 0, 0)).size();
+    }
+
+    private void addExperiment(boolean archived, Trial trial) {
+        StoringConsumer<Experiment> cExperiment = new StoringConsumer<>();
+        mDataController.createExperiment(cExperiment);
+        Experiment experiment = cExperiment.getValue();
+        experiment.setArchived(archived);
+        experiment.addTrial(trial);
+        mDataController.updateExperiment(experiment.getExperimentId(),
+                TestConsumers.<Success>expectingSuccess());
+    }
+
+    private Trial makeTrial(String trialId, String sensorId, long startMs, long endMs,
+            Range<Long> crop) {
+        GoosciTrial.Trial trialProto = new GoosciTrial.Trial();
+        trialProto.trialId = trialId;
+        GoosciSensorLayout.SensorLayout layout = new GoosciSensorLayout.SensorLayout();
+        layout.sensorId = sensorId;
+        trialProto.sensorLayouts = new GoosciSensorLayout.SensorLayout[] {layout};
+        trialProto.recordingRange = new GoosciTrial.Range();
+        trialProto.recordingRange.startMs = startMs;
+        trialProto.recordingRange.endMs = endMs;
+        if (crop != null) {
+            trialProto.cropRange = new GoosciTrial.Range();
+            trialProto.cropRange.startMs = crop.lowerEndpoint();
+            trialProto.cropRange.endMs = crop.upperEndpoint();
+        }
+        return Trial.fromTrial(trialProto);
+    }
+}
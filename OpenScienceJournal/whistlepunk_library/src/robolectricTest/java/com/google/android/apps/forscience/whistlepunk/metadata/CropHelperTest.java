@@ -30,7 +30,10 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
 import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
 import com.google.android.apps.forscience.whistlepunk.sensordb.StoringConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.collect.Range;
 import com.google.common.util.concurrent.MoreExecutors;
 
 import org.junit.Before;
@@ -39,12 +42,15 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.util.List;
+
 /**
  * Tests for {@link CropHelper}
  */
 @RunWith(RobolectricTestRunner.class)
 @Config(constants = BuildConfig.class)
 public class CropHelperTest {
+    private InMemorySensorDatabase mSensorDatabase;
     private DataControllerImpl mDataController;
     private MemoryMetadataManager mMetadataManager;
     private CropHelper.CropTrialListener mCropTrialListener;
@@ -56,7 +62,8 @@ public class CropHelperTest {
     @Before
     public void setUp() {
         mMetadataManager = new MemoryMetadataManager();
-        mDataController = new InMemorySensorDatabase().makeSimpleController(mMetadataManager);
+        mSensorDatabase = new InMemorySensorDatabase();
+        mDataController = mSensorDatabase.makeSimpleController(mMetadataManager);
         mSensorLayouts = new GoosciSensorLayout.SensorLayout[1];
         GoosciSensorLayout.SensorLayout layout = new GoosciSensorLayout.SensorLayout();
         layout.sensorId = "sensor";
@@ -202,4 +209,58 @@ public class CropHelperTest {
         assertFalse(mMetadataManager.getExperimentById(experiment.getExperimentId())
                 .getTrial(trial.getTrialId()).getStatsForSensor("sensor").statsAreValid());
     }
+
+    @Test
+    public void testThrowAwayDataOutsideCroppedRegion() {
+        StoringConsumer<Experiment> cExperiment = new StoringConsumer<>();
+        mDataController.createExperiment(cExperiment);
+        Experiment experiment = cExperiment.getValue();
+        Trial trial = makeCommonTrial();
+        GoosciTrial.Range cropRange = new GoosciTrial.Range();
+        cropRange.startMs = 500;
+        cropRange.endMs = 1500;
+        trial.setCropRange(cropRange);
+        experiment.addTrial(trial);
+        mDataController.updateExperiment(experiment.getExperimentId(),
+                TestConsumers.<Success>expectingSuccess());
+        for (int i = 0; i <= 2000; i += 100) {
+            mSensorDatabase.addScalarReading("sensor", 0, i, i);
+            mSensorDatabase.addScalarReading("sensor", 1, i, i);
+        }
+
+        assertTrue(CropHelper.throwAwayDataOutsideCroppedRegion(mDataController, experiment,
+                trial, 200).blockingGet());
+
+        for (int tier = 0; tier <= 1; tier++) {
+            List<ScalarReading> readings = ScalarReading.slurp(mSensorDatabase.getScalarReadings(
+                    "sensor", TimeRange.oldest(Range.<Long>all()), tier, 0));
+            assertEquals(15, readings.size());
+            assertEquals(300, readings.get(0).getCollectedTimeMillis());
+            assertEquals(1700, readings.get(readings.size() - 1).getCollectedTimeMillis());
+        }
+        GoosciTrial.Range stored = mMetadataManager.getExperimentById(
+                experiment.getExperimentId()).getTrial(trial.getTrialId())
+                .getOriginalRecordingRange();
+        assertEquals(300, stored.startMs);
+        assertEquals(1700, stored.endMs);
+
+        // Nothing is left outside the margin.
+        assertFalse(CropHelper.throwAwayDataOutsideCroppedRegion(mDataController, experiment,
+                trial, 200).blockingGet());
+    }
+
+    @Test
+    public void testThrowAwayDataOutsideCroppedRegion_uncropped() {
+        StoringConsumer<Experiment> cExperiment = new StoringConsumer<>();
+        mDataController.createExperiment(cExperiment);
+        Experiment experiment = cExperiment.getValue();
+        Trial trial = makeCommonTrial();
+        experiment.addTrial(trial);
+        mSensorDatabase.addScalarReading("sensor", 0, 1000, 1000);
+
+        assertFalse(CropHelper.throwAwayDataOutsideCroppedRegion(mDataController, experiment,
+                trial, 0).blockingGet());
+        assertEquals(1, ScalarReading.slurp(mSensorDatabase.getScalarReadings("sensor",
+                TimeRange.oldest(Range.<Long>all()), 0, 0)).size());
+    }
 }
@@ -26,7 +26,9 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ManualSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.RecordingSensorObserver;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorRecorder;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ZoomDecimation;
 import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
 import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
 
@@ -75,6 +77,30 @@ public class ZoomPresenterTest {
         assertEquals(2, zp.updateTier(100));
     }
 
+    @Test
+    public void testTierRatioComesFromTheTrial() {
+        // Largest-triangle keeps one reading per run, so a run is only as long as the zoom level.
+        ManualSensor sensor = new ManualSensor("test", 1000,
+                ScalarSensor.DEFAULT_ZOOM_LEVEL_BETWEEN_TIERS);
+        sensor.setZoomTiers(ZoomDecimation.LARGEST_TRIANGLE, 10);
+        SensorRecorder recorder = createRecorder(sensor);
+        Trial trial = Trial.newTrial(0, new GoosciSensorLayout.SensorLayout[0],
+                new FakeAppearanceProvider(),
+                RuntimeEnvironment.application.getApplicationContext());
+        sensor.pushDataPoints(recorder, 1000, trial);
+
+        TrialStats stats = trial.getStatsForSensor(sensor.getId());
+        assertEquals(ZoomDecimation.TYPE_LARGEST_TRIANGLE,
+                (int) stats.getStatValue(GoosciTrial.SensorStat.ZOOM_PRESENTER_DECIMATION, -1));
+        assertEquals(10, (int) stats.getStatValue(
+                GoosciTrial.SensorStat.ZOOM_PRESENTER_ZOOM_LEVEL_BETWEEN_TIERS, -1));
+
+        // 1000 readings, 100 in tier 1, 10 in tier 2
+        ZoomPresenter zp = new ZoomPresenter(10);
+        zp.setRunStats(stats);
+        assertEquals(2, zp.updateTier(1000));
+    }
+
     @Test
     public void testTierZeroWhenNoTierStats() {
         // We have none of the tier information we need
@@ -122,6 +148,28 @@ public class ZoomPresenterTest {
         assertEquals(0.006, ZoomPresenter.computeIdealTier(20, stats, 20), 0.01);
     }
 
+    @Test
+    public void testApproachingTierIsHalfwayToChanging() {
+        TrialStats stats = new TrialStats("sensorId");
+        stats.putStat(GoosciTrial.SensorStat.TOTAL_DURATION, 99);
+        stats.putStat(GoosciTrial.SensorStat.NUM_DATA_POINTS, 100);
+        stats.putStat(GoosciTrial.SensorStat.ZOOM_PRESENTER_TIER_COUNT, 5);
+        stats.putStat(GoosciTrial.SensorStat.ZOOM_PRESENTER_ZOOM_LEVEL_BETWEEN_TIERS, 5);
+
+        ZoomPresenter zp = new ZoomPresenter(20);
+        zp.setRunStats(stats);
+        assertEquals(1, zp.updateTier(100));
+        assertEquals(1, zp.getApproachingTier(80));
+        // Ideal tier 0.688: still tier 1, but tier 0 is coming.
+        assertEquals(1, zp.updateTier(60));
+        assertEquals(0, zp.getApproachingTier(60));
+        // Ideal tier 1.437
+        assertEquals(2, zp.getApproachingTier(200));
+
+        stats.putStat(GoosciTrial.SensorStat.ZOOM_PRESENTER_TIER_COUNT, 2);
+        assertEquals(1, zp.getApproachingTier(200));
+    }
+
     private SensorRecorder createRecorder(ManualSensor sensor) {
         return sensor.createRecorder(RuntimeEnvironment.application.getApplicationContext(),
                 mDatabase.makeSimpleRecordingController(mMetadataManager),
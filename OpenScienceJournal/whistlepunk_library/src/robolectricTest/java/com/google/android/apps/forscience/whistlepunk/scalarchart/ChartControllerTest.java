@@ -22,14 +22,19 @@ import android.support.annotation.NonNull;
 
 import com.google.android.apps.forscience.whistlepunk.BuildConfig;
 import com.google.android.apps.forscience.whistlepunk.DataController;
+import com.google.android.apps.forscience.whistlepunk.DataControllerImpl;
 import com.google.android.apps.forscience.whistlepunk.ExplodingFactory;
+import com.google.android.apps.forscience.whistlepunk.SensorProvider;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
+import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableSensor;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
 import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
 import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
 import com.google.android.apps.forscience.whistlepunk.sensordb.MonotonicClock;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -38,7 +43,9 @@ import org.robolectric.annotation.Config;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(constants = BuildConfig.class)
@@ -79,6 +86,40 @@ public class ChartControllerTest {
         assertEquals("[[0, 50], [1, 51]]", rc.loadCallbacks.toString());
     }
 
+    @Test
+    public void prefetchAheadOfPansInRunReview() {
+        ChartController chartController = new ChartController(
+                ChartOptions.ChartPlacementType.TYPE_RUN_REVIEW, new ScalarDisplayOptions(), 100,
+                100L, new MonotonicClock(), ExplodingFactory.makeListener());
+        MemoryMetadataManager mmm = new MemoryMetadataManager();
+        Map<String, SensorProvider> providers = new HashMap<>();
+        final List<String> prefetches = new ArrayList<>();
+        DataController dc = new DataControllerImpl(new InMemorySensorDatabase(),
+                MoreExecutors.directExecutor(), MoreExecutors.directExecutor(),
+                MoreExecutors.directExecutor(), mmm, new MonotonicClock(), providers,
+                new ConnectableSensor.Connector(providers)) {
+            @Override
+            public void prefetchScalarReadings(String databaseTag, int resolutionTier,
+                    TimeRange timeRange) {
+                prefetches.add(timeRange.getOrder() + " " + timeRange.getTimes());
+            }
+        };
+        final String runId = "runId";
+        Trial trial = trialBetween(mmm, 0, 1000, runId);
+        final GoosciSensorLayout.SensorLayout layout = new GoosciSensorLayout.SensorLayout();
+        layout.sensorId = "foo";
+        chartController.loadRunData(trial, layout, dc, makeStatus(runId, layout),
+                new TrialStats("foo"), null, null);
+
+        chartController.onGlobalXAxisChanged(100, 200, false, dc);
+        // Panning forward reads ahead of what's loaded, and back, behind it.
+        chartController.onGlobalXAxisChanged(150, 250, false, dc);
+        chartController.onGlobalXAxisChanged(100, 200, false, dc);
+        // Without tier stats, there's no other tier for a zoom to approach.
+        chartController.onGlobalXAxisChanged(50, 250, false, dc);
+        assertEquals("[OLDEST_FIRST [250..350], NEWEST_FIRST [0..100]]", prefetches.toString());
+    }
+
     @Test
     public void testGetClosestDataPoint() {
         ChartController chartController = makeChartController();
@@ -222,4 +222,66 @@ public class ChartDataTest {
         chartData.throwAwayBefore(99);
         assertEquals(8, chartData.getNumPoints());
     }
+
+    @Test public void addingAfterThrowingAwayWrapsAroundAndGrows() {
+        ChartData chartData = new ChartData(0, ChartData.DEFAULT_THROWAWAY_TIME_THRESHOLD);
+        for (int i = 0; i < 12; i++) {
+            chartData.addPoint(i, i);
+        }
+        chartData.throwAwayBefore(10);
+        for (int i = 12; i < 50; i++) {
+            chartData.addPoint(i, i);
+        }
+        assertEquals(40, chartData.getNumPoints());
+        for (int i = 0; i < 40; i++) {
+            assertEquals(i + 10, chartData.getX(i));
+            assertEquals(i + 10, chartData.getY(i), 0.0);
+        }
+        assertEquals(25, chartData.exactBinarySearch(35, 0));
+    }
+
+    @Test public void throwAwayBetweenKeepsBothEnds() {
+        ChartData chartData = new ChartData(0, ChartData.DEFAULT_THROWAWAY_TIME_THRESHOLD);
+        for (int i = 0; i < 20; i++) {
+            chartData.addPoint(i * 10, i);
+        }
+        chartData.throwAwayBetween(45, 155);
+        List<ChartData.DataPoint> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            if (i < 5 || i >= 16) {
+                expected.add(new ChartData.DataPoint(i * 10, i));
+            }
+        }
+        assertDataEquals(expected, chartData.getPoints());
+    }
+
+    @Test public void addOrderedGroupOfPointsAtEitherEndOrMerged() {
+        ChartData chartData = new ChartData();
+        chartData.addOrderedGroupOfPoints(new long[]{10, 20}, new double[]{1, 2}, 2);
+        chartData.addOrderedGroupOfPoints(new long[]{30, 40, 99}, new double[]{3, 4, 99}, 2);
+        chartData.addOrderedGroupOfPoints(new long[]{0, 5}, new double[]{0, 0.5}, 2);
+        chartData.addOrderedGroupOfPoints(new long[]{15, 35}, new double[]{1.5, 3.5}, 2);
+
+        long[] expectedXs = {0, 5, 10, 15, 20, 30, 35, 40};
+        assertEquals(expectedXs.length, chartData.getNumPoints());
+        for (int i = 0; i < expectedXs.length; i++) {
+            assertEquals(expectedXs[i], chartData.getX(i));
+            assertEquals(expectedXs[i] / 10.0, chartData.getY(i), 0.0);
+        }
+    }
+
+    @Test public void exactBinarySearchOnManyPoints() {
+        ChartData chartData = new ChartData();
+        for (int i = 0; i < 200000; i++) {
+            chartData.addPoint(i * 3, i);
+        }
+        for (int i = 0; i < 199999; i += 997) {
+            assertEquals(i, chartData.exactBinarySearch(i * 3, 0));
+            assertEquals(i, chartData.exactBinarySearch(i * 3 + 1, 0));
+            assertEquals(i + 1, chartData.exactBinarySearch(i * 3 + 2, 0));
+        }
+        List<ChartData.DataPoint> range = chartData.getPointsInRange(3000, 6000);
+        assertTrue(range.get(0).getX() <= 3000);
+        assertTrue(range.get(range.size() - 1).getX() >= 6000);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class ColumnDecimatorTest {
+    private static final int HEIGHT = 64;
+
+    @Test
+    public void keepsFirstLowestHighestAndLastOfEachColumn() {
+        ChartData data = new ChartData();
+        // Ten columns of 10ms each; the first holds five points, the second one.
+        double[] ys = {3, 5, 1, 4, 2};
+        for (int i = 0; i < ys.length; i++) {
+            data.addPoint(i * 2, ys[i]);
+        }
+        data.addPoint(15, 7);
+
+        ColumnDecimator decimator = new ColumnDecimator();
+        decimator.decimate(data, 0, data.getNumPoints() - 1, 0, 100, 10, 0);
+        assertEquals(5, decimator.size());
+        long[] expectedXs = {0, 2, 4, 8, 15};
+        double[] expectedYs = {3, 5, 1, 2, 7};
+        for (int i = 0; i < decimator.size(); i++) {
+            assertEquals(expectedXs[i], decimator.getX(i));
+            assertEquals(expectedYs[i], decimator.getY(i), 0.0);
+        }
+    }
+
+    @Test
+    public void keepsEveryPointWhenColumnsAreSparse() {
+        ChartData data = new ChartData();
+        for (int i = 0; i < 20; i++) {
+            data.addPoint(i * 100, i % 3);
+        }
+        ColumnDecimator decimator = new ColumnDecimator();
+        decimator.decimate(data, 5, 14, 0, 2000, 400, 0);
+        assertEquals(10, decimator.size());
+        for (int i = 0; i < decimator.size(); i++) {
+            assertEquals(data.getX(i + 5), decimator.getX(i));
+        }
+
+        decimator.decimate(data, 3, 2, 0, 2000, 400, 0);
+        assertEquals(0, decimator.size());
+    }
+
+    @Test
+    public void coversTheSamePixelsAsEveryPoint() {
+        Random random = new Random(42);
+        ColumnDecimator decimator = new ColumnDecimator();
+        for (int pointCount : new int[]{1000, 100000}) {
+            ChartData data = new ChartData();
+            long x = 0;
+            double y = HEIGHT / 2;
+            for (int i = 0; i < pointCount; i++) {
+                x += 1 + random.nextInt(20);
+                y = Math.max(0, Math.min(HEIGHT - 1, y + random.nextGaussian() * 3));
+                data.addPoint(x, y);
+            }
+
+            for (int width : new int[]{37, 300, 1080}) {
+                // Views show part of the data, starting partway into a pixel.
+                long xMin = data.getXMax() / 4;
+                long xMax = data.getXMax() / 2;
+                float left = 16.5f;
+                int first = Math.max(0, data.getFirstIndexInRange(xMin) - 10);
+                int last = Math.min(pointCount - 1, data.getLastIndexInRange(xMax, first) + 10);
+
+                decimator.decimate(data, first, last, xMin, xMax, width, left);
+                long[] xs = new long[decimator.size()];
+                double[] ys = new double[decimator.size()];
+                for (int i = 0; i < xs.length; i++) {
+                    xs[i] = decimator.getX(i);
+                    ys[i] = decimator.getY(i);
+                }
+                long[] allXs = new long[last - first + 1];
+                double[] allYs = new double[allXs.length];
+                for (int i = 0; i < allXs.length; i++) {
+                    allXs[i] = data.getX(first + i);
+                    allYs[i] = data.getY(first + i);
+                }
+
+                int columns = width + (int) left + 2;
+                boolean[] expected = rasterize(allXs, allYs, xMin, xMax, width, left, columns);
+                boolean[] actual = rasterize(xs, ys, xMin, xMax, width, left, columns);
+                assertArrayEquals(pointCount + " points, " + width + " wide", expected, actual);
+                assertTrue(xs.length <= 4 * columns);
+            }
+        }
+    }
+
+    /**
+     * Marks the pixels a line through the points crosses, in columns 0 to {@code columns - 1},
+     * placing points as ChartView does.
+     */
+    private static boolean[] rasterize(long[] xs, double[] ys, long xMin, long xMax, float width,
+            float left, int columns) {
+        boolean[] pixels = new boolean[columns * HEIGHT];
+        for (int i = 1; i < xs.length; i++) {
+            float x0 = (1.0f * (xs[i - 1] - xMin)) / (xMax - xMin) * width + left;
+            float x1 = (1.0f * (xs[i] - xMin)) / (xMax - xMin) * width + left;
+            double y0 = ys[i - 1];
+            double y1 = ys[i];
+            int firstColumn = (int) Math.max(0, Math.floor(x0));
+            int lastColumn = (int) Math.min(columns - 1, Math.floor(x1));
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                // The part of the segment inside this column, exactly at its ends so that
+                // rounding doesn't reach another row.
+                double from = x0 >= column ? y0 : yAt(x0, y0, x1, y1, column);
+                double to = x1 <= column + 1 ? y1 : yAt(x0, y0, x1, y1, column + 1);
+                int lowRow = (int) Math.max(0, Math.floor(Math.min(from, to)));
+                int highRow = (int) Math.min(HEIGHT - 1, Math.floor(Math.max(from, to)));
+                for (int row = lowRow; row <= highRow; row++) {
+                    pixels[column * HEIGHT + row] = true;
+                }
+            }
+        }
+        return pixels;
+    }
+
+    private static double yAt(float x0, double y0, float x1, double y1, double x) {
+        return y0 + (y1 - y0) * (x - x0) / (x1 - x0);
+    }
+}
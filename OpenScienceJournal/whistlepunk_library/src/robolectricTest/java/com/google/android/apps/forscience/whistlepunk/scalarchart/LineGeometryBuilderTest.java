@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class LineGeometryBuilderTest {
+    private static class QueueExecutor implements Executor {
+        final Queue<Runnable> mQueue = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+
+        void runNext() {
+            mQueue.remove().run();
+        }
+    }
+
+    private static class CountingListener implements LineGeometryBuilder.Listener {
+        int mBuilt = 0;
+
+        @Override
+        public void onGeometryBuilt(LineGeometry geometry) {
+            mBuilt++;
+        }
+    }
+
+    private static ChartData makeData(int numPoints) {
+        ChartData data = new ChartData();
+        for (int i = 0; i < numPoints; i++) {
+            data.addPoint(i * 10, i % 7);
+        }
+        return data;
+    }
+
+    @Test
+    public void buildsSegmentsPlacedForTheRequestedRanges() {
+        ChartData data = makeData(100);
+        CountingListener listener = new CountingListener();
+        LineGeometryBuilder builder = new LineGeometryBuilder(MoreExecutors.directExecutor(),
+                MoreExecutors.directExecutor(), listener);
+        // A pixel for every point, from 200 to 500, and a buffer of at least 50 on either side.
+        builder.request(data, 200, 500, 0, 10, 5, 2, 30, 100, 50, false);
+
+        assertEquals(1, listener.mBuilt);
+        LineGeometry geometry = builder.getGeometry();
+        int first = data.getFirstIndexInRange(150);
+        int last = data.getLastIndexInRange(550, first);
+        assertEquals(data.getX(first), geometry.getXMinInLine());
+        assertEquals(data.getX(last), geometry.getXMaxInLine());
+        assertEquals((last - first) * 4, geometry.getLineFloatCount());
+        float[] lines = geometry.getLines();
+        // (200, 0) is at the bottom left of the chart area, and (500, 10) at its top right.
+        int at200 = (200 - (int) data.getX(first)) / 10;
+        assertEquals(5, lines[at200 * 4], 0.001);
+        assertEquals(data.getY(first + at200) * -10 + 102, lines[at200 * 4 + 1], 0.001);
+        assertEquals(6, lines[at200 * 4 + 2], 0.001);
+        // Each segment starts where the last one ended.
+        for (int i = 4; i < geometry.getLineFloatCount(); i += 4) {
+            assertEquals(lines[i - 2], lines[i], 0.0);
+            assertEquals(lines[i - 1], lines[i + 1], 0.0);
+        }
+    }
+
+    @Test
+    public void buildsOneRequestAtATimeAndOnlyTheLatestAfterIt() {
+        ChartData data = makeData(100);
+        QueueExecutor buildThread = new QueueExecutor();
+        CountingListener listener = new CountingListener();
+        LineGeometryBuilder builder = new LineGeometryBuilder(buildThread,
+                MoreExecutors.directExecutor(), listener);
+
+        builder.request(data, 0, 1000, 0, 10, 0, 0, 100, 100, 0, false);
+        builder.request(data, 0, 500, 0, 10, 0, 0, 100, 100, 0, false);
+        builder.request(data, 0, 250, 0, 10, 0, 0, 100, 100, 0, false);
+        assertEquals(1, buildThread.mQueue.size());
+
+        LineGeometry first = builder.getGeometry();
+        assertFalse(first.hasPoints());
+        buildThread.runNext();
+        assertEquals(1, listener.mBuilt);
+        assertEquals(1000, builder.getGeometry().getXMax());
+        LineGeometry second = builder.getGeometry();
+        assertNotSame(first, second);
+
+        // The middle request was replaced by the last one.
+        assertEquals(1, buildThread.mQueue.size());
+        buildThread.runNext();
+        assertEquals(2, listener.mBuilt);
+        assertEquals(250, builder.getGeometry().getXMax());
+        assertTrue(buildThread.mQueue.isEmpty());
+        // The two geometries take turns.
+        assertSame(first, builder.getGeometry());
+    }
+
+    @Test
+    public void drawnGeometryIsLeftAloneWhileBuilding() {
+        ChartData data = makeData(100);
+        QueueExecutor uiThread = new QueueExecutor();
+        LineGeometryBuilder builder = new LineGeometryBuilder(MoreExecutors.directExecutor(),
+                uiThread, new CountingListener());
+        builder.request(data, 0, 1000, 0, 10, 0, 0, 100, 100, 0, false);
+        uiThread.runNext();
+        LineGeometry drawn = builder.getGeometry();
+        int floatCount = drawn.getLineFloatCount();
+
+        // Built, but not yet handed to the UI thread.
+        builder.request(data, 0, 500, 0, 10, 0, 0, 100, 100, 0, false);
+        assertSame(drawn, builder.getGeometry());
+        assertEquals(floatCount, drawn.getLineFloatCount());
+        assertEquals(1000, drawn.getXMax());
+        uiThread.runNext();
+        assertEquals(500, builder.getGeometry().getXMax());
+    }
+
+    @Test
+    public void catchesUpWithPointsAddedWhileBuilding() {
+        ChartData data = makeData(100);
+        QueueExecutor uiThread = new QueueExecutor();
+        LineGeometryBuilder builder = new LineGeometryBuilder(MoreExecutors.directExecutor(),
+                uiThread, new CountingListener());
+        builder.request(data, 0, 2000, 0, 10, 0, 0, 2000, 100, 0, true);
+
+        data.addPoint(1000, 1);
+        data.addPoint(1010, 2);
+        uiThread.runNext();
+        LineGeometry geometry = builder.getGeometry();
+        assertEquals(1010, geometry.getXMaxInLine());
+        int floatCount = geometry.getLineFloatCount();
+        assertEquals(1010, geometry.getLines()[floatCount - 2], 0.001);
+        assertEquals(1000, geometry.getLines()[floatCount - 4], 0.001);
+    }
+}
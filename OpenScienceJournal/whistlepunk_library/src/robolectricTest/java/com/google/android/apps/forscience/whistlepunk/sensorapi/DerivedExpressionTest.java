@@ -0,0 +1,87 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class DerivedExpressionTest {
+    private static final double DELTA = 0.0001;
+
+    @Test
+    public void variablesInOrderOfFirstUse() {
+        DerivedExpression expression = DerivedExpression.parse("sqrt(x*x + y*y + z*z) - x");
+        assertEquals(Lists.newArrayList("x", "y", "z"), expression.getVariables());
+        assertEquals(13 - 3, expression.evaluate(0, new double[]{3, 4, 12}), DELTA);
+    }
+
+    @Test
+    public void precedence() {
+        assertEquals(7, evaluate("1 + 2 * 3"), DELTA);
+        assertEquals(9, evaluate("(1 + 2) * 3"), DELTA);
+        assertEquals(-4, evaluate("-2^2"), DELTA);
+        assertEquals(0.25, evaluate("2^-2"), DELTA);
+        assertEquals(512, evaluate("2^3^2"), DELTA);
+        assertEquals(2, evaluate("8 / 2 / 2"), DELTA);
+        assertEquals(4, evaluate("max(1, min(4, 5)) * abs(-1)"), DELTA);
+        assertEquals(Math.PI / 4, evaluate("atan2(1, 1)"), DELTA);
+    }
+
+    @Test
+    public void ratio() {
+        DerivedExpression expression = DerivedExpression.parse("a / b");
+        assertEquals(2.5, expression.evaluate(0, new double[]{5, 2}), DELTA);
+        assertEquals(Double.POSITIVE_INFINITY, expression.evaluate(0, new double[]{5, 0}), DELTA);
+    }
+
+    @Test
+    public void smoothMovesPartWayTowardEachValue() {
+        DerivedExpression expression = DerivedExpression.parse("smooth(v, 100)");
+        assertEquals(0, expression.evaluate(0, new double[]{0}), DELTA);
+        // After one time constant, a step is about 63% of the way there.
+        assertEquals(10 * (1 - Math.exp(-1)), expression.evaluate(100, new double[]{10}), DELTA);
+        // No time, no change
+        assertEquals(10 * (1 - Math.exp(-1)), expression.evaluate(100, new double[]{20}), DELTA);
+    }
+
+    @Test
+    public void badExpressions() {
+        for (String bad : new String[]{"", "1 +", "(a", "a b", "foo(a)", "sqrt(a, b)",
+                "smooth(a, b)", "1..2", "a $ b"}) {
+            try {
+                DerivedExpression.parse(bad);
+                fail("Should not parse: " + bad);
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+    private static double evaluate(String source) {
+        return DerivedExpression.parse(source).evaluate(0, new double[0]);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+import com.google.android.apps.forscience.whistlepunk.api.scalarinput.ExplicitExecutor;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class FrameCoalescerTest {
+    private final ExplicitExecutor mUiThread = new ExplicitExecutor();
+    private final List<Runnable> mFrames = new ArrayList<>();
+    private final FrameCoalescer.FrameScheduler mScheduler = mFrames::add;
+
+    @Test
+    public void valuesBeforeAFrameAreDeliveredTogether() {
+        BatchCounter observer = new BatchCounter();
+        FrameCoalescer coalescer = new FrameCoalescer(observer, mUiThread, mScheduler);
+
+        coalescer.add(1, 10, stats(10));
+        coalescer.add(2, 20, stats(15));
+        coalescer.add(3, 30, stats(20));
+        mUiThread.drain();
+        assertEquals(1, mFrames.size());
+        assertEquals(0, observer.batches);
+
+        runFrames();
+        assertEquals(1, observer.batches);
+        assertEquals(3, observer.readings.size());
+        assertEquals(30.0, observer.readings.get(2).getValue(), 0.01);
+        assertEquals(20.0, observer.latestAverage, 0.01);
+
+        coalescer.add(4, 40, stats(25));
+        mUiThread.drain();
+        runFrames();
+        assertEquals(2, observer.batches);
+        assertEquals(4, observer.readings.size());
+        assertEquals(4, observer.readings.get(3).getCollectedTimeMillis());
+    }
+
+    @Test
+    public void plainObserversGetEveryValue() {
+        RecordingSensorObserver observer = new RecordingSensorObserver();
+        FrameCoalescer coalescer = new FrameCoalescer(observer, mUiThread, mScheduler);
+
+        coalescer.add(1, 10, stats(10));
+        coalescer.add(2, 20, stats(15));
+        mUiThread.drain();
+        runFrames();
+
+        List<ScalarReading> readings = observer.getReadings();
+        assertEquals(2, readings.size());
+        assertEquals(1, readings.get(0).getCollectedTimeMillis());
+        assertEquals(20.0, readings.get(1).getValue(), 0.01);
+    }
+
+    private void runFrames() {
+        List<Runnable> frames = new ArrayList<>(mFrames);
+        mFrames.clear();
+        for (Runnable frame : frames) {
+            frame.run();
+        }
+    }
+
+    private static SensorObserver.Data stats(double average) {
+        SensorObserver.Data data = new SensorObserver.Data();
+        data.average = average;
+        return data;
+    }
+
+    private static class BatchCounter implements ScalarBatchObserver {
+        public int batches = 0;
+        public double latestAverage;
+        public final List<ScalarReading> readings = new ArrayList<>();
+
+        @Override
+        public void onNewData(long timestamp, Data data) {
+            throw new AssertionError("Expected batches only");
+        }
+
+        @Override
+        public void onNewBatch(ScalarBatch batch) {
+            batches++;
+            for (int i = 0; i < batch.size(); i++) {
+                readings.add(new ScalarReading(batch.getTimestamps()[i], batch.getValues()[i]));
+            }
+            latestAverage = batch.getLatestData().average;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class OverloadControllerTest {
+    private double mWriteBacklog = 0;
+    private int mPendingLiveValues = 0;
+    private final List<Integer> mKeepOneIns = new ArrayList<>();
+
+    private final OverloadController.LoadMonitor mLoad = new OverloadController.LoadMonitor() {
+        @Override
+        public double getWriteBacklog() {
+            return mWriteBacklog;
+        }
+
+        @Override
+        public int getPendingLiveValues() {
+            return mPendingLiveValues;
+        }
+    };
+
+    private final OverloadController.ChangeListener mListener =
+            (timestampMillis, policy, keepOneIn, droppedCount) -> mKeepOneIns.add(keepOneIn);
+
+    @Test
+    public void keepsEverythingWhenNotOverloaded() {
+        OverloadController controller = makeController(OverloadController.POLICY_DECIMATE_ALL);
+        assertEquals(10 * OverloadController.CHECK_INTERVAL,
+                countAdmitted(controller, 10 * OverloadController.CHECK_INTERVAL,
+                        OverloadController.ADMIT_ALL));
+        assertEquals(0, mKeepOneIns.size());
+    }
+
+    @Test
+    public void decimatesMoreAtEachCheckThenRecovers() {
+        OverloadController controller = makeController(OverloadController.POLICY_DECIMATE_ALL);
+        mWriteBacklog = 0.9;
+        countAdmitted(controller, 3 * OverloadController.CHECK_INTERVAL,
+                OverloadController.ADMIT_ALL);
+        assertEquals(listOf(2, 4, 8), mKeepOneIns);
+
+        // Caught up, but not far enough to speed up again yet.
+        mWriteBacklog = 0.3;
+        countAdmitted(controller, OverloadController.CHECK_INTERVAL, OverloadController.ADMIT_ALL);
+        assertEquals(8, controller.getKeepOneIn());
+
+        mWriteBacklog = 0;
+        countAdmitted(controller, 3 * OverloadController.CHECK_INTERVAL,
+                OverloadController.ADMIT_ALL);
+        assertEquals(listOf(2, 4, 8, 4, 2, 1), mKeepOneIns);
+        assertEquals(OverloadController.CHECK_INTERVAL,
+                countAdmitted(controller, OverloadController.CHECK_INTERVAL,
+                        OverloadController.ADMIT_ALL));
+    }
+
+    @Test
+    public void decimatingObservationStillRecordsEverything() {
+        OverloadController controller =
+                makeController(OverloadController.POLICY_DECIMATE_OBSERVATION);
+        mPendingLiveValues = FrameCoalescer.MAX_PENDING;
+        int readings = 20 * OverloadController.CHECK_INTERVAL;
+        assertEquals(readings,
+                countAdmitted(controller, readings, OverloadController.ADMIT_RECORD));
+        int observed = countAdmitted(controller, readings, OverloadController.ADMIT_OBSERVE);
+        assertEquals(readings / OverloadController.MAX_KEEP_ONE_IN, observed);
+        assertEquals(0, controller.getDroppedCount());
+    }
+
+    @Test
+    public void dropPolicyDropsEverythingUntilCaughtUp() {
+        OverloadController controller = makeController(OverloadController.POLICY_DROP);
+        mPendingLiveValues = FrameCoalescer.MAX_PENDING;
+        countAdmitted(controller, OverloadController.CHECK_INTERVAL - 1,
+                OverloadController.ADMIT_ALL);
+        int readings = 5 * OverloadController.CHECK_INTERVAL;
+        assertEquals(0, countAdmitted(controller, readings, OverloadController.ADMIT_RECORD));
+        assertEquals(readings, controller.getDroppedCount());
+        assertEquals(listOf(0), mKeepOneIns);
+
+        mPendingLiveValues = 0;
+        countAdmitted(controller, OverloadController.CHECK_INTERVAL,
+                OverloadController.ADMIT_ALL);
+        assertEquals(listOf(0, 1), mKeepOneIns);
+    }
+
+    private OverloadController makeController(@OverloadController.Policy int policy) {
+        return new OverloadController(policy, mLoad, mListener);
+    }
+
+    // Admits readings at timestamps 0, 1, 2..., and counts those that get all of the given flags.
+    private int countAdmitted(OverloadController controller, int readings, int flags) {
+        int count = 0;
+        for (int i = 0; i < readings; i++) {
+            if ((controller.admit(i) & flags) == flags) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static List<Integer> listOf(Integer... values) {
+        List<Integer> list = new ArrayList<>();
+        for (Integer value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
@@ -17,18 +17,25 @@
 package com.google.android.apps.forscience.whistlepunk.sensorapi;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
 
+import com.google.android.apps.forscience.javalib.FailureListener;
 import com.google.android.apps.forscience.whistlepunk.BuildConfig;
 import com.google.android.apps.forscience.whistlepunk.DataController;
+import com.google.android.apps.forscience.whistlepunk.DataControllerImpl;
+import com.google.android.apps.forscience.whistlepunk.MockScheduler;
+import com.google.android.apps.forscience.whistlepunk.ReadableTransportableSensorOptions;
 import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
+import com.google.android.apps.forscience.whistlepunk.SensorProvider;
 import com.google.android.apps.forscience.whistlepunk.TestData;
 import com.google.android.apps.forscience.whistlepunk.api.scalarinput.ExplicitExecutor;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorConfig.BleSensorConfig
         .ScaleTransform;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
+import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableSensor;
 import com.google.android.apps.forscience.whistlepunk.devicemanager.FakeUnitAppearanceProvider;
 import com.google.android.apps.forscience.whistlepunk.devicemanager.SensorTypeProvider;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
@@ -36,8 +43,10 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.metadata.BleSensorSpec;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ScalarDisplayOptions;
+import com.google.android.apps.forscience.whistlepunk.sensordb.BatchingScalarWriter;
 import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
 import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MonotonicClock;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
 import com.google.android.apps.forscience.whistlepunk.sensors.BluetoothSensor;
 import com.google.common.collect.Lists;
@@ -49,6 +58,9 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
 
 @RunWith(RobolectricTestRunner.class)
@@ -364,6 +376,36 @@ public class ScalarSensorTest {
                 0.001);
     }
 
+    @Test
+    public void testZoomTiersFromOptions() {
+        GoosciSensorLayout.SensorLayout layout = new GoosciSensorLayout.SensorLayout();
+        layout.sensorId = "test";
+        Trial trial = Trial.newTrial(10, new GoosciSensorLayout.SensorLayout[]{layout},
+                new FakeUnitAppearanceProvider(), null);
+
+        ManualSensor sensor = new ManualSensor("test", 1000, 5);
+        SensorRecorder recorder = createRecorder(sensor);
+        Map<String, String> options = new HashMap<>();
+        options.put(ScalarSensor.PREFS_KEY_ZOOM_DECIMATION,
+                String.valueOf(ZoomDecimation.TYPE_AVERAGE));
+        options.put(ScalarSensor.PREFS_KEY_ZOOM_LEVEL_BETWEEN_TIERS, "10");
+        recorder.applyOptions(new ReadableTransportableSensorOptions(options));
+
+        recorder.startRecording(trial.getTrialId());
+        for (int i = 0; i < 20; i++) {
+            sensor.pushValue(i, i);
+        }
+        // One average for each run of 10.
+        assertEquals(2, mDb.getReadings(1).size());
+
+        recorder.stopRecording(trial);
+        TrialStats stats = trial.getStatsForSensor("test");
+        assertEquals(ZoomDecimation.TYPE_AVERAGE,
+                stats.getStatValue(GoosciTrial.SensorStat.ZOOM_PRESENTER_DECIMATION, -1), 0);
+        assertEquals(10, stats.getStatValue(
+                GoosciTrial.SensorStat.ZOOM_PRESENTER_ZOOM_LEVEL_BETWEEN_TIERS, -1), 0);
+    }
+
     @Test
     public void dontReuseBundle() {
         ExplicitExecutor executor = new ExplicitExecutor();
@@ -382,6 +424,122 @@ public class ScalarSensorTest {
         data.checkObserver(observer);
     }
 
+    @Test
+    public void overloadedSensorStaysWithinBounds() {
+        GoosciSensorLayout.SensorLayout layout = new GoosciSensorLayout.SensorLayout();
+        layout.sensorId = "test";
+        Trial trial = Trial.newTrial(10, new GoosciSensorLayout.SensorLayout[]{layout},
+                new FakeUnitAppearanceProvider(), null);
+
+        // Neither the main thread nor the writer get to run while readings arrive.
+        ExplicitExecutor uiThread = new ExplicitExecutor();
+        ExplicitExecutor writerThread = new ExplicitExecutor();
+        int capacity = 4096;
+        BatchingScalarWriter writer = new BatchingScalarWriter(mDb, writerThread,
+                new MonotonicClock(), new MockScheduler(),
+                BatchingScalarWriter.DEFAULT_MAX_BATCH_SIZE,
+                BatchingScalarWriter.DEFAULT_MAX_BATCH_AGE_MILLIS, capacity, null);
+        RecordingDataController rc = new RecordingDataController() {
+            @Override
+            public boolean addScalarReading(String sensorId, int resolutionTier,
+                    long timestampMillis, double value) {
+                return writer.addScalarReading(sensorId, resolutionTier, timestampMillis, value);
+            }
+
+            @Override
+            public void flushScalarReadings() {
+                writer.flush();
+            }
+
+            @Override
+            public double getScalarWriteBacklog() {
+                return (double) writer.getQueueDepth() / writer.getQueueCapacity();
+            }
+
+            @Override
+            public void setDataErrorListenerForSensor(String sensorId, FailureListener listener) {
+            }
+
+            @Override
+            public void clearDataErrorListenerForSensor(String sensorId) {
+            }
+        };
+
+        ManualSensor sensor = new ManualSensor("test", 1000, 5, uiThread);
+        RecordingSensorObserver observer = new RecordingSensorObserver();
+        SensorRecorder recorder = sensor.createRecorder(getContext(), rc, observer);
+        // As set in the sensor's layout.
+        Map<String, String> options = new HashMap<>();
+        options.put(ScalarSensor.PREFS_KEY_OVERLOAD_POLICY,
+                String.valueOf(OverloadController.POLICY_DECIMATE_ALL));
+        recorder.applyOptions(new ReadableTransportableSensorOptions(options));
+        recorder.startRecording(trial.getTrialId());
+
+        int readings = 10 * capacity;
+        for (int i = 0; i < readings; i++) {
+            sensor.pushValue(i, i);
+        }
+        assertTrue(writer.getQueueHighWaterMark() <= capacity);
+        uiThread.drain();
+        assertTrue(observer.getReadings().size() <= FrameCoalescer.MAX_PENDING);
+
+        recorder.stopRecording(trial);
+        List<GoosciTrial.SensorOverloadChange> changes = trial.getOverloadChanges("test");
+        GoosciTrial.SensorOverloadChange first = changes.get(0);
+        assertEquals(OverloadController.POLICY_DECIMATE_ALL, first.policy);
+        assertEquals(2, first.keepOneIn);
+        GoosciTrial.SensorOverloadChange last = changes.get(changes.size() - 1);
+        assertEquals(OverloadController.MAX_KEEP_ONE_IN, last.keepOneIn);
+        assertTrue(last.droppedCount > readings / 2);
+    }
+
+    @Test
+    public void writerDropsAreRecordedInTheTrial() {
+        GoosciSensorLayout.SensorLayout layout = new GoosciSensorLayout.SensorLayout();
+        layout.sensorId = "test";
+        Trial trial = Trial.newTrial(10, new GoosciSensorLayout.SensorLayout[]{layout},
+                new FakeUnitAppearanceProvider(), null);
+
+        // The writer's thread never runs, so every write it asks for stays queued.
+        List<Runnable> writes = new ArrayList<>();
+        ExplicitExecutor uiThread = new ExplicitExecutor();
+        Map<String, SensorProvider> providers = new HashMap<>();
+        DataControllerImpl dc = new DataControllerImpl.Builder(mDb,
+                MoreExecutors.directExecutor(), MoreExecutors.directExecutor(), writes::add,
+                mMetadata, new MonotonicClock(), providers,
+                new ConnectableSensor.Connector(providers))
+                .setBatching(BatchingScalarWriter.DEFAULT_MAX_BATCH_SIZE,
+                        BatchingScalarWriter.DEFAULT_MAX_BATCH_AGE_MILLIS, new MockScheduler())
+                .build();
+
+        ManualSensor sensor = new ManualSensor("test", 1000, 5, uiThread);
+        RecordingSensorObserver observer = new RecordingSensorObserver();
+        SensorRecorder recorder = sensor.createRecorder(getContext(), dc, observer);
+        // Only thins out what is shown, so the writer gets every reading.
+        Map<String, String> options = new HashMap<>();
+        options.put(ScalarSensor.PREFS_KEY_OVERLOAD_POLICY,
+                String.valueOf(OverloadController.POLICY_DECIMATE_OBSERVATION));
+        recorder.applyOptions(new ReadableTransportableSensorOptions(options));
+        recorder.startRecording(trial.getTrialId());
+
+        int readings = 10 * BatchingScalarWriter.DEFAULT_CAPACITY;
+        for (int i = 0; i < readings; i++) {
+            sensor.pushValue(i, i);
+        }
+        // Readings beyond the writer's capacity were dropped, not queued.
+        assertTrue(dc.getScalarWriteBacklog() <= 1);
+        assertTrue(writes.size() <= 2);
+        uiThread.drain();
+        assertTrue(observer.getReadings().size() <= FrameCoalescer.MAX_PENDING);
+        assertEquals(0, mDb.getReadings(0).size());
+
+        recorder.stopRecording(trial);
+        List<GoosciTrial.SensorOverloadChange> changes = trial.getOverloadChanges("test");
+        GoosciTrial.SensorOverloadChange last = changes.get(changes.size() - 1);
+        assertTrue(last.writerDroppedCount >= readings - BatchingScalarWriter.DEFAULT_CAPACITY);
+        assertTrue(last.droppedCount >= last.writerDroppedCount);
+    }
+
     @NonNull
     private ScaleTransform rpmToHertz() {
         ScaleTransform transform = new ScaleTransform();
@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class ZoomDecimationTest {
+    private final List<ScalarReading> mOutput = new ArrayList<>();
+    private final ZoomDecimation.Output mCollect =
+            (timestampMillis, value) -> mOutput.add(new ScalarReading(timestampMillis, value));
+
+    @Test
+    public void minMaxWritesLowestAndHighestInOrder() {
+        ZoomDecimation.Summarizer summarizer = ZoomDecimation.MIN_MAX.newSummarizer(4);
+        add(summarizer, 5, 9, 1, 3, 7, 8);
+        // The highest came first.
+        assertEquals(Lists.newArrayList(new ScalarReading(1, 9), new ScalarReading(2, 1)),
+                mOutput);
+
+        summarizer.flush(mCollect);
+        assertEquals(new ScalarReading(4, 7), mOutput.get(2));
+        assertEquals(new ScalarReading(5, 8), mOutput.get(3));
+    }
+
+    @Test
+    public void m4WritesFirstMinMaxLastInOrder() {
+        ZoomDecimation.Summarizer summarizer = ZoomDecimation.M4.newSummarizer(6);
+        add(summarizer, 5, 9, 1, 3, 7, 6);
+        assertEquals(Lists.newArrayList(new ScalarReading(0, 5), new ScalarReading(1, 9),
+                new ScalarReading(2, 1), new ScalarReading(5, 6)), mOutput);
+    }
+
+    @Test
+    public void m4DoesNotRepeatReadings() {
+        ZoomDecimation.Summarizer summarizer = ZoomDecimation.M4.newSummarizer(4);
+        // First is the lowest, last is the highest.
+        add(summarizer, 1, 2, 3, 4);
+        assertEquals(Lists.newArrayList(new ScalarReading(0, 1), new ScalarReading(3, 4)),
+                mOutput);
+    }
+
+    @Test
+    public void largestTriangleKeepsTheSpike() {
+        ZoomDecimation.Summarizer summarizer = ZoomDecimation.LARGEST_TRIANGLE.newSummarizer(3);
+        add(summarizer, 0, 0, 0, 0, 10, 0, 0, 0, 0);
+        // Each run waits for the next one to be complete.
+        assertEquals(2, mOutput.size());
+        assertEquals(new ScalarReading(4, 10), mOutput.get(1));
+
+        summarizer.flush(mCollect);
+        assertEquals(3, mOutput.size());
+    }
+
+    @Test
+    public void largestTriangleEndsWithTheLastReading() {
+        ZoomDecimation.Summarizer summarizer = ZoomDecimation.LARGEST_TRIANGLE.newSummarizer(3);
+        add(summarizer, 0, 1, 2, 3, 4);
+        summarizer.flush(mCollect);
+        assertEquals(2, mOutput.size());
+        assertEquals(new ScalarReading(4, 4), mOutput.get(1));
+    }
+
+    @Test
+    public void averageWritesTheMeanAtTheMeanTime() {
+        ZoomDecimation.Summarizer summarizer = ZoomDecimation.AVERAGE.newSummarizer(4);
+        add(summarizer, 2, 4, 6, 8, 1);
+        summarizer.flush(mCollect);
+        assertEquals(Lists.newArrayList(new ScalarReading(1, 5), new ScalarReading(4, 1)),
+                mOutput);
+    }
+
+    @Test
+    public void runLengthKeepsTheZoomLevel() {
+        assertEquals(40, ZoomDecimation.MIN_MAX.getRunLength(20));
+        assertEquals(80, ZoomDecimation.M4.getRunLength(20));
+        assertEquals(20, ZoomDecimation.LARGEST_TRIANGLE.getRunLength(20));
+        assertEquals(20, ZoomDecimation.AVERAGE.getRunLength(20));
+    }
+
+    @Test
+    public void typesRoundTrip() {
+        for (ZoomDecimation decimation : new ZoomDecimation[]{ZoomDecimation.MIN_MAX,
+                ZoomDecimation.M4, ZoomDecimation.LARGEST_TRIANGLE, ZoomDecimation.AVERAGE}) {
+            assertEquals(decimation, ZoomDecimation.forType(decimation.getType()));
+        }
+        assertEquals(ZoomDecimation.MIN_MAX, ZoomDecimation.forType(-1));
+    }
+
+    // Adds values at timestamps 0, 1, 2...
+    private void add(ZoomDecimation.Summarizer summarizer, double... values) {
+        for (int i = 0; i < values.length; i++) {
+            summarizer.add(i, values[i], mCollect);
+        }
+    }
+}
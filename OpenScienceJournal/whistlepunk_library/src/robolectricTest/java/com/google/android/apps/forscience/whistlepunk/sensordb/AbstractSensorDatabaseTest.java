@@ -0,0 +1,510 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.whistlepunk.Arbitrary;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Range;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import io.reactivex.Observable;
+import io.reactivex.observers.TestObserver;
+
+/**
+ * Behavior every {@link SensorDatabase} implementation must share.  Subclasses supply the
+ * database under test.
+ */
+public abstract class AbstractSensorDatabaseTest {
+    @Test
+    public void testAddScalarReading() {
+        SensorDatabase db = makeDatabase();
+        long timestamp = Arbitrary.integer();
+        double value = Arbitrary.doubleFloat();
+        db.addScalarReading("tag", 0, timestamp, value);
+        List<ScalarReading> readings = ScalarReading.slurp(db.getScalarReadings("tag",
+                TimeRange.oldest(Range.closed(timestamp - 1, timestamp + 1)), 0, 0));
+        assertEquals(Arrays.asList(new ScalarReading(timestamp, value)), readings);
+    }
+
+    @Test
+    public void testAddScalarReadingBatch() {
+        SensorDatabase db = makeDatabase();
+        ScalarReadingBatch batch = new ScalarReadingBatch(1);
+        batch.add("tag", 0, 1, 1.0);
+        batch.add("other", 0, 2, 2.0);
+        batch.add("tag", 1, 3, 3.0);
+        batch.add("tag", 0, 4, 4.0);
+        db.addScalarReadings(batch);
+        assertEquals(4, batch.size());
+
+        List<ScalarReading> readings = ScalarReading.slurp(db.getScalarReadings("tag",
+                TimeRange.oldest(Range.<Long>all()), 0, 0));
+        assertEquals(Arrays.asList(new ScalarReading(1, 1.0), new ScalarReading(4, 4.0)), readings);
+        assertEquals(1, db.getScalarReadings("tag", TimeRange.oldest(Range.<Long>all()), 1,
+                0).size());
+        assertEquals(1, db.getScalarReadings("other", TimeRange.oldest(Range.<Long>all()), 0,
+                0).size());
+    }
+
+    @Test
+    public void testAddScalarReadingLimits() {
+        SensorDatabase db = makeDatabase();
+        db.addScalarReading("tag", 0, 1, 1.0);
+        db.addScalarReading("tag", 0, 2, 2.0);
+        db.addScalarReading("tag", 0, 3, 3.0);
+        int limit = 2;
+        List<ScalarReading> readings = ScalarReading.slurp(db.getScalarReadings("tag",
+                TimeRange.oldest(Range.closed(0L, 4L)), 0, limit));
+        assertEquals(Arrays.asList(new ScalarReading(1, 1.0), new ScalarReading(2, 2.0)), readings);
+    }
+
+    @Test
+    public void testAddScalarReadingNoLimits() {
+        SensorDatabase db = makeDatabase();
+        db.addScalarReading("tag", 0, 1, 1.0);
+        db.addScalarReading("tag", 0, 2, 2.0);
+        db.addScalarReading("tag", 0, 3, 3.0);
+        List<ScalarReading> readings = ScalarReading.slurp(db.getScalarReadings("tag",
+                TimeRange.oldest(Range.<Long>all()), 0, 0));
+        assertEquals(Arrays.asList(new ScalarReading(1, 1.0), new ScalarReading(2, 2.0),
+                new ScalarReading(3, 3.0)), readings);
+    }
+
+    @Test
+    public void testAddScalarReadingTags() {
+        SensorDatabase db = makeDatabase();
+        db.addScalarReading("tag", 0, 1, 1.0);
+        db.addScalarReading("tag", 0, 2, 2.0);
+        db.addScalarReading("other", 0, 3, 3.0);
+        List<ScalarReading> readings = ScalarReading.slurp(db.getScalarReadings("tag",
+                TimeRange.oldest(Range.closed(0L, 4L)), 0, 0));
+        assertEquals(Arrays.asList(new ScalarReading(1, 1.0), new ScalarReading(2, 2.0)), readings);
+    }
+
+    @Test
+    public void testAddScalarReadingLimitsNewestFirst() {
+        SensorDatabase db = makeDatabase();
+        db.addScalarReading("tag", 0, 1, 1.0);
+        db.addScalarReading("tag", 0, 2, 2.0);
+        db.addScalarReading("tag", 0, 3, 3.0);
+        int limit = 2;
+        List<ScalarReading> readings = ScalarReading.slurp(db.getScalarReadings("tag",
+                TimeRange.newest(Range.closed(0L, 4L)), 0, limit));
+        assertEquals(Arrays.asList(new ScalarReading(3, 3.0), new ScalarReading(2, 2.0)), readings);
+    }
+
+    @Test
+    public void testAddScalarReadingRange() {
+        SensorDatabase db = makeDatabase();
+        db.addScalarReading("tag", 0, 1, 1.0);
+        db.addScalarReading("tag", 0, 2, 2.0);
+        db.addScalarReading("tag", 0, 3, 3.0);
+        db.addScalarReading("tag", 0, 4, 4.0);
+        List<ScalarReading> readings = ScalarReading.slurp(db.getScalarReadings("tag",
+                TimeRange.oldest(Range.closedOpen(2L, 4L)), 0, 0));
+        assertEquals(Arrays.asList(new ScalarReading(2, 2.0), new ScalarReading(3, 3.0)), readings);
+
+        readings = ScalarReading.slurp(db.getScalarReadings("tag",
+                TimeRange.oldest(Range.open(2L, 4L)), 0, 0));
+        assertEquals(Arrays.asList(new ScalarReading(3, 3.0)), readings);
+
+        readings = ScalarReading.slurp(db.getScalarReadings("tag",
+                TimeRange.oldest(Range.openClosed(2L, 4L)), 0, 0));
+        assertEquals(Arrays.asList(new ScalarReading(3, 3.0), new ScalarReading(4, 4.0)), readings);
+    }
+
+    @Test
+    public void testTiers() {
+        SensorDatabase db = makeDatabase();
+        db.addScalarReading("tag", 0, 0, 0.0);
+        db.addScalarReading("tag", 1, 1, 1.0);
+
+        List<ScalarReading> tier0 = ScalarReading.slurp(db.getScalarReadings("tag",
+                TimeRange.oldest(Range.<Long>all()), 0, 0));
+        assertEquals(Arrays.asList(new ScalarReading(0, 0.0)), tier0);
+
+        List<ScalarReading> tier1 = ScalarReading.slurp(db.getScalarReadings("tag",
+                TimeRange.oldest(Range.<Long>all()), 1, 0));
+        assertEquals(Arrays.asList(new ScalarReading(1, 1.0)), tier1);
+    }
+
+    @Test
+    public void testFirstTagAfter() {
+        SensorDatabase db = makeDatabase();
+        db.addScalarReading("tagBefore", 0, 1, 1.0);
+        db.addScalarReading("tagAfter", 0, 3, 2.0);
+        assertEquals("tagAfter", db.getFirstDatabaseTagAfter(2));
+    }
+
+    @Test
+    public void testFirstTagAfterWithMultipleAfters() {
+        SensorDatabase db = makeDatabase();
+        db.addScalarReading("tagBefore", 0, 1, 1.0);
+        db.addScalarReading("tagAfter", 0, 3, 2.0);
+        db.addScalarReading("tagFurtherAfter", 0, 5, 3.0);
+        assertEquals("tagAfter", db.getFirstDatabaseTagAfter(2));
+    }
+
+    @Test
+    public void testDeleteReadings() {
+        SensorDatabase db = makeDatabase();
+        db.addScalarReading("tag", 0, 0, 0.0);
+        db.addScalarReading("tag", 0, 1, 1.0);
+        db.addScalarReading("tag", 0, 101, 2.0);
+        db.addScalarReading("tag", 0, 102, 2.0);
+        db.addScalarReading("tag", 0, 103, 2.0);
+        db.addScalarReading("tag2", 0, 0, 1.0);
+
+        assertEquals(2, db.getScalarReadings("tag",
+                TimeRange.oldest(Range.closed(0L, 1L)), 0, 0).size());
+
+        assertEquals(3, db.getScalarReadings("tag",
+                TimeRange.oldest(Range.closed(101L, 103L)), 0, 0).size());
+
+        assertEquals(1, db.getScalarReadings("tag2",
+                TimeRange.oldest(Range.closed(0L, 1L)), 0, 0).size());
+
+        // Delete first set of readings.
+        db.deleteScalarReadings("tag", TimeRange.newest(Range.closed(0L, 1L)));
+
+        assertEquals(0, db.getScalarReadings("tag",
+                TimeRange.oldest(Range.closed(0L, 1L)), 0, 0).size());
+
+        // Make sure other records for that tag are unaffected.
+        assertEquals(3, db.getScalarReadings("tag",
+                TimeRange.oldest(Range.closed(101L, 103L)), 0, 0).size());
+
+        // Make sure tag 2 is unaffected.
+        assertEquals(1, db.getScalarReadings("tag2",
+                TimeRange.oldest(Range.closed(0L, 1L)), 0, 0).size());
+
+    }
+
+    @Test
+    public void testGetSensorTags() {
+        SensorDatabase db = makeDatabase();
+        assertTrue(db.getSensorTags().isEmpty());
+        db.addScalarReading("tag", 0, 1, 1.0);
+        db.addScalarReading("tag", 1, 1, 1.0);
+        db.addScalarReading("other", 0, 2, 2.0);
+        List<String> tags = Lists.newArrayList(db.getSensorTags());
+        Collections.sort(tags);
+        assertEquals(Arrays.asList("other", "tag"), tags);
+    }
+
+    @Test
+    public void testObservable_oneSensor() {
+        SensorDatabase db = makeDatabase();
+        db.addScalarReading("tag", 0, 0, 0.0);
+        db.addScalarReading("tag", 0, 1, 1.5);
+        db.addScalarReading("tag", 0, 101, 2.0);
+        db.addScalarReading("tag", 0, 102, 2.0);
+        db.addScalarReading("tag", 0, 103, 2.0);
+        db.addScalarReading("tag2", 0, 0, 1.0);
+
+        TestObserver<ScalarReading> testObserver = new TestObserver<>();
+        Observable<ScalarReading> obs = db.createScalarObservable(new String[] {"tag"},
+                TimeRange.oldest(Range.closed(0L, 1L)), 0);
+        obs.subscribe(testObserver);
+        testObserver.assertNoErrors();
+        testObserver.assertValues(new ScalarReading(0, 0.0, "tag"),
+                new ScalarReading(1, 1.5, "tag"));
+    }
+
+    @Test
+    public void testObservable_multipleSensors() {
+        SensorDatabase db = makeDatabase();
+        db.addScalarReading("tag", 0, 0, 0.0);
+        db.addScalarReading("tag", 0, 3, 1.0);
+        db.addScalarReading("tag", 0, 101, 2.0);
+        db.addScalarReading("tag", 0, 102, 2.0);
+        db.addScalarReading("tag", 0, 103, 2.0);
+        db.addScalarReading("tag2", 0, 1, 3.0);
+        db.addScalarReading("tag2", 0, 2, 4.0);
+
+        TestObserver<ScalarReading> testObserver = new TestObserver<>();
+        Observable<ScalarReading> obs = db.createScalarObservable(new String[] {"tag", "tag2"},
+                TimeRange.oldest(Range.closed(0L, 3L)), 0);
+        obs.subscribe(testObserver);
+        testObserver.assertNoErrors();
+        testObserver.assertValues(new ScalarReading(0, 0.0, "tag"),
+                new ScalarReading(1, 3.0, "tag2"),
+                new ScalarReading(2, 4.0, "tag2"),
+                new ScalarReading(3, 1.0, "tag"));
+    }
+
+    @Test
+    public void testOutOfOrderReadingsAreReturnedSorted() {
+        // Older versions of ZoomRecorder wrote each min/max pair in value order, not timestamp
+        // order, and those readings are still stored.
+        SensorDatabase db = makeDatabase();
+        db.addScalarReading("tag", 1, 2, 2.0);
+        db.addScalarReading("tag", 1, 1, 1.0);
+        db.addScalarReading("tag", 1, 3, 3.0);
+        db.addScalarReading("tag", 1, 5, 5.0);
+        db.addScalarReading("tag", 1, 4, 4.0);
+
+        List<ScalarReading> readings = ScalarReading.slurp(db.getScalarReadings("tag",
+                TimeRange.oldest(Range.<Long>all()), 1, 0));
+        assertEquals(Arrays.asList(new ScalarReading(1, 1.0), new ScalarReading(2, 2.0),
+                new ScalarReading(3, 3.0), new ScalarReading(4, 4.0), new ScalarReading(5, 5.0)),
+                readings);
+
+        readings = ScalarReading.slurp(db.getScalarReadings("tag",
+                TimeRange.newest(Range.closed(2L, 5L)), 1, 2));
+        assertEquals(Arrays.asList(new ScalarReading(5, 5.0), new ScalarReading(4, 4.0)),
+                readings);
+    }
+
+    @Test
+    public void testPageReader_readingsAtOneTimestampSpanPages() {
+        SensorDatabase db = makeDatabase();
+        db.addScalarReading("tag", 0, 1, 1.0);
+        // More readings at one timestamp than fit on a page.
+        for (int i = 0; i < 5; i++) {
+            db.addScalarReading("tag", 0, 2, 2.0);
+        }
+        db.addScalarReading("tag", 0, 3, 3.0);
+        db.addScalarReading("other", 0, 2, 4.0);
+
+        List<ScalarReading> readings = readAllPages(db, new String[] {"tag"},
+                TimeRange.oldest(Range.<Long>all()), 3);
+        List<ScalarReading> expected = Lists.newArrayList(new ScalarReading(1, 1.0, "tag"));
+        for (int i = 0; i < 5; i++) {
+            expected.add(new ScalarReading(2, 2.0, "tag"));
+        }
+        expected.add(new ScalarReading(3, 3.0, "tag"));
+        assertEquals(expected, readings);
+    }
+
+    @Test
+    public void testPageReader_mergesSensorsInOrder() {
+        SensorDatabase db = makeDatabase();
+        db.addScalarReading("a", 0, 1, 1.0);
+        db.addScalarReading("b", 0, 2, 2.0);
+        db.addScalarReading("a", 0, 3, 3.0);
+        db.addScalarReading("a", 0, 4, 4.0);
+        db.addScalarReading("b", 0, 5, 5.0);
+        db.addScalarReading("c", 0, 6, 6.0);
+
+        assertEquals(Arrays.asList(new ScalarReading(1, 1.0, "a"),
+                new ScalarReading(2, 2.0, "b"), new ScalarReading(3, 3.0, "a"),
+                new ScalarReading(4, 4.0, "a"), new ScalarReading(5, 5.0, "b")),
+                readAllPages(db, new String[] {"a", "b"}, TimeRange.oldest(Range.<Long>all()),
+                        2));
+        assertEquals(Arrays.asList(new ScalarReading(5, 5.0, "b"),
+                new ScalarReading(4, 4.0, "a"), new ScalarReading(3, 3.0, "a")),
+                readAllPages(db, new String[] {"a", "b"},
+                        TimeRange.newest(Range.closed(3L, 10L)), 2));
+    }
+
+    @Test
+    public void testPageReader_coincidentTimestampsAcrossSensors() {
+        SensorDatabase db = makeDatabase();
+        String[] tags = new String[12];
+        for (int sensor = 0; sensor < tags.length; sensor++) {
+            tags[sensor] = "sensor" + sensor;
+        }
+        // Every sensor has a reading at every timestamp, stored newest sensor first.
+        for (int timestamp = 0; timestamp < 10; timestamp++) {
+            for (int sensor = tags.length - 1; sensor >= 0; sensor--) {
+                db.addScalarReading(tags[sensor], 0, timestamp, timestamp * 100 + sensor);
+            }
+        }
+        String[] requested = Arrays.copyOf(tags, tags.length + 1);
+        requested[tags.length] = "neverRecorded";
+
+        // Pages end partway through each timestamp's readings.
+        List<ScalarReading> expected = Lists.newArrayList();
+        for (int timestamp = 0; timestamp < 10; timestamp++) {
+            for (int sensor = 0; sensor < tags.length; sensor++) {
+                expected.add(new ScalarReading(timestamp, timestamp * 100 + sensor,
+                        tags[sensor]));
+            }
+        }
+        assertEquals(expected, readAllPages(db, requested, TimeRange.oldest(Range.<Long>all()),
+                5));
+
+        expected.clear();
+        for (int timestamp = 7; timestamp >= 3; timestamp--) {
+            for (int sensor = 0; sensor < tags.length; sensor++) {
+                expected.add(new ScalarReading(timestamp, timestamp * 100 + sensor,
+                        tags[sensor]));
+            }
+        }
+        assertEquals(expected, readAllPages(db, requested,
+                TimeRange.newest(Range.closed(3L, 7L)), 7));
+    }
+
+    @Test
+    public void testPageReader_lastPageIsNotFull() {
+        SensorDatabase db = makeDatabase();
+        for (int i = 0; i < 5; i++) {
+            db.addScalarReading("tag", 0, i, i);
+        }
+        ScalarPageReader reader = db.openScalarPageReader(new String[] {"tag"},
+                TimeRange.oldest(Range.<Long>all()), 0);
+        ScalarReadingPage page = new ScalarReadingPage(3);
+        try {
+            assertTrue(reader.readNextPage(page));
+            assertTrue(page.isFull());
+            assertTrue(reader.readNextPage(page));
+            assertEquals(2, page.size());
+            assertEquals(3, page.getFirstTimestampMillis());
+            assertFalse(reader.readNextPage(page));
+            assertTrue(page.isEmpty());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testScalarStats_matchesEveryReading() {
+        SensorDatabase db = makeDatabase();
+        Random random = new Random(42);
+        List<ScalarReading> readings = addReadingsForStats(db, random);
+
+        for (int i = 0; i < 100; i++) {
+            TimeRange range = randomStatsRange(random);
+            assertSameStats(range.getTimes().toString(), statsOf(readings, range),
+                    db.getScalarStats("tag", range));
+        }
+        assertSameStats("all", statsOf(readings, TimeRange.oldest(Range.<Long>all())),
+                db.getScalarStats("tag", TimeRange.newest(Range.<Long>all())));
+        assertTrue(db.getScalarStats("missing", TimeRange.oldest(Range.<Long>all())).isEmpty());
+    }
+
+    @Test
+    public void testScalarStats_afterDeletes() {
+        SensorDatabase db = makeDatabase();
+        Random random = new Random(7);
+        List<ScalarReading> readings = addReadingsForStats(db, random);
+
+        for (int i = 0; i < 10; i++) {
+            TimeRange deleted = randomStatsRange(random);
+            db.deleteScalarReadings("tag", deleted);
+            for (int j = readings.size() - 1; j >= 0; j--) {
+                if (deleted.getTimes().contains(readings.get(j).getCollectedTimeMillis())) {
+                    readings.remove(j);
+                }
+            }
+            for (int j = 0; j < 10; j++) {
+                TimeRange range = randomStatsRange(random);
+                String message = "after deleting " + deleted.getTimes() + ": " + range.getTimes();
+                assertSameStats(message, statsOf(readings, range),
+                        db.getScalarStats("tag", range));
+            }
+        }
+    }
+
+    // Spreads readings across every summary level; whole-number values keep sums exact however
+    // they're added up.
+    private static List<ScalarReading> addReadingsForStats(SensorDatabase db, Random random) {
+        List<ScalarReading> readings = new ArrayList<>();
+        ScalarReadingBatch batch = new ScalarReadingBatch(3000);
+        for (int i = 0; i < 3000; i++) {
+            // Half of them close together, so some buckets hold many readings.
+            long timestamp = i % 2 == 0 ? random.nextInt(100000000) : 50000000 + i;
+            double value = random.nextInt(201) - 100;
+            batch.add("tag", 0, timestamp, value);
+            readings.add(new ScalarReading(timestamp, value));
+        }
+        db.addScalarReadings(batch);
+        db.addScalarReading("tag", 1, 50000000, 1000);
+        db.addScalarReading("other", 0, 50000000, -1000);
+        return readings;
+    }
+
+    private static TimeRange randomStatsRange(Random random) {
+        long a = random.nextInt(110000000) - 5000000;
+        long b = random.nextInt(110000000) - 5000000;
+        Range<Long> times;
+        switch (random.nextInt(5)) {
+            case 0:
+                times = Range.atLeast(a);
+                break;
+            case 1:
+                times = Range.lessThan(a);
+                break;
+            case 2:
+                // Narrow, to land inside a single bucket now and then.
+                times = Range.closed(a, a + random.nextInt(5000));
+                break;
+            default:
+                times = Range.closedOpen(Math.min(a, b), Math.max(a, b));
+        }
+        return random.nextBoolean() ? TimeRange.oldest(times) : TimeRange.newest(times);
+    }
+
+    private static ScalarStats statsOf(List<ScalarReading> readings, TimeRange range) {
+        ScalarStats stats = new ScalarStats();
+        for (ScalarReading reading : readings) {
+            if (range.getTimes().contains(reading.getCollectedTimeMillis())) {
+                stats.add(reading.getCollectedTimeMillis(), reading.getValue());
+            }
+        }
+        return stats;
+    }
+
+    private static void assertSameStats(String message, ScalarStats expected,
+            ScalarStats actual) {
+        String both = message + ": expected " + expected + " but was " + actual;
+        assertEquals(both, expected.getCount(), actual.getCount());
+        if (expected.isEmpty()) {
+            return;
+        }
+        assertEquals(both, expected.getSum(), actual.getSum(), 0);
+        assertEquals(both, expected.getSumOfSquares(), actual.getSumOfSquares(), 0);
+        assertEquals(both, expected.getMin(), actual.getMin(), 0);
+        assertEquals(both, expected.getMax(), actual.getMax(), 0);
+        assertEquals(both, expected.getFirstTimestampMillis(), actual.getFirstTimestampMillis());
+        assertEquals(both, expected.getFirstValue(), actual.getFirstValue(), 0);
+        assertEquals(both, expected.getLastTimestampMillis(), actual.getLastTimestampMillis());
+        assertEquals(both, expected.getLastValue(), actual.getLastValue(), 0);
+    }
+
+    private static List<ScalarReading> readAllPages(SensorDatabase db, String[] sensorTags,
+            TimeRange range, int pageSize) {
+        List<ScalarReading> readings = Lists.newArrayList();
+        ScalarPageReader reader = db.openScalarPageReader(sensorTags, range, 0);
+        ScalarReadingPage page = new ScalarReadingPage(pageSize);
+        try {
+            while (reader.readNextPage(page)) {
+                for (int i = 0; i < page.size(); i++) {
+                    readings.add(new ScalarReading(page.getTimestampMillis(i), page.getValue(i),
+                            page.getSensorTag(i)));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return readings;
+    }
+
+    protected abstract SensorDatabase makeDatabase();
+}
@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+import com.google.android.apps.forscience.whistlepunk.MockScheduler;
+import com.google.android.apps.forscience.whistlepunk.api.scalarinput.ExplicitExecutor;
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class BatchingScalarWriterTest {
+    private final InMemorySensorDatabase mDb = new InMemorySensorDatabase();
+    private final ExplicitExecutor mDataThread = new ExplicitExecutor();
+    private final IncrementableMonotonicClock mClock = new IncrementableMonotonicClock();
+    private final MockScheduler mScheduler = new MockScheduler();
+
+    @Test
+    public void writesWhenBatchIsFull() {
+        BatchingScalarWriter writer = makeWriter(3, 1000, null);
+        writer.addScalarReading("tag", 0, 1, 1.0);
+        writer.addScalarReading("tag", 0, 2, 2.0);
+        mDataThread.drain();
+        assertEquals(0, mDb.getReadings(0).size());
+
+        writer.addScalarReading("tag", 0, 3, 3.0);
+        mDataThread.drain();
+        assertEquals(Lists.newArrayList(new InMemorySensorDatabase.Reading("tag", 1, 1.0),
+                new InMemorySensorDatabase.Reading("tag", 2, 2.0),
+                new InMemorySensorDatabase.Reading("tag", 3, 3.0)), mDb.getReadings(0));
+    }
+
+    @Test
+    public void writesWhenBatchIsOld() {
+        BatchingScalarWriter writer = makeWriter(100, 2, null);
+        writer.addScalarReading("tag", 0, 1, 1.0);
+        mClock.increment();
+        writer.addScalarReading("tag", 0, 2, 2.0);
+        mDataThread.drain();
+        assertEquals(0, mDb.getReadings(0).size());
+
+        mClock.increment();
+        writer.addScalarReading("tag", 1, 3, 3.0);
+        mDataThread.drain();
+        assertEquals(2, mDb.getReadings(0).size());
+        assertEquals(1, mDb.getReadings(1).size());
+    }
+
+    @Test
+    public void writesOldBatchWhenNoMoreReadingsArrive() {
+        BatchingScalarWriter writer = new BatchingScalarWriter(mDb, mDataThread,
+                mScheduler.getClock(), mScheduler, 100, 1000, null);
+        writer.addScalarReading("tag", 0, 1, 1.0);
+        mScheduler.incrementTime(999);
+        mDataThread.drain();
+        assertEquals(0, mDb.getReadings(0).size());
+
+        // The sensor has gone quiet, but the batch is written once it is old enough.
+        mScheduler.incrementTime(1);
+        mDataThread.drain();
+        assertEquals(1, mDb.getReadings(0).size());
+    }
+
+    @Test
+    public void fullBatchCancelsAgeTimer() {
+        BatchingScalarWriter writer = new BatchingScalarWriter(mDb, mDataThread,
+                mScheduler.getClock(), mScheduler, 3, 1000, null);
+        for (int i = 0; i < 3; i++) {
+            writer.addScalarReading("tag", 0, i, i);
+        }
+        mDataThread.drain();
+        assertEquals(3, mDb.getReadings(0).size());
+
+        // The next batch isn't written early by the full batch's timer, only by its own.
+        mScheduler.incrementTime(500);
+        writer.addScalarReading("tag", 0, 3, 3.0);
+        mScheduler.incrementTime(500);
+        mDataThread.drain();
+        assertEquals(3, mDb.getReadings(0).size());
+
+        mScheduler.incrementTime(500);
+        mDataThread.drain();
+        assertEquals(4, mDb.getReadings(0).size());
+    }
+
+    @Test
+    public void readingAddedDuringWriteStartsAgeTimer() {
+        final BatchingScalarWriter[] writer = new BatchingScalarWriter[1];
+        SensorDatabase db = new InMemorySensorDatabase() {
+            @Override
+            public void addScalarReadings(ScalarReadingBatch batch) {
+                super.addScalarReadings(batch);
+                if (getReadings(0).size() == 1) {
+                    // Another sensor thread adds a reading while the first batch is written.
+                    writer[0].addScalarReading("tag", 0, 2, 2.0);
+                }
+            }
+        };
+        writer[0] = new BatchingScalarWriter(db, mDataThread, mScheduler.getClock(), mScheduler,
+                100, 1000, null);
+        writer[0].addScalarReading("tag", 0, 1, 1.0);
+        writer[0].writePendingReadings();
+        assertEquals(1, writer[0].getQueueDepth());
+
+        mScheduler.incrementTime(1000);
+        mDataThread.drain();
+        assertEquals(0, writer[0].getQueueDepth());
+
+        // And once that batch is written, the next reading starts a timer of its own.
+        writer[0].addScalarReading("tag", 0, 3, 3.0);
+        mScheduler.incrementTime(1000);
+        mDataThread.drain();
+        assertEquals(0, writer[0].getQueueDepth());
+    }
+
+    @Test
+    public void flushWritesPartialBatch() {
+        BatchingScalarWriter writer = makeWriter(100, 1000, null);
+        writer.addScalarReading("tag", 0, 1, 1.0);
+        writer.flush();
+        assertEquals(0, mDb.getReadings(0).size());
+        mDataThread.drain();
+        assertEquals(1, mDb.getReadings(0).size());
+
+        // Nothing pending, so nothing to schedule
+        writer.flush();
+        assertEquals(false, mDataThread.drain());
+    }
+
+    @Test
+    public void writePendingReadingsIsSynchronous() {
+        BatchingScalarWriter writer = makeWriter(100, 1000, null);
+        writer.addScalarReading("tag", 0, 1, 1.0);
+        writer.addScalarReading("tag", 0, 2, 2.0);
+        writer.writePendingReadings();
+        assertEquals(2, mDb.getReadings(0).size());
+    }
+
+    @Test
+    public void batchSizeOneWritesEveryReading() {
+        BatchingScalarWriter writer = makeWriter(1, 0, null);
+        for (int i = 0; i < 5; i++) {
+            writer.addScalarReading("tag", 0, i, i);
+            mDataThread.drain();
+            assertEquals(i + 1, mDb.getReadings(0).size());
+        }
+    }
+
+    @Test
+    public void failureReportedOncePerSensor() {
+        final RuntimeException failure = new RuntimeException("disk full");
+        SensorDatabase failingDb = new InMemorySensorDatabase() {
+            @Override
+            public void addScalarReadings(ScalarReadingBatch batch) {
+                throw failure;
+            }
+        };
+        final List<String> failedTags = new ArrayList<>();
+        final List<Exception> failures = new ArrayList<>();
+        BatchingScalarWriter writer = new BatchingScalarWriter(failingDb, mDataThread, mClock,
+                mScheduler, 3, 1000, (sensorTag, e) -> {
+                    failedTags.add(sensorTag);
+                    failures.add(e);
+                });
+        writer.addScalarReading("a", 0, 1, 1.0);
+        writer.addScalarReading("b", 0, 1, 1.0);
+        writer.addScalarReading("a", 0, 2, 2.0);
+        mDataThread.drain();
+
+        assertEquals(2, failedTags.size());
+        assertEquals(Lists.newArrayList("a", "b"), Lists.newArrayList(new TreeSet<>(failedTags)));
+        assertSame(failure, failures.get(0));
+
+        // The failed batch is dropped; later batches are still attempted.
+        writer.addScalarReading("a", 0, 3, 3.0);
+        writer.writePendingReadings();
+        assertEquals(3, failedTags.size());
+    }
+
+    private BatchingScalarWriter makeWriter(int maxBatchSize, long maxBatchAgeMillis,
+            BatchingScalarWriter.WriteFailureListener listener) {
+        return new BatchingScalarWriter(mDb, mDataThread, mClock, mScheduler, maxBatchSize,
+                maxBatchAgeMillis, listener);
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Range;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import io.reactivex.observers.TestObserver;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class ChunkedSensorDatabaseTest extends AbstractSensorDatabaseTest {
+    private static final String TEST_DATABASE_NAME = "chunk_test.db";
+
+    // Small enough that most tests cross several chunk boundaries.
+    private static final int POINTS_PER_CHUNK = 4;
+
+    @Override
+    protected SensorDatabase makeDatabase() {
+        return new ChunkedSensorDatabase(getContext(), TEST_DATABASE_NAME, POINTS_PER_CHUNK);
+    }
+
+    @Test
+    public void testReadAcrossChunks() {
+        SensorDatabase db = makeDatabase();
+        List<ScalarReading> expected = Lists.newArrayList();
+        for (int i = 0; i < 25; i++) {
+            db.addScalarReading("tag", 0, i * 10, i / 3.0);
+            expected.add(new ScalarReading(i * 10, i / 3.0));
+        }
+
+        assertEquals(expected, ScalarReading.slurp(db.getScalarReadings("tag",
+                TimeRange.oldest(Range.<Long>all()), 0, 0)));
+        assertEquals(expected.subList(3, 9), ScalarReading.slurp(db.getScalarReadings("tag",
+                TimeRange.oldest(Range.closed(25L, 85L)), 0, 0)));
+        assertEquals(Arrays.asList(expected.get(24), expected.get(23), expected.get(22)),
+                ScalarReading.slurp(db.getScalarReadings("tag",
+                        TimeRange.newest(Range.<Long>all()), 0, 3)));
+    }
+
+    @Test
+    public void testResumeOpenChunkAfterReopen() {
+        SensorDatabase db = makeDatabase();
+        db.addScalarReading("tag", 0, 1, 1.0);
+        db.addScalarReading("tag", 0, 2, 2.0);
+
+        // A second instance sees the readings not yet in a chunk, and keeps appending to them.
+        SensorDatabase reopened = makeDatabase();
+        reopened.addScalarReading("tag", 0, 3, 3.0);
+        reopened.addScalarReading("tag", 0, 4, 4.0);
+        reopened.addScalarReading("tag", 0, 5, 5.0);
+
+        assertEquals(Arrays.asList(new ScalarReading(1, 1.0), new ScalarReading(2, 2.0),
+                new ScalarReading(3, 3.0), new ScalarReading(4, 4.0), new ScalarReading(5, 5.0)),
+                ScalarReading.slurp(reopened.getScalarReadings("tag",
+                        TimeRange.oldest(Range.<Long>all()), 0, 0)));
+    }
+
+    @Test
+    public void testChunkWrittenOnlyWhenFull() {
+        SensorDatabase db = makeDatabase();
+        for (int i = 0; i < POINTS_PER_CHUNK - 1; i++) {
+            db.addScalarReading("tag", 0, i, i);
+        }
+        assertEquals(0, countChunks());
+
+        // Readings not yet in a chunk are still in the file.
+        assertEquals(POINTS_PER_CHUNK - 1, makeDatabase().getScalarReadings("tag",
+                TimeRange.oldest(Range.<Long>all()), 0, 0).size());
+
+        db.addScalarReading("tag", 0, POINTS_PER_CHUNK, POINTS_PER_CHUNK);
+        assertEquals(1, countChunks());
+        assertEquals(POINTS_PER_CHUNK, db.getScalarReadings("tag",
+                TimeRange.oldest(Range.<Long>all()), 0, 0).size());
+    }
+
+    @Test
+    public void testOpenReadingsAreOneRowPerSeries() {
+        SensorDatabase db = makeDatabase();
+        ScalarReadingBatch batch = new ScalarReadingBatch(1);
+        for (int i = 0; i < POINTS_PER_CHUNK - 1; i++) {
+            batch.add("tag", 0, i, i);
+            batch.add("tag", 1, i, i);
+        }
+        db.addScalarReadings(batch);
+        db.addScalarReading("other", 0, 0, 0);
+        assertEquals(3, countRows("open_chunks"));
+
+        // Filling a series' chunk seals it, leaving that series nothing open.
+        db.addScalarReading("tag", 0, POINTS_PER_CHUNK, POINTS_PER_CHUNK);
+        assertEquals(1, countChunks());
+        assertEquals(2, countRows("open_chunks"));
+        assertEquals(POINTS_PER_CHUNK, db.getScalarReadings("tag",
+                TimeRange.oldest(Range.<Long>all()), 0, 0).size());
+        assertEquals(POINTS_PER_CHUNK, db.getScalarStats("tag",
+                TimeRange.oldest(Range.<Long>all())).getCount());
+    }
+
+    @Test
+    public void testUpgradeKeepsOpenReadings() {
+        // A version 1 file, which kept each open reading in a row of its own.
+        SQLiteDatabase v1 = SQLiteDatabase.openOrCreateDatabase(
+                getContext().getDatabasePath(TEST_DATABASE_NAME), null);
+        try {
+            v1.execSQL("CREATE TABLE scalar_chunks (tag TEXT, resolutionTier INTEGER, "
+                    + "firstTimestampMillis INTEGER, lastTimestampMillis INTEGER, "
+                    + "pointCount INTEGER, data BLOB, sum REAL, sumOfSquares REAL, "
+                    + "minValue REAL, maxValue REAL, firstValue REAL, lastValue REAL);");
+            v1.execSQL("CREATE TABLE open_readings (tag TEXT, resolutionTier INTEGER, "
+                    + "timestampMillis INTEGER, value REAL);");
+            v1.execSQL("INSERT INTO open_readings VALUES ('tag', 0, 2, 2.0), ('tag', 0, 1, 1.0), "
+                    + "('tag', 1, 1, 1.5), ('other', 0, 3, 3.0);");
+            v1.setVersion(1);
+        } finally {
+            v1.close();
+        }
+
+        SensorDatabase db = makeDatabase();
+        db.addScalarReading("tag", 0, 3, 3.0);
+        assertEquals(Arrays.asList(new ScalarReading(1, 1.0), new ScalarReading(2, 2.0),
+                new ScalarReading(3, 3.0)), ScalarReading.slurp(db.getScalarReadings("tag",
+                TimeRange.oldest(Range.<Long>all()), 0, 0)));
+        assertEquals(Arrays.asList(new ScalarReading(1, 1.5)), ScalarReading.slurp(
+                db.getScalarReadings("tag", TimeRange.oldest(Range.<Long>all()), 1, 0)));
+        assertEquals(3, countRows("open_chunks"));
+
+        // Reaching a full chunk seals the readings carried over with the new ones.
+        db.addScalarReading("tag", 0, 4, 4.0);
+        assertEquals(1, countChunks());
+    }
+
+    @Test
+    public void testOverlappingChunksAreMerged() {
+        SensorDatabase db = makeDatabase();
+        // Min/max pairs as older versions of ZoomRecorder wrote them: every second pair is
+        // reversed, so adjacent chunks overlap in time.
+        double[] values = new double[10];
+        for (int pair = 0; pair < 5; pair++) {
+            long early = pair * 10;
+            long late = early + 5;
+            values[pair * 2] = pair;
+            values[pair * 2 + 1] = -pair;
+            if (pair % 2 == 0) {
+                db.addScalarReading("tag", 1, late, -pair);
+                db.addScalarReading("tag", 1, early, pair);
+            } else {
+                db.addScalarReading("tag", 1, early, pair);
+                db.addScalarReading("tag", 1, late, -pair);
+            }
+        }
+
+        List<ScalarReading> readings = ScalarReading.slurp(db.getScalarReadings("tag",
+                TimeRange.oldest(Range.<Long>all()), 1, 0));
+        assertEquals(10, readings.size());
+        for (int i = 0; i < readings.size(); i++) {
+            assertEquals((i / 2) * 10 + (i % 2) * 5, readings.get(i).getCollectedTimeMillis());
+            assertEquals(values[i], readings.get(i).getValue(), 0.0);
+        }
+    }
+
+    @Test
+    public void testDeleteAcrossChunks() {
+        SensorDatabase db = makeDatabase();
+        for (int i = 0; i < 12; i++) {
+            db.addScalarReading("tag", 0, i, i);
+        }
+        db.deleteScalarReadings("tag", TimeRange.oldest(Range.closed(2L, 9L)));
+
+        assertEquals(Arrays.asList(new ScalarReading(0, 0), new ScalarReading(1, 1),
+                new ScalarReading(10, 10), new ScalarReading(11, 11)),
+                ScalarReading.slurp(db.getScalarReadings("tag",
+                        TimeRange.oldest(Range.<Long>all()), 0, 0)));
+
+        // Appending after a delete starts from the remaining data.
+        db.addScalarReading("tag", 0, 12, 12);
+        assertEquals(5, db.getScalarReadings("tag", TimeRange.oldest(Range.<Long>all()), 0,
+                0).size());
+    }
+
+    @Test
+    public void testObservableAcrossChunks() {
+        SensorDatabase db = makeDatabase();
+        List<ScalarReading> expected = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            String tag = i % 3 == 0 ? "tag2" : "tag";
+            db.addScalarReading(tag, 0, i, i);
+            expected.add(new ScalarReading(i, i, tag));
+        }
+
+        TestObserver<ScalarReading> testObserver = new TestObserver<>();
+        db.createScalarObservable(new String[] {"tag", "tag2"},
+                TimeRange.oldest(Range.<Long>all()), 0).subscribe(testObserver);
+        testObserver.assertNoErrors();
+        testObserver.assertValueSequence(expected);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        File dbtest = getContext().getDatabasePath(TEST_DATABASE_NAME);
+        if (dbtest.exists()) {
+            dbtest.delete();
+            fail("Found DB at " + dbtest + " that should have been cleaned up last time.");
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        getContext().getDatabasePath(TEST_DATABASE_NAME).delete();
+    }
+
+    private long countChunks() {
+        return countRows("scalar_chunks");
+    }
+
+    private long countRows(String table) {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(
+                getContext().getDatabasePath(TEST_DATABASE_NAME).getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            return DatabaseUtils.queryNumEntries(db, table);
+        } finally {
+            db.close();
+        }
+    }
+
+    private Context getContext() {
+        return RuntimeEnvironment.application.getApplicationContext();
+    }
+}
@@ -17,7 +17,11 @@
 package com.google.android.apps.forscience.whistlepunk.sensordb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
@@ -29,19 +33,25 @@ import com.google.android.apps.forscience.whistlepunk.BuildConfig;
 import com.google.android.apps.forscience.whistlepunk.DataController;
 import com.google.android.apps.forscience.whistlepunk.DataControllerImpl;
 import com.google.android.apps.forscience.whistlepunk.LoggingConsumer;
+import com.google.android.apps.forscience.whistlepunk.MockScheduler;
 import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
 import com.google.android.apps.forscience.whistlepunk.RxDataController;
 import com.google.android.apps.forscience.whistlepunk.SensorProvider;
 import com.google.android.apps.forscience.whistlepunk.TestConsumers;
+import com.google.android.apps.forscience.whistlepunk.api.scalarinput.ExplicitExecutor;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
 import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableSensor;
 import com.google.android.apps.forscience.whistlepunk.devicemanager.NativeBleDiscoverer;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.metadata.BleSensorSpec;
 import com.google.android.apps.forscience.whistlepunk.metadata.ExperimentSensors;
 import com.google.android.apps.forscience.whistlepunk.metadata.ExternalSensorSpec;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Range;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -49,9 +59,15 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import io.reactivex.subscribers.TestSubscriber;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(constants = BuildConfig.class)
@@ -109,6 +125,220 @@ public class DataControllerTest {
         assertEquals(spec.toString(), cSpec.getValue().toString());
     }
 
+    @Test
+    public void testGetScalarReadingPage_refillsGivenPage() {
+        InMemorySensorDatabase db = new InMemorySensorDatabase();
+        DataController dc = db.makeSimpleController(new MemoryMetadataManager());
+        for (int i = 0; i < 5; i++) {
+            db.addScalarReading("tag", 0, i, i);
+        }
+
+        ScalarReadingPage page = new ScalarReadingPage(3);
+        StoringConsumer<ScalarReadingPage> cPage = new StoringConsumer<>();
+        dc.getScalarReadingPage("tag", 0, TimeRange.oldest(Range.closed(2L, 10L)), page, cPage);
+        assertSame(page, cPage.getValue());
+        assertEquals(3, page.size());
+        assertEquals(2, page.getFirstTimestampMillis());
+        assertEquals(4, page.getLastTimestampMillis());
+    }
+
+    @Test
+    public void testScalarPageFlowable_readsOnlyRequestedPages() {
+        InMemorySensorDatabase db = new InMemorySensorDatabase();
+        DataController dc = db.makeSimpleController(new MemoryMetadataManager());
+        for (int i = 0; i < 10; i++) {
+            db.addScalarReading("tag", 0, i, i);
+        }
+
+        TestSubscriber<ScalarReadingPage> subscriber = dc.createScalarPageFlowable(
+                new String[] {"tag"}, TimeRange.oldest(Range.<Long>all()), 0, 4).test(1);
+        subscriber.assertValueCount(1).assertNotComplete();
+
+        subscriber.request(5);
+        subscriber.assertValueCount(3).assertComplete().assertNoErrors();
+        assertEquals(4, subscriber.values().get(1).getFirstTimestampMillis());
+        assertEquals(2, subscriber.values().get(2).size());
+        // Pages that aren't released aren't reused.
+        assertNotSame(subscriber.values().get(0), subscriber.values().get(1));
+    }
+
+    @Test
+    public void testScalarPageFlowable_refillsReleasedPages() {
+        InMemorySensorDatabase db = new InMemorySensorDatabase();
+        DataController dc = db.makeSimpleController(new MemoryMetadataManager());
+        for (int i = 0; i < 10; i++) {
+            db.addScalarReading("tag", 0, i, i);
+        }
+
+        TestSubscriber<ScalarReadingPage> subscriber = dc.createScalarPageFlowable(
+                new String[] {"tag"}, TimeRange.oldest(Range.<Long>all()), 0, 4).test(1);
+        ScalarReadingPage first = subscriber.values().get(0);
+        assertEquals(0, first.getFirstTimestampMillis());
+        first.release();
+
+        subscriber.request(1);
+        assertSame(first, subscriber.values().get(1));
+        assertEquals(4, first.getFirstTimestampMillis());
+
+        subscriber.request(1);
+        subscriber.assertValueCount(3).assertComplete().assertNoErrors();
+        assertNotSame(first, subscriber.values().get(2));
+        assertEquals(8, subscriber.values().get(2).getFirstTimestampMillis());
+    }
+
+    @Test
+    public void testGetScalarReadings_readThreadSeesEarlierWritesOnly() {
+        InMemorySensorDatabase db = new InMemorySensorDatabase();
+        ExplicitExecutor sensorDataThread = new ExplicitExecutor();
+        ExplicitExecutor sensorReadThread = new ExplicitExecutor();
+        Map<String, SensorProvider> providers = new HashMap<>();
+        DataControllerImpl dc = new DataControllerImpl.Builder(db, MoreExecutors.directExecutor(),
+                MoreExecutors.directExecutor(), sensorDataThread, new MemoryMetadataManager(),
+                new MonotonicClock(), providers, new ConnectableSensor.Connector(providers))
+                .setSensorReadThread(sensorReadThread)
+                .setBatching(100, 1000, new MockScheduler())
+                .build();
+
+        dc.addScalarReading("tag", 0, 1, 1);
+        StoringConsumer<ScalarReadingList> cReadings = new StoringConsumer<>();
+        dc.getScalarReadings("tag", 0, TimeRange.oldest(Range.<Long>all()), 0, cReadings);
+
+        // Earlier readings are written first, and then the read moves to the read thread.
+        sensorDataThread.drain();
+        assertNull(cReadings.getValue());
+        assertEquals(1, db.getScalarReadings("tag", TimeRange.oldest(Range.<Long>all()), 0,
+                0).size());
+
+        // The read doesn't wait for readings added after it was requested.
+        dc.addScalarReading("tag", 0, 2, 2);
+        sensorReadThread.drain();
+        assertEquals(1, cReadings.getValue().size());
+    }
+
+    @Test
+    public void testGetScalarReadingPage_recentReadingsComeFromLiveTail() {
+        InMemorySensorDatabase db = new InMemorySensorDatabase();
+        ExplicitExecutor sensorDataThread = new ExplicitExecutor();
+        ExplicitExecutor sensorReadThread = new ExplicitExecutor();
+        Map<String, SensorProvider> providers = new HashMap<>();
+        DataControllerImpl dc = new DataControllerImpl.Builder(db, MoreExecutors.directExecutor(),
+                MoreExecutors.directExecutor(), sensorDataThread, new MemoryMetadataManager(),
+                new MonotonicClock(), providers, new ConnectableSensor.Connector(providers))
+                .setSensorReadThread(sensorReadThread)
+                .setBatching(100, 1000, new MockScheduler())
+                .build();
+        for (int i = 1; i <= 10; i++) {
+            dc.addScalarReading("tag", 0, i, i);
+        }
+
+        // Nothing has been written, and no thread has run, but the tail has what was asked for.
+        ScalarReadingPage page = new ScalarReadingPage(100);
+        StoringConsumer<ScalarReadingPage> cPage = new StoringConsumer<>();
+        dc.getScalarReadingPage("tag", 0, TimeRange.oldest(Range.atLeast(5L)), page, cPage);
+        assertSame(page, cPage.getValue());
+        assertEquals(6, page.size());
+        assertEquals(0, db.getReadings(0).size());
+
+        // Once a delete is requested, reads go to the database, behind it.
+        dc.deleteSensorData("tag", TimeRange.oldest(Range.closed(8L, 10L)),
+                new StoringConsumer<Success>());
+        StoringConsumer<ScalarReadingList> cReadings = new StoringConsumer<>();
+        dc.getScalarReadings("tag", 0, TimeRange.oldest(Range.atLeast(5L)), 0, cReadings);
+        assertNull(cReadings.getValue());
+        sensorDataThread.drain();
+        sensorReadThread.drain();
+        assertEquals(3, cReadings.getValue().size());
+    }
+
+    @Test
+    public void testGetScalarReadingPage_pagesReadAgainComeFromBlocksUntilDeleted() {
+        InMemorySensorDatabase db = new InMemorySensorDatabase();
+        for (int i = 1; i <= 10; i++) {
+            db.addScalarReading("tag", 0, i, i);
+        }
+        Map<String, SensorProvider> providers = new HashMap<>();
+        ScalarBlockCache blockCache = new ScalarBlockCache();
+        // Long after the readings, so that their blocks are settled.
+        DataControllerImpl dc = new DataControllerImpl.Builder(db, MoreExecutors.directExecutor(),
+                MoreExecutors.directExecutor(), MoreExecutors.directExecutor(),
+                new MemoryMetadataManager(), () -> 100000, providers,
+                new ConnectableSensor.Connector(providers))
+                .setBlockCache(blockCache)
+                .build();
+
+        TimeRange range = TimeRange.oldest(Range.closed(0L, 50L));
+        ScalarReadingPage page = new ScalarReadingPage(100);
+        StoringConsumer<ScalarReadingPage> cPage = new StoringConsumer<>();
+        dc.getScalarReadingPage("tag", 0, range, page, cPage);
+        assertEquals(10, cPage.getValue().size());
+        assertEquals(0, blockCache.getHitCount());
+
+        dc.getScalarReadingPage("tag", 0, range, page, cPage);
+        assertEquals(10, cPage.getValue().size());
+        assertEquals(1, blockCache.getHitCount());
+
+        dc.deleteSensorData("tag", TimeRange.oldest(Range.closed(5L, 10L)),
+                new StoringConsumer<Success>());
+        dc.getScalarReadingPage("tag", 0, range, page, cPage);
+        assertEquals(4, cPage.getValue().size());
+        assertEquals(1, blockCache.getHitCount());
+    }
+
+    @Test
+    public void testInterruptedTrialIsClosedOnRestart() throws IOException {
+        File journalFile = new File(RuntimeEnvironment.application.getFilesDir(), "test.journal");
+        InMemorySensorDatabase db = new InMemorySensorDatabase();
+        MemoryMetadataManager mmm = new MemoryMetadataManager();
+        Experiment experiment = mmm.newExperiment(1, "experiment");
+        GoosciTrial.Trial trialProto = new GoosciTrial.Trial();
+        trialProto.trialId = "trial";
+        trialProto.sensorLayouts = new GoosciSensorLayout.SensorLayout[1];
+        trialProto.sensorLayouts[0] = new GoosciSensorLayout.SensorLayout();
+        trialProto.sensorLayouts[0].sensorId = "sensor";
+        trialProto.recordingRange = new GoosciTrial.Range();
+        trialProto.recordingRange.startMs = 100;
+        experiment.addTrial(Trial.fromTrial(trialProto));
+
+        ExplicitExecutor sensorDataThread = new ExplicitExecutor();
+        DataControllerImpl dc = makeJournaledController(db, mmm, sensorDataThread,
+                new ScalarReadingJournal(journalFile, 64));
+        dc.setRecordingTrial("experiment", "trial");
+        for (int i = 1; i <= 15; i++) {
+            dc.addScalarReading("sensor", 0, 100 + i, i);
+            if (i == 10) {
+                sensorDataThread.drain();
+            }
+        }
+        assertEquals(10, db.getReadings(0).size());
+
+        // The app dies with five readings queued, and starts again.
+        sensorDataThread = new ExplicitExecutor();
+        makeJournaledController(db, mmm, sensorDataThread,
+                new ScalarReadingJournal(journalFile, 64));
+        sensorDataThread.drain();
+
+        assertEquals(15, db.getReadings(0).size());
+        Trial trial = mmm.getExperimentById("experiment").getTrial("trial");
+        assertEquals(115, trial.getOriginalLastTimestamp());
+        assertFalse(trial.getStatsForSensor("sensor").statsAreValid());
+        ScalarReadingJournal reopened = new ScalarReadingJournal(journalFile, 64);
+        assertNull(reopened.getRecoveredTrialId());
+        assertEquals(0, reopened.getRecoveredReadingCount());
+        journalFile.delete();
+    }
+
+    private DataControllerImpl makeJournaledController(InMemorySensorDatabase db,
+            MemoryMetadataManager mmm, ExplicitExecutor sensorDataThread,
+            ScalarReadingJournal journal) {
+        Map<String, SensorProvider> providers = new HashMap<>();
+        return new DataControllerImpl.Builder(db, MoreExecutors.directExecutor(),
+                MoreExecutors.directExecutor(), sensorDataThread, mmm, new MonotonicClock(),
+                providers, new ConnectableSensor.Connector(providers))
+                .setBatching(10, 1000, new MockScheduler())
+                .setJournals(journal)
+                .build();
+    }
+
     @NonNull
     public static ImmutableMap<String, SensorProvider> bleProviderMap(Context context) {
         return ImmutableMap.<String, SensorProvider>of(BleSensorSpec.TYPE,
@@ -257,4 +487,61 @@ public class DataControllerTest {
                 RxDataController.getExperimentById(dc, experiment.getExperimentId())
                         .test().values().get(0).getLastUsedTime());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testReclaimSensorDataSpace_waitsUntilRecordingStops() {
+        InMemorySensorDatabase db = new InMemorySensorDatabase() {
+            @Override
+            public long reclaimSpace(long maxBytes) {
+                return maxBytes;
+            }
+        };
+        DataController dc = db.makeSimpleController(new MemoryMetadataManager());
+        StoringConsumer<Long> cFreed = new StoringConsumer<>();
+
+        dc.setRecordingTrial("experiment", "trial");
+        dc.reclaimSensorDataSpace(100, cFreed);
+        assertEquals(0L, (long) cFreed.getValue());
+
+        dc.setRecordingTrial("experiment", null);
+        dc.reclaimSensorDataSpace(100, cFreed);
+        assertEquals(100L, (long) cFreed.getValue());
+    }
+
+    @Test
+    public void testRecordingTrialRoutesItsReadings() {
+        final List<String> routes = new ArrayList<>();
+        InMemorySensorDatabase db = new InMemorySensorDatabase() {
+            @Override
+            public void startExperimentRecording(String experimentId, long startMillis) {
+                routes.add("start " + experimentId + " " + startMillis);
+            }
+
+            @Override
+            public void stopExperimentRecording(String experimentId, Range<Long> times) {
+                routes.add("stop " + experimentId + " " + times);
+            }
+        };
+        MemoryMetadataManager mmm = new MemoryMetadataManager();
+        Experiment experiment = mmm.newExperiment(1, "experiment");
+        GoosciTrial.Trial trialProto = new GoosciTrial.Trial();
+        trialProto.trialId = "trial";
+        trialProto.recordingRange = new GoosciTrial.Range();
+        trialProto.recordingRange.startMs = 100;
+        experiment.addTrial(Trial.fromTrial(trialProto));
+        DataController dc = db.makeSimpleController(mmm);
+
+        Experiment loaded = RxDataController.getExperimentById(dc, "experiment").test().values()
+                .get(0);
+        dc.updateExperiment(loaded, TestConsumers.expectingSuccess());
+        // Loading or saving an experiment routes nothing.
+        assertTrue(routes.isEmpty());
+
+        dc.setRecordingTrial("experiment", "trial");
+        loaded.getTrial("trial").setRecordingEndTime(200);
+        dc.updateExperiment(loaded, TestConsumers.expectingSuccess());
+        dc.setRecordingTrial("experiment", null);
+        assertEquals(Arrays.asList("start experiment 100", "stop experiment [100..200]"),
+                routes);
+    }
+}
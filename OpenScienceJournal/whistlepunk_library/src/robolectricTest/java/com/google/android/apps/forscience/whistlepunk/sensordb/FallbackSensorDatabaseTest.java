@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+import com.google.common.collect.Range;
+import com.google.common.collect.Sets;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class FallbackSensorDatabaseTest extends AbstractSensorDatabaseTest {
+    private final InMemorySensorDatabase mPrimary = new InMemorySensorDatabase();
+    private final InMemorySensorDatabase mFallback = new InMemorySensorDatabase();
+
+    @Override
+    protected SensorDatabase makeDatabase() {
+        return new FallbackSensorDatabase(new InMemorySensorDatabase(),
+                new InMemorySensorDatabase());
+    }
+
+    @Test
+    public void testWritesOnlyToPrimary() {
+        SensorDatabase db = new FallbackSensorDatabase(mPrimary, mFallback);
+        db.addScalarReading("tag", 0, 1, 1.0);
+        ScalarReadingBatch batch = new ScalarReadingBatch(1);
+        batch.add("tag", 0, 2, 2.0);
+        db.addScalarReadings(batch);
+
+        assertEquals(2, mPrimary.getScalarReadings("tag", TimeRange.oldest(Range.<Long>all()), 0,
+                0).size());
+        assertEquals(0, mFallback.getSensorTags().size());
+    }
+
+    @Test
+    public void testReadsBothInOrder() {
+        mFallback.addScalarReading("tag", 0, 1, 1.0);
+        mFallback.addScalarReading("tag", 0, 3, 3.0);
+        mFallback.addScalarReading("old", 0, 4, 4.0);
+        SensorDatabase db = new FallbackSensorDatabase(mPrimary, mFallback);
+        db.addScalarReading("tag", 0, 2, 2.0);
+        db.addScalarReading("tag", 0, 5, 5.0);
+
+        TimeRange all = TimeRange.oldest(Range.<Long>all());
+        assertEquals(Arrays.asList(new ScalarReading(1, 1.0), new ScalarReading(2, 2.0),
+                new ScalarReading(3, 3.0), new ScalarReading(5, 5.0)),
+                ScalarReading.slurp(db.getScalarReadings("tag", all, 0, 0)));
+        assertEquals(Arrays.asList(new ScalarReading(5, 5.0), new ScalarReading(3, 3.0)),
+                ScalarReading.slurp(db.getScalarReadings("tag",
+                        TimeRange.newest(Range.<Long>all()), 0, 2)));
+        assertEquals(5, db.getScalarStats("tag", all).getMax(), 0.0);
+        assertEquals(4, db.getScalarStats("tag", all).getCount());
+        assertEquals(Sets.newHashSet("tag", "old"), Sets.newHashSet(db.getSensorTags()));
+        assertEquals("old", db.getFirstDatabaseTagAfter(3));
+        assertEquals("tag", db.getFirstDatabaseTagAfter(4));
+        assertNull(db.getFirstDatabaseTagAfter(5));
+    }
+
+    @Test
+    public void testDeletesFromBoth() {
+        mFallback.addScalarReading("tag", 0, 1, 1.0);
+        SensorDatabase db = new FallbackSensorDatabase(mPrimary, mFallback);
+        db.addScalarReading("tag", 0, 2, 2.0);
+        db.addScalarReading("tag", 0, 3, 3.0);
+
+        db.deleteScalarReadings("tag", TimeRange.oldest(Range.closed(1L, 2L)));
+        assertEquals(Arrays.asList(new ScalarReading(3, 3.0)), ScalarReading.slurp(
+                db.getScalarReadings("tag", TimeRange.oldest(Range.<Long>all()), 0, 0)));
+        assertEquals(0, mFallback.getScalarReadings("tag", TimeRange.oldest(Range.<Long>all()),
+                0, 0).size());
+    }
+}
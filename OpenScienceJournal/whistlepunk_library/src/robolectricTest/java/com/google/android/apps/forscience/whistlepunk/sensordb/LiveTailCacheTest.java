@@ -0,0 +1,226 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ZoomDecimation;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ZoomRecorder;
+import com.google.common.collect.Range;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class LiveTailCacheTest {
+    @Test
+    public void answersLikeTheDatabaseForCoveredRanges() {
+        LiveTailCache cache = new LiveTailCache(1000, 64, 4);
+        InMemorySensorDatabase db = new InMemorySensorDatabase();
+        for (int i = 0; i < 50; i++) {
+            cache.add("tag", 0, i * 10, i);
+            db.addScalarReading("tag", 0, i * 10, i);
+        }
+
+        TimeRange[] ranges = {TimeRange.oldest(Range.closed(100L, 200L)),
+                TimeRange.newest(Range.closed(100L, 200L)),
+                TimeRange.oldest(Range.openClosed(100L, 205L)),
+                TimeRange.newest(Range.atLeast(300L)),
+                TimeRange.oldest(Range.closed(1000L, 2000L))};
+        for (TimeRange range : ranges) {
+            for (int maxRecords : new int[]{0, 3}) {
+                ScalarReadingList cached = cache.getScalarReadings("tag", 0, range, maxRecords);
+                assertNotNull(cached);
+                assertSamePoints(db.getScalarReadings("tag", range, 0, maxRecords).asDataPoints(),
+                        cached.asDataPoints());
+            }
+        }
+    }
+
+    @Test
+    public void coversOnlyAfterFirstReading() {
+        LiveTailCache cache = new LiveTailCache(1000, 64, 4);
+        assertNull(cache.getScalarReadings("tag", 0, TimeRange.oldest(Range.atLeast(0L)), 0));
+
+        cache.add("tag", 0, 100, 1);
+        cache.add("tag", 0, 110, 2);
+        // Earlier readings, even at the same time, may be in the database already.
+        assertNull(cache.getScalarReadings("tag", 0, TimeRange.oldest(Range.atLeast(100L)), 0));
+        assertNull(cache.getScalarReadings("tag", 0, TimeRange.oldest(Range.<Long>all()), 0));
+        assertEquals(1,
+                cache.getScalarReadings("tag", 0, TimeRange.oldest(Range.atLeast(101L)), 0)
+                        .size());
+        assertNull(cache.getScalarReadings("tag", 1, TimeRange.oldest(Range.atLeast(101L)), 0));
+        assertNull(cache.getScalarReadings("other", 0, TimeRange.oldest(Range.atLeast(101L)), 0));
+    }
+
+    @Test
+    public void evictsByAgeAndByRoom() {
+        LiveTailCache cache = new LiveTailCache(100, 8, 4);
+        for (int i = 0; i <= 50; i++) {
+            cache.add("tag", 0, i, i);
+        }
+        // Eight slots: 43 to 50 are kept.
+        assertNull(cache.getScalarReadings("tag", 0, TimeRange.oldest(Range.atLeast(42L)), 0));
+        List<ChartData.DataPoint> kept = cache.getScalarReadings("tag", 0,
+                TimeRange.oldest(Range.atLeast(43L)), 0).asDataPoints();
+        assertEquals(8, kept.size());
+        assertEquals(43, kept.get(0).getX());
+
+        // A reading far ahead leaves every older one outside the window; there was nothing
+        // between them, so the tail still covers from after the last one it dropped.
+        cache.add("tag", 0, 1000, 0);
+        assertNull(cache.getScalarReadings("tag", 0, TimeRange.oldest(Range.atLeast(50L)), 0));
+        assertEquals(1, cache.getScalarReadings("tag", 0,
+                TimeRange.oldest(Range.atLeast(51L)), 0).size());
+    }
+
+    @Test
+    public void readingBackInTimeRestarts() {
+        LiveTailCache cache = new LiveTailCache(1000, 64, 4);
+        cache.add("tag", 0, 100, 1);
+        cache.add("tag", 0, 200, 2);
+        cache.add("tag", 0, 150, 3);
+        assertNull(cache.getScalarReadings("tag", 0, TimeRange.oldest(Range.atLeast(150L)), 0));
+        assertEquals(0, cache.getScalarReadings("tag", 0,
+                TimeRange.oldest(Range.atLeast(151L)), 0).size());
+    }
+
+    @Test
+    public void keepsMinMaxTier() {
+        LiveTailCache cache = new LiveTailCache(10000, 64, 4);
+        InMemorySensorDatabase db = new InMemorySensorDatabase();
+        ZoomRecorder recorder = new ZoomRecorder("tag", ZoomDecimation.MIN_MAX, 5, 1);
+        RecordingDataController controller = recordInto(cache, db);
+        for (int i = 0; i < 200; i++) {
+            // Falling within each run of 10, so that each run's highest comes before its lowest.
+            recorder.addData(i * 10, 100 - i % 10, controller);
+        }
+
+        assertEquals(40, db.getReadings(1).size());
+        TimeRange[] ranges = {TimeRange.oldest(Range.atLeast(1L)),
+                TimeRange.newest(Range.closed(500L, 1500L))};
+        for (TimeRange range : ranges) {
+            ScalarReadingList cached = cache.getScalarReadings("tag", 1, range, 0);
+            assertNotNull(cached);
+            assertSamePoints(db.getScalarReadings("tag", range, 1, 0).asDataPoints(),
+                    cached.asDataPoints());
+        }
+    }
+
+    @Test
+    public void invalidateForgetsSensor() {
+        LiveTailCache cache = new LiveTailCache(1000, 64, 4);
+        cache.add("tag", 0, 100, 1);
+        cache.add("tag", 0, 110, 2);
+        cache.invalidate("tag");
+        assertNull(cache.getScalarReadings("tag", 0, TimeRange.oldest(Range.atLeast(101L)), 0));
+
+        cache.add("tag", 0, 120, 3);
+        assertNull(cache.getScalarReadings("tag", 0, TimeRange.oldest(Range.atLeast(101L)), 0));
+        assertEquals(0, cache.getScalarReadings("tag", 0,
+                TimeRange.oldest(Range.atLeast(121L)), 0).size());
+    }
+
+    @Test
+    public void newSensorOnlyReplacesOneThatStopped() {
+        LiveTailCache cache = new LiveTailCache(100, 64, 2);
+        cache.add("a", 0, 0, 1);
+        cache.add("b", 0, 50, 1);
+        cache.add("c", 0, 60, 1);
+        cache.add("c", 0, 70, 1);
+        // Both others recorded within the window.
+        assertNull(cache.getScalarReadings("c", 0, TimeRange.oldest(Range.atLeast(61L)), 0));
+
+        cache.add("c", 0, 120, 1);
+        cache.add("c", 0, 130, 1);
+        assertNotNull(cache.getScalarReadings("c", 0, TimeRange.oldest(Range.atLeast(121L)), 0));
+        assertNull(cache.getScalarReadings("a", 0, TimeRange.oldest(Range.atLeast(1L)), 0));
+        assertNotNull(cache.getScalarReadings("b", 0, TimeRange.oldest(Range.atLeast(51L)), 0));
+    }
+
+    @Test
+    public void readPageFillsFirstPage() {
+        LiveTailCache cache = new LiveTailCache(1000, 64, 4);
+        for (int i = 0; i < 10; i++) {
+            cache.add("tag", 0, i, i);
+        }
+        ScalarReadingPage page = new ScalarReadingPage(4);
+        assertFalse(cache.readPage("tag", 0, TimeRange.oldest(Range.atLeast(0L)), page));
+        assertTrue(cache.readPage("tag", 0, TimeRange.newest(Range.atLeast(1L)), page));
+        assertEquals(4, page.size());
+        assertEquals(9, page.getFirstTimestampMillis());
+        assertEquals(6, page.getLastTimestampMillis());
+        assertEquals("tag", page.getSensorTag(0));
+    }
+
+    /**
+     * @return a controller that adds each reading to both {@code cache} and {@code db}
+     */
+    private static RecordingDataController recordInto(final LiveTailCache cache,
+            final InMemorySensorDatabase db) {
+        return new RecordingDataController() {
+            @Override
+            public boolean addScalarReading(String sensorId, int resolutionTier,
+                    long timestampMillis, double value) {
+                cache.add(sensorId, resolutionTier, timestampMillis, value);
+                db.addScalarReading(sensorId, resolutionTier, timestampMillis, value);
+                return true;
+            }
+
+            @Override
+            public void flushScalarReadings() {
+            }
+
+            @Override
+            public double getScalarWriteBacklog() {
+                return 0;
+            }
+
+            @Override
+            public void setDataErrorListenerForSensor(String sensorId,
+                    FailureListener listener) {
+            }
+
+            @Override
+            public void clearDataErrorListenerForSensor(String sensorId) {
+            }
+        };
+    }
+
+    private static void assertSamePoints(List<ChartData.DataPoint> expected,
+            List<ChartData.DataPoint> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getX(), actual.get(i).getX());
+            assertEquals(expected.get(i).getY(), actual.get(i).getY(), 0.0);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+import com.google.common.collect.Range;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class ScalarBlockCacheTest {
+    // Blocks of 100ms at tier 0.
+    private final ScalarBlockCache mCache = new ScalarBlockCache(100, 10, 1024 * 1024);
+    private final InMemorySensorDatabase mDatabase = new InMemorySensorDatabase();
+
+    @Test
+    public void answersLikeTheDatabase() {
+        for (int i = 0; i < 200; i++) {
+            mDatabase.addScalarReading("tag", 0, i * 7, i);
+        }
+
+        TimeRange[] ranges = {TimeRange.oldest(Range.closed(100L, 900L)),
+                TimeRange.newest(Range.closed(100L, 900L)),
+                TimeRange.oldest(Range.openClosed(95L, 1205L)),
+                TimeRange.newest(Range.closed(0L, 350L)),
+                TimeRange.oldest(Range.closed(2000L, 2500L))};
+        for (TimeRange range : ranges) {
+            for (int capacity : new int[]{3, 50, 500}) {
+                ScalarReadingPage expected = readDatabasePage(range, capacity);
+                ScalarReadingPage loaded = new ScalarReadingPage(capacity);
+                assertTrue(mCache.loadPage(mDatabase, "tag", 0, range, loaded, 10000,
+                        mCache.reserve("tag", 10000)));
+                assertSamePage(expected, loaded);
+
+                ScalarReadingPage cached = new ScalarReadingPage(capacity);
+                assertTrue(mCache.readPage("tag", 0, range, cached));
+                assertSamePage(expected, cached);
+            }
+        }
+    }
+
+    @Test
+    public void missesUntilLoaded() {
+        mDatabase.addScalarReading("tag", 0, 50, 1);
+        mDatabase.addScalarReading("tag", 1, 50, 2);
+        TimeRange range = TimeRange.oldest(Range.closed(0L, 99L));
+        ScalarReadingPage page = new ScalarReadingPage(10);
+        assertFalse(mCache.readPage("tag", 0, range, page));
+
+        assertTrue(mCache.loadPage(mDatabase, "tag", 0, range, page, 1000,
+                mCache.reserve("tag", 1000)));
+        assertTrue(mCache.readPage("tag", 0, range, page));
+        assertEquals(1, page.size());
+        assertEquals(1.0, page.getValue(0), 0.0);
+        assertFalse(mCache.readPage("tag", 1, range, page));
+        assertFalse(mCache.readPage("other", 0, range, page));
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(3, mCache.getMissCount());
+    }
+
+    @Test
+    public void leavesUnsettledAndOversizedBlocksToTheDatabase() {
+        for (int i = 0; i < 200; i++) {
+            mDatabase.addScalarReading("tag", 0, i, i);
+        }
+        ScalarReadingPage page = new ScalarReadingPage(1000);
+        // The second block may still be recording.
+        assertFalse(mCache.loadPage(mDatabase, "tag", 0,
+                TimeRange.oldest(Range.closed(0L, 199L)), page, 150, mCache.reserve("tag", 150)));
+        assertTrue(mCache.loadPage(mDatabase, "tag", 0,
+                TimeRange.oldest(Range.closed(0L, 99L)), page, 150, mCache.reserve("tag", 150)));
+
+        // Blocks may use an eighth of the budget: 8 readings of 16 bytes.
+        ScalarBlockCache small = new ScalarBlockCache(100, 10, 8 * 8 * 16);
+        assertFalse(small.loadPage(mDatabase, "tag", 0, TimeRange.oldest(Range.closed(0L, 99L)),
+                page, 1000, small.reserve("tag", 1000)));
+        assertEquals(0, small.getByteCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBlocks() {
+        // Ten readings a block; room for eight blocks.
+        for (int i = 0; i < 100; i++) {
+            mDatabase.addScalarReading("tag", 0, i * 10, i);
+        }
+        ScalarBlockCache cache = new ScalarBlockCache(100, 10, 8 * (64 + 10 * 16));
+        ScalarReadingPage page = new ScalarReadingPage(100);
+        for (long block = 0; block < 8; block++) {
+            assertTrue(cache.loadPage(mDatabase, "tag", 0, blockRange(block), page, 10000,
+                    cache.reserve("tag", 10000)));
+        }
+        assertTrue(cache.readPage("tag", 0, blockRange(0), page));
+
+        assertTrue(cache.loadPage(mDatabase, "tag", 0, blockRange(8), page, 10000,
+                cache.reserve("tag", 10000)));
+        assertTrue(cache.readPage("tag", 0, blockRange(0), page));
+        assertFalse(cache.readPage("tag", 0, blockRange(1), page));
+        assertTrue(cache.readPage("tag", 0, blockRange(2), page));
+        assertEquals(8 * (64 + 10 * 16), cache.getByteCount());
+    }
+
+    @Test
+    public void readingsAddedToReadTimesDropBlocks() {
+        mDatabase.addScalarReading("tag", 0, 10, 1);
+        ScalarReadingPage page = new ScalarReadingPage(10);
+        assertTrue(mCache.loadPage(mDatabase, "tag", 0, blockRange(0), page, 1000,
+                mCache.reserve("tag", 1000)));
+
+        // A late reading lands in a block already read.
+        mCache.noteReading("tag", 0, 20);
+        assertFalse(mCache.readPage("tag", 0, blockRange(0), page));
+        // One after what has been read changes nothing.
+        assertTrue(mCache.loadPage(mDatabase, "tag", 0, blockRange(1), page, 1000,
+                mCache.reserve("tag", 1000)));
+        mCache.noteReading("tag", 0, 1000);
+        assertTrue(mCache.readPage("tag", 0, blockRange(1), page));
+
+        // A reading noted while a load is under way may not be in what it reads, so the load
+        // isn't kept.
+        long ticket = mCache.reserve("tag", 1000);
+        mCache.noteReading("tag", 0, 250);
+        assertTrue(mCache.loadPage(mDatabase, "tag", 0, blockRange(2), page, 1000, ticket));
+        assertFalse(mCache.readPage("tag", 0, blockRange(2), page));
+    }
+
+    @Test
+    public void invalidateForgetsSensor() {
+        mDatabase.addScalarReading("tag", 0, 10, 1);
+        mDatabase.addScalarReading("other", 0, 10, 1);
+        ScalarReadingPage page = new ScalarReadingPage(10);
+        long ticket = mCache.reserve("tag", 1000);
+        assertTrue(mCache.loadPage(mDatabase, "tag", 0, blockRange(0), page, 1000, ticket));
+        assertTrue(mCache.loadPage(mDatabase, "other", 0, blockRange(0), page, 1000,
+                mCache.reserve("other", 1000)));
+
+        mCache.invalidate("tag");
+        assertFalse(mCache.readPage("tag", 0, blockRange(0), page));
+        assertTrue(mCache.readPage("other", 0, blockRange(0), page));
+
+        // A load reserved before the invalidation isn't kept.
+        assertTrue(mCache.loadPage(mDatabase, "tag", 0, blockRange(0), page, 1000, ticket));
+        assertFalse(mCache.readPage("tag", 0, blockRange(0), page));
+
+        mCache.invalidateAll();
+        assertFalse(mCache.readPage("other", 0, blockRange(0), page));
+    }
+
+    @Test
+    public void prefetchLoadsEachBlockOnce() {
+        for (int i = 0; i < 30; i++) {
+            mDatabase.addScalarReading("tag", 0, i * 10, i);
+        }
+        TimeRange range = TimeRange.oldest(Range.closed(0L, 299L));
+        ScalarBlockCache.Prefetch prefetch = mCache.startPrefetch("tag", 0, range, 1000);
+        assertNotNull(prefetch);
+        // Already claimed.
+        assertNull(mCache.startPrefetch("tag", 0, range, 1000));
+
+        prefetch.run(mDatabase);
+        assertEquals(3, mCache.getPrefetchedBlockCount());
+        ScalarReadingPage page = new ScalarReadingPage(100);
+        assertTrue(mCache.readPage("tag", 0, range, page));
+        assertEquals(30, page.size());
+        assertNull(mCache.startPrefetch("tag", 0, range, 1000));
+
+        // Blocks that may still be recording aren't claimed.
+        assertNull(mCache.startPrefetch("tag", 0, TimeRange.oldest(Range.closed(300L, 399L)),
+                350));
+    }
+
+    private static TimeRange blockRange(long block) {
+        return TimeRange.oldest(Range.closedOpen(block * 100, block * 100 + 100));
+    }
+
+    private ScalarReadingPage readDatabasePage(TimeRange range, int capacity) {
+        ScalarReadingPage page = new ScalarReadingPage(capacity);
+        ScalarPageReader reader = mDatabase.openScalarPageReader(new String[]{"tag"}, range, 0);
+        reader.readNextPage(page);
+        reader.close();
+        return page;
+    }
+
+    private static void assertSamePage(ScalarReadingPage expected, ScalarReadingPage actual) {
+        assertArrayEquals(Arrays.copyOf(expected.getTimestamps(), expected.size()),
+                Arrays.copyOf(actual.getTimestamps(), actual.size()));
+        assertArrayEquals(Arrays.copyOf(expected.getValues(), expected.size()),
+                Arrays.copyOf(actual.getValues(), actual.size()), 0.0);
+        for (int i = 0; i < actual.size(); i++) {
+            assertEquals("tag", actual.getSensorTag(i));
+        }
+    }
+}
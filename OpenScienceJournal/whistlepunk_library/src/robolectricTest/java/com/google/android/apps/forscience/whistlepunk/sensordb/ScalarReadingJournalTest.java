@@ -0,0 +1,198 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+import com.google.android.apps.forscience.whistlepunk.MockScheduler;
+import com.google.android.apps.forscience.whistlepunk.api.scalarinput.ExplicitExecutor;
+import com.google.common.collect.Lists;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Each test "kills" the process by abandoning a writer, its journal and its sensor data thread
+ * without writing what is queued, then opens the journal again as the next process would.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class ScalarReadingJournalTest {
+    private static final int SLOTS = 16;
+
+    private final File mFile =
+            new File(RuntimeEnvironment.application.getFilesDir(), "test.journal");
+    private ExplicitExecutor mDataThread;
+    private final IncrementableMonotonicClock mClock = new IncrementableMonotonicClock();
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void recoversReadingsThatWereNotWritten() throws IOException {
+        InMemorySensorDatabase db = new InMemorySensorDatabase();
+        BatchingScalarWriter writer = makeWriter(db, new ScalarReadingJournal(mFile, SLOTS));
+        writer.addScalarReading("a", 0, 1, 1.0);
+        writer.addScalarReading("b", 0, 2, 2.0);
+        writer.addScalarReading("a", 1, 3, 3.0);
+        writer.flush();
+        mDataThread.drain();
+        writer.addScalarReading("b", 0, 4, 4.0);
+        writer.addScalarReading("a", 0, 5, 5.0);
+        assertEquals(2, db.getReadings(0).size());
+
+        ScalarReadingJournal reopened = new ScalarReadingJournal(mFile, SLOTS);
+        assertEquals(2, reopened.getRecoveredReadingCount());
+        makeWriter(db, reopened);
+        mDataThread.drain();
+        assertEquals(Lists.newArrayList(new InMemorySensorDatabase.Reading("a", 1, 1.0),
+                new InMemorySensorDatabase.Reading("b", 2, 2.0),
+                new InMemorySensorDatabase.Reading("b", 4, 4.0),
+                new InMemorySensorDatabase.Reading("a", 5, 5.0)), db.getReadings(0));
+        assertEquals(1, db.getReadings(1).size());
+
+        // Once replayed, they aren't recovered again.
+        assertEquals(0, new ScalarReadingJournal(mFile, SLOTS).getRecoveredReadingCount());
+    }
+
+    @Test
+    public void keepsRecoveredReadingsUntilReplayed() throws IOException {
+        InMemorySensorDatabase db = new InMemorySensorDatabase();
+        BatchingScalarWriter writer = makeWriter(db, new ScalarReadingJournal(mFile, SLOTS));
+        writer.addScalarReading("a", 0, 1, 1.0);
+        writer.addScalarReading("b", 0, 2, 2.0);
+
+        // Dies again before the sensor data thread gets to replay, having added more.
+        writer = makeWriter(db, new ScalarReadingJournal(mFile, SLOTS));
+        writer.addScalarReading("c", 0, 3, 3.0);
+        writer.addScalarReading("b", 0, 4, 4.0);
+
+        ScalarReadingJournal reopened = new ScalarReadingJournal(mFile, SLOTS);
+        assertEquals(4, reopened.getRecoveredReadingCount());
+        makeWriter(db, reopened);
+        mDataThread.drain();
+        assertEquals(Lists.newArrayList(new InMemorySensorDatabase.Reading("a", 1, 1.0),
+                new InMemorySensorDatabase.Reading("b", 2, 2.0),
+                new InMemorySensorDatabase.Reading("c", 3, 3.0),
+                new InMemorySensorDatabase.Reading("b", 4, 4.0)), db.getReadings(0));
+    }
+
+    @Test
+    public void keepsRecoveredReadingsUntilReplaySucceeds() throws IOException {
+        BatchingScalarWriter writer = makeWriter(new InMemorySensorDatabase(),
+                new ScalarReadingJournal(mFile, SLOTS));
+        writer.addScalarReading("a", 0, 1, 1.0);
+        writer.addScalarReading("b", 0, 2, 2.0);
+
+        final boolean[] failing = {true};
+        InMemorySensorDatabase db = new InMemorySensorDatabase() {
+            @Override
+            public void addScalarReadings(ScalarReadingBatch batch) {
+                if (failing[0]) {
+                    throw new RuntimeException("disk full");
+                }
+                super.addScalarReadings(batch);
+            }
+        };
+        writer = makeWriter(db, new ScalarReadingJournal(mFile, SLOTS));
+        mDataThread.drain();
+        writer.addScalarReading("c", 0, 3, 3.0);
+        writer.flush();
+        mDataThread.drain();
+        assertEquals(0, db.getReadings(0).size());
+
+        // A failed batch doesn't move the checkpoint past the readings still to be replayed.
+        assertEquals(3, new ScalarReadingJournal(mFile, SLOTS).getRecoveredReadingCount());
+
+        failing[0] = false;
+        writer.addScalarReading("d", 0, 4, 4.0);
+        writer.flush();
+        mDataThread.drain();
+        assertEquals(Lists.newArrayList(new InMemorySensorDatabase.Reading("a", 1, 1.0),
+                new InMemorySensorDatabase.Reading("b", 2, 2.0),
+                new InMemorySensorDatabase.Reading("d", 4, 4.0)), db.getReadings(0));
+        assertEquals(0, new ScalarReadingJournal(mFile, SLOTS).getRecoveredReadingCount());
+    }
+
+    @Test
+    public void recoversAcrossLapsOfTheJournal() throws IOException {
+        InMemorySensorDatabase db = new InMemorySensorDatabase();
+        BatchingScalarWriter writer = makeWriter(db, new ScalarReadingJournal(mFile, SLOTS));
+        for (int i = 0; i < SLOTS * 3; i++) {
+            writer.addScalarReading("tag", 0, i, i);
+            if (i % 5 == 4) {
+                writer.flush();
+                mDataThread.drain();
+            }
+        }
+        assertEquals(SLOTS * 3 - 3, db.getReadings(0).size());
+
+        makeWriter(db, new ScalarReadingJournal(mFile, SLOTS));
+        mDataThread.drain();
+        assertEquals(SLOTS * 3, db.getReadings(0).size());
+        for (int i = 0; i < SLOTS * 3; i++) {
+            assertEquals(i, db.getReadings(0).get(i).getTimestampMillis());
+        }
+    }
+
+    @Test
+    public void remembersRecordingTrial() throws IOException {
+        ScalarReadingJournal journal = new ScalarReadingJournal(mFile, SLOTS);
+        assertNull(journal.getRecoveredTrialId());
+        journal.setRecordingTrial("experiment", "trial");
+
+        ScalarReadingJournal reopened = new ScalarReadingJournal(mFile, SLOTS);
+        assertEquals("experiment", reopened.getRecoveredExperimentId());
+        assertEquals("trial", reopened.getRecoveredTrialId());
+
+        // Only forgotten if it's still the trial that was recording.
+        reopened.clearRecordingTrial("otherTrial");
+        assertEquals("trial", new ScalarReadingJournal(mFile, SLOTS).getRecoveredTrialId());
+        reopened.clearRecordingTrial("trial");
+        assertNull(new ScalarReadingJournal(mFile, SLOTS).getRecoveredTrialId());
+    }
+
+    @Test
+    public void startsOverWhenResized() throws IOException {
+        InMemorySensorDatabase db = new InMemorySensorDatabase();
+        BatchingScalarWriter writer = makeWriter(db, new ScalarReadingJournal(mFile, SLOTS));
+        writer.addScalarReading("tag", 0, 1, 1.0);
+
+        ScalarReadingJournal resized = new ScalarReadingJournal(mFile, SLOTS * 2);
+        assertEquals(0, resized.getRecoveredReadingCount());
+    }
+
+    /**
+     * Makes a writer as a new process would, with nothing yet queued on its sensor data thread.
+     */
+    private BatchingScalarWriter makeWriter(SensorDatabase db, ScalarReadingJournal journal) {
+        mDataThread = new ExplicitExecutor();
+        return new BatchingScalarWriter(db, mDataThread, mClock, new MockScheduler(), SLOTS / 2,
+                1000, SLOTS / 2, journal, null);
+    }
+}
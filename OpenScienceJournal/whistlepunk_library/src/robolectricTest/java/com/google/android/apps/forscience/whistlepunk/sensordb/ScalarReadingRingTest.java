@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class ScalarReadingRingTest {
+    @Test
+    public void drainsInOrderAcrossLaps() {
+        ScalarReadingRing ring = new ScalarReadingRing(4);
+        ScalarReadingBatch batch = new ScalarReadingBatch();
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 3; i++) {
+                long timestamp = lap * 10 + i;
+                assertEquals(i + 1, ring.offer(i == 1 ? "b" : "a", lap, timestamp, timestamp));
+            }
+            assertEquals(3, ring.drainTo(batch));
+        }
+
+        assertEquals(9, batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            int lap = i / 3;
+            assertEquals(lap * 10 + i % 3, batch.getTimestampMillis(i));
+            assertEquals(lap * 10 + i % 3, batch.getValue(i), 0.0);
+            assertEquals(lap, batch.getResolutionTier(i));
+            assertEquals(i % 3 == 1 ? "b" : "a", batch.getSensorTag(i));
+        }
+        assertEquals(0, ring.getDepth());
+        assertEquals(3, ring.getHighWaterMark());
+    }
+
+    @Test
+    public void dropsWhenFull() {
+        ScalarReadingRing ring = new ScalarReadingRing(3);
+        assertEquals(4, ring.capacity());
+        for (int i = 0; i < 4; i++) {
+            ring.offer("tag", 0, i, i);
+        }
+        assertEquals(0, ring.offer("tag", 0, 4, 4));
+        assertEquals(0, ring.offer("tag", 0, 5, 5));
+        assertEquals(2, ring.getDroppedCount());
+        assertEquals(4, ring.getDepth());
+
+        ScalarReadingBatch batch = new ScalarReadingBatch();
+        assertEquals(4, ring.drainTo(batch));
+        assertEquals(3, batch.getTimestampMillis(3));
+
+        // Room again once drained.
+        assertEquals(1, ring.offer("tag", 0, 6, 6));
+        assertEquals(4, ring.getHighWaterMark());
+    }
+
+    @Test
+    public void manyProducersLoseNothing() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 20000;
+        final ScalarReadingRing ring = new ScalarReadingRing(1024);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final String tag = "sensor" + p;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    // Wait for room rather than drop, so every reading can be checked.
+                    while (ring.offer(tag, 0, i, i) == 0) {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        ScalarReadingBatch batch = new ScalarReadingBatch();
+        long[] nextTimestamps = new long[producers];
+        int total = 0;
+        while (total < producers * perProducer) {
+            batch.clear();
+            ring.drainTo(batch);
+            for (int i = 0; i < batch.size(); i++) {
+                int producer = Integer.parseInt(batch.getSensorTag(i).substring(6));
+                // Each producer's readings come out in the order it added them.
+                assertEquals(nextTimestamps[producer]++, batch.getTimestampMillis(i));
+            }
+            total += batch.size();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, ring.getDepth());
+        assertTrue(ring.getHighWaterMark() <= ring.capacity());
+    }
+}
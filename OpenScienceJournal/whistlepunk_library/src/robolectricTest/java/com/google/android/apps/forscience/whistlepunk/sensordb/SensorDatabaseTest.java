@@ -17,12 +17,16 @@
 package com.google.android.apps.forscience.whistlepunk.sensordb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 
-import com.google.android.apps.forscience.whistlepunk.Arbitrary;
 import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+import com.google.android.apps.forscience.whistlepunk.api.scalarinput.ExplicitExecutor;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Range;
 
@@ -43,211 +47,325 @@ import io.reactivex.observers.TestObserver;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(constants = BuildConfig.class)
-public class SensorDatabaseTest {
+public class SensorDatabaseTest extends AbstractSensorDatabaseTest {
     private static final String TEST_DATABASE_NAME = "test.db";
 
-    @Test
-    public void testAddScalarReading() {
-        SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
-        long timestamp = Arbitrary.integer();
-        double value = Arbitrary.doubleFloat();
-        db.addScalarReading("tag", 0, timestamp, value);
-        List<ScalarReading> readings = ScalarReading.slurp(db.getScalarReadings("tag",
-                TimeRange.oldest(Range.closed(timestamp - 1, timestamp + 1)), 0, 0));
-        assertEquals(Arrays.asList(new ScalarReading(timestamp, value)), readings);
+    @Override
+    protected SensorDatabase makeDatabase() {
+        return new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
     }
 
     @Test
-    public void testAddScalarReadingLimits() {
+    public void testObservable_paging() {
         SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
-        db.addScalarReading("tag", 0, 1, 1.0);
-        db.addScalarReading("tag", 0, 2, 2.0);
-        db.addScalarReading("tag", 0, 3, 3.0);
-        int limit = 2;
-        List<ScalarReading> readings = ScalarReading.slurp(db.getScalarReadings("tag",
-                TimeRange.oldest(Range.closed(0L, 4L)), 0, limit));
-        assertEquals(Arrays.asList(new ScalarReading(1, 1.0), new ScalarReading(2, 2.0)), readings);
+
+        int pageSize = 10;
+        int total = pageSize * 10;
+        List<ScalarReading> expected = Lists.newArrayList();
+        for (int index = 0; index < total; ++index) {
+            db.addScalarReading("tag", 0, index, 0.0);
+            expected.add(new ScalarReading(index, 0.0, "tag"));
+        }
+
+        TestObserver<ScalarReading> testObserver = new TestObserver<>();
+        Observable<ScalarReading> obs = db.createScalarObservable(new String[] {"tag"},
+                TimeRange.oldest(Range.closed(0L, (long) total)), 0, pageSize);
+        obs.subscribe(testObserver);
+        testObserver.assertNoErrors();
+        testObserver.assertValueSequence(expected);
     }
 
     @Test
-    public void testAddScalarReadingNoLimits() {
+    public void testObservable_coincidentTimestampsAcrossPages() {
         SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
-        db.addScalarReading("tag", 0, 1, 1.0);
-        db.addScalarReading("tag", 0, 2, 2.0);
-        db.addScalarReading("tag", 0, 3, 3.0);
-        List<ScalarReading> readings = ScalarReading.slurp(db.getScalarReadings("tag",
-                TimeRange.oldest(Range.<Long>all()), 0, 0));
-        assertEquals(Arrays.asList(new ScalarReading(1, 1.0), new ScalarReading(2, 2.0),
-                new ScalarReading(3, 3.0)), readings);
+        List<ScalarReading> expected = Lists.newArrayList();
+        for (int index = 0; index < 10; ++index) {
+            db.addScalarReading("a", 0, index, index);
+            db.addScalarReading("b", 0, index, -index);
+            expected.add(new ScalarReading(index, index, "a"));
+            expected.add(new ScalarReading(index, -index, "b"));
+        }
+
+        // Each page ends between the two sensors' readings at one timestamp.
+        TestObserver<ScalarReading> testObserver = new TestObserver<>();
+        db.createScalarObservable(new String[] {"a", "b"},
+                TimeRange.oldest(Range.closed(0L, 10L)), 0, 3).subscribe(testObserver);
+        testObserver.assertNoErrors();
+        testObserver.assertValueSequence(expected);
     }
 
     @Test
-    public void testAddScalarReadingTags() {
+    public void testPageReader_batchesKeepTimestampsWhole() {
         SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
-        db.addScalarReading("tag", 0, 1, 1.0);
-        db.addScalarReading("tag", 0, 2, 2.0);
-        db.addScalarReading("other", 0, 3, 3.0);
-        List<ScalarReading> readings = ScalarReading.slurp(db.getScalarReadings("tag",
-                TimeRange.oldest(Range.closed(0L, 4L)), 0, 0));
-        assertEquals(Arrays.asList(new ScalarReading(1, 1.0), new ScalarReading(2, 2.0)), readings);
+        db.addScalarReading("a", 0, 1, 1);
+        db.addScalarReading("a", 0, 2, 2);
+        db.addScalarReading("a", 0, 2, 3);
+        // More readings at one timestamp than fit in a batch.
+        for (int i = 0; i < 4; i++) {
+            db.addScalarReading("a", 0, 3, 4 + i);
+        }
+        db.addScalarReading("a", 0, 4, 8);
+        db.addScalarReading("b", 0, 2, 20);
+
+        List<ScalarReading> expected = Lists.newArrayList(new ScalarReading(1, 1, "a"),
+                new ScalarReading(2, 2, "a"), new ScalarReading(2, 3, "a"),
+                new ScalarReading(2, 20, "b"));
+        for (int i = 0; i < 4; i++) {
+            expected.add(new ScalarReading(3, 4 + i, "a"));
+        }
+        expected.add(new ScalarReading(4, 8, "a"));
+
+        List<ScalarReading> actual = Lists.newArrayList();
+        ScalarPageReader reader = db.openScalarPageReader(new String[] {"a", "b"},
+                TimeRange.oldest(Range.<Long>all()), 0, 2 /* batch size */);
+        ScalarReadingPage page = new ScalarReadingPage(3);
+        try {
+            while (reader.readNextPage(page)) {
+                for (int i = 0; i < page.size(); i++) {
+                    actual.add(new ScalarReading(page.getTimestampMillis(i), page.getValue(i),
+                            page.getSensorTag(i)));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        assertEquals(expected, actual);
     }
 
     @Test
-    public void testAddScalarReadingLimitsNewestFirst() {
+    public void testQueryPlan_singleSensorUsesCoveringIndex() {
         SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
         db.addScalarReading("tag", 0, 1, 1.0);
-        db.addScalarReading("tag", 0, 2, 2.0);
-        db.addScalarReading("tag", 0, 3, 3.0);
-        int limit = 2;
-        List<ScalarReading> readings = ScalarReading.slurp(db.getScalarReadings("tag",
-                TimeRange.newest(Range.closed(0L, 4L)), 0, limit));
-        assertEquals(Arrays.asList(new ScalarReading(3, 3.0), new ScalarReading(2, 2.0)), readings);
+
+        String plan = db.explainScalarQuery(new String[] {"tag"},
+                TimeRange.oldest(Range.closed(0L, 10L)), 0, 0);
+        assertTrue(plan, plan.contains("USING COVERING INDEX readings_by_series"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        plan = db.explainScalarQuery(new String[] {"tag"},
+                TimeRange.newest(Range.atLeast(0L)), 2, 100);
+        assertTrue(plan, plan.contains("USING COVERING INDEX readings_by_series"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
     }
 
     @Test
-    public void testAddScalarReadingRange() {
+    public void testQueryPlan_multipleSensorsUseCoveringIndex() {
         SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
         db.addScalarReading("tag", 0, 1, 1.0);
-        db.addScalarReading("tag", 0, 2, 2.0);
-        db.addScalarReading("tag", 0, 3, 3.0);
-        db.addScalarReading("tag", 0, 4, 4.0);
-        List<ScalarReading> readings = ScalarReading.slurp(db.getScalarReadings("tag",
-                TimeRange.oldest(Range.closedOpen(2L, 4L)), 0, 0));
-        assertEquals(Arrays.asList(new ScalarReading(2, 2.0), new ScalarReading(3, 3.0)), readings);
-
-        readings = ScalarReading.slurp(db.getScalarReadings("tag",
-                TimeRange.oldest(Range.open(2L, 4L)), 0, 0));
-        assertEquals(Arrays.asList(new ScalarReading(3, 3.0)), readings);
-
-        readings = ScalarReading.slurp(db.getScalarReadings("tag",
-                TimeRange.oldest(Range.openClosed(2L, 4L)), 0, 0));
-        assertEquals(Arrays.asList(new ScalarReading(3, 3.0), new ScalarReading(4, 4.0)), readings);
+        db.addScalarReading("tag2", 0, 1, 1.0);
+
+        String plan = db.explainScalarQuery(new String[] {"tag", "tag2"},
+                TimeRange.oldest(Range.closed(0L, 10L)), 0, 0);
+        assertTrue(plan, plan.contains("USING COVERING INDEX readings_by_series"));
+        assertFalse(plan, plan.contains("SCAN"));
     }
 
     @Test
-    public void testTiers() {
+    public void testUpgradeFromV3_readsBeforeAndAfterMigration() {
+        LegacySensorDatabase legacy = new LegacySensorDatabase(getContext(), TEST_DATABASE_NAME);
+        ScalarReadingBatch batch = new ScalarReadingBatch();
+        for (int i = 0; i < 10; i++) {
+            batch.add(i % 2 == 0 ? "even" : "odd", 0, i, i);
+        }
+        batch.add("even", 1, 0, 0);
+        legacy.addScalarReadings(batch);
+        legacy.close();
+
         SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
-        db.addScalarReading("tag", 0, 0, 0.0);
-        db.addScalarReading("tag", 1, 1, 1.0);
+        assertEquals(11, db.countLegacyReadings());
+        // Old and new readings are visible together while migration hasn't finished.
+        db.addScalarReading("even", 0, 10, 10);
+        assertEvenReadings(db, 0, 2, 4, 6, 8, 10);
+        assertEquals("odd", db.getFirstDatabaseTagAfter(0));
+
+        ExplicitExecutor sensorDataThread = new ExplicitExecutor();
+        final List<Long> progress = Lists.newArrayList();
+        final List<Long> completions = Lists.newArrayList();
+        new LegacyReadingMigrator(db, sensorDataThread, 4,
+                new LegacyReadingMigrator.ProgressListener() {
+                    @Override
+                    public void onProgress(long migratedReadings, long totalReadings) {
+                        assertEquals(11, totalReadings);
+                        progress.add(migratedReadings);
+                    }
+
+                    @Override
+                    public void onComplete(long totalReadings) {
+                        completions.add(totalReadings);
+                    }
+                }).start();
+
+        // One batch per task, so other work can run in between.
+        sensorDataThread.drain();
+        assertEquals(Arrays.asList(4L, 8L, 11L), progress);
+        assertEquals(Arrays.asList(11L), completions);
+        assertEquals(0, db.countLegacyReadings());
+
+        assertEvenReadings(db, 0, 2, 4, 6, 8, 10);
+        assertEquals(1, db.getScalarReadings("even", TimeRange.oldest(Range.<Long>all()), 1,
+                0).size());
+        assertEquals("odd", db.getFirstDatabaseTagAfter(0));
+        String plan = db.explainScalarQuery(new String[] {"even"},
+                TimeRange.oldest(Range.<Long>all()), 0, 0);
+        assertFalse(plan, plan.contains("scalar_sensors"));
+    }
 
-        List<ScalarReading> tier0 = ScalarReading.slurp(db.getScalarReadings("tag",
-                TimeRange.oldest(Range.<Long>all()), 0, 0));
-        assertEquals(Arrays.asList(new ScalarReading(0, 0.0)), tier0);
+    @Test
+    public void testUpgradeFromV3_deleteBeforeMigration() {
+        LegacySensorDatabase legacy = new LegacySensorDatabase(getContext(), TEST_DATABASE_NAME);
+        ScalarReadingBatch batch = new ScalarReadingBatch();
+        batch.add("even", 0, 0, 0);
+        batch.add("even", 0, 2, 2);
+        batch.add("even", 1, 2, 2);
+        legacy.addScalarReadings(batch);
+        legacy.close();
 
-        List<ScalarReading> tier1 = ScalarReading.slurp(db.getScalarReadings("tag",
-                TimeRange.oldest(Range.<Long>all()), 1, 0));
-        assertEquals(Arrays.asList(new ScalarReading(1, 1.0)), tier1);
+        SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
+        db.addScalarReading("even", 0, 4, 4);
+        db.deleteScalarReadings("even", TimeRange.oldest(Range.closed(2L, 4L)));
+        assertEvenReadings(db, 0);
+        assertEquals(1, db.countLegacyReadings());
     }
 
     @Test
-    public void testFirstTagAfter() {
+    public void testUpgradeFromV3_statsBeforeAndAfterMigration() {
+        LegacySensorDatabase legacy = new LegacySensorDatabase(getContext(), TEST_DATABASE_NAME);
+        ScalarReadingBatch batch = new ScalarReadingBatch();
+        for (int i = 0; i < 10; i++) {
+            batch.add("even", 0, i * 10000, i);
+        }
+        legacy.addScalarReadings(batch);
+        legacy.close();
+
         SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
-        db.addScalarReading("tagBefore", 0, 1, 1.0);
-        db.addScalarReading("tagAfter", 0, 3, 2.0);
-        assertEquals("tagAfter", db.getFirstDatabaseTagAfter(2));
+        db.addScalarReading("even", 0, 100000, 10);
+        TimeRange range = TimeRange.oldest(Range.closed(5000L, 100000L));
+        assertStats(db.getScalarStats("even", range), 10, 55, 1, 10);
+
+        ExplicitExecutor sensorDataThread = new ExplicitExecutor();
+        new LegacyReadingMigrator(db, sensorDataThread, 4,
+                new LegacyReadingMigrator.ProgressListener() {
+                    @Override
+                    public void onProgress(long migratedReadings, long totalReadings) {
+                    }
+
+                    @Override
+                    public void onComplete(long totalReadings) {
+                    }
+                }).start();
+        sensorDataThread.drain();
+        assertEquals(0, db.countLegacyReadings());
+
+        // Now from the summaries, which the migration filled in.
+        assertStats(db.getScalarStats("even", range), 10, 55, 1, 10);
+        db.deleteScalarReadings("even", TimeRange.oldest(Range.atLeast(95000L)));
+        assertStats(db.getScalarStats("even", range), 9, 45, 1, 9);
     }
 
     @Test
-    public void testFirstTagAfterWithMultipleAfters() {
+    public void testReclaimSpace_shrinksDatabaseAfterDelete() {
         SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
-        db.addScalarReading("tagBefore", 0, 1, 1.0);
-        db.addScalarReading("tagAfter", 0, 3, 2.0);
-        db.addScalarReading("tagFurtherAfter", 0, 5, 3.0);
-        assertEquals("tagAfter", db.getFirstDatabaseTagAfter(2));
+        addManyReadings(db);
+        long fullPages = pragma("page_count");
+
+        db.deleteScalarReadings("tag", TimeRange.oldest(Range.closed(0L, 8999L)));
+        assertEquals(fullPages, pragma("page_count"));
+        assertEquals(0, reclaimAll(db, 4096, 3));
+        assertTrue(pragma("page_count") < fullPages / 2);
+        assertEquals(0, pragma("freelist_count"));
+        assertEquals(1000, db.getScalarReadings("tag", TimeRange.oldest(Range.<Long>all()), 0,
+                0).size());
     }
 
     @Test
-    public void testDeleteReadings() {
+    public void testReclaimSpace_databaseCreatedBeforeIncrementalVacuum() {
+        LegacySensorDatabase legacy = new LegacySensorDatabase(getContext(), TEST_DATABASE_NAME);
+        legacy.close();
         SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
-        db.addScalarReading("tag", 0, 0, 0.0);
-        db.addScalarReading("tag", 0, 1, 1.0);
-        db.addScalarReading("tag", 0, 101, 2.0);
-        db.addScalarReading("tag", 0, 102, 2.0);
-        db.addScalarReading("tag", 0, 103, 2.0);
-        db.addScalarReading("tag2", 0, 0, 1.0);
-
-        assertEquals(2, db.getScalarReadings("tag",
-                TimeRange.oldest(Range.closed(0L, 1L)), 0, 0).size());
-
-        assertEquals(3, db.getScalarReadings("tag",
-                TimeRange.oldest(Range.closed(101L, 103L)), 0, 0).size());
-
-        assertEquals(1, db.getScalarReadings("tag2",
-                TimeRange.oldest(Range.closed(0L, 1L)), 0, 0).size());
-
-        // Delete first set of readings.
-        db.deleteScalarReadings("tag", TimeRange.newest(Range.closed(0L, 1L)));
-
-        assertEquals(0, db.getScalarReadings("tag",
-                TimeRange.oldest(Range.closed(0L, 1L)), 0, 0).size());
-
-        // Make sure other records for that tag are unaffected.
-        assertEquals(3, db.getScalarReadings("tag",
-                TimeRange.oldest(Range.closed(101L, 103L)), 0, 0).size());
-
-        // Make sure tag 2 is unaffected.
-        assertEquals(1, db.getScalarReadings("tag2",
-                TimeRange.oldest(Range.closed(0L, 1L)), 0, 0).size());
-
+        addManyReadings(db);
+        long fullPages = pragma("page_count");
+
+        db.deleteScalarReadings("tag", TimeRange.oldest(Range.closed(0L, 8999L)));
+        // The first step has to vacuum the whole file, after which there is nothing to reclaim.
+        assertEquals(0, reclaimAll(db, 4096, 1));
+        assertTrue(pragma("page_count") < fullPages / 2);
+        assertEquals(2, pragma("auto_vacuum"));
     }
 
     @Test
-    public void testObservable_oneSensor() {
+    public void testReclaimSpace_leavesLargeOldDatabaseUnconverted() {
+        LegacySensorDatabase legacy = new LegacySensorDatabase(getContext(), TEST_DATABASE_NAME);
+        legacy.close();
         SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
-        db.addScalarReading("tag", 0, 0, 0.0);
-        db.addScalarReading("tag", 0, 1, 1.5);
-        db.addScalarReading("tag", 0, 101, 2.0);
-        db.addScalarReading("tag", 0, 102, 2.0);
-        db.addScalarReading("tag", 0, 103, 2.0);
-        db.addScalarReading("tag2", 0, 0, 1.0);
+        addManyReadings(db);
+        db.deleteScalarReadings("tag", TimeRange.oldest(Range.closed(0L, 8999L)));
+        db.close();
+        long fullPages = pragma("page_count");
+
+        SQLiteDatabase raw = SQLiteDatabase.openDatabase(
+                getContext().getDatabasePath(TEST_DATABASE_NAME).getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        try {
+            // Too much is still in use to copy in one step.
+            assertEquals(0, IncrementalVacuum.reclaim(raw, 4096, 4096));
+        } finally {
+            raw.close();
+        }
+        assertEquals(fullPages, pragma("page_count"));
+        assertEquals(0, pragma("auto_vacuum"));
+    }
 
-        TestObserver<ScalarReading> testObserver = new TestObserver<>();
-        Observable<ScalarReading> obs = db.createScalarObservable(new String[] {"tag"},
-                TimeRange.oldest(Range.closed(0L, 1L)), 0);
-        obs.subscribe(testObserver);
-        testObserver.assertNoErrors();
-        testObserver.assertValues(new ScalarReading(0, 0.0, "tag"),
-                new ScalarReading(1, 1.5, "tag"));
+    /**
+     * @return the value of {@code PRAGMA name}, read through a separate connection.
+     */
+    private long pragma(String name) {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(
+                getContext().getDatabasePath(TEST_DATABASE_NAME).getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            return DatabaseUtils.longForQuery(db, "PRAGMA " + name, null);
+        } finally {
+            db.close();
+        }
     }
 
-    @Test
-    public void testObservable_multipleSensors() {
-        SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
-        db.addScalarReading("tag", 0, 0, 0.0);
-        db.addScalarReading("tag", 0, 3, 1.0);
-        db.addScalarReading("tag", 0, 101, 2.0);
-        db.addScalarReading("tag", 0, 102, 2.0);
-        db.addScalarReading("tag", 0, 103, 2.0);
-        db.addScalarReading("tag2", 0, 1, 3.0);
-        db.addScalarReading("tag2", 0, 2, 4.0);
+    private void addManyReadings(SensorDatabase db) {
+        ScalarReadingBatch batch = new ScalarReadingBatch();
+        for (int i = 0; i < 10000; i++) {
+            batch.add("tag", 0, i, i);
+        }
+        db.addScalarReadings(batch);
+    }
 
-        TestObserver<ScalarReading> testObserver = new TestObserver<>();
-        Observable<ScalarReading> obs = db.createScalarObservable(new String[] {"tag", "tag2"},
-                TimeRange.oldest(Range.closed(0L, 3L)), 0);
-        obs.subscribe(testObserver);
-        testObserver.assertNoErrors();
-        testObserver.assertValues(new ScalarReading(0, 0.0, "tag"),
-                new ScalarReading(1, 3.0, "tag2"),
-                new ScalarReading(2, 4.0, "tag2"),
-                new ScalarReading(3, 1.0, "tag"));
+    /**
+     * Calls {@link SensorDatabase#reclaimSpace} until it returns 0, checking that it takes at
+     * least {@code minSteps}, and returns what the next call frees.
+     */
+    private long reclaimAll(SensorDatabase db, long maxBytes, int minSteps) {
+        int steps = 0;
+        while (db.reclaimSpace(maxBytes) > 0) {
+            steps++;
+        }
+        assertTrue("Only " + steps + " steps", steps >= minSteps);
+        return db.reclaimSpace(maxBytes);
     }
 
-    @Test
-    public void testObservable_paging() {
-        SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
+    private static void assertStats(ScalarStats stats, long count, double sum, double min,
+            double max) {
+        assertEquals(stats.toString(), count, stats.getCount());
+        assertEquals(stats.toString(), sum, stats.getSum(), 0);
+        assertEquals(stats.toString(), min, stats.getMin(), 0);
+        assertEquals(stats.toString(), max, stats.getMax(), 0);
+    }
 
-        int pageSize = 10;
-        int total = pageSize * 10;
+    private void assertEvenReadings(SensorDatabase db, long... timestamps) {
         List<ScalarReading> expected = Lists.newArrayList();
-        for (int index = 0; index < total; ++index) {
-            db.addScalarReading("tag", 0, index, 0.0);
-            expected.add(new ScalarReading(index, 0.0, "tag"));
+        for (long timestamp : timestamps) {
+            expected.add(new ScalarReading(timestamp, timestamp, "even"));
         }
-
         TestObserver<ScalarReading> testObserver = new TestObserver<>();
-        Observable<ScalarReading> obs = db.createScalarObservable(new String[] {"tag"},
-                TimeRange.oldest(Range.closed(0L, (long) total)), 0, pageSize);
-        obs.subscribe(testObserver);
+        db.createScalarObservable(new String[] {"even"}, TimeRange.oldest(Range.closed(0L, 100L)),
+                0).subscribe(testObserver);
         testObserver.assertNoErrors();
         testObserver.assertValueSequence(expected);
     }
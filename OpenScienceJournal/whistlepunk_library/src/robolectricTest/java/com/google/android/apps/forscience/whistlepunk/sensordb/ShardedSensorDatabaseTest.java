@@ -0,0 +1,285 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.annotation.Nullable;
+
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeMap;
+import com.google.common.collect.TreeRangeMap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class ShardedSensorDatabaseTest extends AbstractSensorDatabaseTest {
+    private static final TimeRange ALL = TimeRange.oldest(Range.<Long>all());
+
+    private final MemoryShards mShards = new MemoryShards();
+    private final InMemorySensorDatabase mUnsharded = new InMemorySensorDatabase();
+
+    @Override
+    protected SensorDatabase makeDatabase() {
+        // Readings go to a shard, and reads merge it with the unsharded database.
+        ShardedSensorDatabase db = makeShardedDatabase();
+        db.startExperimentRecording("a", 2L);
+        return db;
+    }
+
+    @Test
+    public void testReadingsGoToTheRecordingExperiment() {
+        ShardedSensorDatabase db = makeShardedDatabase();
+        db.addScalarReading("tag", 0, 5, 5);
+        db.startExperimentRecording("a", 10L);
+        db.addScalarReading("tag", 0, 10, 10);
+        db.addScalarReading("tag", 0, 15, 15);
+        db.stopExperimentRecording("a", Range.closed(10L, 19L));
+        db.addScalarReading("tag", 0, 25, 25);
+        db.startExperimentRecording("b", 30L);
+        ScalarReadingBatch batch = new ScalarReadingBatch();
+        batch.add("tag", 0, 30, 30);
+        batch.add("tag", 0, 35, 35);
+        db.addScalarReadings(batch);
+        db.stopExperimentRecording("b", Range.closed(30L, 39L));
+
+        assertEquals(readings(5, 25), read(mUnsharded));
+        assertEquals(readings(10, 15), read(mShards.get("a")));
+        assertEquals(readings(30, 35), read(mShards.get("b")));
+        assertEquals(readings(5, 10, 15, 25, 30, 35), read(db));
+        assertEquals(readings(35, 30, 25), ScalarReading.slurp(
+                db.getScalarReadings("tag", TimeRange.newest(Range.<Long>all()), 0, 3)));
+    }
+
+    @Test
+    public void testStopReplacesOpenEndedRoute() {
+        ShardedSensorDatabase db = makeShardedDatabase();
+        db.startExperimentRecording("a", 10L);
+        assertEquals(Collections.singletonMap(Range.atLeast(10L), "a"),
+                mShards.loadRoutes().asMapOfRanges());
+
+        db.stopExperimentRecording("a", Range.closed(10L, 19L));
+        assertEquals(Collections.singletonMap(Range.closed(10L, 19L), "a"),
+                mShards.loadRoutes().asMapOfRanges());
+    }
+
+    @Test
+    public void testReadingsStayWithTheirExperiment() {
+        ShardedSensorDatabase db = makeShardedDatabase();
+        db.startExperimentRecording("a", 10L);
+        db.addScalarReading("tag", 0, 15, 15);
+        db.stopExperimentRecording("a", Range.closed(10L, 19L));
+        db.startExperimentRecording("b", 30L);
+        db.addScalarReading("tag", 0, 35, 35);
+        // Stamped by a clock that was set back, inside "a"'s times.
+        db.addScalarReading("tag", 0, 12, 12);
+        db.stopExperimentRecording("b", Range.closed(30L, 39L));
+
+        assertEquals(readings(12, 35), read(mShards.get("b")));
+        db.deleteExperimentReadings("a");
+        assertEquals(readings(12, 35), read(db));
+    }
+
+    @Test
+    public void testDeleteExperimentReadings() {
+        ShardedSensorDatabase db = makeShardedDatabase();
+        db.addScalarReading("tag", 0, 5, 5);
+        db.startExperimentRecording("a", 10L);
+        db.addScalarReading("tag", 0, 15, 15);
+        db.stopExperimentRecording("a", Range.closed(10L, 19L));
+        db.startExperimentRecording("b", 20L);
+        db.addScalarReading("tag", 0, 25, 25);
+        db.stopExperimentRecording("b", Range.closed(20L, 29L));
+
+        db.deleteExperimentReadings("a");
+
+        assertEquals(Arrays.asList("a"), mShards.mDeleted);
+        assertFalse(mShards.getExperimentIds().contains("a"));
+        assertEquals(readings(5, 25), read(db));
+        assertEquals(Collections.singletonMap(Range.closed(20L, 29L), "b"),
+                mShards.loadRoutes().asMapOfRanges());
+    }
+
+    @Test
+    public void testDeleteWhileRecording() {
+        ShardedSensorDatabase db = makeShardedDatabase();
+        db.startExperimentRecording("a", 10L);
+        db.addScalarReading("tag", 0, 15, 15);
+
+        db.deleteExperimentReadings("a");
+        db.addScalarReading("tag", 0, 16, 16);
+        assertEquals(readings(16), read(mUnsharded));
+        assertFalse(mShards.getExperimentIds().contains("a"));
+    }
+
+    @Test
+    public void testSensorTagsFromEveryShard() {
+        ShardedSensorDatabase db = makeShardedDatabase();
+        db.addScalarReading("unsharded", 0, 5, 5);
+        db.startExperimentRecording("a", 10L);
+        db.addScalarReading("sharded", 0, 15, 15);
+
+        List<String> tags = db.getSensorTags();
+        assertEquals(2, tags.size());
+        assertTrue(tags.contains("unsharded"));
+        assertTrue(tags.contains("sharded"));
+    }
+
+    @Test
+    public void testInterruptedRecordingFoundAfterRestart() {
+        ShardedSensorDatabase db = makeShardedDatabase();
+        db.startExperimentRecording("a", 10L);
+        db.addScalarReading("tag", 0, 15, 15);
+
+        // Killed while recording; nothing is recording after the restart.
+        ShardedSensorDatabase restarted = makeShardedDatabase();
+        assertEquals(readings(15), read(restarted));
+        restarted.addScalarReading("tag", 0, 16, 16);
+        assertEquals(readings(16), read(mUnsharded));
+
+        // Once the trial is closed, its readings are still found.
+        restarted.stopExperimentRecording("a", Range.closed(10L, 15L));
+        assertEquals(readings(15, 16), read(makeShardedDatabase()));
+    }
+
+    @Test
+    public void testSensorTagsClosesShardsItOpens() {
+        ShardedSensorDatabase db = makeShardedDatabase();
+        db.startExperimentRecording("a", 10L);
+        db.addScalarReading("tag", 0, 15, 15);
+        mShards.open("b").addScalarReading("other", 0, 25, 25);
+
+        assertEquals(2, db.getSensorTags().size());
+        // "a" stays open for the readings it is recording.
+        assertEquals(1, mShards.mClosed.size());
+        assertTrue(mShards.mClosed.contains(mShards.get("b")));
+    }
+
+    @Test
+    public void testDeleteWaitsForReadsInProgress() {
+        ShardedSensorDatabase db = makeShardedDatabase();
+        db.startExperimentRecording("a", 10L);
+        db.addScalarReading("tag", 0, 15, 15);
+        db.stopExperimentRecording("a", Range.closed(10L, 19L));
+        ScalarPageReader reader = db.openScalarPageReader(new String[] {"tag"}, ALL, 0);
+
+        db.deleteExperimentReadings("a");
+        assertTrue(mShards.mDeleted.isEmpty());
+        assertTrue(mShards.mClosed.isEmpty());
+        ScalarReadingPage page = new ScalarReadingPage(10);
+        assertTrue(reader.readNextPage(page));
+        assertEquals(15, page.getTimestampMillis(0));
+
+        reader.close();
+        assertEquals(Arrays.asList("a"), mShards.mDeleted);
+    }
+
+    @Test
+    public void testEveryUseOfAShardSharesOneInstance() {
+        ShardedSensorDatabase db = makeShardedDatabase();
+        db.startExperimentRecording("a", 10L);
+        db.addScalarReading("tag", 0, 15, 15);
+        db.stopExperimentRecording("a", Range.closed(10L, 19L));
+
+        db.getSensorTags();
+        db.reclaimSpace(4096);
+        assertEquals(Arrays.asList("a"), mShards.mOpened);
+        assertTrue(mShards.mClosed.isEmpty());
+    }
+
+    private ShardedSensorDatabase makeShardedDatabase() {
+        return new ShardedSensorDatabase(mShards, mUnsharded);
+    }
+
+    private static List<ScalarReading> read(SensorDatabase db) {
+        return ScalarReading.slurp(db.getScalarReadings("tag", ALL, 0, 0));
+    }
+
+    private static List<ScalarReading> readings(long... timestamps) {
+        List<ScalarReading> readings = new ArrayList<>();
+        for (long timestamp : timestamps) {
+            readings.add(new ScalarReading(timestamp, timestamp));
+        }
+        return readings;
+    }
+
+    private static class MemoryShards implements ShardedSensorDatabase.Shards {
+        private final Map<String, InMemorySensorDatabase> mShards = new LinkedHashMap<>();
+        private final List<String> mOpened = new ArrayList<>();
+        private final List<String> mDeleted = new ArrayList<>();
+        private final List<SensorDatabase> mClosed = new ArrayList<>();
+        private final RangeMap<Long, String> mRoutes = TreeRangeMap.create();
+
+        InMemorySensorDatabase get(String experimentId) {
+            return mShards.get(experimentId);
+        }
+
+        @Override
+        public SensorDatabase open(String experimentId) {
+            mOpened.add(experimentId);
+            InMemorySensorDatabase shard = mShards.get(experimentId);
+            if (shard == null) {
+                shard = new InMemorySensorDatabase();
+                mShards.put(experimentId, shard);
+            }
+            return shard;
+        }
+
+        @Override
+        public List<String> getExperimentIds() {
+            return new ArrayList<>(mShards.keySet());
+        }
+
+        @Override
+        public void delete(String experimentId, @Nullable SensorDatabase opened) {
+            mShards.remove(experimentId);
+            mDeleted.add(experimentId);
+        }
+
+        @Override
+        public void close(SensorDatabase opened) {
+            mClosed.add(opened);
+        }
+
+        @Override
+        public RangeMap<Long, String> loadRoutes() {
+            RangeMap<Long, String> routes = TreeRangeMap.create();
+            routes.putAll(mRoutes);
+            return routes;
+        }
+
+        @Override
+        public void saveRoutes(RangeMap<Long, String> routes) {
+            mRoutes.clear();
+            mRoutes.putAll(routes);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class StripedExecutorTest {
+    private static final int LANES = 4;
+
+    private final List<ExecutorService> mThreads = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ExecutorService thread : mThreads) {
+            thread.shutdownNow();
+        }
+    }
+
+    @Test
+    public void sameKeySameLane() {
+        StripedExecutor executor = makeExecutor();
+        for (int i = 0; i < 100; i++) {
+            String key = "sensor" + i;
+            int lane = executor.laneFor(key);
+            assertTrue(lane >= 0 && lane < LANES);
+            assertEquals(lane, executor.laneFor(key));
+        }
+    }
+
+    @Test
+    public void exclusiveCommandWaitsForEveryLane() throws InterruptedException {
+        StripedExecutor executor = makeExecutor();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        for (int round = 0; round < 50; round++) {
+            for (int lane = 0; lane < LANES; lane++) {
+                final String event = "lane" + lane + "-" + round;
+                executor.getLane(lane).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        running.incrementAndGet();
+                        events.add(event);
+                        running.decrementAndGet();
+                    }
+                });
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Failures on the lanes' threads wouldn't fail the test, so count them.
+                    if (running.get() != 0) {
+                        overlaps.incrementAndGet();
+                    }
+                    events.add("exclusive");
+                }
+            });
+        }
+        awaitExclusive(executor);
+
+        assertEquals(0, overlaps.get());
+        assertEquals(50 * (LANES + 1), events.size());
+        int exclusive = 0;
+        for (int i = 0; i < events.size(); i++) {
+            if (events.get(i).equals("exclusive")) {
+                exclusive++;
+                assertEquals(exclusive * (LANES + 1) - 1, i);
+            }
+        }
+        assertEquals(50, exclusive);
+    }
+
+    @Test
+    public void exclusiveCommandsFromManyThreadsDontDeadlock() throws InterruptedException {
+        final StripedExecutor executor = makeExecutor();
+        final AtomicInteger ran = new AtomicInteger();
+        ExecutorService submitters = Executors.newFixedThreadPool(4);
+        mThreads.add(submitters);
+        for (int i = 0; i < 200; i++) {
+            submitters.execute(new Runnable() {
+                @Override
+                public void run() {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            ran.incrementAndGet();
+                        }
+                    });
+                }
+            });
+        }
+        submitters.shutdown();
+        assertTrue(submitters.awaitTermination(10, TimeUnit.SECONDS));
+        awaitExclusive(executor);
+        assertEquals(200, ran.get());
+    }
+
+    @Test
+    public void oneLaneRunsInline() {
+        final List<Runnable> posted = new ArrayList<>();
+        StripedExecutor executor = new StripedExecutor(posted::add);
+        Runnable command = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        executor.execute(command);
+        assertEquals(Collections.singletonList(command), posted);
+        assertEquals(0, executor.laneFor("anything"));
+    }
+
+    private StripedExecutor makeExecutor() {
+        ExecutorService[] lanes = new ExecutorService[LANES];
+        for (int i = 0; i < LANES; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor();
+            mThreads.add(lanes[i]);
+        }
+        return new StripedExecutor(lanes);
+    }
+
+    static void awaitExclusive(StripedExecutor executor) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(done::countDown);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+import com.google.android.apps.forscience.whistlepunk.MockScheduler;
+import com.google.common.collect.Range;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class StripedScalarWriterTest {
+    private static final int LANES = 3;
+    private static final String[] TAGS = {"a", "b", "c", "d", "e", "f", "g"};
+
+    private final InMemorySensorDatabase mDb = new InMemorySensorDatabase();
+    private final List<ExecutorService> mThreads = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ExecutorService thread : mThreads) {
+            thread.shutdownNow();
+        }
+    }
+
+    @Test
+    public void keepsEachSensorsOrder() throws InterruptedException {
+        StripedExecutor lanes = makeLanes();
+        final StripedScalarWriter writer = makeWriter(lanes);
+        ExecutorService sensors = Executors.newFixedThreadPool(TAGS.length);
+        mThreads.add(sensors);
+        for (final String tag : TAGS) {
+            sensors.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        writer.addScalarReading(tag, i % 2, i, i);
+                    }
+                }
+            });
+        }
+        sensors.shutdown();
+        assertTrue(sensors.awaitTermination(10, TimeUnit.SECONDS));
+        writeEverything(lanes, writer);
+
+        for (int tier = 0; tier < 2; tier++) {
+            Map<String, List<Long>> byTag = groupByTag(mDb.getReadings(tier));
+            for (String tag : TAGS) {
+                List<Long> times = byTag.get(tag);
+                assertEquals(1000, times.size());
+                for (int i = 0; i < times.size(); i++) {
+                    assertEquals(2 * i + tier, (long) times.get(i));
+                }
+            }
+        }
+        assertEquals(0, writer.getDroppedReadingCount());
+    }
+
+    @Test
+    public void deletesStayInOrderWithWrites() throws InterruptedException {
+        final StripedExecutor lanes = makeLanes();
+        final StripedScalarWriter writer = makeWriter(lanes);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 50; i++) {
+                for (String tag : TAGS) {
+                    writer.addScalarReading(tag, 0, round * 50 + i, round);
+                }
+            }
+            // Like deleting a trial: everything added so far goes, nothing added after does.
+            lanes.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writer.writePendingReadings();
+                    for (String tag : TAGS) {
+                        mDb.deleteScalarReadings(tag, TimeRange.oldest(Range.<Long>all()));
+                    }
+                }
+            });
+        }
+        for (String tag : TAGS) {
+            writer.addScalarReading(tag, 0, 1000, 20);
+        }
+        writeEverything(lanes, writer);
+
+        List<InMemorySensorDatabase.Reading> readings = mDb.getReadings(0);
+        assertEquals(TAGS.length, readings.size());
+        for (InMemorySensorDatabase.Reading reading : readings) {
+            assertEquals(1000, reading.getTimestampMillis());
+        }
+    }
+
+    @Test
+    public void backlogIsFullestLane() {
+        final List<Runnable> neverRun = new ArrayList<>();
+        StripedExecutor lanes = new StripedExecutor(neverRun::add, neverRun::add);
+        StripedScalarWriter writer = new StripedScalarWriter(mDb, lanes,
+                new IncrementableMonotonicClock(), new MockScheduler(), 8, 1000, 8, null, null);
+        String tag = TAGS[0];
+        for (int i = 0; i < 4; i++) {
+            writer.addScalarReading(tag, 0, i, i);
+        }
+        assertEquals(0.5, writer.getBacklog(), 0.001);
+        for (int i = 0; i < 12; i++) {
+            writer.addScalarReading(tag, 0, i, i);
+        }
+        assertEquals(1.0, writer.getBacklog(), 0.001);
+        assertEquals(8, writer.getDroppedReadingCount());
+    }
+
+    @Test
+    public void writingOneSensorDoesntWaitForOtherLanes() {
+        // "b" goes to the first lane, which never runs; "a" to the second, which runs at once.
+        final List<Runnable> neverRun = new ArrayList<>();
+        StripedExecutor lanes = new StripedExecutor(neverRun::add, Runnable::run);
+        StripedScalarWriter writer = new StripedScalarWriter(mDb, lanes,
+                new IncrementableMonotonicClock(), new MockScheduler(), 8, 1000, 8, null, null);
+        for (int i = 0; i < 4; i++) {
+            writer.addScalarReading("a", 0, i, i);
+            writer.addScalarReading("b", 0, i, i);
+        }
+
+        final List<String> ran = new ArrayList<>();
+        writer.writePendingReadings(new String[] {"a"}, () -> ran.add("a"));
+        assertEquals(1, ran.size());
+        assertEquals(4, mDb.getReadings(0).size());
+
+        writer.writePendingReadings(new String[] {"a", "b"}, () -> ran.add("a, b"));
+        assertEquals(1, ran.size());
+        for (Runnable runnable : new ArrayList<>(neverRun)) {
+            runnable.run();
+        }
+        assertEquals(2, ran.size());
+        assertEquals(8, mDb.getReadings(0).size());
+    }
+
+    private StripedExecutor makeLanes() {
+        ExecutorService[] lanes = new ExecutorService[LANES];
+        for (int i = 0; i < LANES; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor();
+            mThreads.add(lanes[i]);
+        }
+        return new StripedExecutor(lanes);
+    }
+
+    private StripedScalarWriter makeWriter(StripedExecutor lanes) {
+        return new StripedScalarWriter(mDb, lanes, new IncrementableMonotonicClock(), null, 64,
+                1000, BatchingScalarWriter.DEFAULT_CAPACITY, null, null);
+    }
+
+    private static void writeEverything(StripedExecutor lanes, final StripedScalarWriter writer)
+            throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        lanes.execute(new Runnable() {
+            @Override
+            public void run() {
+                writer.writePendingReadings();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    private static Map<String, List<Long>> groupByTag(
+            List<InMemorySensorDatabase.Reading> readings) {
+        Map<String, List<Long>> byTag = new HashMap<>();
+        for (InMemorySensorDatabase.Reading reading : readings) {
+            List<Long> times = byTag.get(reading.getDatabaseTag());
+            if (times == null) {
+                times = new ArrayList<>();
+                byTag.put(reading.getDatabaseTag(), times);
+            }
+            times.add(reading.getTimestampMillis());
+        }
+        return byTag;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+import com.google.android.apps.forscience.whistlepunk.MemorySensorHistoryStorage;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.DerivedExpression;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.DerivedSensorEngine;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.FakeBleClient;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ManualSensor;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.MemorySensorEnvironment;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.RecordingSensorObserver;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorRecorder;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StubStatusListener;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class DerivedSensorTest {
+    private final InMemorySensorDatabase mDb = new InMemorySensorDatabase();
+    private final MemorySensorEnvironment mEnvironment = new MemorySensorEnvironment(
+            mDb.makeSimpleRecordingController(new MemoryMetadataManager()),
+            new FakeBleClient(null), new MemorySensorHistoryStorage(), null);
+
+    @Test
+    public void recordsRatioOfAlignedInputs() {
+        ManualSensor a = new ManualSensor("a", 1000, 10);
+        ManualSensor b = new ManualSensor("b", 1000, 10);
+        DerivedSensor ratio = new DerivedSensor("ratio", "a / b",
+                ImmutableMap.of("a", "a", "b", "b"), 10, MoreExecutors.directExecutor());
+
+        SensorRecorder aRecorder = startRecording(a);
+        SensorRecorder bRecorder = startRecording(b);
+        SensorRecorder ratioRecorder = startRecording(ratio);
+
+        a.pushValue(1, 6);   // no b yet
+        b.pushValue(2, 3);   // 6 / 3
+        a.pushValue(5, 9);   // 9 / 3
+        b.pushValue(6, 0);   // divide by zero is skipped
+        a.pushValue(20, 8);  // b is too old to line up with
+        b.pushValue(21, 4);  // 8 / 4
+
+        ratioRecorder.stopRecording(null);
+        aRecorder.stopRecording(null);
+        bRecorder.stopRecording(null);
+
+        assertEquals(Lists.newArrayList(
+                new InMemorySensorDatabase.Reading("ratio", 2, 2),
+                new InMemorySensorDatabase.Reading("ratio", 5, 3),
+                new InMemorySensorDatabase.Reading("ratio", 21, 2)),
+                readingsFor("ratio", 0));
+        // Zoom tiers are built for it like any other sensor.
+        assertFalse(readingsFor("ratio", 1).isEmpty());
+    }
+
+    @Test
+    public void noValuesOnceStopped() {
+        ManualSensor a = new ManualSensor("a", 1000, 10);
+        DerivedSensor doubled = new DerivedSensor("doubled", "2 * a",
+                ImmutableMap.of("a", "a"), 10, MoreExecutors.directExecutor());
+        startRecording(a);
+        SensorRecorder doubledRecorder = startRecording(doubled);
+
+        a.pushValue(1, 1);
+        doubledRecorder.stopRecording(null);
+        doubledRecorder.stopObserving();
+        a.pushValue(2, 2);
+
+        assertEquals(Lists.newArrayList(new InMemorySensorDatabase.Reading("doubled", 1, 2)),
+                readingsFor("doubled", 0));
+        assertFalse(mEnvironment.getDerivedSensorEngine().isAttached("doubled"));
+    }
+
+    @Test
+    public void unboundVariable() {
+        try {
+            new DerivedSensor("sum", "a + b", ImmutableMap.of("a", "a"), 10,
+                    MoreExecutors.directExecutor());
+            fail("b has no sensor");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void cannotDependOnItself() {
+        DerivedSensorEngine engine = new DerivedSensorEngine();
+        StreamConsumer ignore = (timestampMillis, value) -> true;
+        engine.attach("b", DerivedExpression.parse("a"), Collections.singletonList("a"), 10,
+                ignore);
+        try {
+            engine.attach("a", DerivedExpression.parse("b"), Collections.singletonList("b"), 10,
+                    ignore);
+            fail("a depends on b, which depends on a");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        assertTrue(engine.isAttached("b"));
+        assertFalse(engine.isAttached("a"));
+    }
+
+    private SensorRecorder startRecording(ScalarSensor sensor) {
+        SensorRecorder recorder = sensor.createRecorder(null, new RecordingSensorObserver(),
+                new StubStatusListener(), mEnvironment);
+        recorder.startObserving();
+        recorder.startRecording("runId");
+        return recorder;
+    }
+
+    private List<InMemorySensorDatabase.Reading> readingsFor(String sensorId, int tier) {
+        List<InMemorySensorDatabase.Reading> readings = Lists.newArrayList();
+        for (InMemorySensorDatabase.Reading reading : mDb.getReadings(tier)) {
+            if (reading.getDatabaseTag().equals(sensorId)) {
+                readings.add(reading);
+            }
+        }
+        return readings;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.forscience.whistlepunk.BuildConfig;
+import com.google.android.apps.forscience.whistlepunk.DataController;
+import com.google.android.apps.forscience.whistlepunk.MockScheduler;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MonotonicClock;
+import com.google.common.collect.Range;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class TrialReplayerTest {
+    private final InMemorySensorDatabase mDb = new InMemorySensorDatabase();
+    private final DataController mDataController =
+            mDb.makeSimpleController(new MemoryMetadataManager());
+    private final RecordingConsumer mConsumer = new RecordingConsumer();
+    private final RecordingListener mListener = new RecordingListener();
+
+    @Test
+    public void asFastAsPossibleReplaysWholeRangeAcrossPages() {
+        mDb.addScalarReading("tag", 0, 500, -1);
+        for (int i = 0; i < 1234; i++) {
+            mDb.addScalarReading("tag", 0, 1000 + i * 10, i);
+        }
+        mDb.addScalarReading("other", 0, 1005, -1);
+
+        // MonotonicClock starts at 1.
+        TrialReplayer replayer = new TrialReplayer(mDataController, "tag",
+                Range.closed(1000L, 1000L + 1233 * 10), TrialReplayer.AS_FAST_AS_POSSIBLE,
+                new MonotonicClock(), null, 100, mConsumer, mListener);
+        replayer.start();
+
+        assertFalse(replayer.isRunning());
+        assertEquals(1234, mListener.finishedCount);
+        assertEquals(1234, mConsumer.timestamps.size());
+        for (int i = 0; i < 1234; i++) {
+            assertEquals(1 + i * 10, (long) mConsumer.timestamps.get(i));
+            assertEquals(i, mConsumer.values.get(i), 0.0);
+        }
+    }
+
+    @Test
+    public void readingsAtTheSameTimeAcrossPagesArePlayedOnce() {
+        // Three readings at each time, so that most pages of four end partway through a time.
+        for (int i = 0; i < 12; i++) {
+            mDb.addScalarReading("tag", 0, 1000 + (i / 3) * 10, i);
+        }
+
+        TrialReplayer replayer = new TrialReplayer(mDataController, "tag",
+                Range.closed(1000L, 1030L), TrialReplayer.AS_FAST_AS_POSSIBLE,
+                new MonotonicClock(), null, 4, mConsumer, mListener);
+        replayer.start();
+
+        assertEquals(12, mListener.finishedCount);
+        assertEquals(12, mConsumer.values.size());
+        for (int i = 0; i < 12; i++) {
+            assertEquals(i, mConsumer.values.get(i), 0.0);
+            assertEquals(1 + (i / 3) * 10, (long) mConsumer.timestamps.get(i));
+        }
+    }
+
+    @Test
+    public void pacedReplayPassesReadingsOnWhenDue() {
+        for (int i = 0; i < 4; i++) {
+            mDb.addScalarReading("tag", 0, 5000 + i * 100, i);
+        }
+        MockScheduler scheduler = new MockScheduler();
+        TrialReplayer replayer = new TrialReplayer(mDataController, "tag",
+                Range.closed(5000L, 6000L), 2, scheduler.getClock(), scheduler, 2, mConsumer,
+                mListener);
+        replayer.start();
+        assertEquals(1, mConsumer.timestamps.size());
+
+        scheduler.incrementTime(49);
+        assertEquals(1, mConsumer.timestamps.size());
+        scheduler.incrementTime(1);
+        assertEquals(2, mConsumer.timestamps.size());
+        assertTrue(replayer.isRunning());
+
+        scheduler.incrementTime(100);
+        assertFalse(replayer.isRunning());
+        assertEquals(4, mListener.finishedCount);
+        assertEquals(0, (long) mConsumer.timestamps.get(0));
+        assertEquals(50, (long) mConsumer.timestamps.get(1));
+        assertEquals(100, (long) mConsumer.timestamps.get(2));
+        assertEquals(150, (long) mConsumer.timestamps.get(3));
+        assertEquals(3, mConsumer.values.get(3), 0.0);
+    }
+
+    @Test
+    public void stopHaltsReplay() {
+        for (int i = 0; i < 4; i++) {
+            mDb.addScalarReading("tag", 0, i * 100, i);
+        }
+        MockScheduler scheduler = new MockScheduler();
+        TrialReplayer replayer = new TrialReplayer(mDataController, "tag",
+                Range.closed(0L, 1000L), 1, scheduler.getClock(), scheduler,
+                TrialReplayer.DEFAULT_PAGE_SIZE, mConsumer, mListener);
+        replayer.start();
+        replayer.stop();
+        scheduler.incrementTime(1000);
+
+        assertFalse(replayer.isRunning());
+        assertEquals(1, replayer.getPlayedCount());
+        assertEquals(1, mConsumer.timestamps.size());
+        assertEquals(-1, mListener.finishedCount);
+
+        // Starting again plays from the beginning.
+        replayer.start();
+        scheduler.incrementTime(300);
+        assertEquals(4, mListener.finishedCount);
+        assertEquals(5, mConsumer.timestamps.size());
+        assertEquals(1000, (long) mConsumer.timestamps.get(1));
+    }
+
+    private static class RecordingConsumer implements StreamConsumer {
+        final List<Long> timestamps = new ArrayList<>();
+        final List<Double> values = new ArrayList<>();
+
+        @Override
+        public boolean addData(long timestampMillis, double value) {
+            timestamps.add(timestampMillis);
+            values.add(value);
+            return true;
+        }
+    }
+
+    private static class RecordingListener implements TrialReplayer.Listener {
+        long finishedCount = -1;
+
+        @Override
+        public void onReplayFinished(long readingCount) {
+            finishedCount = readingCount;
+        }
+
+        @Override
+        public void onReplayFailed(Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}
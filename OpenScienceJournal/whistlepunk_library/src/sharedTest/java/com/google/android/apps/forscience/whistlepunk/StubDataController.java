@@ -26,11 +26,14 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciUserMetadat
 import com.google.android.apps.forscience.whistlepunk.metadata.MetaDataManager;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingPage;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarStats;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
 
 import java.util.List;
 import java.util.Map;
 
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
 
 /**
@@ -50,11 +53,57 @@ public class StubDataController implements DataController {
         return null;
     }
 
+    @Override
+    public void getScalarReadingPage(String databaseTag, int resolutionTier, TimeRange timeRange,
+            ScalarReadingPage page, MaybeConsumer<ScalarReadingPage> onSuccess) {
+
+    }
+
+    @Override
+    public void prefetchScalarReadings(String databaseTag, int resolutionTier,
+            TimeRange timeRange) {
+
+    }
+
+    @Override
+    public void getScalarStats(String databaseTag, TimeRange timeRange,
+            MaybeConsumer<ScalarStats> onSuccess) {
+
+    }
+
+    @Override
+    public Flowable<ScalarReadingPage> createScalarPageFlowable(String[] sensorIds,
+            TimeRange timeRange, int resolutionTier, int pageSize) {
+        return null;
+    }
+
     @Override
     public void deleteTrialData(Trial trial, MaybeConsumer<Success> onSuccess) {
 
     }
 
+    @Override
+    public void deleteTrialDataOutside(Trial trial, long keepFirstMillis, long keepLastMillis,
+            MaybeConsumer<Success> onSuccess) {
+
+    }
+
+    @Override
+    public void getSensorDataTags(MaybeConsumer<List<String>> onSuccess) {
+
+    }
+
+    @Override
+    public void deleteSensorData(String databaseTag, TimeRange timeRange,
+            MaybeConsumer<Success> onSuccess) {
+
+    }
+
+    @Override
+    public void reclaimSensorDataSpace(long maxBytes, MaybeConsumer<Long> onSuccess) {
+
+    }
+
     @Override
     public void createExperiment(MaybeConsumer<Experiment> onSuccess) {
 
@@ -85,6 +134,11 @@ public class StubDataController implements DataController {
 
     }
 
+    @Override
+    public void setRecordingTrial(String experimentId, String trialId) {
+
+    }
+
     @Override
     public String generateNewLabelId() {
         return null;
@@ -30,6 +30,7 @@ public class MemorySensorEnvironment implements SensorEnvironment {
     private final Clock mClock;
     private FakeBleClient mBleClient;
     private SensorHistoryStorage mHistoryStorage;
+    private final DerivedSensorEngine mDerivedSensorEngine = new DerivedSensorEngine();
 
     public MemorySensorEnvironment(RecordingDataController dataController, FakeBleClient bleClient,
             SensorHistoryStorage shs, Clock clock) {
@@ -60,4 +61,14 @@ public class MemorySensorEnvironment implements SensorEnvironment {
         return mHistoryStorage;
     }
 
+    @Override
+    public FrameCoalescer.FrameScheduler getLiveDataScheduler() {
+        return FrameCoalescer.immediately();
+    }
+
+    @Override
+    public DerivedSensorEngine getDerivedSensorEngine() {
+        return mDerivedSensorEngine;
+    }
+
 }
@@ -26,16 +26,22 @@ import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableS
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Range;
 import com.google.common.util.concurrent.MoreExecutors;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
 import io.reactivex.Observable;
 
+/**
+ * Keeps readings in lists, for tests.  Reads must come from the same thread as writes.
+ */
 public class InMemorySensorDatabase implements SensorDatabase {
     private List<List<Reading>> mReadings = new ArrayList<>();
 
@@ -76,6 +82,14 @@ public class InMemorySensorDatabase implements SensorDatabase {
         getTierReadings(resolutionTier).add(new Reading(databaseTag, timestampMillis, value));
     }
 
+    @Override
+    public void addScalarReadings(ScalarReadingBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            addScalarReading(batch.getSensorTag(i), batch.getResolutionTier(i),
+                    batch.getTimestampMillis(i), batch.getValue(i));
+        }
+    }
+
     private List<Reading> getTierReadings(int resolutionTier) {
         while (resolutionTier >= mReadings.size()) {
             mReadings.add(new ArrayList<Reading>());
@@ -86,12 +100,15 @@ public class InMemorySensorDatabase implements SensorDatabase {
     @Override
     public ScalarReadingList getScalarReadings(String sensorTag, TimeRange range,
             int resolutionTier, int maxRecords) {
+        List<Reading> matching = getMatchingReadings(new String[]{sensorTag}, range,
+                resolutionTier);
+        if (maxRecords > 0 && matching.size() > maxRecords) {
+            matching = matching.subList(0, maxRecords);
+        }
         final List<ScalarReading> readingsToReturn = new ArrayList<>();
-        for (Reading reading : getReadings(resolutionTier)) {
-            if (range.getTimes().contains(reading.getTimestampMillis())) {
-                readingsToReturn.add(
-                        new ScalarReading(reading.getTimestampMillis(), reading.getValue()));
-            }
+        for (Reading reading : matching) {
+            readingsToReturn.add(
+                    new ScalarReading(reading.getTimestampMillis(), reading.getValue()));
         }
         return new ScalarReadingList() {
             @Override
@@ -118,9 +135,58 @@ public class InMemorySensorDatabase implements SensorDatabase {
         };
     }
 
+    /**
+     * @return readings with one of the given tags, in the given tier and range, sorted in the
+     * range's order.  Readings with equal timestamps stay in the order they were added.
+     */
+    private List<Reading> getMatchingReadings(String[] sensorTags, TimeRange range,
+            int resolutionTier) {
+        List<String> tags = Arrays.asList(sensorTags);
+        long first = range.getFirstIncludedMillis();
+        long last = range.getLastIncludedMillis();
+        List<Reading> matching = new ArrayList<>();
+        for (Reading reading : getReadings(resolutionTier)) {
+            long timestamp = reading.getTimestampMillis();
+            if (tags.contains(reading.getDatabaseTag()) && timestamp >= first
+                    && timestamp <= last) {
+                matching.add(reading);
+            }
+        }
+        final boolean oldestFirst = range.getOrder() == TimeRange.ObservationOrder.OLDEST_FIRST;
+        // Readings at the same timestamp come in the order their tags were asked for.
+        Collections.sort(matching, (a, b) -> {
+            int byTime = oldestFirst
+                    ? Long.compare(a.getTimestampMillis(), b.getTimestampMillis())
+                    : Long.compare(b.getTimestampMillis(), a.getTimestampMillis());
+            return byTime != 0 ? byTime
+                    : tags.indexOf(a.getDatabaseTag()) - tags.indexOf(b.getDatabaseTag());
+        });
+        return matching;
+    }
+
     @Override
     public String getFirstDatabaseTagAfter(long timestamp) {
-        return null;
+        Reading first = null;
+        for (List<Reading> tier : mReadings) {
+            for (Reading reading : tier) {
+                if (reading.getTimestampMillis() > timestamp && (first == null
+                        || reading.getTimestampMillis() < first.getTimestampMillis())) {
+                    first = reading;
+                }
+            }
+        }
+        return first == null ? null : first.getDatabaseTag();
+    }
+
+    @Override
+    public List<String> getSensorTags() {
+        LinkedHashSet<String> tags = new LinkedHashSet<>();
+        for (List<Reading> tier : mReadings) {
+            for (Reading reading : tier) {
+                tags.add(reading.getDatabaseTag());
+            }
+        }
+        return new ArrayList<>(tags);
     }
 
     @Override
@@ -136,10 +202,66 @@ public class InMemorySensorDatabase implements SensorDatabase {
         }
     }
 
+    @Override
+    public ScalarStats getScalarStats(String sensorTag, TimeRange range) {
+        return ScalarStats.read(openScalarPageReader(new String[]{sensorTag}, range, 0), 100);
+    }
+
+    @Override
+    public long reclaimSpace(long maxBytes) {
+        // Deleted readings are already gone.
+        return 0;
+    }
+
+    @Override
+    public void startExperimentRecording(String experimentId, long startMillis) {
+        // Every experiment's readings are kept together.
+    }
+
+    @Override
+    public void stopExperimentRecording(String experimentId, Range<Long> times) {
+        // Every experiment's readings are kept together.
+    }
+
+    @Override
+    public void deleteExperimentReadings(String experimentId) {
+        // Every experiment's readings are kept together.
+    }
+
     @Override
     public Observable<ScalarReading> createScalarObservable(String[] sensorTags, TimeRange range,
             int resolutionTier) {
-        return null;
+        List<ScalarReading> readings = new ArrayList<>();
+        for (Reading reading : getMatchingReadings(sensorTags, range, resolutionTier)) {
+            readings.add(new ScalarReading(reading.getTimestampMillis(), reading.getValue(),
+                    reading.getDatabaseTag()));
+        }
+        return Observable.fromIterable(readings);
+    }
+
+    @Override
+    public ScalarPageReader openScalarPageReader(String[] sensorTags, TimeRange range,
+            int resolutionTier) {
+        final List<Reading> readings = getMatchingReadings(sensorTags, range, resolutionTier);
+        return new ScalarPageReader() {
+            private int mNextIndex = 0;
+
+            @Override
+            public boolean readNextPage(ScalarReadingPage page) {
+                page.clear();
+                while (!page.isFull() && mNextIndex < readings.size()) {
+                    Reading reading = readings.get(mNextIndex++);
+                    page.add(reading.getTimestampMillis(), reading.getValue(),
+                            reading.getDatabaseTag());
+                }
+                return !page.isEmpty();
+            }
+
+            @Override
+            public void close() {
+                mNextIndex = readings.size();
+            }
+        };
     }
 
     public List<Reading> getReadings(int resolutionTier) {
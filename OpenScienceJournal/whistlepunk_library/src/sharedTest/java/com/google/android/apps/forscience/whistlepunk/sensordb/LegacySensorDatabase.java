@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Writes sensor databases in the V3 format, where each reading stores its full tag, so tests can
+ * check how {@link SensorDatabaseImpl} upgrades them.
+ */
+public class LegacySensorDatabase {
+    private static final int V3_TIER = 3;
+
+    private final SQLiteOpenHelper mOpenHelper;
+
+    public LegacySensorDatabase(Context context, String name) {
+        mOpenHelper = new SQLiteOpenHelper(context, name, null, V3_TIER) {
+            @Override
+            public void onCreate(SQLiteDatabase db) {
+                db.execSQL("CREATE TABLE scalar_sensors (tag TEXT, timestampMillis INTEGER, "
+                        + "value REAL, resolutionTier INTEGER DEFAULT 0);");
+                db.execSQL("CREATE INDEX timestamp ON scalar_sensors(timestampMillis);");
+            }
+
+            @Override
+            public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            }
+        };
+    }
+
+    public void addScalarReadings(ScalarReadingBatch batch) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement("INSERT INTO scalar_sensors (tag, "
+                + "timestampMillis, value, resolutionTier) VALUES (?, ?, ?, ?);");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                insert.bindString(1, batch.getSensorTag(i));
+                insert.bindLong(2, batch.getTimestampMillis(i));
+                insert.bindDouble(3, batch.getValue(i));
+                insert.bindLong(4, batch.getResolutionTier(i));
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void close() {
+        mOpenHelper.close();
+    }
+}